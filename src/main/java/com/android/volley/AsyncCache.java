@@ -55,6 +55,22 @@ public abstract class AsyncCache {
      */
     public abstract void put(String key, Cache.Entry entry, OnWriteCompleteCallback callback);
 
+    /**
+     * Updates the metadata of a {@link Cache.Entry} in the cache without rewriting its data, and
+     * calls {@link OnWriteCompleteCallback#onWriteComplete} after the operation is finished.
+     *
+     * <p>This is used when a server responds to a conditional request with 304 Not Modified. {@link
+     * Cache.Entry#data} must hold the same data as the cached entry. The default implementation
+     * calls {@link #put}; subclasses which can update metadata separately should override it.
+     *
+     * @param key Cache key
+     * @param entry The entry with its new metadata
+     * @param callback Callback that will be notified when the information has been written
+     */
+    public void updateMetadata(String key, Cache.Entry entry, OnWriteCompleteCallback callback) {
+        put(key, entry, callback);
+    }
+
     /**
      * Clears the cache. Deletes all cached files from disk. Calls {@link
      * OnWriteCompleteCallback#onWriteComplete} after the operation is finished.
@@ -25,9 +25,10 @@ import com.android.volley.AsyncCache.OnGetCompleteCallback;
 import com.android.volley.AsyncNetwork.OnRequestComplete;
 import com.android.volley.Cache.Entry;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
@@ -82,6 +83,15 @@ public class AsyncRequestQueue extends RequestQueue {
     /** Manage list of waiting requests and de-duplicate requests with same cache key. */
     private final WaitingRequestManager mWaitingRequestManager = new WaitingRequestManager(this);
 
+    private final Object mCacheInitializationLock = new Object();
+
+    /**
+     * Requests which were added before the cache was initialized and are waiting for it to look up
+     * their entry, or null once the cache has been initialized or if it can serve lookups while it
+     * is initializing. Guarded by {@link #mCacheInitializationLock}.
+     */
+    @Nullable private List<Request<?>> mRequestsAwaitingCache = null;
+
     /**
      * Sets all the variables, but processing does not begin until {@link #start()} is called.
      *
@@ -119,36 +129,53 @@ public class AsyncRequestQueue extends RequestQueue {
         mNetwork.setNonBlockingExecutor(mNonBlockingExecutor);
         mNetwork.setNonBlockingScheduledExecutor(mNonBlockingScheduledExecutor);
 
-        mNonBlockingExecutor.execute(
+        // Requests which need the cache wait for it to be initialized, unless it can serve lookups
+        // in the meantime. Other requests are sent over the network right away.
+        final List<Request<?>> requestsAwaitingCache =
+                mAsyncCache == null && getCache() instanceof ConcurrentlyInitializableCache
+                        ? null
+                        : new ArrayList<Request<?>>();
+        synchronized (mCacheInitializationLock) {
+            mRequestsAwaitingCache = requestsAwaitingCache;
+        }
+        mBlockingExecutor.execute(
                 new Runnable() {
                     @Override
                     public void run() {
-                        // This is intentionally blocking, because we don't want to process any
-                        // requests until the cache is initialized.
                         if (mAsyncCache != null) {
-                            final CountDownLatch latch = new CountDownLatch(1);
                             mAsyncCache.initialize(
                                     new AsyncCache.OnWriteCompleteCallback() {
                                         @Override
                                         public void onWriteComplete() {
-                                            latch.countDown();
+                                            onCacheInitialized(requestsAwaitingCache);
                                         }
                                     });
-                            try {
-                                latch.await();
-                            } catch (InterruptedException e) {
-                                VolleyLog.e(
-                                        e, "Thread was interrupted while initializing the cache.");
-                                Thread.currentThread().interrupt();
-                                throw new RuntimeException(e);
-                            }
                         } else {
                             getCache().initialize();
+                            onCacheInitialized(requestsAwaitingCache);
                         }
                     }
                 });
     }
 
+    /**
+     * Looks up the requests which were waiting for the cache to be initialized.
+     *
+     * @param requestsAwaitingCache The list of waiting requests when initialization started, which
+     *     is replaced if the queue is restarted in the meantime
+     */
+    private void onCacheInitialized(@Nullable List<Request<?>> requestsAwaitingCache) {
+        synchronized (mCacheInitializationLock) {
+            if (requestsAwaitingCache == null || mRequestsAwaitingCache != requestsAwaitingCache) {
+                return;
+            }
+            mRequestsAwaitingCache = null;
+        }
+        for (Request<?> request : requestsAwaitingCache) {
+            beginCacheLookup(request);
+        }
+    }
+
     /** Shuts down and nullifies both executors */
     @Override
     public void stop() {
@@ -171,16 +198,26 @@ public class AsyncRequestQueue extends RequestQueue {
     <T> void beginRequest(Request<T> request) {
         // If the request is uncacheable, send it over the network.
         if (request.shouldCache()) {
-            if (mAsyncCache != null) {
-                mNonBlockingExecutor.execute(new CacheTask<>(request));
-            } else {
-                mBlockingExecutor.execute(new CacheTask<>(request));
+            synchronized (mCacheInitializationLock) {
+                if (mRequestsAwaitingCache != null) {
+                    mRequestsAwaitingCache.add(request);
+                    return;
+                }
             }
+            beginCacheLookup(request);
         } else {
             sendRequestOverNetwork(request);
         }
     }
 
+    private <T> void beginCacheLookup(Request<T> request) {
+        if (mAsyncCache != null) {
+            mNonBlockingExecutor.execute(new CacheTask<>(request));
+        } else {
+            mBlockingExecutor.execute(new CacheTask<>(request));
+        }
+    }
+
     @Override
     <T> void sendRequestOverNetwork(Request<T> request) {
         mNonBlockingExecutor.execute(new NetworkTask<>(request));
@@ -203,17 +240,22 @@ public class AsyncRequestQueue extends RequestQueue {
             mRequest.addMarker("cache-queue-take");
 
             // Attempt to retrieve this item from cache.
+            final long lookupStartNanos = System.nanoTime();
             if (mAsyncCache != null) {
-                mAsyncCache.get(
-                        mRequest.getCacheKey(),
+                CacheVariants.get(
+                        mAsyncCache,
+                        mRequest,
                         new OnGetCompleteCallback() {
                             @Override
                             public void onGetComplete(Entry entry) {
+                                getCacheStatsRecorder()
+                                        .recordLookup(entry, System.nanoTime() - lookupStartNanos);
                                 handleEntry(entry, mRequest);
                             }
                         });
             } else {
-                Entry entry = getCache().get(mRequest.getCacheKey());
+                Entry entry = CacheVariants.get(getCache(), mRequest);
+                getCacheStatsRecorder().recordLookup(entry, System.nanoTime() - lookupStartNanos);
                 handleEntry(entry, mRequest);
             }
         }
@@ -230,6 +272,22 @@ public class AsyncRequestQueue extends RequestQueue {
             return;
         }
 
+        // Deliver a cached error again if it can be used; otherwise, treat it as a miss.
+        if (CachedErrors.isError(entry)) {
+            if (CachedErrors.canDeliver(mRequest, entry)) {
+                mRequest.addMarker("cache-hit-error");
+                getResponseDelivery()
+                        .postError(
+                                mRequest, mRequest.parseNetworkError(CachedErrors.toError(entry)));
+            } else {
+                mRequest.addMarker("cache-hit-error-unusable");
+                if (!mWaitingRequestManager.maybeAddToWaitingRequests(mRequest)) {
+                    sendRequestOverNetwork(mRequest);
+                }
+            }
+            return;
+        }
+
         // If it is completely expired, just send it to the network.
         if (entry.isExpired()) {
             mRequest.addMarker("cache-hit-expired");
@@ -310,6 +368,28 @@ public class AsyncRequestQueue extends RequestQueue {
 
         @Override
         public void run() {
+            // A stale entry delivered in place of the error stays cached for later errors.
+            if (StaleIfError.canDeliver(mRequest, volleyError)
+                    && StaleIfError.deliver(mRequest, getResponseDelivery())) {
+                mRequest.notifyListenerResponseNotUsable();
+                return;
+            }
+            Entry errorEntry = CachedErrors.getCacheEntry(mRequest, volleyError);
+            if (errorEntry != null) {
+                if (mAsyncCache != null) {
+                    CacheVariants.put(
+                            mAsyncCache,
+                            mRequest,
+                            errorEntry,
+                            new AsyncCache.OnWriteCompleteCallback() {
+                                @Override
+                                public void onWriteComplete() {}
+                            });
+                } else {
+                    CacheVariants.put(getCache(), mRequest, errorEntry);
+                }
+                mRequest.addMarker("network-cache-written");
+            }
             VolleyError parsedError = mRequest.parseNetworkError(volleyError);
             getResponseDelivery().postError(mRequest, parsedError);
             mRequest.notifyListenerResponseNotUsable();
@@ -337,6 +417,14 @@ public class AsyncRequestQueue extends RequestQueue {
             // TODO: Figure out what to do with traffic stats tags. Can this be pushed to the
             // HTTP stack, or is it no longer feasible to support?
 
+            // Let the network write the response body to the cache while reading it.
+            if (mRequest.shouldCache()
+                    && mAsyncCache == null
+                    && getCache() instanceof StreamingPutCache) {
+                mRequest.setPendingCacheEntry(
+                        ((StreamingPutCache) getCache()).startPut(mRequest.getCacheKey()));
+            }
+
             // Perform the network request.
             mNetwork.performRequest(
                     mRequest,
@@ -348,6 +436,7 @@ public class AsyncRequestQueue extends RequestQueue {
                             // If the server returned 304 AND we delivered a response already,
                             // we're done -- don't deliver a second identical response.
                             if (networkResponse.notModified && mRequest.hasHadResponseDelivered()) {
+                                mRequest.discardPendingCacheEntry();
                                 mRequest.finish("not-modified");
                                 mRequest.notifyListenerResponseNotUsable();
                                 return;
@@ -360,6 +449,7 @@ public class AsyncRequestQueue extends RequestQueue {
 
                         @Override
                         public void onError(final VolleyError volleyError) {
+                            mRequest.discardPendingCacheEntry();
                             volleyError.setNetworkTimeMs(
                                     SystemClock.elapsedRealtime() - startTimeMs);
                             mBlockingExecutor.execute(new ParseErrorTask<>(mRequest, volleyError));
@@ -383,42 +473,67 @@ public class AsyncRequestQueue extends RequestQueue {
             mRequest.addMarker("network-parse-complete");
 
             // Write to cache if applicable.
-            // TODO: Only update cache metadata instead of entire
-            // record for 304s.
             if (mRequest.shouldCache() && response.cacheEntry != null) {
+                response.cacheEntry.retention = mRequest.getCacheRetention();
+                CachePutTask<T> cachePutTask =
+                        new CachePutTask<>(mRequest, response, networkResponse);
                 if (mAsyncCache != null) {
-                    mNonBlockingExecutor.execute(new CachePutTask<>(mRequest, response));
+                    mNonBlockingExecutor.execute(cachePutTask);
                 } else {
-                    mBlockingExecutor.execute(new CachePutTask<>(mRequest, response));
+                    mBlockingExecutor.execute(cachePutTask);
                 }
             } else {
+                mRequest.discardPendingCacheEntry();
                 finishRequest(mRequest, response, /* cached= */ false);
             }
         }
     }
 
+    /**
+     * Runnable that writes a response to the cache. For 304s, only the metadata of the cached entry
+     * is updated if the cache supports it.
+     */
     private class CachePutTask<T> extends RequestTask<T> {
         Response<?> response;
 
-        CachePutTask(Request<T> request, Response<?> response) {
+        NetworkResponse networkResponse;
+
+        CachePutTask(Request<T> request, Response<?> response, NetworkResponse networkResponse) {
             super(request);
             this.response = response;
+            this.networkResponse = networkResponse;
         }
 
         @Override
         public void run() {
             if (mAsyncCache != null) {
-                mAsyncCache.put(
-                        mRequest.getCacheKey(),
-                        response.cacheEntry,
+                AsyncCache.OnWriteCompleteCallback callback =
                         new AsyncCache.OnWriteCompleteCallback() {
                             @Override
                             public void onWriteComplete() {
                                 finishRequest(mRequest, response, /* cached= */ true);
                             }
-                        });
+                        };
+                String cacheKey = CacheVariants.getCacheKey(mRequest, response.cacheEntry);
+                if (networkResponse.notModified && cacheKey != null) {
+                    mAsyncCache.updateMetadata(cacheKey, response.cacheEntry, callback);
+                } else {
+                    CacheVariants.put(mAsyncCache, mRequest, response.cacheEntry, callback);
+                }
             } else {
-                getCache().put(mRequest.getCacheKey(), response.cacheEntry);
+                Cache cache = getCache();
+                if (networkResponse.notModified && cache instanceof MetadataUpdatableCache) {
+                    String cacheKey = CacheVariants.getCacheKey(mRequest, response.cacheEntry);
+                    if (cacheKey != null) {
+                        ((MetadataUpdatableCache) cache)
+                                .updateMetadata(cacheKey, response.cacheEntry);
+                    }
+                } else if (CacheVariants.varies(response.cacheEntry)
+                        || !mRequest.commitPendingCacheEntry(
+                                networkResponse, response.cacheEntry)) {
+                    CacheVariants.put(cache, mRequest, response.cacheEntry);
+                }
+                mRequest.discardPendingCacheEntry();
                 finishRequest(mRequest, response, /* cached= */ true);
             }
         }
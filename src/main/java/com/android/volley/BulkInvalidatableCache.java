@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which can invalidate every entry whose key matches a prefix or a filter.
+ *
+ * <p>This is used to expire all the cached pages of a collection after it was modified, without
+ * knowing which of them are cached. As with {@link Cache#invalidate}, invalidated entries remain in
+ * the cache so that they can be revalidated with the network.
+ */
+public interface BulkInvalidatableCache extends Cache {
+    /**
+     * Invalidates every entry whose key starts with the given prefix.
+     *
+     * @param keyPrefix Prefix of the keys to invalidate
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @return the number of entries invalidated
+     */
+    int invalidatePrefix(String keyPrefix, boolean fullExpire);
+
+    /**
+     * Invalidates every entry whose key is accepted by the given filter.
+     *
+     * @param filter Filter selecting the keys to invalidate
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @return the number of entries invalidated
+     */
+    int invalidateMatching(KeyFilter filter, boolean fullExpire);
+
+    /**
+     * A predicate on cache keys, for use by {@link #invalidateMatching}. It may be called from any
+     * thread, and must not call back into the cache.
+     */
+    interface KeyFilter {
+        boolean apply(String key);
+    }
+}
@@ -64,6 +64,25 @@ public interface Cache {
     /** Empties the cache. */
     void clear();
 
+    /**
+     * How hard a cache should try to keep an entry when it runs out of space, for caches which
+     * support it. Entries of lower classes are evicted first.
+     */
+    enum Retention {
+        /** Entries which are cheap to fetch again, and evicted before any other. */
+        LOW,
+        /** The default class. */
+        NORMAL,
+        /** Entries which are expensive to fetch again, and only evicted after lower classes. */
+        HIGH,
+        /**
+         * Entries which must survive bursts of other entries, such as configuration needed at
+         * startup. They are kept even once they have expired, so that they can be revalidated, and
+         * only evicted if the cache can't make room otherwise.
+         */
+        PINNED
+    }
+
     /** Data and metadata for an entry returned by the cache. */
     class Entry {
         /** The data returned from cache. */
@@ -100,6 +119,9 @@ public interface Cache {
          */
         public List<Header> allResponseHeaders;
 
+        /** Retention class of this record. Caches which don't support it ignore it. */
+        public Retention retention = Retention.NORMAL;
+
         /** True if the entry is expired. */
         public boolean isExpired() {
             return this.ttl < System.currentTimeMillis();
@@ -50,6 +50,9 @@ public class CacheDispatcher extends Thread {
     /** Manage list of waiting requests and de-duplicate requests with same cache key. */
     private final WaitingRequestManager mWaitingRequestManager;
 
+    /** Statistics of the lookups made by this dispatcher. */
+    private final CacheStatsRecorder mCacheStats;
+
     /**
      * Creates a new cache triage dispatcher thread. You must call {@link #start()} in order to
      * begin processing.
@@ -64,11 +67,21 @@ public class CacheDispatcher extends Thread {
             BlockingQueue<Request<?>> networkQueue,
             Cache cache,
             ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheStatsRecorder());
+    }
+
+    CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue,
+            BlockingQueue<Request<?>> networkQueue,
+            Cache cache,
+            ResponseDelivery delivery,
+            CacheStatsRecorder cacheStats) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
         mWaitingRequestManager = new WaitingRequestManager(this, networkQueue, delivery);
+        mCacheStats = cacheStats;
     }
 
     /**
@@ -85,8 +98,22 @@ public class CacheDispatcher extends Thread {
         if (DEBUG) VolleyLog.v("start new dispatcher");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        if (mCache instanceof ConcurrentlyInitializableCache) {
+            // Look up requests right away, while the cache is initialized in the background.
+            new Thread(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    mCache.initialize();
+                                }
+                            },
+                            "Volley-CacheInitializer")
+                    .start();
+        } else {
+            // Make a blocking call to initialize the cache.
+            mCache.initialize();
+        }
 
         while (true) {
             try {
@@ -109,9 +136,16 @@ public class CacheDispatcher extends Thread {
     // of time. Update consumer-proguard-rules.pro when modifying this. See also
     // https://github.com/google/volley/issues/114
     private void processRequest() throws InterruptedException {
-        // Get a request from the cache triage queue, blocking until
-        // at least one is available.
-        final Request<?> request = mCacheQueue.take();
+        Request<?> request = mCacheQueue.poll();
+        if (request == null) {
+            // Nothing to do; let the cache clean up while waiting for the next request.
+            if (mCache instanceof SweepableCache) {
+                ((SweepableCache) mCache).sweep();
+            }
+            // Get a request from the cache triage queue, blocking until
+            // at least one is available.
+            request = mCacheQueue.take();
+        }
         processRequest(request);
     }
 
@@ -128,7 +162,27 @@ public class CacheDispatcher extends Thread {
             }
 
             // Attempt to retrieve this item from cache.
-            Cache.Entry entry = mCache.get(request.getCacheKey());
+            long lookupStartNanos = System.nanoTime();
+            StreamingCache.StreamEntry streamEntry = null;
+            Cache.Entry entry;
+            if (request.shouldStreamCachedResponse() && mCache instanceof StreamingCache) {
+                streamEntry = CacheVariants.getStream((StreamingCache) mCache, request);
+                entry = streamEntry != null ? streamEntry.metadata : null;
+                if (entry != null
+                        && (entry.isExpired()
+                                || entry.refreshNeeded()
+                                || CachedErrors.isError(entry))) {
+                    // The entry is revalidated with the network, which needs its data in case the
+                    // server responds with 304 Not Modified, so read it into memory after all. The
+                    // data of a cached error is delivered with the error rather than parsed.
+                    streamEntry.close();
+                    streamEntry = null;
+                    entry = CacheVariants.get(mCache, request);
+                }
+            } else {
+                entry = CacheVariants.get(mCache, request);
+            }
+            mCacheStats.recordLookup(entry, System.nanoTime() - lookupStartNanos);
             if (entry == null) {
                 request.addMarker("cache-miss");
                 // Cache miss; send off to the network dispatcher.
@@ -138,6 +192,21 @@ public class CacheDispatcher extends Thread {
                 return;
             }
 
+            // Deliver a cached error again if it can be used; otherwise, treat it as a miss.
+            if (CachedErrors.isError(entry)) {
+                if (CachedErrors.canDeliver(request, entry)) {
+                    request.addMarker("cache-hit-error");
+                    mDelivery.postError(
+                            request, request.parseNetworkError(CachedErrors.toError(entry)));
+                } else {
+                    request.addMarker("cache-hit-error-unusable");
+                    if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)) {
+                        mNetworkQueue.put(request);
+                    }
+                }
+                return;
+            }
+
             // If it is completely expired, just send it to the network.
             if (entry.isExpired()) {
                 request.addMarker("cache-hit-expired");
@@ -150,14 +219,26 @@ public class CacheDispatcher extends Thread {
 
             // We have a cache hit; parse its data for delivery back to the request.
             request.addMarker("cache-hit");
-            Response<?> response =
-                    request.parseNetworkResponse(
-                            new NetworkResponse(entry.data, entry.responseHeaders));
+            Response<?> response;
+            if (streamEntry != null) {
+                try {
+                    response = request.parseCachedResponse(streamEntry);
+                } finally {
+                    streamEntry.close();
+                }
+            } else {
+                response =
+                        request.parseNetworkResponse(
+                                new NetworkResponse(entry.data, entry.responseHeaders));
+            }
             request.addMarker("cache-hit-parsed");
 
             if (!response.isSuccess()) {
                 request.addMarker("cache-parsing-failed");
-                mCache.invalidate(request.getCacheKey(), true);
+                String cacheKey = CacheVariants.getCacheKey(request, entry);
+                if (cacheKey != null) {
+                    mCache.invalidate(cacheKey, true);
+                }
                 request.setCacheEntry(null);
                 if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)) {
                     mNetworkQueue.put(request);
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Immutable snapshot of the statistics of a cache, or of the cache lookups made by a {@link
+ * RequestQueue}.
+ *
+ * <p>Every lookup is either a hit or a miss. Hits whose entry has expired, or needs to be refreshed
+ * with the network, are additionally counted as such, so that {@link #getHitRate()} can be compared
+ * with the rate of entries which could be used without going to the network.
+ *
+ * <p>Counts are collected without synchronizing with each other, so a snapshot taken while the
+ * cache is in use may not reflect an instant in which all of them were consistent.
+ */
+public final class CacheStats {
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mExpiredCount;
+    private final long mRefreshNeededCount;
+    private final long mTotalLookupTimeNanos;
+    private final long mPutCount;
+    private final long mTotalPutTimeNanos;
+    private final long mEvictionCount;
+    private final long mBytesRead;
+    private final long mBytesWritten;
+    private final long mCorruptionCount;
+
+    private CacheStats(Builder builder) {
+        mHitCount = builder.mHitCount;
+        mMissCount = builder.mMissCount;
+        mExpiredCount = builder.mExpiredCount;
+        mRefreshNeededCount = builder.mRefreshNeededCount;
+        mTotalLookupTimeNanos = builder.mTotalLookupTimeNanos;
+        mPutCount = builder.mPutCount;
+        mTotalPutTimeNanos = builder.mTotalPutTimeNanos;
+        mEvictionCount = builder.mEvictionCount;
+        mBytesRead = builder.mBytesRead;
+        mBytesWritten = builder.mBytesWritten;
+        mCorruptionCount = builder.mCorruptionCount;
+    }
+
+    /** Returns the number of lookups which found an entry, whether or not it had expired. */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of lookups which didn't find an entry. */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the number of lookups, which is the sum of hits and misses. */
+    public long getLookupCount() {
+        return mHitCount + mMissCount;
+    }
+
+    /** Returns the number of hits whose entry had expired and could only be revalidated. */
+    public long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /** Returns the number of hits whose entry could be used but needed to be refreshed. */
+    public long getRefreshNeededCount() {
+        return mRefreshNeededCount;
+    }
+
+    /** Returns the ratio of hits to lookups, or 1 if there hasn't been any lookup. */
+    public double getHitRate() {
+        long lookupCount = getLookupCount();
+        return lookupCount == 0 ? 1.0 : (double) mHitCount / lookupCount;
+    }
+
+    /** Returns the total time spent in lookups, in nanoseconds. */
+    public long getTotalLookupTimeNanos() {
+        return mTotalLookupTimeNanos;
+    }
+
+    /** Returns the average time spent in a lookup, in nanoseconds, or 0 without lookups. */
+    public long getAverageLookupTimeNanos() {
+        long lookupCount = getLookupCount();
+        return lookupCount == 0 ? 0 : mTotalLookupTimeNanos / lookupCount;
+    }
+
+    /** Returns the number of writes of entries. */
+    public long getPutCount() {
+        return mPutCount;
+    }
+
+    /** Returns the total time spent writing entries, in nanoseconds. */
+    public long getTotalPutTimeNanos() {
+        return mTotalPutTimeNanos;
+    }
+
+    /** Returns the average time spent writing an entry, in nanoseconds, or 0 without writes. */
+    public long getAveragePutTimeNanos() {
+        return mPutCount == 0 ? 0 : mTotalPutTimeNanos / mPutCount;
+    }
+
+    /** Returns the number of entries which were removed by the cache to reclaim space. */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /** Returns the number of bytes read by lookups. */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** Returns the number of bytes written by writes of entries and their metadata. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Returns the number of entries which were found to be corrupt when read, and removed. */
+    public long getCorruptionCount() {
+        return mCorruptionCount;
+    }
+
+    /**
+     * Returns the statistics accumulated since an earlier snapshot of the same source was taken.
+     */
+    public CacheStats minus(CacheStats other) {
+        return new Builder()
+                .setHitCount(mHitCount - other.mHitCount)
+                .setMissCount(mMissCount - other.mMissCount)
+                .setExpiredCount(mExpiredCount - other.mExpiredCount)
+                .setRefreshNeededCount(mRefreshNeededCount - other.mRefreshNeededCount)
+                .setTotalLookupTimeNanos(mTotalLookupTimeNanos - other.mTotalLookupTimeNanos)
+                .setPutCount(mPutCount - other.mPutCount)
+                .setTotalPutTimeNanos(mTotalPutTimeNanos - other.mTotalPutTimeNanos)
+                .setEvictionCount(mEvictionCount - other.mEvictionCount)
+                .setBytesRead(mBytesRead - other.mBytesRead)
+                .setBytesWritten(mBytesWritten - other.mBytesWritten)
+                .setCorruptionCount(mCorruptionCount - other.mCorruptionCount)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{"
+                + "hitCount="
+                + mHitCount
+                + ", missCount="
+                + mMissCount
+                + ", expiredCount="
+                + mExpiredCount
+                + ", refreshNeededCount="
+                + mRefreshNeededCount
+                + ", totalLookupTimeNanos="
+                + mTotalLookupTimeNanos
+                + ", putCount="
+                + mPutCount
+                + ", totalPutTimeNanos="
+                + mTotalPutTimeNanos
+                + ", evictionCount="
+                + mEvictionCount
+                + ", bytesRead="
+                + mBytesRead
+                + ", bytesWritten="
+                + mBytesWritten
+                + ", corruptionCount="
+                + mCorruptionCount
+                + '}';
+    }
+
+    /** Builder for {@link CacheStats}. All counts default to 0. */
+    public static class Builder {
+        private long mHitCount;
+        private long mMissCount;
+        private long mExpiredCount;
+        private long mRefreshNeededCount;
+        private long mTotalLookupTimeNanos;
+        private long mPutCount;
+        private long mTotalPutTimeNanos;
+        private long mEvictionCount;
+        private long mBytesRead;
+        private long mBytesWritten;
+        private long mCorruptionCount;
+
+        public Builder setHitCount(long hitCount) {
+            mHitCount = hitCount;
+            return this;
+        }
+
+        public Builder setMissCount(long missCount) {
+            mMissCount = missCount;
+            return this;
+        }
+
+        public Builder setExpiredCount(long expiredCount) {
+            mExpiredCount = expiredCount;
+            return this;
+        }
+
+        public Builder setRefreshNeededCount(long refreshNeededCount) {
+            mRefreshNeededCount = refreshNeededCount;
+            return this;
+        }
+
+        public Builder setTotalLookupTimeNanos(long totalLookupTimeNanos) {
+            mTotalLookupTimeNanos = totalLookupTimeNanos;
+            return this;
+        }
+
+        public Builder setPutCount(long putCount) {
+            mPutCount = putCount;
+            return this;
+        }
+
+        public Builder setTotalPutTimeNanos(long totalPutTimeNanos) {
+            mTotalPutTimeNanos = totalPutTimeNanos;
+            return this;
+        }
+
+        public Builder setEvictionCount(long evictionCount) {
+            mEvictionCount = evictionCount;
+            return this;
+        }
+
+        public Builder setBytesRead(long bytesRead) {
+            mBytesRead = bytesRead;
+            return this;
+        }
+
+        public Builder setBytesWritten(long bytesWritten) {
+            mBytesWritten = bytesWritten;
+            return this;
+        }
+
+        public Builder setCorruptionCount(long corruptionCount) {
+            mCorruptionCount = corruptionCount;
+            return this;
+        }
+
+        public CacheStats build() {
+            return new CacheStats(this);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe collector of the counts reported by a {@link CacheStats} snapshot.
+ *
+ * <p>Recording is meant to be cheap enough to do on every cache operation. The counts are striped:
+ * each thread adds to one of several sets of counters, chosen by its ID, so that threads running on
+ * different cores rarely contend for the same cache line. Taking a snapshot sums the stripes, and
+ * is comparatively expensive.
+ */
+public class CacheStatsRecorder {
+    private static final int HIT = 0;
+    private static final int MISS = 1;
+    private static final int EXPIRED = 2;
+    private static final int REFRESH_NEEDED = 3;
+    private static final int LOOKUP_TIME = 4;
+    private static final int PUT = 5;
+    private static final int PUT_TIME = 6;
+    private static final int EVICTION = 7;
+    private static final int BYTES_READ = 8;
+    private static final int BYTES_WRITTEN = 9;
+    private static final int CORRUPTION = 10;
+
+    /**
+     * Number of counters in a stripe. The counts use the first 11, and the 13 unused ones leave
+     * more than 64 bytes between the counts of adjacent stripes, so that they never share a cache
+     * line however the array is aligned.
+     */
+    private static final int STRIPE_LENGTH = 24;
+
+    /** Maximum number of stripes, which bounds the memory used by a recorder to 3 KB. */
+    private static final int MAX_STRIPE_COUNT = 16;
+
+    private final AtomicLongArray mCounters;
+    private final int mStripeMask;
+
+    public CacheStatsRecorder() {
+        int stripeCount = 1;
+        int processorCount = Runtime.getRuntime().availableProcessors();
+        while (stripeCount < processorCount && stripeCount < MAX_STRIPE_COUNT) {
+            stripeCount <<= 1;
+        }
+        mStripeMask = stripeCount - 1;
+        mCounters = new AtomicLongArray(stripeCount * STRIPE_LENGTH);
+    }
+
+    /**
+     * Records a lookup.
+     *
+     * @param entry The entry which was found, or null for a miss
+     * @param elapsedNanos The time spent in the lookup, in nanoseconds
+     */
+    public void recordLookup(@Nullable Cache.Entry entry, long elapsedNanos) {
+        int stripe = stripe();
+        if (entry == null) {
+            mCounters.incrementAndGet(stripe + MISS);
+        } else {
+            mCounters.incrementAndGet(stripe + HIT);
+            if (entry.isExpired()) {
+                mCounters.incrementAndGet(stripe + EXPIRED);
+            } else if (entry.refreshNeeded()) {
+                mCounters.incrementAndGet(stripe + REFRESH_NEEDED);
+            }
+        }
+        mCounters.addAndGet(stripe + LOOKUP_TIME, elapsedNanos);
+    }
+
+    /**
+     * Records a write of an entry.
+     *
+     * @param elapsedNanos The time spent writing the entry, in nanoseconds
+     */
+    public void recordPut(long elapsedNanos) {
+        int stripe = stripe();
+        mCounters.incrementAndGet(stripe + PUT);
+        mCounters.addAndGet(stripe + PUT_TIME, elapsedNanos);
+    }
+
+    /** Records the removal of an entry by the cache to reclaim space. */
+    public void recordEviction() {
+        mCounters.incrementAndGet(stripe() + EVICTION);
+    }
+
+    /** Records the removal of an entry which was found to be corrupt when read. */
+    public void recordCorruption() {
+        mCounters.incrementAndGet(stripe() + CORRUPTION);
+    }
+
+    public void recordBytesRead(long bytes) {
+        mCounters.addAndGet(stripe() + BYTES_READ, bytes);
+    }
+
+    public void recordBytesWritten(long bytes) {
+        mCounters.addAndGet(stripe() + BYTES_WRITTEN, bytes);
+    }
+
+    /** Returns the counts recorded so far. */
+    public CacheStats snapshot() {
+        return new CacheStats.Builder()
+                .setHitCount(sum(HIT))
+                .setMissCount(sum(MISS))
+                .setExpiredCount(sum(EXPIRED))
+                .setRefreshNeededCount(sum(REFRESH_NEEDED))
+                .setTotalLookupTimeNanos(sum(LOOKUP_TIME))
+                .setPutCount(sum(PUT))
+                .setTotalPutTimeNanos(sum(PUT_TIME))
+                .setEvictionCount(sum(EVICTION))
+                .setBytesRead(sum(BYTES_READ))
+                .setBytesWritten(sum(BYTES_WRITTEN))
+                .setCorruptionCount(sum(CORRUPTION))
+                .build();
+    }
+
+    /** Returns the index of the first counter of the stripe used by the current thread. */
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        // Thread IDs are usually sequential, which the multiplication spreads over the high bits.
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & mStripeMask) * STRIPE_LENGTH;
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int i = counter; i < mCounters.length(); i += STRIPE_LENGTH) {
+            sum += mCounters.get(i);
+        }
+        return sum;
+    }
+}
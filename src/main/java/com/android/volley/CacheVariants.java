@@ -0,0 +1,631 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.text.TextUtils;
+import androidx.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores and selects the variants of cached responses which vary on request headers.
+ *
+ * <p>A response with a {@code Vary} header may only be reused for requests which have the same
+ * values of the request headers it names. Such a response is cached under a secondary key, made of
+ * the cache key of the request followed by a SHA-256 hash of those names and values, so that values
+ * such as credentials never appear in keys, file headers or logs. The variants are listed by an
+ * index cached under the cache key followed by {@link #INDEX_KEY_SUFFIX}: a response header of the
+ * index lists the names from the {@code Vary} header, and its data holds the secondary keys of the
+ * variants, most recently written first. The most recently written variant is also cached under the
+ * cache key itself, so that callers reading the cache directly still find a response there. Lookups
+ * read the entry under the cache key and, if it varies, the index, then the variant matching the
+ * headers of the request. Writing a variant when the index already holds {@link
+ * #MAX_VARIANTS_PER_KEY} others removes the least recently written one.
+ *
+ * <p>Since secondary keys and the key of the index start with the cache key of the request,
+ * invalidating a prefix of keys also invalidates the variants. Invalidating the cache key itself
+ * only expires the entry under it, so the index records the TTLs that entry was written with, and
+ * lower TTLs found on lookup cap those of the variant selected; when a variant is written, the
+ * index records the caps of the others, so only the variant just written is fresh again. Responses
+ * without a {@code Vary} header are cached under the cache key of the request, as before, which
+ * replaces the varying entry; the index and the variants it held are no longer looked up and are
+ * eventually evicted.
+ */
+final class CacheVariants {
+
+    /** Response header of an index entry which lists the names of the varying request headers. */
+    static final String HEADER_VARIANT_INDEX = "X-Volley-Variant-Index";
+
+    /**
+     * Suffix of the key of an index after the cache key, which can't collide with secondary keys
+     * since it isn't hexadecimal.
+     */
+    static final String INDEX_KEY_SUFFIX = "\nvariants";
+
+    /** Maximum number of variants kept for a single cache key. */
+    static final int MAX_VARIANTS_PER_KEY = 4;
+
+    /**
+     * Locks serializing the updates of indexes, chosen by the hash of the cache key, so that
+     * concurrent writes of variants of the same key don't drop one another from the index.
+     */
+    private static final Object[] INDEX_LOCKS = new Object[16];
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (int i = 0; i < INDEX_LOCKS.length; i++) {
+            INDEX_LOCKS[i] = new Object();
+        }
+    }
+
+    private CacheVariants() {}
+
+    /** Returns whether the response cached in the entry varies on request headers. */
+    static boolean varies(Cache.Entry entry) {
+        return !getVaryHeaderNames(entry).isEmpty();
+    }
+
+    /**
+     * Returns the key under which the entry of a response to the request is cached, or null if the
+     * response varies on request headers which can't be read.
+     */
+    @Nullable
+    static String getCacheKey(Request<?> request, Cache.Entry entry) {
+        List<String> names = getVaryHeaderNames(entry);
+        return names.isEmpty() ? request.getCacheKey() : getVariantKey(request, names);
+    }
+
+    /** Returns the key of the index of the variants cached for the cache key. */
+    static String getIndexKey(String cacheKey) {
+        return cacheKey + INDEX_KEY_SUFFIX;
+    }
+
+    /** Returns the cached entry for the request, selecting its variant if the response varies. */
+    @Nullable
+    static Cache.Entry get(Cache cache, Request<?> request) {
+        String key = request.getCacheKey();
+        Cache.Entry entry = cache.get(key);
+        if (entry == null || !varies(entry)) {
+            return entry;
+        }
+        Cache.Entry index = cache.get(getIndexKey(key));
+        String variantKey = selectVariantKey(request, index);
+        return variantKey != null
+                ? capTtls(cache.get(variantKey), entry, index, key, variantKey)
+                : null;
+    }
+
+    /**
+     * Returns a stream of the cached entry for the request, selecting its variant if the response
+     * varies.
+     */
+    @Nullable
+    static StreamingCache.StreamEntry getStream(StreamingCache cache, Request<?> request) {
+        String key = request.getCacheKey();
+        StreamingCache.StreamEntry streamEntry = cache.getStream(key);
+        if (streamEntry == null || !varies(streamEntry.metadata)) {
+            return streamEntry;
+        }
+        streamEntry.close();
+        Cache.Entry index = cache.get(getIndexKey(key));
+        String variantKey = selectVariantKey(request, index);
+        if (variantKey == null) {
+            return null;
+        }
+        StreamingCache.StreamEntry variant = cache.getStream(variantKey);
+        if (variant == null) {
+            return null;
+        }
+        Cache.Entry metadata =
+                capTtls(variant.metadata, streamEntry.metadata, index, key, variantKey);
+        return metadata == variant.metadata
+                ? variant
+                : new StreamingCache.StreamEntry(metadata, variant.body, variant.length);
+    }
+
+    /**
+     * Looks up the cached entry for the request, selecting its variant if the response varies.
+     *
+     * @see #get(Cache, Request)
+     */
+    static void get(
+            final AsyncCache cache,
+            final Request<?> request,
+            final AsyncCache.OnGetCompleteCallback callback) {
+        final String key = request.getCacheKey();
+        cache.get(
+                key,
+                new AsyncCache.OnGetCompleteCallback() {
+                    @Override
+                    public void onGetComplete(@Nullable final Cache.Entry entry) {
+                        if (entry == null || !varies(entry)) {
+                            callback.onGetComplete(entry);
+                            return;
+                        }
+                        cache.get(
+                                getIndexKey(key),
+                                new AsyncCache.OnGetCompleteCallback() {
+                                    @Override
+                                    public void onGetComplete(@Nullable Cache.Entry index) {
+                                        getVariant(cache, request, entry, index, callback);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static void getVariant(
+            AsyncCache cache,
+            final Request<?> request,
+            final Cache.Entry entry,
+            @Nullable final Cache.Entry index,
+            final AsyncCache.OnGetCompleteCallback callback) {
+        final String variantKey = selectVariantKey(request, index);
+        if (variantKey == null) {
+            callback.onGetComplete(null);
+            return;
+        }
+        cache.get(
+                variantKey,
+                new AsyncCache.OnGetCompleteCallback() {
+                    @Override
+                    public void onGetComplete(@Nullable Cache.Entry variant) {
+                        callback.onGetComplete(
+                                capTtls(variant, entry, index, request.getCacheKey(), variantKey));
+                    }
+                });
+    }
+
+    /**
+     * Writes the entry of a response to the request, and the index of its variants if the response
+     * varies on request headers.
+     */
+    static void put(Cache cache, Request<?> request, Cache.Entry entry) {
+        List<String> names = getVaryHeaderNames(entry);
+        if (names.isEmpty()) {
+            cache.put(request.getCacheKey(), entry);
+            return;
+        }
+        String variantKey = getVariantKey(request, names);
+        if (variantKey == null) {
+            return;
+        }
+        String key = request.getCacheKey();
+        String indexKey = getIndexKey(key);
+        synchronized (INDEX_LOCKS[(key.hashCode() & 0x7fffffff) % INDEX_LOCKS.length]) {
+            cache.put(variantKey, entry);
+            List<String> removedKeys = new ArrayList<>();
+            Cache.Entry index =
+                    newIndex(
+                            cache.get(indexKey),
+                            cache.get(key),
+                            key,
+                            names,
+                            variantKey,
+                            entry,
+                            removedKeys);
+            for (String removedKey : removedKeys) {
+                cache.remove(removedKey);
+            }
+            if (index != null) {
+                // Until the entry under the cache key is replaced too, lookups may take it for an
+                // invalidated one, which only refetches variants rather than hiding invalidations.
+                cache.put(indexKey, index);
+                cache.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Writes the entry of a response to the request, and the index of its variants if the response
+     * varies on request headers.
+     *
+     * @see #put(Cache, Request, Cache.Entry)
+     */
+    static void put(
+            final AsyncCache cache,
+            final Request<?> request,
+            final Cache.Entry entry,
+            final AsyncCache.OnWriteCompleteCallback callback) {
+        final List<String> names = getVaryHeaderNames(entry);
+        if (names.isEmpty()) {
+            cache.put(request.getCacheKey(), entry, callback);
+            return;
+        }
+        final String variantKey = getVariantKey(request, names);
+        if (variantKey == null) {
+            callback.onWriteComplete();
+            return;
+        }
+        final String key = request.getCacheKey();
+        cache.put(
+                variantKey,
+                entry,
+                new AsyncCache.OnWriteCompleteCallback() {
+                    @Override
+                    public void onWriteComplete() {
+                        cache.get(
+                                getIndexKey(key),
+                                new AsyncCache.OnGetCompleteCallback() {
+                                    @Override
+                                    public void onGetComplete(@Nullable Cache.Entry current) {
+                                        putIndex(
+                                                cache,
+                                                key,
+                                                names,
+                                                variantKey,
+                                                entry,
+                                                current,
+                                                callback);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Writes the index listing a newly written variant, then the variant under the cache key.
+     *
+     * @see #put(Cache, Request, Cache.Entry)
+     */
+    private static void putIndex(
+            final AsyncCache cache,
+            final String key,
+            final List<String> names,
+            final String variantKey,
+            final Cache.Entry entry,
+            @Nullable final Cache.Entry current,
+            final AsyncCache.OnWriteCompleteCallback callback) {
+        cache.get(
+                key,
+                new AsyncCache.OnGetCompleteCallback() {
+                    @Override
+                    public void onGetComplete(@Nullable Cache.Entry head) {
+                        List<String> removedKeys = new ArrayList<>();
+                        Cache.Entry index =
+                                newIndex(current, head, key, names, variantKey, entry, removedKeys);
+                        removeAll(cache, removedKeys);
+                        if (index == null) {
+                            callback.onWriteComplete();
+                            return;
+                        }
+                        cache.put(
+                                getIndexKey(key),
+                                index,
+                                new AsyncCache.OnWriteCompleteCallback() {
+                                    @Override
+                                    public void onWriteComplete() {
+                                        cache.put(key, entry, callback);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static void removeAll(AsyncCache cache, List<String> keys) {
+        AsyncCache.OnWriteCompleteCallback ignored =
+                new AsyncCache.OnWriteCompleteCallback() {
+                    @Override
+                    public void onWriteComplete() {}
+                };
+        for (String key : keys) {
+            cache.remove(key, ignored);
+        }
+    }
+
+    /**
+     * Returns the index listing a newly written variant first, followed by the variants of the
+     * current index which vary on the same headers, or null if it can't be encoded.
+     *
+     * @param current The current index, if any
+     * @param head The entry currently cached under the cache key, if any
+     * @param removedKeys Receives the keys of the variants which are no longer indexed
+     */
+    @Nullable
+    private static Cache.Entry newIndex(
+            @Nullable Cache.Entry current,
+            @Nullable Cache.Entry head,
+            String key,
+            List<String> names,
+            String variantKey,
+            Cache.Entry variant,
+            List<String> removedKeys) {
+        List<IndexedVariant> variants = new ArrayList<>();
+        variants.add(
+                new IndexedVariant(
+                        variantKey.substring(key.length()), Long.MAX_VALUE, Long.MAX_VALUE));
+        if (current != null && isIndex(current)) {
+            boolean sameNames = names.equals(getIndexedHeaderNames(current));
+            VariantIndex index = readIndex(current.data);
+            // Invalidations of the cache key carry over to the variants of the current index. If
+            // the entry under it is gone, whether it was invalidated first is unknown.
+            long ttlCap = head != null ? index.getTtlCap(head) : 0;
+            long softTtlCap = head != null ? index.getSoftTtlCap(head) : 0;
+            for (IndexedVariant indexed : index.variants) {
+                String indexedKey = key + indexed.suffix;
+                if (indexedKey.equals(variantKey)) {
+                    continue;
+                }
+                if (sameNames && variants.size() < MAX_VARIANTS_PER_KEY) {
+                    variants.add(
+                            new IndexedVariant(
+                                    indexed.suffix,
+                                    Math.min(indexed.ttl, ttlCap),
+                                    Math.min(indexed.softTtl, softTtlCap)));
+                } else {
+                    removedKeys.add(indexedKey);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(variant.ttl);
+            out.writeLong(variant.softTtl);
+            out.writeInt(variants.size());
+            for (IndexedVariant indexed : variants) {
+                out.writeUTF(indexed.suffix);
+                out.writeLong(indexed.ttl);
+                out.writeLong(indexed.softTtl);
+            }
+        } catch (IOException e) {
+            // Only thrown for suffixes too long to encode, which are better left uncached.
+            VolleyLog.d("Failed to encode variant index for %s: %s", key, e.toString());
+            return null;
+        }
+
+        Cache.Entry index = new Cache.Entry();
+        index.data = bytes.toByteArray();
+        // The index is never served; it stays as long as any of its variants may be looked up.
+        index.ttl = Long.MAX_VALUE;
+        index.softTtl = Long.MAX_VALUE;
+        index.responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        index.responseHeaders.put(HEADER_VARIANT_INDEX, TextUtils.join(", ", names));
+        index.allResponseHeaders = new ArrayList<>();
+        index.allResponseHeaders.add(
+                new Header(HEADER_VARIANT_INDEX, index.responseHeaders.get(HEADER_VARIANT_INDEX)));
+        index.retention = variant.retention;
+        return index;
+    }
+
+    private static VariantIndex readIndex(@Nullable byte[] data) {
+        VariantIndex index = new VariantIndex();
+        if (data == null) {
+            return index;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            index.headTtl = in.readLong();
+            index.headSoftTtl = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.variants.add(new IndexedVariant(in.readUTF(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Ignoring malformed variant index: %s", e.toString());
+        }
+        return index;
+    }
+
+    /**
+     * Returns the key of the variant listed by the index which matches the headers of the request,
+     * or null if there is no index or the headers can't be read.
+     */
+    @Nullable
+    private static String selectVariantKey(Request<?> request, @Nullable Cache.Entry index) {
+        if (index == null || !isIndex(index)) {
+            return null;
+        }
+        return getVariantKey(request, getIndexedHeaderNames(index));
+    }
+
+    /**
+     * Returns the variant with its TTLs capped by those the index recorded for it and by
+     * invalidations of the entry under the cache key.
+     */
+    @Nullable
+    private static Cache.Entry capTtls(
+            @Nullable Cache.Entry variant,
+            Cache.Entry head,
+            Cache.Entry indexEntry,
+            String key,
+            String variantKey) {
+        if (variant == null) {
+            return null;
+        }
+        VariantIndex index = readIndex(indexEntry.data);
+        long ttl = index.getTtlCap(head);
+        long softTtl = index.getSoftTtlCap(head);
+        for (IndexedVariant indexed : index.variants) {
+            if (variantKey.equals(key + indexed.suffix)) {
+                ttl = Math.min(ttl, indexed.ttl);
+                softTtl = Math.min(softTtl, indexed.softTtl);
+                break;
+            }
+        }
+        if (variant.ttl <= ttl && variant.softTtl <= softTtl) {
+            return variant;
+        }
+        Cache.Entry capped = new Cache.Entry();
+        capped.data = variant.data;
+        capped.etag = variant.etag;
+        capped.serverDate = variant.serverDate;
+        capped.lastModified = variant.lastModified;
+        capped.ttl = Math.min(variant.ttl, ttl);
+        capped.softTtl = Math.min(variant.softTtl, softTtl);
+        capped.responseHeaders = variant.responseHeaders;
+        capped.allResponseHeaders = variant.allResponseHeaders;
+        capped.retention = variant.retention;
+        return capped;
+    }
+
+    private static boolean isIndex(Cache.Entry entry) {
+        return getHeader(entry, HEADER_VARIANT_INDEX) != null;
+    }
+
+    private static List<String> getIndexedHeaderNames(Cache.Entry index) {
+        return parseHeaderNames(Collections.singletonList(getHeader(index, HEADER_VARIANT_INDEX)));
+    }
+
+    /**
+     * Returns the lower-case, sorted names of the request headers named by the {@code Vary} headers
+     * of a response, which are empty if it doesn't vary.
+     */
+    private static List<String> getVaryHeaderNames(Cache.Entry entry) {
+        List<String> values = new ArrayList<>();
+        if (entry.allResponseHeaders != null) {
+            for (Header header : entry.allResponseHeaders) {
+                if ("Vary".equalsIgnoreCase(header.getName())) {
+                    values.add(header.getValue());
+                }
+            }
+        } else {
+            values.add(getHeader(entry, "Vary"));
+        }
+        return parseHeaderNames(values);
+    }
+
+    private static List<String> parseHeaderNames(List<String> values) {
+        List<String> names = new ArrayList<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            for (String name : value.split(",", 0)) {
+                name = name.trim().toLowerCase(Locale.US);
+                if (name.length() > 0 && !names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns the secondary key of the variant of the response selected by the headers of the
+     * request, or null if they can't be read.
+     */
+    @Nullable
+    private static String getVariantKey(Request<?> request, List<String> names) {
+        Map<String, String> headers;
+        try {
+            headers = request.getHeaders();
+        } catch (AuthFailureError e) {
+            return null;
+        }
+        // Header values can't contain line breaks, so they separate the values unambiguously.
+        StringBuilder variant = new StringBuilder();
+        for (String name : names) {
+            variant.append('\n').append(name).append(':');
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+                    variant.append(header.getValue().trim());
+                    break;
+                }
+            }
+        }
+        byte[] hash;
+        try {
+            hash =
+                    MessageDigest.getInstance("SHA-256")
+                            .digest(variant.toString().getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both SHA-256 and UTF-8 are required to be supported by every implementation.
+            throw new IllegalStateException(e);
+        }
+        StringBuilder key = new StringBuilder(request.getCacheKey()).append('\n');
+        for (byte b : hash) {
+            key.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return key.toString();
+    }
+
+    /** Returns the value of a response header of the entry, or null if it doesn't have one. */
+    @Nullable
+    static String getHeader(Cache.Entry entry, String name) {
+        if (entry.allResponseHeaders != null) {
+            for (Header header : entry.allResponseHeaders) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+        if (entry.responseHeaders != null) {
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /** A variant listed by an index, with the caps of its TTLs. */
+    private static class IndexedVariant {
+        /** The secondary key of the variant without the cache key it starts with. */
+        final String suffix;
+
+        final long ttl;
+        final long softTtl;
+
+        IndexedVariant(String suffix, long ttl, long softTtl) {
+            this.suffix = suffix;
+            this.ttl = ttl;
+            this.softTtl = softTtl;
+        }
+    }
+
+    /** The decoded data of an index. */
+    private static class VariantIndex {
+        /** The TTLs of the variant cached under the cache key when the index was written. */
+        long headTtl = Long.MAX_VALUE;
+
+        long headSoftTtl = Long.MAX_VALUE;
+
+        /** The indexed variants, most recently written first. */
+        final List<IndexedVariant> variants = new ArrayList<>();
+
+        /**
+         * Returns the cap of the TTLs of the variants, which is the TTL of the entry under the
+         * cache key if it was lowered by an invalidation since the index was written.
+         */
+        long getTtlCap(Cache.Entry head) {
+            return head.ttl < headTtl ? head.ttl : Long.MAX_VALUE;
+        }
+
+        /** Returns the cap of the soft TTLs of the variants, like {@link #getTtlCap}. */
+        long getSoftTtlCap(Cache.Entry head) {
+            return head.softTtl < headSoftTtl ? head.softTtl : Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Stores and replays error responses, for requests which cache errors.
+ *
+ * <p>An error response is cached like any other response, with an additional response header
+ * holding its status code which tells it apart from successful responses. While the entry is fresh,
+ * lookups for requests which cache errors deliver the error again without going to the network.
+ *
+ * @see Request#setErrorCacheTtlMs(long)
+ */
+final class CachedErrors {
+
+    /** Response header of a cached error response which holds its status code. */
+    static final String HEADER_ERROR_STATUS = "X-Volley-Error-Status";
+
+    private CachedErrors() {}
+
+    /** Returns the entry to cache for an error delivered to the request, or null. */
+    @Nullable
+    static Cache.Entry getCacheEntry(Request<?> request, VolleyError error) {
+        Cache.Entry errorEntry = error.getCacheEntry();
+        if (!request.shouldCache()
+                || request.getErrorCacheTtlMs() <= 0
+                || errorEntry == null
+                || error.networkResponse == null) {
+            return null;
+        }
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = errorEntry.data;
+        entry.etag = errorEntry.etag;
+        entry.serverDate = errorEntry.serverDate;
+        entry.lastModified = errorEntry.lastModified;
+        entry.ttl = errorEntry.ttl;
+        entry.softTtl = errorEntry.softTtl;
+        entry.retention = request.getCacheRetention();
+        String status = Integer.toString(error.networkResponse.statusCode);
+        entry.responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (errorEntry.responseHeaders != null) {
+            entry.responseHeaders.putAll(errorEntry.responseHeaders);
+        }
+        entry.responseHeaders.put(HEADER_ERROR_STATUS, status);
+        entry.allResponseHeaders = new ArrayList<>();
+        if (errorEntry.allResponseHeaders != null) {
+            entry.allResponseHeaders.addAll(errorEntry.allResponseHeaders);
+        }
+        entry.allResponseHeaders.add(new Header(HEADER_ERROR_STATUS, status));
+        return entry;
+    }
+
+    /** Returns whether the entry holds an error response. */
+    static boolean isError(Cache.Entry entry) {
+        return getStatusCode(entry) != 0;
+    }
+
+    /**
+     * Returns whether a cached error response can be delivered to the request, which is the case
+     * while it's fresh if the request caches errors itself. Errors aren't revalidated, so other
+     * requests are sent to the network as if there were no entry.
+     */
+    static boolean canDeliver(Request<?> request, Cache.Entry entry) {
+        return request.getErrorCacheTtlMs() > 0 && !entry.isExpired();
+    }
+
+    /** Returns the error to deliver for a cached error response. */
+    static VolleyError toError(Cache.Entry entry) {
+        int statusCode = getStatusCode(entry);
+        List<Header> headers = new ArrayList<>();
+        if (entry.allResponseHeaders != null) {
+            for (Header header : entry.allResponseHeaders) {
+                if (!HEADER_ERROR_STATUS.equalsIgnoreCase(header.getName())) {
+                    headers.add(header);
+                }
+            }
+        }
+        NetworkResponse response =
+                new NetworkResponse(statusCode, entry.data, /* notModified= */ false, 0, headers);
+        // Matches the errors thrown by the network for such responses.
+        if (statusCode >= 400 && statusCode <= 499) {
+            return new ClientError(response);
+        }
+        return new ServerError(response);
+    }
+
+    private static int getStatusCode(Cache.Entry entry) {
+        String status = null;
+        if (entry.allResponseHeaders != null) {
+            for (Header header : entry.allResponseHeaders) {
+                if (HEADER_ERROR_STATUS.equalsIgnoreCase(header.getName())) {
+                    status = header.getValue();
+                }
+            }
+        } else if (entry.responseHeaders != null) {
+            status = entry.responseHeaders.get(HEADER_ERROR_STATUS);
+        }
+        if (status == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(status);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
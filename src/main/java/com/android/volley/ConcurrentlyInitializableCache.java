@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which can serve lookups while {@link #initialize()} is running on another thread.
+ *
+ * <p>{@link CacheDispatcher} and {@link AsyncRequestQueue} initialize such a cache in the
+ * background and start looking up requests right away, so that the time to the first response
+ * doesn't depend on the size of the cache. {@link #get} must return the entry stored for the key
+ * even if initialization hasn't reached it yet, and may block while other operations wait for
+ * initialization to complete.
+ */
+public interface ConcurrentlyInitializableCache extends Cache {}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which keeps statistics of its operations.
+ *
+ * <p>The statistics of the lookups made by a {@link RequestQueue}, which also tell apart entries
+ * which had expired or needed to be refreshed, are available from {@link
+ * RequestQueue#getCacheStats()}.
+ */
+public interface InstrumentedCache extends Cache {
+    /** Returns a snapshot of the statistics collected since the cache was created. */
+    CacheStats getStats();
+}
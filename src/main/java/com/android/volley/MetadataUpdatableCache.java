@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which can update the metadata of an entry without rewriting its data.
+ *
+ * <p>This is used when a server responds to a conditional request with 304 Not Modified, in which
+ * case only the TTLs, dates and headers of the cached entry change. Caches which don't implement
+ * this interface are updated with {@link Cache#put} instead.
+ */
+public interface MetadataUpdatableCache extends Cache {
+    /**
+     * Updates the metadata of an entry in the cache.
+     *
+     * <p>{@link Entry#data} must hold the same data as the cached entry. Implementations may ignore
+     * it when the entry is present, and should fall back to {@link #put} when it isn't or when its
+     * metadata can't be updated separately.
+     *
+     * @param key Cache key
+     * @param entry The entry with its new metadata
+     */
+    void updateMetadata(String key, Entry entry);
+}
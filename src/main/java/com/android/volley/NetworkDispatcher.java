@@ -128,6 +128,12 @@ public class NetworkDispatcher extends Thread {
 
             addTrafficStatsTag(request);
 
+            // Let the network write the response body to the cache while reading it.
+            if (request.shouldCache() && mCache instanceof StreamingPutCache) {
+                request.setPendingCacheEntry(
+                        ((StreamingPutCache) mCache).startPut(request.getCacheKey()));
+            }
+
             // Perform the network request.
             NetworkResponse networkResponse = mNetwork.performRequest(request);
             request.addMarker("network-http-complete");
@@ -144,10 +150,22 @@ public class NetworkDispatcher extends Thread {
             Response<?> response = request.parseNetworkResponse(networkResponse);
             request.addMarker("network-parse-complete");
 
-            // Write to cache if applicable.
-            // TODO: Only update cache metadata instead of entire record for 304s.
+            // Write to cache if applicable. For 304s, only the metadata needs to be updated if the
+            // cache supports it.
             if (request.shouldCache() && response.cacheEntry != null) {
-                mCache.put(request.getCacheKey(), response.cacheEntry);
+                response.cacheEntry.retention = request.getCacheRetention();
+                if (networkResponse.notModified && mCache instanceof MetadataUpdatableCache) {
+                    String cacheKey = CacheVariants.getCacheKey(request, response.cacheEntry);
+                    if (cacheKey != null) {
+                        ((MetadataUpdatableCache) mCache)
+                                .updateMetadata(cacheKey, response.cacheEntry);
+                    }
+                } else if (CacheVariants.varies(response.cacheEntry)
+                        || !request.commitPendingCacheEntry(networkResponse, response.cacheEntry)) {
+                    // The pending entry is only written under the cache key of the request, while a
+                    // response varying on request headers is also written as an indexed variant.
+                    CacheVariants.put(mCache, request, response.cacheEntry);
+                }
                 request.addMarker("network-cache-written");
             }
 
@@ -157,7 +175,16 @@ public class NetworkDispatcher extends Thread {
             request.notifyListenerResponseReceived(response);
         } catch (VolleyError volleyError) {
             volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            parseAndDeliverNetworkError(request, volleyError);
+            // A stale entry delivered in place of the error stays cached for later errors.
+            if (!StaleIfError.canDeliver(request, volleyError)
+                    || !StaleIfError.deliver(request, mDelivery)) {
+                Cache.Entry errorEntry = CachedErrors.getCacheEntry(request, volleyError);
+                if (errorEntry != null) {
+                    CacheVariants.put(mCache, request, errorEntry);
+                    request.addMarker("network-cache-written");
+                }
+                parseAndDeliverNetworkError(request, volleyError);
+            }
             request.notifyListenerResponseNotUsable();
         } catch (Exception e) {
             VolleyLog.e(e, "Unhandled exception %s", e.toString());
@@ -166,6 +193,7 @@ public class NetworkDispatcher extends Thread {
             mDelivery.postError(request, volleyError);
             request.notifyListenerResponseNotUsable();
         } finally {
+            request.discardPendingCacheEntry();
             request.sendEvent(RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_FINISHED);
         }
     }
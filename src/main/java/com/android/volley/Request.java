@@ -25,6 +25,9 @@ import androidx.annotation.CallSuper;
 import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import com.android.volley.VolleyLog.MarkerLog;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
@@ -96,6 +99,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     // TODO(#190): Turn this off by default for anything other than GET requests.
     private boolean mShouldCache = true;
 
+    /** Retention class of the cache entry written for the response to this request. */
+    private Cache.Retention mCacheRetention = Cache.Retention.NORMAL;
+
+    /** How long error responses are cached by default, or 0 not to cache them. */
+    private long mErrorCacheTtlMs = 0;
+
+    /** How long after it expires a cache entry may be delivered in place of a network error. */
+    private long mMaxStaleOnErrorMs = 0;
+
     /** Whether or not this request has been canceled. */
     @GuardedBy("mLock")
     private boolean mCanceled = false;
@@ -120,6 +132,12 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     @Nullable private Cache.Entry mCacheEntry = null;
 
+    /**
+     * Cache entry which the response body is written to while it is read from the network, if the
+     * cache supports it.
+     */
+    @Nullable private StreamingPutCache.PendingEntry mPendingCacheEntry = null;
+
     /** An opaque token tagging this request; used for bulk cancellation. */
     private Object mTag;
 
@@ -327,6 +345,55 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCacheEntry;
     }
 
+    /**
+     * Annotates this request with a cache entry which the network should write the body of a
+     * successful response to while reading it. Used by the request queue when the cache is a {@link
+     * StreamingPutCache}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setPendingCacheEntry(@Nullable StreamingPutCache.PendingEntry entry) {
+        mPendingCacheEntry = entry;
+        return this;
+    }
+
+    /** Returns the pending cache entry for the response body, or null if there isn't one. */
+    @Nullable
+    public StreamingPutCache.PendingEntry getPendingCacheEntry() {
+        return mPendingCacheEntry;
+    }
+
+    /**
+     * Writes a parsed response to the cache by committing the pending cache entry, if there is one
+     * and it holds the body of the network response the entry was parsed from.
+     *
+     * @return true if the entry was committed; otherwise, it should be written with {@link
+     *     Cache#put}
+     */
+    boolean commitPendingCacheEntry(NetworkResponse networkResponse, Cache.Entry entry) {
+        StreamingPutCache.PendingEntry pendingEntry = mPendingCacheEntry;
+        mPendingCacheEntry = null;
+        if (pendingEntry == null) {
+            return false;
+        }
+        // Requests may cache something other than the network response, in which case the
+        // written body is of no use.
+        if (networkResponse.notModified || entry.data != networkResponse.data) {
+            pendingEntry.discard();
+            return false;
+        }
+        return pendingEntry.commit(entry);
+    }
+
+    /** Discards the pending cache entry, if there is one. */
+    void discardPendingCacheEntry() {
+        StreamingPutCache.PendingEntry pendingEntry = mPendingCacheEntry;
+        mPendingCacheEntry = null;
+        if (pendingEntry != null) {
+            pendingEntry.discard();
+        }
+    }
+
     /**
      * Mark this request as canceled.
      *
@@ -519,6 +586,70 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Sets the retention class of the cache entry written for the response to this request, which
+     * caches such as {@link com.android.volley.toolbox.DiskBasedCache} use to decide which entries
+     * to evict first. Defaults to {@link Cache.Retention#NORMAL}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setCacheRetention(Cache.Retention cacheRetention) {
+        mCacheRetention = cacheRetention;
+        return this;
+    }
+
+    /** Returns the retention class of the cache entry written for the response to this request. */
+    public final Cache.Retention getCacheRetention() {
+        return mCacheRetention;
+    }
+
+    /**
+     * Enables the caching of error responses to this request, such as 404 Not Found, so that
+     * repeating the request delivers the same error without going to the network.
+     *
+     * <p>Error responses are cached for as long as their Cache-Control or Expires headers allow.
+     * Without such headers, responses whose status code is cacheable by default, such as 404 Not
+     * Found and 410 Gone, are cached for the given time, and other errors aren't cached. Defaults
+     * to 0, which disables the caching of errors. Has no effect if {@link #shouldCache()} is false.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setErrorCacheTtlMs(long errorCacheTtlMs) {
+        mErrorCacheTtlMs = errorCacheTtlMs;
+        return this;
+    }
+
+    /**
+     * Returns how long error responses to this request are cached by default, or 0 if they aren't
+     * cached.
+     */
+    public final long getErrorCacheTtlMs() {
+        return mErrorCacheTtlMs;
+    }
+
+    /**
+     * Sets how long after it expires the cached response to this request may still be delivered in
+     * place of an error, when the server can't be reached, times out, or responds with a 5xx error.
+     *
+     * <p>Cached responses with a {@code stale-if-error} Cache-Control extension may be delivered
+     * for as long as it allows regardless of this setting, and those with {@code must-revalidate}
+     * only for as long as it allows. Defaults to 0.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setMaxStaleOnErrorMs(long maxStaleOnErrorMs) {
+        mMaxStaleOnErrorMs = maxStaleOnErrorMs;
+        return this;
+    }
+
+    /**
+     * Returns how long after it expires the cached response to this request may be delivered in
+     * place of an error.
+     */
+    public final long getMaxStaleOnErrorMs() {
+        return mMaxStaleOnErrorMs;
+    }
+
     /**
      * Sets whether or not the request should be retried in the event of an HTTP 5xx (server) error.
      *
@@ -612,6 +743,40 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     protected abstract Response<T> parseNetworkResponse(NetworkResponse response);
 
+    /**
+     * Returns true if cache hits for this request should be parsed from a stream with {@link
+     * #parseCachedResponse}, rather than read into memory and parsed with {@link
+     * #parseNetworkResponse}.
+     *
+     * <p>This only takes effect when the cache implements {@link StreamingCache}, and only for
+     * fresh entries; entries which need to be refreshed are still read into memory, since a 304
+     * response to the refresh reuses their data. Defaults to false.
+     */
+    public boolean shouldStreamCachedResponse() {
+        return false;
+    }
+
+    /**
+     * Subclasses which stream cache hits should override this method to parse the body of a cached
+     * response from a stream. This method will be called from a worker thread, and the entry is
+     * closed once it returns. The response will not be delivered if you return null.
+     *
+     * <p>The default implementation reads the body into memory and calls {@link
+     * #parseNetworkResponse}.
+     *
+     * @param entry The cached entry
+     * @return The parsed response, or null in the case of an error
+     */
+    protected Response<T> parseCachedResponse(StreamingCache.StreamEntry entry) {
+        byte[] data;
+        try {
+            data = readFully(entry.body, entry.length);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+        return parseNetworkResponse(new NetworkResponse(data, entry.metadata.responseHeaders));
+    }
+
     /**
      * Subclasses can override this method to parse 'networkError' and return a more specific error.
      *
@@ -716,4 +881,20 @@ public abstract class Request<T> implements Comparable<Request<T>> {
                 + " "
                 + mSequence;
     }
+
+    private static byte[] readFully(InputStream in, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid body length: " + length);
+        }
+        byte[] data = new byte[(int) length];
+        int offset = 0;
+        while (offset < data.length) {
+            int count = in.read(data, offset, data.length - offset);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+        return data;
+    }
 }
@@ -126,6 +126,9 @@ public class RequestQueue {
     /** Collection of listeners for request life cycle events. */
     private final List<RequestEventListener> mEventListeners = new ArrayList<>();
 
+    /** Statistics of the cache lookups made for requests, across restarts of the queue. */
+    private final CacheStatsRecorder mCacheStats = new CacheStatsRecorder();
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -171,7 +174,8 @@ public class RequestQueue {
     public void start() {
         stop(); // Make sure any currently running dispatchers are stopped.
         // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery, mCacheStats);
         mCacheDispatcher.start();
 
         // Create network dispatchers (and corresponding threads) up to the pool size.
@@ -205,6 +209,21 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * Returns the statistics of the cache lookups made for requests, whose outcome tells apart
+     * fresh entries from those which had expired or needed to be refreshed with the network.
+     *
+     * <p>Statistics of the cache itself, such as bytes read and written or evictions, are available
+     * from caches implementing {@link InstrumentedCache}.
+     */
+    public CacheStats getCacheStats() {
+        return mCacheStats.snapshot();
+    }
+
+    CacheStatsRecorder getCacheStatsRecorder() {
+        return mCacheStats;
+    }
+
     /**
      * A simple predicate or filter interface for Requests, for use by {@link
      * RequestQueue#cancelAll(RequestFilter)}.
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decides whether an expired cache entry can be delivered in place of a network error.
+ *
+ * <p>A request whose cache entry has expired is sent to the network with the entry attached. If the
+ * network then fails to reach the server, times out, or the server responds with a 5xx error, the
+ * entry may be delivered instead of the error while it's within either of:
+ *
+ * <ul>
+ *   <li>the {@code stale-if-error} Cache-Control extension of the cached response (RFC 5861), which
+ *       allows it to be used for the given number of seconds after it became stale;
+ *   <li>the maximum staleness set with {@link Request#setMaxStaleOnErrorMs(long)}, unless the
+ *       cached response has {@code must-revalidate} or {@code proxy-revalidate}.
+ * </ul>
+ *
+ * <p>The directive is read from the headers of the cached response, so entries written by any cache
+ * implementation, and before this support was added, are handled alike.
+ */
+final class StaleIfError {
+
+    private StaleIfError() {}
+
+    /** Returns whether the request's expired cache entry can be delivered in place of the error. */
+    static boolean canDeliver(Request<?> request, VolleyError error) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null
+                || request.hasHadResponseDelivered()
+                || !isServerUnavailable(error)
+                || CachedErrors.isError(entry)) {
+            return false;
+        }
+        return System.currentTimeMillis() <= getDeadline(entry, request.getMaxStaleOnErrorMs());
+    }
+
+    /**
+     * Delivers the request's expired cache entry in place of a network error.
+     *
+     * @return whether the entry was parsed successfully and delivered
+     */
+    static boolean deliver(Request<?> request, ResponseDelivery delivery) {
+        Cache.Entry entry = request.getCacheEntry();
+        Response<?> response =
+                request.parseNetworkResponse(
+                        new NetworkResponse(entry.data, entry.responseHeaders));
+        if (!response.isSuccess()) {
+            return false;
+        }
+        request.addMarker("network-error-stale-delivered");
+        request.markDelivered();
+        delivery.postResponse(request, response);
+        return true;
+    }
+
+    private static boolean isServerUnavailable(VolleyError error) {
+        if (error instanceof NoConnectionError || error instanceof TimeoutError) {
+            return true;
+        }
+        return error instanceof ServerError
+                && error.networkResponse != null
+                && error.networkResponse.statusCode >= 500
+                && error.networkResponse.statusCode <= 599;
+    }
+
+    /** Returns the time until which the entry can be delivered in place of an error. */
+    private static long getDeadline(Cache.Entry entry, long maxStaleMs) {
+        long staleIfErrorSeconds = 0;
+        boolean mustRevalidate = false;
+        String cacheControl = CacheVariants.getHeader(entry, "Cache-Control");
+        if (cacheControl != null) {
+            for (String token : cacheControl.split(",", 0)) {
+                token = token.trim();
+                if (token.startsWith("stale-if-error=")) {
+                    staleIfErrorSeconds = parseSeconds(token.substring(15));
+                } else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
+                    mustRevalidate = true;
+                }
+            }
+        }
+        long deadline = saturatedAdd(entry.softTtl, staleIfErrorSeconds * 1000);
+        if (!mustRevalidate) {
+            deadline = Math.max(deadline, saturatedAdd(entry.ttl, Math.max(0, maxStaleMs)));
+        }
+        return deadline;
+    }
+
+    private static long parseSeconds(@Nullable String value) {
+        try {
+            return Math.max(0, Math.min(Long.parseLong(value), Long.MAX_VALUE / 1000));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < a ? Long.MAX_VALUE : sum;
+    }
+}
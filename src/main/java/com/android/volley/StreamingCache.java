@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import androidx.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link Cache} which can return the body of an entry as a stream, instead of reading all of it
+ * into {@link Entry#data}.
+ *
+ * <p>{@link CacheDispatcher} uses this for requests which opt in with {@link
+ * Request#shouldStreamCachedResponse()}, so that large entries can be parsed or copied without
+ * allocating an array for the whole body.
+ */
+public interface StreamingCache extends Cache {
+    /**
+     * Retrieves an entry from the cache with its body as a stream.
+     *
+     * @param key Cache key
+     * @return A {@link StreamEntry}, which the caller must close, or null in the event of a cache
+     *     miss
+     */
+    @Nullable
+    StreamEntry getStream(String key);
+
+    /** A cache entry whose body is read from a stream. */
+    class StreamEntry implements Closeable {
+        /**
+         * The metadata of the entry: its TTLs, dates and headers. {@link Entry#data} may be null
+         * and must not be used; the body is read from {@link #body} instead.
+         */
+        public final Entry metadata;
+
+        /** The body of the entry. */
+        public final InputStream body;
+
+        /** The length of the body in bytes. */
+        public final long length;
+
+        public StreamEntry(Entry metadata, InputStream body, long length) {
+            this.metadata = metadata;
+            this.body = body;
+            this.length = length;
+        }
+
+        /** Releases the resources held by the body, such as an open file. */
+        @Override
+        public void close() {
+            try {
+                body.close();
+            } catch (IOException e) {
+                VolleyLog.d("Failed to close cache entry stream: %s", e.toString());
+            }
+        }
+    }
+}
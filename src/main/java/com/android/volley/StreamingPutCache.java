@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import androidx.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * A {@link Cache} which can write the body of an entry while it is being received from the network,
+ * before the metadata of the entry is known.
+ *
+ * <p>When the cache supports it, the request queue starts a {@link PendingEntry} for each request
+ * which should be cached and attaches it to the request with {@link Request#setPendingCacheEntry}.
+ * The network writes successful response bodies to it as they are read, and once the response has
+ * been parsed, the entry is committed with its metadata, or discarded if the response is not
+ * cached.
+ */
+public interface StreamingPutCache extends Cache {
+    /**
+     * Starts writing an entry.
+     *
+     * @param key Cache key
+     * @return The pending entry, or null if bodies can't be written ahead of their metadata
+     */
+    @Nullable
+    PendingEntry startPut(String key);
+
+    /**
+     * An entry whose body is being written. Only one thread may use it at a time.
+     *
+     * <p>Until it is committed, the pending entry has no effect on the contents of the cache.
+     */
+    interface PendingEntry {
+        /**
+         * Appends part of the body to the entry. If this throws, the entry is discarded.
+         *
+         * @throws IOException if the body couldn't be written, or the entry was already committed
+         *     or discarded
+         */
+        void write(byte[] buffer, int offset, int count) throws IOException;
+
+        /**
+         * Replaces the entry in the cache with the body written so far and the metadata of the
+         * given entry, atomically.
+         *
+         * @param entry The entry to cache, whose {@link Entry#data} must hold the written body
+         * @return false if the entry couldn't be committed, for instance because the written body
+         *     doesn't match the entry, in which case the caller should fall back to {@link #put}
+         */
+        boolean commit(Entry entry);
+
+        /** Discards the written body. Does nothing if the entry was committed or discarded. */
+        void discard();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which can remove its expired entries in the background.
+ *
+ * <p>{@link CacheDispatcher} calls {@link #sweep()} on its thread whenever it runs out of requests
+ * to process, so that the work doesn't delay any request.
+ */
+public interface SweepableCache extends Cache {
+    /**
+     * Removes expired entries from the cache, if sweeping is enabled and due.
+     *
+     * <p>This is called each time the cache thread becomes idle, so implementations should return
+     * quickly when a sweep has run recently.
+     */
+    void sweep();
+}
@@ -16,11 +16,14 @@
 
 package com.android.volley;
 
+import androidx.annotation.Nullable;
+
 /** Exception style class encapsulating Volley errors */
 @SuppressWarnings("serial")
 public class VolleyError extends Exception {
     public final NetworkResponse networkResponse;
     private long networkTimeMs;
+    @Nullable private transient Cache.Entry cacheEntry;
 
     public VolleyError() {
         networkResponse = null;
@@ -52,4 +55,20 @@ public class VolleyError extends Exception {
     public long getNetworkTimeMs() {
         return networkTimeMs;
     }
+
+    /**
+     * Sets the entry with which the error response should be cached, for requests which cache
+     * errors.
+     *
+     * @see Request#setErrorCacheTtlMs(long)
+     */
+    public void setCacheEntry(@Nullable Cache.Entry cacheEntry) {
+        this.cacheEntry = cacheEntry;
+    }
+
+    /** Returns the entry with which the error response should be cached, or null. */
+    @Nullable
+    public Cache.Entry getCacheEntry() {
+        return cacheEntry;
+    }
 }
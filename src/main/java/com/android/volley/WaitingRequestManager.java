@@ -20,6 +20,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
@@ -88,8 +89,17 @@ class WaitingRequestManager implements Request.NetworkRequestCompleteListener {
         }
         String cacheKey = request.getCacheKey();
         List<Request<?>> waitingRequests;
+        List<Request<?>> otherVariants = null;
         synchronized (this) {
             waitingRequests = mWaitingRequests.remove(cacheKey);
+            if (waitingRequests != null && CacheVariants.varies(response.cacheEntry)) {
+                // The response can only be used by requests which select the same variant; the
+                // others keep waiting, and one of them is sent to the network below.
+                otherVariants = removeOtherVariants(waitingRequests, request, response.cacheEntry);
+                if (!otherVariants.isEmpty()) {
+                    mWaitingRequests.put(cacheKey, otherVariants);
+                }
+            }
         }
         if (waitingRequests != null) {
             if (VolleyLog.DEBUG) {
@@ -102,6 +112,31 @@ class WaitingRequestManager implements Request.NetworkRequestCompleteListener {
                 mResponseDelivery.postResponse(waiting, response);
             }
         }
+        if (otherVariants != null && !otherVariants.isEmpty()) {
+            onNoUsableResponseReceived(request);
+        }
+    }
+
+    /**
+     * Removes the requests which select a different variant of a response varying on request
+     * headers than the request it was received for.
+     *
+     * @return the removed requests
+     */
+    private static List<Request<?>> removeOtherVariants(
+            List<Request<?>> waitingRequests, Request<?> request, Cache.Entry entry) {
+        String variantKey = CacheVariants.getCacheKey(request, entry);
+        List<Request<?>> otherVariants = new ArrayList<>();
+        Iterator<Request<?>> iterator = waitingRequests.iterator();
+        while (iterator.hasNext()) {
+            Request<?> waiting = iterator.next();
+            if (variantKey == null
+                    || !variantKey.equals(CacheVariants.getCacheKey(waiting, entry))) {
+                otherVariants.add(waiting);
+                iterator.remove();
+            }
+        }
+        return otherVariants;
     }
 
     /** No valid response received from network, release waiting requests. */
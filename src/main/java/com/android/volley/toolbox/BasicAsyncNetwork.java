@@ -238,7 +238,10 @@ public class BasicAsyncNetwork extends AsyncNetwork {
             try {
                 finalResponseContents =
                         NetworkUtility.inputStreamToBytes(
-                                inputStream, httpResponse.getContentLength(), mPool);
+                                inputStream,
+                                httpResponse.getContentLength(),
+                                mPool,
+                                NetworkUtility.getPendingCacheEntry(request, statusCode));
             } catch (IOException e) {
                 onRequestFailed(request, callback, e, requestStartMs, httpResponse, null);
                 return;
@@ -116,7 +116,10 @@ public class BasicNetwork implements Network {
                 if (inputStream != null) {
                     responseContents =
                             NetworkUtility.inputStreamToBytes(
-                                    inputStream, httpResponse.getContentLength(), mPool);
+                                    inputStream,
+                                    httpResponse.getContentLength(),
+                                    mPool,
+                                    NetworkUtility.getPendingCacheEntry(request, statusCode));
                 } else {
                     // Add 0 byte response as a way of honestly representing a
                     // no-content request.
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import androidx.annotation.VisibleForTesting;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link ByteArrayPool} which serves concurrent callers without locking.
+ *
+ * <p>Buffers are kept in size classes of powers of two, each of which is a lock-free stack, so that
+ * getting and returning a buffer take constant time however many buffers are pooled. A request for
+ * a buffer is served from the class of the smallest power of two which is at least the requested
+ * size, or the next larger class; a new buffer is allocated with that power of two as its size, so
+ * that it can serve any request of its class once it is returned. Buffers larger than the size
+ * limit of the pool are never pooled, and are allocated with the requested size.
+ *
+ * <p>The total size of the pooled buffers never exceeds the size limit. Unlike {@link
+ * ByteArrayPool}, which disposes of its least recently used buffers to make room, this pool
+ * disposes of a returned buffer which doesn't fit, which keeps the buffers which were already
+ * pooled and avoids any coordination between size classes.
+ *
+ * <p>Since buffers are rounded up to their size class, they may take up to twice the memory of
+ * those of {@link ByteArrayPool}. This pool is meant for networks shared by many threads, where the
+ * lock of {@link ByteArrayPool} is contended; pass it to {@link
+ * BasicNetwork#BasicNetwork(BaseHttpStack, ByteArrayPool)} or {@link
+ * BasicAsyncNetwork.Builder#setPool} to use it.
+ */
+public class BucketedByteArrayPool extends ByteArrayPool {
+
+    /** Number of size classes, one for each power of two an array length can be. */
+    private static final int SIZE_CLASS_COUNT = 31;
+
+    /** The top of the stack of each size class, which holds buffers of at least 2^index bytes. */
+    private final AtomicReferenceArray<Node> mStacks = new AtomicReferenceArray<>(SIZE_CLASS_COUNT);
+
+    /** The total size of the pooled buffers, including those being pushed. */
+    private final AtomicInteger mPooledBytes = new AtomicInteger();
+
+    private final int mSizeLimit;
+
+    /** The largest size class whose buffers fit within the size limit, or -1 for none. */
+    private final int mMaxSizeClass;
+
+    /** @param sizeLimit the maximum size of the pool, in bytes */
+    public BucketedByteArrayPool(int sizeLimit) {
+        super(sizeLimit);
+        mSizeLimit = sizeLimit;
+        mMaxSizeClass = sizeLimit > 0 ? floorSizeClass(sizeLimit) : -1;
+    }
+
+    /**
+     * Returns a buffer from the pool if one is available in the size class of the requested size or
+     * the next one, or allocates a new one if a pooled one is not available.
+     *
+     * @param len the minimum size, in bytes, of the requested buffer. The returned buffer may be
+     *     larger.
+     * @return a byte[] buffer is always returned.
+     */
+    @Override
+    public byte[] getBuf(int len) {
+        int sizeClass = len > 1 ? ceilSizeClass(len) : 0;
+        if (sizeClass > mMaxSizeClass) {
+            return new byte[len];
+        }
+        int lastSizeClass = Math.min(sizeClass + 1, mMaxSizeClass);
+        for (int i = sizeClass; i <= lastSizeClass; i++) {
+            byte[] buf = pop(i);
+            if (buf != null) {
+                mPooledBytes.addAndGet(-buf.length);
+                return buf;
+            }
+        }
+        return new byte[1 << sizeClass];
+    }
+
+    /**
+     * Returns a buffer to the pool, unless it would make the pool exceed its allotted size.
+     *
+     * @param buf the buffer to return to the pool.
+     */
+    @Override
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length == 0 || buf.length > mSizeLimit) {
+            return;
+        }
+        // Reserve room for the buffer before pushing it, so that the limit holds at all times.
+        int pooledBytes;
+        do {
+            pooledBytes = mPooledBytes.get();
+            if (pooledBytes > mSizeLimit - buf.length) {
+                return;
+            }
+        } while (!mPooledBytes.compareAndSet(pooledBytes, pooledBytes + buf.length));
+        push(floorSizeClass(buf.length), buf);
+    }
+
+    /** Returns the total size of the buffers in the pool. */
+    @VisibleForTesting
+    int getPooledBytes() {
+        return mPooledBytes.get();
+    }
+
+    private void push(int sizeClass, byte[] buf) {
+        // Nodes are never reused, so a top which hasn't changed can't have been popped and pushed
+        // again in the meantime (the ABA problem).
+        Node node = new Node(buf);
+        do {
+            node.next = mStacks.get(sizeClass);
+        } while (!mStacks.compareAndSet(sizeClass, node.next, node));
+    }
+
+    private byte[] pop(int sizeClass) {
+        Node node;
+        do {
+            node = mStacks.get(sizeClass);
+            if (node == null) {
+                return null;
+            }
+        } while (!mStacks.compareAndSet(sizeClass, node, node.next));
+        return node.buf;
+    }
+
+    /** Returns the size class of the largest power of two which is at most the given length. */
+    private static int floorSizeClass(int length) {
+        return 31 - Integer.numberOfLeadingZeros(length);
+    }
+
+    /** Returns the size class of the smallest power of two which is at least the given length. */
+    private static int ceilSizeClass(int length) {
+        return 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    private static class Node {
+        final byte[] buf;
+        Node next;
+
+        Node(byte[] buf) {
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import androidx.annotation.Nullable;
+import com.android.volley.Cache;
+import com.android.volley.Cache.Entry;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Packs cache entries into a single snapshot file, which can be shipped with an app to give a new
+ * install or a cleared cache a warm start.
+ *
+ * <p>A snapshot starts with a magic number, followed by one record per entry and an empty record
+ * marking its end. Each record is the length of the rest of the record as a varint, followed by the
+ * header of the entry in the format of {@link DiskBasedCache} files, and then its data. Snapshots
+ * are imported into a {@link DiskBasedCache} with {@link DiskBasedCache#importSnapshot}, which
+ * copies them into the cache in a single pass.
+ */
+public final class CacheSnapshot {
+    /** Magic number for the current version of the snapshot format. */
+    static final int SNAPSHOT_MAGIC = 0x20201202;
+
+    private CacheSnapshot() {}
+
+    /**
+     * Writes the entries with the given keys to a snapshot. Keys which aren't in the cache are
+     * skipped. The stream is flushed, but not closed.
+     *
+     * @return the number of entries written
+     * @throws IOException if the snapshot can't be written
+     */
+    public static int write(Cache cache, Iterable<String> keys, OutputStream out)
+            throws IOException {
+        BufferedOutputStream bos = new BufferedOutputStream(out);
+        DiskBasedCache.writeInt(bos, SNAPSHOT_MAGIC);
+        int written = 0;
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        for (String key : keys) {
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                continue;
+            }
+            headerBytes.reset();
+            if (!new CacheHeader(key, entry).writeHeader(headerBytes)) {
+                throw new IOException("Failed to write header for " + key);
+            }
+            DiskBasedCache.writeVarLong(bos, headerBytes.size() + (long) entry.data.length);
+            headerBytes.writeTo(bos);
+            bos.write(entry.data);
+            written++;
+        }
+        DiskBasedCache.writeVarLong(bos, 0);
+        bos.flush();
+        return written;
+    }
+
+    /**
+     * Puts the entries of a snapshot into the given cache, skipping those whose key is already in
+     * the cache. Snapshots are imported into a {@link DiskBasedCache} with {@link
+     * DiskBasedCache#importSnapshot}, and into other caches one entry at a time.
+     *
+     * @return the number of entries imported
+     * @throws IOException if the snapshot can't be read. Entries read before the error may have
+     *     been imported, unless the cache is a {@link DiskBasedCache}.
+     */
+    public static int read(InputStream in, Cache cache) throws IOException {
+        if (cache instanceof DiskBasedCache) {
+            return ((DiskBasedCache) cache).importSnapshot(in);
+        }
+        Reader reader = new Reader(in);
+        int imported = 0;
+        Record record;
+        while ((record = reader.next()) != null) {
+            if (cache.get(record.header.key) == null) {
+                cache.put(record.header.key, record.toCacheEntry());
+                imported++;
+            }
+        }
+        return imported;
+    }
+
+    /** An entry read from a snapshot. */
+    static class Record {
+        final CacheHeader header;
+        final byte[] data;
+
+        Record(CacheHeader header, byte[] data) {
+            this.header = header;
+            this.data = data;
+        }
+
+        Entry toCacheEntry() {
+            return header.toCacheEntry(data);
+        }
+    }
+
+    /** Reads the records of a snapshot one at a time. */
+    static class Reader {
+        private final InputStream mIn;
+
+        /**
+         * Starts reading a snapshot.
+         *
+         * @throws IOException if the stream doesn't start with a snapshot
+         */
+        Reader(InputStream in) throws IOException {
+            mIn = new BufferedInputStream(in);
+            int magic = DiskBasedCache.readInt(mIn);
+            if (magic != SNAPSHOT_MAGIC) {
+                throw new IOException("Unknown snapshot magic " + magic);
+            }
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return the record, or null once the end of the snapshot has been reached
+         * @throws IOException if the snapshot is truncated or corrupt
+         */
+        @Nullable
+        Record next() throws IOException {
+            long length = DiskBasedCache.readVarLong(mIn);
+            if (length == 0) {
+                return null;
+            }
+            CountingInputStream cis = new CountingInputStream(mIn, length);
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (header.legacyFormat || header.deflated) {
+                throw new IOException("Unexpected snapshot record for " + header.key);
+            }
+            byte[] data = DiskBasedCache.streamToBytes(cis, cis.bytesRemaining());
+            return new Record(header, data);
+        }
+    }
+}
@@ -0,0 +1,729 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Build;
+import android.text.TextUtils;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.android.volley.AsyncCache;
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
+import com.android.volley.toolbox.DiskBasedCache.FileSupplier;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link AsyncCache} implementation that caches files directly onto the hard disk in the specified
+ * directory, using an {@link AsynchronousFileChannel} so that reads and writes don't occupy a
+ * thread while waiting on the disk. The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>Entries are stored in the same format and file layouts as {@link DiskBasedCache}, so an app
+ * may switch between the two implementations on the same directory without losing its cache. As
+ * with {@link DiskBasedCache}, files written with the other layout are moved to where the
+ * configured layout expects them on initialization. The journal of {@link DiskBasedCache} isn't
+ * kept up to date by this cache, so it is deleted on initialization like any other unreadable file.
+ * The data of entries which {@link DiskBasedCache} stored with a checksum is verified on every
+ * read, and entries which fail verification are removed.
+ *
+ * <p>Initialization reads the header of every entry on the calling thread, as with {@link
+ * DiskBasedCache}, since the whole index is needed before the cache can serve any lookup.
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+public class DiskBasedAsyncCache extends AsyncCache {
+
+    /** Map of the Key, CacheHeader pairs */
+    private final Map<String, CacheHeader> mEntries = new LinkedHashMap<>(16, .75f, true);
+
+    /** Total amount of space currently used by the cache in bytes. */
+    private long mTotalSize = 0;
+
+    /** The supplier for the root directory to use for the cache. */
+    private final FileSupplier mRootDirectorySupplier;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Whether cache files are stored in subdirectories named by the hash of their key. */
+    private final boolean mShardedLayoutEnabled;
+
+    /** Counter used to give each in-flight write its own temporary file. */
+    private final AtomicInteger mTempFileCounter = new AtomicInteger();
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    private DiskBasedAsyncCache(Builder builder) {
+        mRootDirectorySupplier = builder.mRootDirectorySupplier;
+        mMaxCacheSizeInBytes = builder.mMaxCacheSizeInBytes;
+        mShardedLayoutEnabled = builder.mShardedLayoutEnabled;
+    }
+
+    /** Returns the cache entry with the specified key if it exists, null otherwise. */
+    @Override
+    public void get(final String key, final OnGetCompleteCallback callback) {
+        final CacheHeader entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
+        // if the entry does not exist, return.
+        if (entry == null) {
+            callback.onGetComplete(null);
+            return;
+        }
+        final File file = getFileForKey(key);
+        final AsynchronousFileChannel channel;
+        final ByteBuffer buffer;
+        try {
+            channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            if ((int) size != size) {
+                closeChannel(channel);
+                throw new IOException("File too large: " + size);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+        } catch (IOException e) {
+            onGetFailed(key, entry, file, e, callback);
+            return;
+        }
+        readFully(
+                channel,
+                buffer,
+                new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(Void result, Void attachment) {
+                        closeChannel(channel);
+                        Cache.Entry cacheEntry;
+                        try {
+                            cacheEntry = parseEntry(key, entry, buffer.array());
+                        } catch (IOException e) {
+                            onGetFailed(key, entry, file, e, callback);
+                            return;
+                        }
+                        callback.onGetComplete(cacheEntry);
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        closeChannel(channel);
+                        onGetFailed(key, entry, file, exc, callback);
+                    }
+                });
+    }
+
+    /**
+     * Parses the contents of a cache file.
+     *
+     * @return the entry, or null if the file holds data for a different key.
+     */
+    @Nullable
+    private Cache.Entry parseEntry(String key, CacheHeader entry, byte[] contents)
+            throws IOException {
+        CountingInputStream cis =
+                new CountingInputStream(new ByteArrayInputStream(contents), contents.length);
+        CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
+        if (!TextUtils.equals(key, entryOnDisk.key)) {
+            // File was shared by two keys and now holds data for a different entry!
+            VolleyLog.d("%s: key=%s, found=%s", getFileForKey(key).getName(), key, entryOnDisk.key);
+            // Remove key whose contents on disk have been replaced.
+            synchronized (this) {
+                if (mEntries.get(key) == entry) {
+                    removeEntry(key);
+                }
+            }
+            return null;
+        }
+        byte[] data = DiskBasedCache.readData(entryOnDisk, cis);
+        if (entryOnDisk.hasChecksum
+                && DiskBasedCache.computeChecksum(data) != entryOnDisk.checksum) {
+            throw new IOException("Checksum mismatch for " + key);
+        }
+        return entryOnDisk.toCacheEntry(data);
+    }
+
+    private void onGetFailed(
+            String key,
+            CacheHeader entry,
+            File file,
+            Throwable exception,
+            OnGetCompleteCallback callback) {
+        VolleyLog.d("%s: %s", file.getAbsolutePath(), exception.toString());
+        synchronized (this) {
+            // Leave the entry alone if it was replaced while the old file was being read.
+            if (mEntries.get(key) == entry) {
+                deleteFile(file);
+                removeEntry(key);
+            }
+        }
+        callback.onGetComplete(null);
+    }
+
+    /**
+     * Initializes the cache by scanning for all files currently in the specified root directory and
+     * its subdirectories. Creates the root directory if necessary.
+     */
+    @Override
+    public synchronized void initialize(OnWriteCompleteCallback callback) {
+        File rootDirectory = mRootDirectorySupplier.get();
+        if (!rootDirectory.exists()) {
+            if (!rootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", rootDirectory.getAbsolutePath());
+            }
+            callback.onWriteComplete();
+            return;
+        }
+        File[] rootFiles = rootDirectory.listFiles();
+        if (rootFiles == null) {
+            callback.onWriteComplete();
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        List<File> shards = new ArrayList<>();
+        for (File file : rootFiles) {
+            File[] shardFiles = file.listFiles();
+            if (shardFiles == null) {
+                files.add(file);
+            } else {
+                shards.add(file);
+                files.addAll(Arrays.asList(shardFiles));
+            }
+        }
+        for (File file : files) {
+            // Leftovers of writes which never completed.
+            if (file.getName().endsWith(DiskBasedCache.TEMP_FILE_SUFFIX)) {
+                deleteFile(file);
+                continue;
+            }
+            try {
+                long entrySize = file.length();
+                CountingInputStream cis =
+                        new CountingInputStream(
+                                new BufferedInputStream(new FileInputStream(file)), entrySize);
+                CacheHeader entry;
+                try {
+                    entry = CacheHeader.readHeader(cis);
+                    entry.size = entrySize;
+                } finally {
+                    // Any IOException thrown here is handled by the below catch block by design.
+                    //noinspection ThrowFromFinallyBlock
+                    cis.close();
+                }
+                addScannedEntry(file, entry);
+            } catch (IOException e) {
+                deleteFile(file);
+            }
+        }
+        if (!mShardedLayoutEnabled) {
+            for (File shard : shards) {
+                // Only succeeds once all the files of the shard have been moved out of it.
+                //noinspection ResultOfMethodCallIgnored
+                shard.delete();
+            }
+        }
+        callback.onWriteComplete();
+    }
+
+    /**
+     * Adds an entry read on initialization to the index, moving its file to where the configured
+     * layout expects it if it was written with the other one.
+     */
+    private void addScannedEntry(File file, CacheHeader entry) {
+        File expectedFile = getFileForKey(entry.key);
+        if (mEntries.containsKey(entry.key)) {
+            // Another file already held the entry.
+            if (!file.equals(expectedFile)) {
+                deleteFile(file);
+            }
+            return;
+        }
+        if (!file.equals(expectedFile)) {
+            File parent = expectedFile.getParentFile();
+            // The entry stored at its current location, if any, takes precedence.
+            if (expectedFile.exists()
+                    || (!parent.exists() && !parent.mkdirs())
+                    || !file.renameTo(expectedFile)) {
+                deleteFile(file);
+                return;
+            }
+        }
+        putEntry(entry.key, entry);
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     *
+     * <p>The entry is written to a temporary file which is moved into place once complete, so
+     * concurrent reads always see a complete file.
+     */
+    @Override
+    public void put(final String key, Cache.Entry entry, final OnWriteCompleteCallback callback) {
+        synchronized (this) {
+            // If adding this entry would trigger a prune, but pruning would cause the new entry to
+            // be deleted, then skip writing the entry in the first place, as this is just churn.
+            // Note that we don't include the cache header overhead in this calculation for
+            // simplicity, so putting entries which are just below the threshold may still cause
+            // this churn.
+            if (mTotalSize + entry.data.length > mMaxCacheSizeInBytes
+                    && entry.data.length
+                            > mMaxCacheSizeInBytes * DiskBasedCache.HYSTERESIS_FACTOR) {
+                callback.onWriteComplete();
+                return;
+            }
+        }
+        final File file = getFileForKey(key);
+        File parent = file.getParentFile();
+        if (mShardedLayoutEnabled && !parent.exists() && !parent.mkdirs()) {
+            onPutFailed(
+                    file,
+                    new IOException("Unable to create " + parent.getAbsolutePath()),
+                    callback);
+            return;
+        }
+        final File tempFile =
+                new File(
+                        file.getParentFile(),
+                        file.getName()
+                                + "."
+                                + mTempFileCounter.incrementAndGet()
+                                + DiskBasedCache.TEMP_FILE_SUFFIX);
+        final CacheHeader header = new CacheHeader(key, entry);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        if (!header.writeHeader(headerBytes)) {
+            VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+            callback.onWriteComplete();
+            return;
+        }
+        final int headerLength = headerBytes.size();
+        header.size = headerLength + entry.data.length;
+        final AsynchronousFileChannel channel;
+        try {
+            channel =
+                    AsynchronousFileChannel.open(
+                            tempFile.toPath(),
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            onPutFailed(tempFile, e, callback);
+            return;
+        }
+        final ByteBuffer dataBuffer = ByteBuffer.wrap(entry.data);
+        writeFully(
+                channel,
+                ByteBuffer.wrap(headerBytes.toByteArray()),
+                /* position= */ 0,
+                new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(Void result, Void attachment) {
+                        writeFully(
+                                channel,
+                                dataBuffer,
+                                headerLength,
+                                new CompletionHandler<Void, Void>() {
+                                    @Override
+                                    public void completed(Void result, Void attachment) {
+                                        try {
+                                            channel.close();
+                                            commitPut(key, header, tempFile, file);
+                                        } catch (IOException e) {
+                                            onPutFailed(tempFile, e, callback);
+                                            return;
+                                        }
+                                        callback.onWriteComplete();
+                                    }
+
+                                    @Override
+                                    public void failed(Throwable exc, Void attachment) {
+                                        closeChannel(channel);
+                                        onPutFailed(tempFile, exc, callback);
+                                    }
+                                });
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        closeChannel(channel);
+                        onPutFailed(tempFile, exc, callback);
+                    }
+                });
+    }
+
+    /**
+     * Updates the metadata of an entry.
+     *
+     * <p>If every field of the serialized header keeps its length, which is usually the case when
+     * revalidating a response, the header is overwritten in place and the data is left untouched.
+     * Otherwise, the whole entry is rewritten with {@link #put}.
+     */
+    @Override
+    public void updateMetadata(
+            final String key, final Cache.Entry entry, final OnWriteCompleteCallback callback) {
+        final CacheHeader header = new CacheHeader(key, entry);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        final CacheHeader existing;
+        synchronized (this) {
+            existing = mEntries.get(key);
+        }
+        try {
+            // The index holds the complete header of every entry, as written to disk.
+            if (existing == null
+                    || !existing.hasSameLayout(header)
+                    || !header.writeHeader(headerBytes)) {
+                put(key, entry, callback);
+                return;
+            }
+        } catch (IOException e) {
+            put(key, entry, callback);
+            return;
+        }
+        AsynchronousFileChannel openedChannel = null;
+        synchronized (this) {
+            // Files are only replaced under the lock, so the file opened here is the one which
+            // holds the existing entry.
+            if (mEntries.get(key) == existing) {
+                try {
+                    openedChannel =
+                            AsynchronousFileChannel.open(
+                                    getFileForKey(key).toPath(), StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    VolleyLog.d("%s: %s", key, e.toString());
+                }
+            }
+        }
+        if (openedChannel == null) {
+            put(key, entry, callback);
+            return;
+        }
+        final AsynchronousFileChannel channel = openedChannel;
+        writeFully(
+                channel,
+                ByteBuffer.wrap(headerBytes.toByteArray()),
+                /* position= */ 0,
+                new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(Void result, Void attachment) {
+                        closeChannel(channel);
+                        synchronized (DiskBasedAsyncCache.this) {
+                            header.size = existing.size;
+                            // If the entry was replaced or removed during the write, the header
+                            // was written to a file which is no longer in use.
+                            if (mEntries.get(key) == existing) {
+                                putEntry(key, header);
+                            }
+                        }
+                        callback.onWriteComplete();
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        closeChannel(channel);
+                        put(key, entry, callback);
+                    }
+                });
+    }
+
+    /** Moves a completely written entry into place and adds it to the index. */
+    private synchronized void commitPut(String key, CacheHeader header, File tempFile, File file)
+            throws IOException {
+        // Renaming under the lock keeps the order of files on disk consistent with the order of
+        // updates to the index when the same key is written concurrently.
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tempFile.getAbsolutePath());
+        }
+        putEntry(key, header);
+        pruneIfNeeded();
+    }
+
+    private void onPutFailed(File tempFile, Throwable exception, OnWriteCompleteCallback callback) {
+        VolleyLog.d("%s: %s", tempFile.getAbsolutePath(), exception.toString());
+        if (tempFile.exists() && !tempFile.delete()) {
+            VolleyLog.d("Could not clean up file %s", tempFile.getAbsolutePath());
+        }
+        synchronized (this) {
+            if (!mRootDirectorySupplier.get().exists()) {
+                VolleyLog.d("Re-initializing cache after external clearing.");
+                mEntries.clear();
+                mTotalSize = 0;
+                initialize(
+                        new OnWriteCompleteCallback() {
+                            @Override
+                            public void onWriteComplete() {}
+                        });
+            }
+        }
+        callback.onWriteComplete();
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * <p>This is not atomic with respect to a concurrent {@link #put}; one of the two writes wins.
+     *
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(
+            final String key, final boolean fullExpire, final OnWriteCompleteCallback callback) {
+        get(
+                key,
+                new OnGetCompleteCallback() {
+                    @Override
+                    public void onGetComplete(@Nullable Cache.Entry entry) {
+                        if (entry == null) {
+                            callback.onWriteComplete();
+                            return;
+                        }
+                        entry.softTtl = 0;
+                        if (fullExpire) {
+                            entry.ttl = 0;
+                        }
+                        put(key, entry, callback);
+                    }
+                });
+    }
+
+    /** Removes the specified key from the cache if it exists. */
+    @Override
+    public void remove(String key, OnWriteCompleteCallback callback) {
+        synchronized (this) {
+            boolean deleted = getFileForKey(key).delete();
+            removeEntry(key);
+            if (!deleted) {
+                VolleyLog.d(
+                        "Could not delete cache entry for key=%s, filename=%s",
+                        key, getFileForKey(key).getName());
+            }
+        }
+        callback.onWriteComplete();
+    }
+
+    /** Clears the cache. Deletes all cached files from disk. */
+    @Override
+    public void clear(OnWriteCompleteCallback callback) {
+        synchronized (this) {
+            File[] files = mRootDirectorySupplier.get().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    File[] shardFiles = file.listFiles();
+                    if (shardFiles != null) {
+                        for (File shardFile : shardFiles) {
+                            deleteFile(shardFile);
+                        }
+                    }
+                    deleteFile(file);
+                }
+            }
+            mEntries.clear();
+            mTotalSize = 0;
+            VolleyLog.d("Cache cleared.");
+        }
+        callback.onWriteComplete();
+    }
+
+    /** Returns a file object for the given cache key. */
+    public File getFileForKey(String key) {
+        return DiskBasedCache.getFileForKey(
+                mRootDirectorySupplier.get(), key, mShardedLayoutEnabled);
+    }
+
+    /** Prunes the cache to fit the maximum size. */
+    private void pruneIfNeeded() {
+        if (mTotalSize < mMaxCacheSizeInBytes) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+
+        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            CacheHeader e = iterator.next().getValue();
+            boolean deleted = getFileForKey(e.key).delete();
+            if (deleted) {
+                mTotalSize -= e.size;
+            } else {
+                VolleyLog.d(
+                        "Could not delete cache entry for key=%s, filename=%s",
+                        e.key, getFileForKey(e.key).getName());
+            }
+            iterator.remove();
+
+            if (mTotalSize < mMaxCacheSizeInBytes * DiskBasedCache.HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     *
+     * @param key The key to identify the entry by.
+     * @param entry The entry to cache.
+     */
+    private void putEntry(String key, CacheHeader entry) {
+        CacheHeader oldEntry = mEntries.put(key, entry);
+        mTotalSize += entry.size - (oldEntry == null ? 0 : oldEntry.size);
+    }
+
+    /** Removes the entry identified by 'key' from the cache. */
+    private void removeEntry(String key) {
+        CacheHeader removed = mEntries.remove(key);
+        if (removed != null) {
+            mTotalSize -= removed.size;
+        }
+    }
+
+    /** Reads from the start of the channel until the buffer is full. */
+    private static void readFully(
+            final AsynchronousFileChannel channel,
+            final ByteBuffer buffer,
+            final CompletionHandler<Void, Void> handler) {
+        channel.read(
+                buffer,
+                buffer.position(),
+                null,
+                new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer bytesRead, Void attachment) {
+                        if (!buffer.hasRemaining()) {
+                            handler.completed(null, null);
+                        } else if (bytesRead == -1) {
+                            handler.failed(new IOException("Unexpected end of file"), null);
+                        } else {
+                            channel.read(buffer, buffer.position(), null, this);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        handler.failed(exc, null);
+                    }
+                });
+    }
+
+    /** Writes the whole buffer to the channel at the given position. */
+    private static void writeFully(
+            final AsynchronousFileChannel channel,
+            final ByteBuffer buffer,
+            final long position,
+            final CompletionHandler<Void, Void> handler) {
+        final int start = buffer.position();
+        channel.write(
+                buffer,
+                position,
+                null,
+                new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer bytesWritten, Void attachment) {
+                        if (!buffer.hasRemaining()) {
+                            handler.completed(null, null);
+                        } else {
+                            channel.write(buffer, position + buffer.position() - start, null, this);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        handler.failed(exc, null);
+                    }
+                });
+    }
+
+    private static void closeChannel(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            VolleyLog.d("Unable to close file: %s", e.toString());
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            VolleyLog.d("Could not delete file %s", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Builder is used to build an instance of {@link DiskBasedAsyncCache} from values configured by
+     * the setters.
+     */
+    public static class Builder {
+        private final FileSupplier mRootDirectorySupplier;
+        private int mMaxCacheSizeInBytes = DEFAULT_DISK_USAGE_BYTES;
+        private boolean mShardedLayoutEnabled = false;
+
+        /** @param rootDirectory The root directory of the cache. */
+        public Builder(final File rootDirectory) {
+            mRootDirectorySupplier =
+                    new FileSupplier() {
+                        @Override
+                        public File get() {
+                            return rootDirectory;
+                        }
+                    };
+        }
+
+        /** @param rootDirectorySupplier The supplier for the root directory of the cache. */
+        public Builder(FileSupplier rootDirectorySupplier) {
+            mRootDirectorySupplier = rootDirectorySupplier;
+        }
+
+        /**
+         * Sets the maximum size of the cache in bytes. Note that the cache may briefly exceed this
+         * size on disk when writing a new entry that pushes it over the limit until the ensuing
+         * pruning completes. If not set, defaults to 5MB.
+         */
+        public Builder setMaxCacheSizeInBytes(int maxCacheSizeInBytes) {
+            mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+            return this;
+        }
+
+        /**
+         * Sets whether cache files are stored with the sharded layout, as with {@link
+         * DiskBasedCache.Builder#setShardedLayoutEnabled}. It should match the setting of any
+         * {@link DiskBasedCache} used on the same directory, since each initialization moves files
+         * to the configured layout. Disabled by default.
+         */
+        public Builder setShardedLayoutEnabled(boolean shardedLayoutEnabled) {
+            mShardedLayoutEnabled = shardedLayoutEnabled;
+            return this;
+        }
+
+        /** Builds the {@link DiskBasedAsyncCache}. */
+        public DiskBasedAsyncCache build() {
+            return new DiskBasedAsyncCache(this);
+        }
+    }
+}
@@ -18,12 +18,23 @@ package com.android.volley.toolbox;
 
 import android.os.SystemClock;
 import android.text.TextUtils;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
-import com.android.volley.Cache;
+import com.android.volley.BulkInvalidatableCache;
+import com.android.volley.CacheStats;
+import com.android.volley.CacheStatsRecorder;
+import com.android.volley.ConcurrentlyInitializableCache;
 import com.android.volley.Header;
+import com.android.volley.InstrumentedCache;
+import com.android.volley.MetadataUpdatableCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.StreamingPutCache;
+import com.android.volley.SweepableCache;
 import com.android.volley.VolleyLog;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -34,42 +45,282 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified directory.
  * The default disk usage size is 5MB, but is configurable.
  *
  * <p>This cache supports the {@link Entry#allResponseHeaders} headers field.
+ *
+ * <p>Additional options, such as keeping a journal of the cache index or performing file I/O
+ * without holding the cache lock, may be enabled by constructing the cache with a {@link Builder}.
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache
+        implements MetadataUpdatableCache,
+                BulkInvalidatableCache,
+                SweepableCache,
+                StreamingCache,
+                StreamingPutCache,
+                ConcurrentlyInitializableCache,
+                InstrumentedCache {
 
     /** Map of the Key, CacheHeader pairs */
     private final Map<String, CacheHeader> mEntries = new LinkedHashMap<>(16, .75f, true);
 
+    /** Keys of the entries of the index in lexicographic order, to look up ranges of keys. */
+    private final TreeSet<String> mSortedKeys = new TreeSet<>();
+
     /** Total amount of space currently used by the cache in bytes. */
     private long mTotalSize = 0;
 
+    /** Amount of space currently used by the entries of each retention class, in bytes. */
+    private final long[] mRetentionSizes = new long[Retention.values().length];
+
     /** The supplier for the root directory to use for the cache. */
     private final FileSupplier mRootDirectorySupplier;
 
     /** The maximum size of the cache in bytes. */
     private final int mMaxCacheSizeInBytes;
 
+    /** The maximum size of the entries of each retention class, in bytes. */
+    private final int[] mRetentionQuotas;
+
+    /** Whether the index of the cache should be persisted to a journal. */
+    private final boolean mJournalEnabled;
+
+    /** The journal of the cache index, or null if journaling is disabled or not yet initialized. */
+    @Nullable private DiskBasedCacheJournal mJournal;
+
+    /**
+     * Whether cache files are read and written without holding the lock on the in-memory index.
+     * When false, every operation holds the lock for its whole duration.
+     */
+    private final boolean mConcurrentFileAccessEnabled;
+
+    /** Counter used to give each in-flight write its own temporary file. */
+    private final AtomicInteger mTempFileCounter = new AtomicInteger();
+
+    /**
+     * Whether files are named by a 128-bit hash of their key and spread across subdirectories,
+     * rather than named by two 32-bit hashes in the root directory.
+     */
+    private final boolean mShardedLayoutEnabled;
+
+    /** The policy choosing which entries to evict, or null to evict the least recently used. */
+    @Nullable private final EvictionPolicy mEvictionPolicy;
+
+    /** Whether bodies may be written while they are read from the network. */
+    private final boolean mStreamingPutEnabled;
+
+    /** Whether the data of compressible entries is stored deflated. */
+    private final boolean mCompressionEnabled;
+
+    /** Maximum number of threads reading cache files while initializing without the journal. */
+    private final int mInitializationThreadCount;
+
+    /** Whether a checksum of the data is stored in the header of each entry. */
+    private final boolean mChecksumsEnabled;
+
+    /** One out of how many reads of an entry which was already verified verify it again. */
+    private final int mChecksumVerificationInterval;
+
+    /** Counter of the reads of verified entries, which selects those that are verified again. */
+    private final AtomicInteger mVerifiedReadCounter = new AtomicInteger();
+
+    /**
+     * Whether {@link #initialize()} is scanning the root directory while holding the lock. Writes
+     * wait for the lock, so lookups read files directly in the meantime.
+     */
+    private volatile boolean mScanHoldsLock = false;
+
+    /**
+     * Whether the index holds every entry, which is only the case once {@link #initialize()} has
+     * completed. Until then, lookups of keys which aren't in the index read their file directly.
+     */
+    private volatile boolean mIndexComplete = false;
+
+    /**
+     * Whether {@link #initialize()} is scanning the root directory without holding the lock, which
+     * is notified once the scan completes. Guarded by the lock.
+     */
+    private boolean mParallelScanRunning = false;
+
+    /** Minimum time between two sweeps of expired entries, or 0 if sweeping is disabled. */
+    private final long mSweepIntervalMillis;
+
+    /** Time after which the next sweep may run, in {@link SystemClock#elapsedRealtime()} time. */
+    private long mNextSweepTimeMillis = 0;
+
+    /** Bytes reclaimed by removing expired entries, when pruning or sweeping. */
+    private final AtomicLong mExpiredBytesReclaimed = new AtomicLong();
+
+    /** Bytes reclaimed by evicting entries which had not expired. */
+    private final AtomicLong mEvictedBytesReclaimed = new AtomicLong();
+
+    private final CacheStatsRecorder mStats = new CacheStatsRecorder();
+
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
     /** High water mark percentage for the cache */
     @VisibleForTesting static final float HYSTERESIS_FACTOR = 0.9f;
 
-    /** Magic number for current version of cache file format. */
+    /** Magic number for the original version of cache file format, which is still read. */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /**
+     * Magic number for current version of cache file format, which starts with flags such as
+     * whether the data is deflated, encodes numbers as varints and refers to common header names by
+     * their index in {@link #HEADER_NAMES}. Entries stored with the original version are rewritten
+     * with this one when they are read or updated.
+     */
+    private static final int CACHE_MAGIC_V2 = 0x20201101;
+
+    /**
+     * Header names which are stored as an index into this array by the current cache file format.
+     * Names may only be appended, since the index of each one is part of the format.
+     */
+    private static final String[] HEADER_NAMES = {
+        "Content-Type",
+        "Content-Length",
+        "Content-Encoding",
+        "Cache-Control",
+        "ETag",
+        "Expires",
+        "Last-Modified",
+        "Date",
+        "Age",
+        "Vary",
+        "Server",
+        "Connection",
+        "Transfer-Encoding",
+        "Accept-Ranges",
+        "Access-Control-Allow-Origin",
+        "Access-Control-Allow-Credentials",
+        "Access-Control-Expose-Headers",
+        "Set-Cookie",
+        "Strict-Transport-Security",
+        "X-Content-Type-Options",
+        "X-Frame-Options",
+        "X-XSS-Protection",
+        "Content-Security-Policy",
+        "Referrer-Policy",
+        "Content-Disposition",
+        "Content-Language",
+        "Pragma",
+        "Keep-Alive",
+        "Location",
+        "Link",
+        "Via",
+        "Alt-Svc",
+        "Timing-Allow-Origin",
+        "X-Android-Received-Millis",
+        "X-Android-Sent-Millis",
+        "X-Android-Response-Source",
+        "X-Android-Selected-Protocol",
+    };
+
+    /**
+     * The names of {@link #HEADER_NAMES} in lower case, as sent over HTTP/2, which are stored as an
+     * index too.
+     */
+    private static final String[] LOWER_CASE_HEADER_NAMES = new String[HEADER_NAMES.length];
+
+    /**
+     * Reference written in place of each name of {@link #HEADER_NAMES} and {@link
+     * #LOWER_CASE_HEADER_NAMES}: the index plus one, shifted left, with the low bit set for lower
+     * case. Zero is written before names which are stored as a string.
+     */
+    private static final Map<String, Integer> HEADER_NAME_REFS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            LOWER_CASE_HEADER_NAMES[i] = HEADER_NAMES[i].toLowerCase(Locale.US);
+            HEADER_NAME_REFS.put(HEADER_NAMES[i], (i + 1) << 1);
+            HEADER_NAME_REFS.put(LOWER_CASE_HEADER_NAMES[i], ((i + 1) << 1) | 1);
+        }
+    }
+
+    /** Maximum length of a varint encoding a long. */
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    /** Header flag set when the data is stored deflated. */
+    private static final int FLAG_DEFLATED = 1;
+
+    /** Header flags holding the code of the retention class of the entry. */
+    private static final int FLAG_RETENTION_MASK = 3 << 1;
+
+    private static final int FLAG_RETENTION_SHIFT = 1;
+
+    /**
+     * Header flags set when the entry was soft or fully expired by {@link #invalidate}, which
+     * overrides the TTLs stored in the header. The TTLs are kept so that the header keeps its
+     * layout, and the flags still fit in the single byte which is overwritten to set them.
+     */
+    private static final int FLAG_SOFT_EXPIRED = 1 << 3;
+
+    private static final int FLAG_EXPIRED = 1 << 4;
+
+    /** Header flag set when the header holds a checksum of the inflated data. */
+    private static final int FLAG_CHECKSUM = 1 << 5;
+
+    /** Header flag set when the header is followed by padding, up to the start of the data. */
+    private static final int FLAG_PADDED = 1 << 6;
+
+    /**
+     * Space reserved at the start of a file whose data is written by a {@link PendingDiskEntry}
+     * before its header is known. The header is later written into it, followed by padding.
+     */
+    @VisibleForTesting static final int RESERVED_HEADER_BYTES = 4096;
+
+    /** Offset of the flags in a header of the current format, right after the magic number. */
+    private static final int FLAGS_OFFSET = 4;
+
+    /** Retention classes by their code, which is 0 for the default class to keep headers small. */
+    private static final Retention[] RETENTION_CODES = {
+        Retention.NORMAL, Retention.LOW, Retention.HIGH, Retention.PINNED
+    };
+
+    /** Entries smaller than this aren't compressed, since they would barely shrink. */
+    @VisibleForTesting static final int MIN_COMPRESSED_SIZE_BYTES = 1024;
+
+    /** Upper bound of the compression ratio of deflate, used to reject corrupt headers. */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /** Cache file layout versions, recorded in the journal. */
+    static final int LAYOUT_FLAT = 1;
+
+    static final int LAYOUT_SHARDED = 2;
+
+    /** Number of hex digits of the key hash used to name the subdirectory in the sharded layout. */
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Suffix of files holding entries which are still being written. */
+    static final String TEMP_FILE_SUFFIX = ".tmp";
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      *
@@ -79,14 +330,7 @@ public class DiskBasedCache implements Cache {
      *     until the ensuing pruning completes.
      */
     public DiskBasedCache(final File rootDirectory, int maxCacheSizeInBytes) {
-        mRootDirectorySupplier =
-                new FileSupplier() {
-                    @Override
-                    public File get() {
-                        return rootDirectory;
-                    }
-                };
-        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        this(new Builder(rootDirectory).setMaxCacheSizeInBytes(maxCacheSizeInBytes));
     }
 
     /**
@@ -98,8 +342,7 @@ public class DiskBasedCache implements Cache {
      *     until the ensuing pruning completes.
      */
     public DiskBasedCache(FileSupplier rootDirectorySupplier, int maxCacheSizeInBytes) {
-        mRootDirectorySupplier = rootDirectorySupplier;
-        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        this(new Builder(rootDirectorySupplier).setMaxCacheSizeInBytes(maxCacheSizeInBytes));
     }
 
     /**
@@ -122,232 +365,1664 @@ public class DiskBasedCache implements Cache {
         this(rootDirectorySupplier, DEFAULT_DISK_USAGE_BYTES);
     }
 
+    private DiskBasedCache(Builder builder) {
+        mRootDirectorySupplier = builder.mRootDirectorySupplier;
+        mMaxCacheSizeInBytes = builder.mMaxCacheSizeInBytes;
+        mRetentionQuotas = builder.mRetentionQuotas.clone();
+        mJournalEnabled = builder.mJournalEnabled;
+        mConcurrentFileAccessEnabled = builder.mConcurrentFileAccessEnabled;
+        mShardedLayoutEnabled = builder.mShardedLayoutEnabled;
+        mEvictionPolicy = builder.mEvictionPolicy;
+        mSweepIntervalMillis = builder.mSweepIntervalMillis;
+        mStreamingPutEnabled = builder.mStreamingPutEnabled;
+        mCompressionEnabled = builder.mCompressionEnabled;
+        mInitializationThreadCount = builder.mInitializationThreadCount;
+        mChecksumsEnabled = builder.mChecksumsEnabled;
+        mChecksumVerificationInterval = builder.mChecksumVerificationInterval;
+    }
+
     /** Clears the cache. Deletes all cached files from disk. */
     @Override
     public synchronized void clear() {
         File[] files = mRootDirectorySupplier.get().listFiles();
         if (files != null) {
             for (File file : files) {
+                File[] shardFiles = file.listFiles();
+                if (shardFiles != null) {
+                    for (File shardFile : shardFiles) {
+                        shardFile.delete();
+                    }
+                }
                 file.delete();
             }
         }
         mEntries.clear();
+        mSortedKeys.clear();
         mTotalSize = 0;
+        Arrays.fill(mRetentionSizes, 0);
+        if (mEvictionPolicy != null) {
+            mEvictionPolicy.onClear();
+        }
+        if (mJournal != null) {
+            mJournal.rewrite(mEntries.values());
+        }
         VolleyLog.d("Cache cleared.");
     }
 
-    /** Returns the cache entry with the specified key if it exists, null otherwise. */
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     *
+     * <p>Until {@link #initialize()} has completed, entries which haven't been added to the index
+     * yet are read directly from the file for their key, so lookups don't wait for the scan of the
+     * root directory.
+     */
     @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
+    public Entry get(String key) {
+        long startNanos = System.nanoTime();
+        Entry entry = lookUp(key);
+        mStats.recordLookup(entry, System.nanoTime() - startNanos);
+        return entry;
+    }
+
+    @Nullable
+    private Entry lookUp(String key) {
+        if (mScanHoldsLock) {
+            Entry entry = readEntryFile(key);
+            // Writes only start once the scan has completed, so the file was left untouched while
+            // it was read if the scan is still running.
+            if (mScanHoldsLock) {
+                return entry;
+            }
+        }
+        if (mConcurrentFileAccessEnabled) {
+            Entry entry = getEntry(key);
+            return entry == null && !mIndexComplete ? readEntryFile(key) : entry;
         }
+        synchronized (this) {
+            Entry entry = getEntry(key);
+            return entry == null && !mIndexComplete ? readEntryFile(key) : entry;
+        }
+    }
+
+    /**
+     * Reads the entry with the specified key from its file without looking it up in the index, or
+     * returns null if the file doesn't exist or can't be read.
+     */
+    @Nullable
+    private Entry readEntryFile(String key) {
         File file = getFileForKey(key);
+        if (!file.exists()) {
+            return null;
+        }
         try {
+            InputStream in = createInputStream(file);
             CountingInputStream cis =
-                    new CountingInputStream(
-                            new BufferedInputStream(createInputStream(file)), file.length());
+                    new CountingInputStream(new BufferedInputStream(in), getLength(in, file));
             try {
-                CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
-                if (!TextUtils.equals(key, entryOnDisk.key)) {
-                    // File was shared by two keys and now holds data for a different entry!
-                    VolleyLog.d(
-                            "%s: key=%s, found=%s", file.getAbsolutePath(), key, entryOnDisk.key);
-                    // Remove key whose contents on disk have been replaced.
-                    removeEntry(key);
+                CacheHeader header = CacheHeader.readHeader(cis);
+                if (!TextUtils.equals(key, header.key)) {
                     return null;
                 }
-                byte[] data = streamToBytes(cis, cis.bytesRemaining());
-                return entry.toCacheEntry(data);
+                byte[] data = readData(header, cis);
+                verifyChecksum(/* indexEntry= */ null, header, data);
+                Entry entry = header.toCacheEntry(data);
+                mStats.recordBytesRead(cis.bytesRead());
+                return entry;
             } finally {
-                // Any IOException thrown here is handled by the below catch block by design.
                 //noinspection ThrowFromFinallyBlock
                 cis.close();
             }
         } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+            // Unreadable files are deleted by the scan.
             return null;
         }
     }
 
-    /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the specified root
-     * directory. Creates the root directory if necessary.
-     */
-    @Override
-    public synchronized void initialize() {
-        File rootDirectory = mRootDirectorySupplier.get();
-        if (!rootDirectory.exists()) {
-            if (!rootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", rootDirectory.getAbsolutePath());
+    private Entry getEntry(String key) {
+        OpenedEntry opened = openEntry(key);
+        if (opened == null) {
+            return null;
+        }
+        Entry entry;
+        try {
+            try {
+                byte[] data = readData(opened.header, opened.stream);
+                verifyChecksum(opened.indexEntry, opened.header, data);
+                // The header on disk is used since the in-memory index may have been loaded from
+                // the journal or by scanning files, neither of which keeps the response headers.
+                entry = opened.header.toCacheEntry(data);
+                mStats.recordBytesRead(opened.stream.bytesRead());
+            } finally {
+                // Any IOException thrown here is handled by the below catch block by design.
+                //noinspection ThrowFromFinallyBlock
+                opened.stream.close();
             }
-            return;
+        } catch (IOException e) {
+            onReadFailure(key, opened.indexEntry, e);
+            return null;
         }
-        File[] files = rootDirectory.listFiles();
-        if (files == null) {
-            return;
+        if (opened.header.legacyFormat) {
+            migrateEntry(key, opened.indexEntry, entry);
         }
-        for (File file : files) {
-            try {
-                long entrySize = file.length();
-                CountingInputStream cis =
-                        new CountingInputStream(
-                                new BufferedInputStream(createInputStream(file)), entrySize);
-                try {
-                    CacheHeader entry = CacheHeader.readHeader(cis);
-                    entry.size = entrySize;
-                    putEntry(entry.key, entry);
-                } finally {
-                    // Any IOException thrown here is handled by the below catch block by design.
-                    //noinspection ThrowFromFinallyBlock
-                    cis.close();
+        return entry;
+    }
+
+    /**
+     * Rewrites an entry read from a file written with an older version of the cache file format
+     * with the current one, unless the entry has been replaced since it was read.
+     */
+    private void migrateEntry(String key, CacheHeader indexEntry, Entry entry) {
+        File file = getFileForKey(key);
+        File tempFile = newTempFile(file);
+        try {
+            CacheHeader e = writeEntryFile(tempFile, key, entry);
+            synchronized (this) {
+                if (mEntries.get(key) == indexEntry) {
+                    moveIntoPlace(tempFile, file, key, e);
+                    return;
                 }
-            } catch (IOException e) {
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
             }
+            if (!tempFile.delete()) {
+                VolleyLog.d("Could not clean up file %s", tempFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            onTempFileWriteFailure(tempFile);
         }
     }
 
     /**
-     * Invalidates an entry in the cache.
+     * Returns the entry with the specified key with its body as a stream, or null if it doesn't
+     * exist.
      *
-     * @param key Cache key
-     * @param fullExpire True to fully expire the entry, false to soft expire
+     * <p>The body is only streamed from disk if concurrent file access is enabled. Otherwise, files
+     * are overwritten in place, so a stream which outlives the cache lock could see a partially
+     * written entry, and the body is read into memory as with {@link #get}. This is also the case
+     * while the cache is initializing.
      */
+    @Nullable
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public StreamEntry getStream(String key) {
+        if (!mConcurrentFileAccessEnabled || !mIndexComplete) {
+            Entry entry = get(key);
+            if (entry == null) {
+                return null;
             }
-            put(key, entry);
+            return new StreamEntry(entry, new ByteArrayInputStream(entry.data), entry.data.length);
+        }
+        long startNanos = System.nanoTime();
+        OpenedEntry opened = openEntry(key);
+        if (opened == null) {
+            mStats.recordLookup(null, System.nanoTime() - startNanos);
+            return null;
+        }
+        Entry metadata = opened.header.toCacheEntry(null);
+        mStats.recordLookup(metadata, System.nanoTime() - startNanos);
+        // The rest of the file is counted as read, since that is what the stream is for.
+        mStats.recordBytesRead(opened.stream.bytesRead() + opened.stream.bytesRemaining());
+        InputStream body = opened.stream;
+        long length = opened.stream.bytesRemaining();
+        if (opened.header.deflated) {
+            body = new InflaterInputStream(opened.stream);
+            length = opened.header.inflatedLength;
         }
+        if (shouldVerifyChecksum(opened.indexEntry, opened.header)) {
+            body = new ChecksumVerifyingInputStream(body, length, key, opened);
+        }
+        return new StreamEntry(metadata, body, length);
     }
 
-    /** Puts the entry with the specified key into the cache. */
-    @Override
-    public synchronized void put(String key, Entry entry) {
-        // If adding this entry would trigger a prune, but pruning would cause the new entry to be
-        // deleted, then skip writing the entry in the first place, as this is just churn.
-        // Note that we don't include the cache header overhead in this calculation for simplicity,
-        // so putting entries which are just below the threshold may still cause this churn.
-        if (mTotalSize + entry.data.length > mMaxCacheSizeInBytes
-                && entry.data.length > mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-            return;
+    /**
+     * Opens the file of the entry with the specified key and reads its header.
+     *
+     * @return the opened entry, whose stream the caller must close, or null if the entry doesn't
+     *     exist or couldn't be read
+     */
+    @Nullable
+    private OpenedEntry openEntry(String key) {
+        CacheHeader entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (mEvictionPolicy != null) {
+                mEvictionPolicy.onGet(key, entry != null);
+            }
+        }
+        // if the entry does not exist, return.
+        if (entry == null) {
+            return null;
         }
+        // In concurrent mode, the file may be replaced or deleted from here on. Writes replace the
+        // file atomically, so an open stream always sees one complete version of it.
         File file = getFileForKey(key);
+        CountingInputStream cis = null;
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+            InputStream in = createInputStream(file);
+            cis = new CountingInputStream(new BufferedInputStream(in), getLength(in, file));
+            CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
+            if (!TextUtils.equals(key, entryOnDisk.key)) {
+                // File was shared by two keys and now holds data for a different entry!
+                VolleyLog.d("%s: key=%s, found=%s", file.getAbsolutePath(), key, entryOnDisk.key);
+                // Remove key whose contents on disk have been replaced.
+                synchronized (this) {
+                    if (mEntries.get(key) == entry) {
+                        removeEntry(key);
+                    }
+                }
+                cis.close();
+                return null;
             }
-            fos.write(entry.data);
-            fos.close();
-            e.size = file.length();
-            putEntry(key, e);
-            pruneIfNeeded();
+            synchronized (this) {
+                if (mJournal != null && mEntries.containsKey(key)) {
+                    mJournal.recordAccess(key);
+                    maybeCompactJournal();
+                }
+            }
+            return new OpenedEntry(entry, entryOnDisk, cis);
         } catch (IOException e) {
-            boolean deleted = file.delete();
-            if (!deleted) {
-                VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            if (cis != null) {
+                try {
+                    cis.close();
+                } catch (IOException closeException) {
+                    // Already handling the failure to read the file.
+                }
             }
-            initializeIfRootDirectoryDeleted();
+            onReadFailure(key, entry, e);
+            return null;
         }
     }
 
-    /** Removes the specified key from the cache if it exists. */
-    @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d(
-                    "Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    /**
+     * Returns true if the data read with the given header should be checked against its checksum,
+     * which is the case on the first read of an entry since it was added to the index, and then at
+     * the interval set with {@link Builder#setChecksumVerificationInterval}.
+     *
+     * @param indexEntry The header held by the index, or null if the entry isn't in the index
+     */
+    private boolean shouldVerifyChecksum(@Nullable CacheHeader indexEntry, CacheHeader header) {
+        if (!header.hasChecksum) {
+            return false;
         }
+        if (indexEntry == null || !indexEntry.checksumVerified) {
+            return true;
+        }
+        return mVerifiedReadCounter.incrementAndGet() % mChecksumVerificationInterval == 0;
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Checks the data read with the given header against its checksum, if it should be verified.
      *
-     * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @param indexEntry The header held by the index, or null if the entry isn't in the index
+     * @throws IOException if the data doesn't match the checksum
      */
-    private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
-    }
-
-    /** Returns a file object for the given cache key. */
-    public File getFileForKey(String key) {
-        return new File(mRootDirectorySupplier.get(), getFilenameForKey(key));
+    private void verifyChecksum(@Nullable CacheHeader indexEntry, CacheHeader header, byte[] data)
+            throws IOException {
+        if (!shouldVerifyChecksum(indexEntry, header)) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        onChecksumComputed(indexEntry, header, crc);
     }
 
-    /** Re-initialize the cache if the directory was deleted. */
-    private void initializeIfRootDirectoryDeleted() {
-        if (!mRootDirectorySupplier.get().exists()) {
-            VolleyLog.d("Re-initializing cache after external clearing.");
-            mEntries.clear();
-            mTotalSize = 0;
-            initialize();
+    /**
+     * Compares the checksum computed from the data of an entry with the one in its header, and
+     * records whether the entry is intact.
+     *
+     * @throws IOException if the checksums differ
+     */
+    private void onChecksumComputed(@Nullable CacheHeader indexEntry, CacheHeader header, CRC32 crc)
+            throws IOException {
+        if ((int) crc.getValue() != header.checksum) {
+            mStats.recordCorruption();
+            throw new IOException("Checksum mismatch for " + header.key);
+        }
+        if (indexEntry != null) {
+            // Racing reads may set this more than once, which is harmless.
+            indexEntry.checksumVerified = true;
         }
     }
 
-    /** Represents a supplier for {@link File}s. */
-    public interface FileSupplier {
-        File get();
+    /** Removes an entry whose file couldn't be read. */
+    private void onReadFailure(String key, CacheHeader entry, IOException e) {
+        VolleyLog.d("%s: %s", getFileForKey(key).getAbsolutePath(), e.toString());
+        synchronized (this) {
+            // Leave the entry alone if it was replaced while the old file was being read.
+            if (mEntries.get(key) == entry) {
+                remove(key);
+            }
+        }
     }
 
-    /** Prunes the cache to fit the maximum size. */
-    private void pruneIfNeeded() {
-        if (mTotalSize < mMaxCacheSizeInBytes) {
+    /**
+     * Initializes the DiskBasedCache by scanning for all files currently in the specified root
+     * directory. Creates the root directory if necessary.
+     *
+     * <p>If the journal is enabled and readable, the index is restored from it instead, without
+     * opening any of the cache files.
+     *
+     * <p>If parallel initialization is enabled with {@link Builder#setInitializationThreadCount},
+     * the lock isn't held while the files are read, so entries can be looked up, and new entries
+     * written, as soon as the header of each file is read.
+     */
+    @Override
+    public void initialize() {
+        File rootDirectory = mRootDirectorySupplier.get();
+        // Re-initializing after the root directory was deleted happens while holding the lock, so
+        // other threads couldn't add the entries they read to the index.
+        if (mInitializationThreadCount <= 1 || Thread.holdsLock(this)) {
+            synchronized (this) {
+                if (!restoreIndex(rootDirectory)) {
+                    mScanHoldsLock = true;
+                    try {
+                        scanRootDirectory(rootDirectory, /* threadCount= */ 1);
+                    } finally {
+                        // Cleared before releasing the lock, so that no write starts before.
+                        mScanHoldsLock = false;
+                    }
+                    rewriteJournal();
+                }
+                mIndexComplete = true;
+            }
             return;
         }
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
+        synchronized (this) {
+            if (restoreIndex(rootDirectory)) {
+                mIndexComplete = true;
+                return;
+            }
+            mParallelScanRunning = true;
         }
+        try {
+            scanRootDirectory(rootDirectory, mInitializationThreadCount);
+        } finally {
+            synchronized (this) {
+                mParallelScanRunning = false;
+                notifyAll();
+            }
+        }
+        synchronized (this) {
+            rewriteJournal();
+            mIndexComplete = true;
+        }
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
-
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
+    /**
+     * Opens the journal and restores the index from it, if enabled. Creates the root directory if
+     * necessary.
+     *
+     * @return true if the index is complete, or false if the root directory needs to be scanned
+     */
+    private boolean restoreIndex(File rootDirectory) {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        mJournal = mJournalEnabled ? new DiskBasedCacheJournal(rootDirectory, getLayout()) : null;
+        if (!rootDirectory.exists()) {
+            if (!rootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", rootDirectory.getAbsolutePath());
             } else {
-                VolleyLog.d(
-                        "Could not delete cache entry for key=%s, filename=%s",
-                        e.key, getFilenameForKey(e.key));
+                rewriteJournal();
             }
-            iterator.remove();
-            prunedFiles++;
-
-            if (mTotalSize < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+            return true;
+        }
+        if (mJournal != null) {
+            List<CacheHeader> entries = mJournal.load();
+            if (entries != null) {
+                for (CacheHeader entry : entries) {
+                    putEntry(entry.key, entry);
+                }
+                indexUnjournaledFiles(rootDirectory);
+                return true;
             }
         }
-
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v(
-                    "pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+        return false;
+    }
+
+    /**
+     * Adds the files which aren't in the restored index to it, or deletes them if unreadable, so
+     * that they count towards the size of the cache. Such files are left behind when the process
+     * dies between writing an entry and journaling it. Only the names of the files are listed,
+     * unless some aren't in the index.
+     */
+    private void indexUnjournaledFiles(File rootDirectory) {
+        Set<File> indexedFiles = new HashSet<>();
+        for (String key : mEntries.keySet()) {
+            indexedFiles.add(getFileForKey(key));
+        }
+        boolean indexChanged = false;
+        for (File file : listEntryFiles(rootDirectory, /* skipJournal= */ true, null)) {
+            if (!indexedFiles.contains(file)) {
+                scanFile(file, /* parallel= */ false);
+                indexChanged = true;
+            }
+        }
+        if (indexChanged) {
+            rewriteJournal();
+        }
+    }
+
+    private void rewriteJournal() {
+        if (mJournal != null) {
+            mJournal.rewrite(mEntries.values());
+        }
+    }
+
+    /**
+     * Populates the index by reading the header of every file in the root directory and its
+     * subdirectories. Files which were written with a different layout are moved to where the
+     * current layout expects them.
+     *
+     * <p>With more than one thread, the calling thread must not hold the lock. Files are then read
+     * by up to the given number of threads, including the calling one, which only hold the lock to
+     * add each entry to the index.
+     */
+    private void scanRootDirectory(File rootDirectory, int threadCount) {
+        boolean journalEnabled;
+        synchronized (this) {
+            journalEnabled = mJournal != null;
+        }
+        List<File> shards = new ArrayList<>();
+        // When the journal is disabled, a journal left behind by an earlier configuration is
+        // treated like any other unreadable file and deleted below, since it would otherwise be out
+        // of date if journaling is enabled again later.
+        final List<File> files = listEntryFiles(rootDirectory, journalEnabled, shards);
+        final boolean parallel = threadCount > 1;
+        final AtomicInteger nextFile = new AtomicInteger();
+        Runnable scanner =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        int i;
+                        while ((i = nextFile.getAndIncrement()) < files.size()) {
+                            scanFile(files.get(i), parallel);
+                        }
+                    }
+                };
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i < Math.min(threadCount, files.size()); i++) {
+            Thread thread = new Thread(scanner, "Volley-CacheScanner-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        scanner.run();
+        joinUninterruptibly(threads);
+        if (!mShardedLayoutEnabled) {
+            for (File shard : shards) {
+                // Only succeeds once all the files of the shard have been moved out of it.
+                //noinspection ResultOfMethodCallIgnored
+                shard.delete();
+            }
+        }
+    }
+
+    /**
+     * Lists the files in the root directory and in its subdirectories.
+     *
+     * @param skipJournal Whether to leave out the files of the journal
+     * @param shards If not null, the subdirectories are added to it
+     */
+    private static List<File> listEntryFiles(
+            File rootDirectory, boolean skipJournal, @Nullable List<File> shards) {
+        List<File> files = new ArrayList<>();
+        File[] rootFiles = rootDirectory.listFiles();
+        if (rootFiles == null) {
+            return files;
+        }
+        for (File file : rootFiles) {
+            if (skipJournal && DiskBasedCacheJournal.isJournalFile(file)) {
+                continue;
+            }
+            File[] shardFiles = file.listFiles();
+            if (shardFiles == null) {
+                files.add(file);
+            } else {
+                if (shards != null) {
+                    shards.add(file);
+                }
+                files.addAll(Arrays.asList(shardFiles));
+            }
+        }
+        return files;
+    }
+
+    private static void joinUninterruptibly(List<Thread> threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the entry held in the given file to the index, or deletes the file if unreadable.
+     *
+     * @param parallel Whether the lock isn't held by the caller, so that other threads may write or
+     *     remove entries while the file is read
+     */
+    private void scanFile(File file, boolean parallel) {
+        CacheHeader entry = readScannedFile(file);
+        synchronized (this) {
+            if (entry == null && parallel && !file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                // Files are overwritten in place unless concurrent file access is enabled, so the
+                // read may have failed because the file was being written. Writes hold the lock.
+                entry = readScannedFile(file);
+            }
+            if (entry == null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return;
+            }
+            addScannedEntry(file, entry);
+        }
+    }
+
+    /**
+     * Reads the header of the entry held in the given file, or returns null if it is unreadable or
+     * is the leftover of a write which never completed.
+     */
+    @Nullable
+    private CacheHeader readScannedFile(File file) {
+        if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+            return null;
+        }
+        CacheHeader entry;
+        try {
+            long entrySize = file.length();
+            CountingInputStream cis =
+                    new CountingInputStream(
+                            new BufferedInputStream(createInputStream(file)), entrySize);
+            try {
+                // The index doesn't need the response headers, which are read from the file along
+                // with the data.
+                entry = CacheHeader.readHeader(cis, /* readResponseHeaders= */ false);
+                entry.size = entrySize;
+            } finally {
+                // Any IOException thrown here is handled by the below catch block by design.
+                //noinspection ThrowFromFinallyBlock
+                cis.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return entry;
+    }
+
+    /** Adds an entry read by {@link #readScannedFile} to the index. */
+    private void addScannedEntry(File file, CacheHeader entry) {
+        File expectedFile = getFileForKey(entry.key);
+        if (mEntries.containsKey(entry.key) || !file.exists()) {
+            // Another file already held the entry, or, during a parallel scan, the entry was
+            // written or removed since the file was read.
+            if (!file.equals(expectedFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            return;
+        }
+        if (!file.equals(expectedFile) && !moveFile(file, expectedFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return;
+        }
+        putEntry(entry.key, entry);
+    }
+
+    /**
+     * Moves a file written with a different layout to its location in the current layout.
+     *
+     * @return true if the file was moved
+     */
+    private boolean moveFile(File file, File target) {
+        if (target.exists()) {
+            // The entry is already stored at its current location, which takes precedence.
+            return false;
+        }
+        File parent = target.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            return false;
+        }
+        return file.renameTo(target);
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * <p>The entry is marked as expired by overwriting a single byte of its header, unless it isn't
+     * in the index yet or its file was written with an older version of the cache file format, in
+     * which case the whole entry is rewritten.
+     *
+     * <p>In concurrent mode, this is not atomic with respect to a concurrent {@link #put}; one of
+     * the two writes wins.
+     *
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (this) {
+            if (expireInPlace(key, fullExpire)) {
+                return;
+            }
+        }
+        if (mConcurrentFileAccessEnabled) {
+            invalidateEntry(key, fullExpire);
+            return;
+        }
+        synchronized (this) {
+            invalidateEntry(key, fullExpire);
+        }
+    }
+
+    /**
+     * Invalidates every entry whose key starts with the given prefix. The keys are found in an
+     * ordered index, and each entry is invalidated like with {@link #invalidate}.
+     *
+     * <p>Entries written while this runs may or may not be invalidated.
+     */
+    @Override
+    public int invalidatePrefix(String keyPrefix, boolean fullExpire) {
+        List<String> keys = new ArrayList<>();
+        synchronized (this) {
+            awaitIndex();
+            for (String key : mSortedKeys.tailSet(keyPrefix)) {
+                if (!key.startsWith(keyPrefix)) {
+                    break;
+                }
+                keys.add(key);
+            }
+        }
+        return invalidateAll(keys, fullExpire);
+    }
+
+    /**
+     * Invalidates every entry whose key is accepted by the filter, which is called without holding
+     * the lock. Each entry is invalidated like with {@link #invalidate}.
+     *
+     * <p>Entries written while this runs may or may not be invalidated.
+     */
+    @Override
+    public int invalidateMatching(KeyFilter filter, boolean fullExpire) {
+        List<String> keys;
+        synchronized (this) {
+            awaitIndex();
+            keys = new ArrayList<>(mSortedKeys);
+        }
+        List<String> matchingKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (filter.apply(key)) {
+                matchingKeys.add(key);
+            }
+        }
+        return invalidateAll(matchingKeys, fullExpire);
+    }
+
+    /**
+     * Invalidates the entries with the given keys, taking the lock for each of them so that lookups
+     * aren't held up by a large batch.
+     *
+     * @return the number of entries which were still in the cache
+     */
+    private int invalidateAll(List<String> keys, boolean fullExpire) {
+        int invalidated = 0;
+        for (String key : keys) {
+            synchronized (this) {
+                if (!mEntries.containsKey(key)) {
+                    continue;
+                }
+            }
+            invalidate(key, fullExpire);
+            invalidated++;
+        }
+        return invalidated;
+    }
+
+    /**
+     * Waits until a scan of the root directory which doesn't hold the lock has added every entry to
+     * the index. Must be called while holding the lock, which is released while waiting.
+     */
+    private void awaitIndex() {
+        boolean interrupted = false;
+        while (mParallelScanRunning) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Marks the entry with the given key as expired by setting flags in the header of its file,
+     * leaving the rest of the file untouched. Must be called while holding the lock.
+     *
+     * @return true if the entry was marked, or false if it isn't in the index or its file can't be
+     *     updated in place
+     */
+    private boolean expireInPlace(String key, boolean fullExpire) {
+        CacheHeader indexEntry = mEntries.get(key);
+        if (indexEntry == null) {
+            return false;
+        }
+        File file = getFileForKey(key);
+        try {
+            CacheHeader headerOnDisk;
+            CountingInputStream cis =
+                    new CountingInputStream(
+                            new BufferedInputStream(createInputStream(file)), file.length());
+            try {
+                headerOnDisk = CacheHeader.readHeader(cis, /* readResponseHeaders= */ false);
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                cis.close();
+            }
+            if (!TextUtils.equals(key, headerOnDisk.key) || headerOnDisk.legacyFormat) {
+                return false;
+            }
+            headerOnDisk.softExpired = true;
+            headerOnDisk.expired |= fullExpire;
+            // As in updateHeaderInPlace, concurrent readers see either value of the flags, which
+            // don't change the layout of the header.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(FLAGS_OFFSET);
+                raf.write(headerOnDisk.getFlags());
+                mStats.recordBytesWritten(1);
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                raf.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return false;
+        }
+        indexEntry.softExpired = true;
+        indexEntry.expired |= fullExpire;
+        if (mJournal != null) {
+            mJournal.recordPut(indexEntry);
+        }
+        maybeCompactJournal();
+        return true;
+    }
+
+    /** Invalidates an entry by rewriting it with new TTLs. */
+    private void invalidateEntry(String key, boolean fullExpire) {
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    /** Puts the entry with the specified key into the cache. */
+    @Override
+    public void put(String key, Entry entry) {
+        long startNanos = System.nanoTime();
+        if (mConcurrentFileAccessEnabled) {
+            putConcurrently(key, entry);
+        } else {
+            putUnderLock(key, entry);
+        }
+        mStats.recordPut(System.nanoTime() - startNanos);
+    }
+
+    private void putUnderLock(String key, Entry entry) {
+        synchronized (this) {
+            if (!shouldWrite(entry)) {
+                return;
+            }
+            File file = getFileForKey(key);
+            try {
+                CacheHeader e = writeEntryFile(file, key, entry);
+                commitPut(key, e);
+            } catch (IOException e) {
+                boolean deleted = file.delete();
+                if (!deleted) {
+                    VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+                }
+                initializeIfRootDirectoryDeleted();
+            }
+        }
+    }
+
+    /**
+     * Writes the entry to a temporary file without holding the lock, and then moves it into place
+     * and updates the index under the lock, so that readers never see a partially written file.
+     */
+    private void putConcurrently(String key, Entry entry) {
+        synchronized (this) {
+            if (!shouldWrite(entry)) {
+                return;
+            }
+        }
+        File file = getFileForKey(key);
+        File tempFile = newTempFile(file);
+        try {
+            CacheHeader e = writeEntryFile(tempFile, key, entry);
+            moveIntoPlace(tempFile, file, key, e);
+        } catch (IOException e) {
+            onTempFileWriteFailure(tempFile);
+        }
+    }
+
+    /**
+     * Imports the entries of a snapshot written by {@link CacheSnapshot#write}, for instance one
+     * shipped in the assets of the app to warm up the cache on first launch.
+     *
+     * <p>The snapshot is read in a single pass, writing each entry to a temporary file without
+     * holding the lock. The entries are then moved into place and added to the index at once,
+     * followed by a single rewrite of the journal. Entries whose key is already in the cache are
+     * kept, since they are at least as recent as the snapshot, and entries which would fill the
+     * cache past the size it is pruned to are skipped.
+     *
+     * @return the number of entries imported
+     * @throws IOException if the snapshot can't be read or written to the cache, in which case no
+     *     entry is imported
+     * @throws IllegalStateException if {@link #initialize()} hasn't been called
+     */
+    public int importSnapshot(InputStream in) throws IOException {
+        long budget;
+        synchronized (this) {
+            awaitIndex();
+            if (!mIndexComplete) {
+                throw new IllegalStateException("Cache must be initialized before importing");
+            }
+            budget = (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) - mTotalSize;
+        }
+        List<CacheHeader> headers = new ArrayList<>();
+        List<File> tempFiles = new ArrayList<>();
+        try {
+            CacheSnapshot.Reader reader = new CacheSnapshot.Reader(in);
+            CacheSnapshot.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.data.length > budget) {
+                    continue;
+                }
+                String key = record.header.key;
+                File tempFile = newTempFile(getFileForKey(key));
+                tempFiles.add(tempFile);
+                CacheHeader e = writeEntryFile(tempFile, key, record.toCacheEntry());
+                headers.add(e);
+                budget -= e.size;
+            }
+        } catch (IOException e) {
+            for (File tempFile : tempFiles) {
+                onTempFileWriteFailure(tempFile);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            int imported = 0;
+            for (int i = 0; i < headers.size(); i++) {
+                CacheHeader e = headers.get(i);
+                File tempFile = tempFiles.get(i);
+                if (mEntries.containsKey(e.key) || !tempFile.renameTo(getFileForKey(e.key))) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
+                    continue;
+                }
+                putEntry(e.key, e);
+                imported++;
+            }
+            rewriteJournal();
+            pruneIfNeeded();
+            return imported;
+        }
+    }
+
+    /** Returns a file to write an entry to before it is moved to the given file. */
+    private File newTempFile(File file) {
+        return new File(
+                file.getParentFile(),
+                file.getName() + "." + mTempFileCounter.incrementAndGet() + TEMP_FILE_SUFFIX);
+    }
+
+    /** Moves a newly written entry into place and adds it to the index. */
+    private synchronized void moveIntoPlace(File tempFile, File file, String key, CacheHeader e)
+            throws IOException {
+        // Renaming under the lock keeps the order of files on disk consistent with the order of
+        // updates to the index when the same key is written concurrently.
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tempFile.getAbsolutePath());
+        }
+        commitPut(key, e);
+    }
+
+    private void onTempFileWriteFailure(File tempFile) {
+        if (tempFile.exists() && !tempFile.delete()) {
+            VolleyLog.d("Could not clean up file %s", tempFile.getAbsolutePath());
+        }
+        synchronized (this) {
+            initializeIfRootDirectoryDeleted();
+        }
+    }
+
+    /**
+     * Returns a pending entry whose body is written to a temporary file, if enabled with {@link
+     * Builder#setStreamingPutEnabled}.
+     */
+    @Nullable
+    @Override
+    public PendingEntry startPut(String key) {
+        if (!mStreamingPutEnabled) {
+            return null;
+        }
+        return new PendingDiskEntry(key, newTempFile(getFileForKey(key)));
+    }
+
+    /**
+     * Returns false if adding this entry would trigger a prune, but pruning would cause the new
+     * entry to be deleted. Writing the entry is just churn in that case.
+     */
+    private boolean shouldWrite(Entry entry) {
+        // Note that we don't include the cache header overhead in this calculation for simplicity,
+        // so putting entries which are just below the threshold may still cause this churn.
+        return mTotalSize + entry.data.length <= mMaxCacheSizeInBytes
+                || entry.data.length <= mMaxCacheSizeInBytes * HYSTERESIS_FACTOR;
+    }
+
+    /** Writes the header and data of an entry to the given file. */
+    private CacheHeader writeEntryFile(File file, String key, Entry entry) throws IOException {
+        createParentDirectory(file);
+        BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(file));
+        CacheHeader e = new CacheHeader(key, entry);
+        if (shouldCompress(e, entry.data.length)) {
+            e.deflated = true;
+            e.inflatedLength = entry.data.length;
+        }
+        setChecksum(e, entry);
+        boolean success = e.writeHeader(fos);
+        if (!success) {
+            fos.close();
+            VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+            throw new IOException();
+        }
+        Deflater deflater = null;
+        OutputStream out = fos;
+        if (e.deflated) {
+            deflater = new Deflater();
+            out = new DeflaterOutputStream(fos, deflater);
+        }
+        try {
+            out.write(entry.data);
+            out.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        e.size = file.length();
+        mStats.recordBytesWritten(e.size);
+        return e;
+    }
+
+    /** Returns true if the data of an entry should be stored deflated. */
+    private boolean shouldCompress(CacheHeader header, int length) {
+        if (!mCompressionEnabled || length < MIN_COMPRESSED_SIZE_BYTES) {
+            return false;
+        }
+        String contentType = null;
+        for (Header responseHeader : header.allResponseHeaders) {
+            if (HttpHeaderParser.HEADER_CONTENT_TYPE.equalsIgnoreCase(responseHeader.getName())) {
+                contentType = responseHeader.getValue();
+            } else if ("Content-Encoding".equalsIgnoreCase(responseHeader.getName())
+                    && !"identity".equalsIgnoreCase(responseHeader.getValue())) {
+                // The data is already compressed.
+                return false;
+            }
+        }
+        return contentType != null && isCompressible(contentType);
+    }
+
+    /** Returns true if the given Content-Type is textual, and usually compresses well. */
+    @VisibleForTesting
+    static boolean isCompressible(String contentType) {
+        String mimeType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.US);
+        return mimeType.startsWith("text/")
+                || mimeType.endsWith("json")
+                || mimeType.endsWith("xml")
+                || mimeType.endsWith("javascript");
+    }
+
+    /** Creates the directory of a file in the sharded layout, if it doesn't exist yet. */
+    private void createParentDirectory(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (mShardedLayoutEnabled && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent.getAbsolutePath());
+        }
+    }
+
+    /** Records the checksum of the data of the entry in its header, if checksums are enabled. */
+    private void setChecksum(CacheHeader e, Entry entry) {
+        if (mChecksumsEnabled) {
+            e.hasChecksum = true;
+            e.checksum = computeChecksum(entry.data);
+        }
+    }
+
+    /** Returns the checksum of the given data, as stored in the header of an entry. */
+    static int computeChecksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /** Adds a newly written entry to the index. */
+    private void commitPut(String key, CacheHeader e) {
+        putEntry(key, e);
+        if (mJournal != null) {
+            mJournal.recordPut(e);
+        }
+        pruneIfNeeded();
+        maybeCompactJournal();
+    }
+
+    /**
+     * Updates the metadata of an entry.
+     *
+     * <p>If every field of the serialized header keeps its length, which is usually the case when
+     * revalidating a response, the header is overwritten in place and the data is left untouched.
+     * Otherwise, the whole entry is rewritten with {@link #put}.
+     */
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        synchronized (this) {
+            if (mEntries.containsKey(key) && updateHeaderInPlace(key, entry)) {
+                return;
+            }
+        }
+        put(key, entry);
+    }
+
+    /**
+     * Overwrites the header of the file for the given key if the new header has the same layout.
+     *
+     * @return true if the header was updated
+     */
+    private boolean updateHeaderInPlace(String key, Entry entry) {
+        CacheHeader header = new CacheHeader(key, entry);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        File file = getFileForKey(key);
+        try {
+            CountingInputStream cis =
+                    new CountingInputStream(
+                            new BufferedInputStream(createInputStream(file)), file.length());
+            try {
+                CacheHeader headerOnDisk = CacheHeader.readHeader(cis);
+                // The data is unchanged, and so is the way it is stored.
+                header.deflated = headerOnDisk.deflated;
+                header.inflatedLength = headerOnDisk.inflatedLength;
+                header.hasChecksum = headerOnDisk.hasChecksum;
+                header.checksum = headerOnDisk.checksum;
+                header.padded = headerOnDisk.padded;
+                header.paddingLength = headerOnDisk.paddingLength;
+                if (!TextUtils.equals(key, headerOnDisk.key)
+                        || !headerOnDisk.hasSameLayout(header)
+                        || !header.writeHeader(headerBytes)) {
+                    return false;
+                }
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                cis.close();
+            }
+            // The update is made under the lock, so it can't race with a write of the same file.
+            // In concurrent mode, a reader may observe a mix of old and new header fields, which
+            // is harmless since every field keeps its position and the data is unchanged.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.write(headerBytes.toByteArray());
+                header.size = raf.length();
+                mStats.recordBytesWritten(headerBytes.size());
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                raf.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return false;
+        }
+        putEntry(key, header);
+        if (mJournal != null) {
+            mJournal.recordPut(header);
+        }
+        // The entry may have moved to a retention class which is now over its quota.
+        pruneIfNeeded();
+        maybeCompactJournal();
+        return true;
+    }
+
+    /** Removes the specified key from the cache if it exists. */
+    @Override
+    public synchronized void remove(String key) {
+        boolean deleted = getFileForKey(key).delete();
+        removeEntry(key);
+        maybeCompactJournal();
+        if (!deleted) {
+            VolleyLog.d(
+                    "Could not delete cache entry for key=%s, filename=%s",
+                    key, getFileForKey(key).getName());
+        }
+    }
+
+    /**
+     * Removes all expired entries, if sweeping was enabled with {@link
+     * Builder#setSweepIntervalMillis} and the interval has passed since the last sweep. Also writes
+     * out the access records buffered by the journal, if enabled, which reads leave for idle time.
+     */
+    @Override
+    public void sweep() {
+        // The cache thread sweeps while it is idle, which it shouldn't spend waiting for the scan.
+        if (!mIndexComplete) {
+            return;
+        }
+        synchronized (this) {
+            if (mJournal != null) {
+                mJournal.flush();
+            }
+            if (mSweepIntervalMillis <= 0) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (now < mNextSweepTimeMillis) {
+                return;
+            }
+            mNextSweepTimeMillis = now + mSweepIntervalMillis;
+            int removed = removeExpiredEntries();
+            if (removed > 0) {
+                maybeCompactJournal();
+                VolleyLog.d("Swept %d expired cache entries.", removed);
+            }
+        }
+    }
+
+    /** Returns the number of bytes reclaimed by removing expired entries. */
+    public long getExpiredBytesReclaimed() {
+        return mExpiredBytesReclaimed.get();
+    }
+
+    /** Returns the number of bytes reclaimed by evicting entries which had not expired. */
+    public long getEvictedBytesReclaimed() {
+        return mEvictedBytesReclaimed.get();
+    }
+
+    /**
+     * Returns the statistics of this cache. Lookups made by {@link #getStream} are timed until the
+     * header has been read, and count the whole file as read. Entries removed when pruning or
+     * sweeping, including expired ones, are counted as evictions.
+     */
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
+    /**
+     * Creates a pseudo-unique filename for the specified cache key in the flat layout.
+     *
+     * @param key The key to generate a file name for.
+     * @return A pseudo-unique filename.
+     */
+    static String getFilenameForKey(String key) {
+        int firstHalfLength = key.length() / 2;
+        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
+        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
+        return localFilename;
+    }
+
+    /**
+     * Creates a filename for the specified cache key in the sharded layout, made of the hex digits
+     * of the first 128 bits of its SHA-256 hash.
+     */
+    @VisibleForTesting
+    static String getShardedFilenameForKey(String key) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Both SHA-256 and UTF-8 are required to be supported by every implementation.
+            throw new IllegalStateException(e);
+        }
+        char[] filename = new char[32];
+        for (int i = 0; i < 16; i++) {
+            filename[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            filename[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(filename);
+    }
+
+    /** Returns a file object for the given cache key. */
+    public File getFileForKey(String key) {
+        return getFileForKey(mRootDirectorySupplier.get(), key, mShardedLayoutEnabled);
+    }
+
+    /** Returns the file which holds the entry for the given key in the given layout. */
+    static File getFileForKey(File rootDirectory, String key, boolean shardedLayout) {
+        if (shardedLayout) {
+            String filename = getShardedFilenameForKey(key);
+            File shard = new File(rootDirectory, filename.substring(0, SHARD_NAME_LENGTH));
+            return new File(shard, filename);
+        }
+        return new File(rootDirectory, getFilenameForKey(key));
+    }
+
+    private int getLayout() {
+        return mShardedLayoutEnabled ? LAYOUT_SHARDED : LAYOUT_FLAT;
+    }
+
+    /** Re-initialize the cache if the directory was deleted. */
+    private void initializeIfRootDirectoryDeleted() {
+        if (!mRootDirectorySupplier.get().exists()) {
+            VolleyLog.d("Re-initializing cache after external clearing.");
+            mEntries.clear();
+            mSortedKeys.clear();
+            mTotalSize = 0;
+            Arrays.fill(mRetentionSizes, 0);
+            if (mEvictionPolicy != null) {
+                mEvictionPolicy.onClear();
+            }
+            initialize();
+        }
+    }
+
+    /** Represents a supplier for {@link File}s. */
+    public interface FileSupplier {
+        File get();
+    }
+
+    /**
+     * Builder is used to build an instance of {@link DiskBasedCache} from values configured by the
+     * setters.
+     */
+    public static class Builder {
+        private final FileSupplier mRootDirectorySupplier;
+        private int mMaxCacheSizeInBytes = DEFAULT_DISK_USAGE_BYTES;
+        private final int[] mRetentionQuotas = newUnlimitedQuotas();
+        private boolean mJournalEnabled = false;
+        private boolean mConcurrentFileAccessEnabled = false;
+        private boolean mShardedLayoutEnabled = false;
+        @Nullable private EvictionPolicy mEvictionPolicy = null;
+        private long mSweepIntervalMillis = 0;
+        private boolean mStreamingPutEnabled = false;
+        private boolean mCompressionEnabled = false;
+        private int mInitializationThreadCount = 1;
+        private boolean mChecksumsEnabled = false;
+        private int mChecksumVerificationInterval = 1;
+
+        /** @param rootDirectory The root directory of the cache. */
+        public Builder(final File rootDirectory) {
+            mRootDirectorySupplier =
+                    new FileSupplier() {
+                        @Override
+                        public File get() {
+                            return rootDirectory;
+                        }
+                    };
+        }
+
+        /** @param rootDirectorySupplier The supplier for the root directory of the cache. */
+        public Builder(FileSupplier rootDirectorySupplier) {
+            mRootDirectorySupplier = rootDirectorySupplier;
+        }
+
+        /**
+         * Sets the maximum size of the cache in bytes. Note that the cache may briefly exceed this
+         * size on disk when writing a new entry that pushes it over the limit until the ensuing
+         * pruning completes. If not set, defaults to 5MB.
+         */
+        public Builder setMaxCacheSizeInBytes(int maxCacheSizeInBytes) {
+            mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+            return this;
+        }
+
+        /**
+         * Sets whether the index of the cache is persisted to a journal file in the root directory.
+         *
+         * <p>With the journal enabled, {@link DiskBasedCache#initialize()} restores the index,
+         * including the LRU order, with one sequential read of the journal instead of opening every
+         * cache file, which makes initializing large caches much faster. Files which aren't in the
+         * journal, because the process died before their entry was journaled, are found by listing
+         * the root directory, and added to the index. If the journal is missing or corrupt, the
+         * cache falls back to scanning the root directory and rebuilds it. Disabled by default.
+         */
+        public Builder setJournalEnabled(boolean journalEnabled) {
+            mJournalEnabled = journalEnabled;
+            return this;
+        }
+
+        /**
+         * Sets whether cache files are read and written without holding the lock on the cache
+         * index.
+         *
+         * <p>By default, every operation holds a single lock for its whole duration, so reading a
+         * large entry blocks all other lookups and writes. When enabled, the lock only guards the
+         * in-memory index; entries are written to a temporary file which is then atomically moved
+         * into place, so readers always see a complete file, and entries which were replaced or
+         * removed while being read are detected. Disabled by default.
+         */
+        public Builder setConcurrentFileAccessEnabled(boolean concurrentFileAccessEnabled) {
+            mConcurrentFileAccessEnabled = concurrentFileAccessEnabled;
+            return this;
+        }
+
+        /**
+         * Sets whether cache files are stored with the sharded layout.
+         *
+         * <p>By default, files are named by two 32-bit hashes of their key, so distinct keys may
+         * evict each other, and are all stored in the root directory, which slows down directory
+         * operations for large caches. The sharded layout names files by a 128-bit hash of their
+         * key and spreads them across 256 subdirectories. When the layout is changed, {@link
+         * DiskBasedCache#initialize()} moves existing files to their new location, so the cache
+         * contents are kept. Disabled by default.
+         */
+        public Builder setShardedLayoutEnabled(boolean shardedLayoutEnabled) {
+            mShardedLayoutEnabled = shardedLayoutEnabled;
+            return this;
+        }
+
+        /**
+         * Sets the policy which chooses the entries to evict when the cache exceeds its maximum
+         * size.
+         *
+         * <p>By default, the least recently used entries are evicted, so a burst of entries which
+         * are only used once, such as images in a long list, flushes out entries which are used all
+         * the time. {@link TinyLfuEvictionPolicy} only keeps new entries if they are used more
+         * often than the entries they would replace. The policy must not be shared with another
+         * cache.
+         */
+        public Builder setEvictionPolicy(@Nullable EvictionPolicy evictionPolicy) {
+            mEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the minimum interval between two sweeps of expired entries, in milliseconds, or 0 to
+         * disable sweeping.
+         *
+         * <p>Expired entries are always removed first when the cache exceeds its maximum size. When
+         * sweeping is enabled, {@link DiskBasedCache#sweep()} also removes them while the cache
+         * thread is idle, so that they don't take up disk space until then. Note that expired
+         * entries can otherwise still be revalidated with a conditional request. Disabled by
+         * default.
+         */
+        public Builder setSweepIntervalMillis(long sweepIntervalMillis) {
+            mSweepIntervalMillis = sweepIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets whether response bodies are written to the cache while they are read from the
+         * network.
+         *
+         * <p>By default, a response is only written once it has been read and parsed completely.
+         * When enabled, {@link DiskBasedCache#startPut} returns a pending entry which the network
+         * writes the body to as it arrives, after space reserved for the header; once the response
+         * is parsed, the header is written into that space and the entry is moved into place
+         * atomically, or the body is discarded if the response isn't cached. Responses whose header
+         * doesn't fit in 4 KiB, or whose data is compressed, are written once parsed as usual.
+         * Disabled by default.
+         */
+        public Builder setStreamingPutEnabled(boolean streamingPutEnabled) {
+            mStreamingPutEnabled = streamingPutEnabled;
+            return this;
+        }
+
+        /**
+         * Sets whether the data of text entries, such as JSON and XML responses, is compressed.
+         *
+         * <p>When enabled, entries of at least 1KB whose Content-Type is textual are deflated
+         * before they are written, and inflated when they are read, so that the same maximum size
+         * holds several times as many of them. Compressed entries are recorded in a newer version
+         * of the file header, which older versions of this class skip as unreadable. Disabled by
+         * default.
+         */
+        public Builder setCompressionEnabled(boolean compressionEnabled) {
+            mCompressionEnabled = compressionEnabled;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of threads which read the headers of cache files while the cache
+         * is initialized by scanning its root directory.
+         *
+         * <p>By default, {@link DiskBasedCache#initialize()} reads every file on the calling thread
+         * while holding the lock, so no entry can be looked up until all of them have been read.
+         * With more than one thread, files are read in parallel without holding the lock, which
+         * shortens the scan on storage serving several reads at once, and each entry can be looked
+         * up as soon as its file has been read. The threads only live for the duration of the scan.
+         * Defaults to 1.
+         */
+        public Builder setInitializationThreadCount(int initializationThreadCount) {
+            mInitializationThreadCount = initializationThreadCount;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of the entries of a retention class, in bytes. Once the entries of
+         * the class exceed it, entries of the class are evicted, regardless of the other classes.
+         * By default, a class is only bounded by the maximum size of the cache.
+         *
+         * <p>When the cache as a whole exceeds its maximum size, expired entries other than {@link
+         * Retention#PINNED} ones are removed first, and then entries are evicted one class at a
+         * time, from {@link Retention#LOW} to {@link Retention#PINNED}, so that pinned entries are
+         * only evicted if the other classes can't make enough room. Within a class, entries are
+         * evicted in least recently used order, or as selected by the {@link EvictionPolicy}.
+         * Setting a quota on pinned entries keeps them from crowding out the other classes.
+         *
+         * @see com.android.volley.Request#setCacheRetention
+         */
+        public Builder setRetentionQuotaInBytes(Retention retention, int quotaInBytes) {
+            mRetentionQuotas[retention.ordinal()] = quotaInBytes;
+            return this;
+        }
+
+        /**
+         * Sets whether a CRC32 checksum of the data of each entry is stored in its header, so that
+         * corrupt files are detected when they are read rather than handed to the request. Corrupt
+         * entries are removed, and counted by {@link CacheStats#getCorruptionCount()}.
+         *
+         * <p>Entries with a checksum are recorded in a newer version of the file header, which
+         * older versions of this class skip as unreadable. Entries are verified whenever they have
+         * a checksum, regardless of this setting. Disabled by default.
+         *
+         * @see #setChecksumVerificationInterval
+         */
+        public Builder setChecksumsEnabled(boolean checksumsEnabled) {
+            mChecksumsEnabled = checksumsEnabled;
+            return this;
+        }
+
+        /**
+         * Sets one out of how many reads of an entry whose checksum has already been verified
+         * verify it again.
+         *
+         * <p>The first read of an entry since it was written, or since the cache was initialized,
+         * is always verified. Verifying every read, which is the default, catches files damaged in
+         * the meantime, while a larger interval spares frequently read entries the cost of
+         * checksumming their data each time. Defaults to 1.
+         */
+        public Builder setChecksumVerificationInterval(int checksumVerificationInterval) {
+            if (checksumVerificationInterval < 1) {
+                throw new IllegalArgumentException("Interval must be at least 1");
+            }
+            mChecksumVerificationInterval = checksumVerificationInterval;
+            return this;
+        }
+
+        /** Builds the {@link DiskBasedCache}. */
+        public DiskBasedCache build() {
+            return new DiskBasedCache(this);
+        }
+    }
+
+    /** Prunes the retention classes which exceed their quota, and then the cache to fit. */
+    private void pruneIfNeeded() {
+        for (Retention retention : Retention.values()) {
+            int quota = mRetentionQuotas[retention.ordinal()];
+            if (mRetentionSizes[retention.ordinal()] >= quota) {
+                long before = mTotalSize;
+                long startTime = SystemClock.elapsedRealtime();
+                int prunedFiles =
+                        evictEntries(
+                                retention,
+                                /* retentionTarget= */ quota * HYSTERESIS_FACTOR,
+                                /* totalTarget= */ Double.POSITIVE_INFINITY);
+                logPruneResult(prunedFiles, before, startTime);
+            }
+        }
+        if (mTotalSize < mMaxCacheSizeInBytes) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+
+        long before = mTotalSize;
+        long startTime = SystemClock.elapsedRealtime();
+        float target = mMaxCacheSizeInBytes * HYSTERESIS_FACTOR;
+
+        // Expired entries can only be used for revalidation, so they are dropped first.
+        int prunedFiles = removeExpiredEntries();
+        for (Retention retention : Retention.values()) {
+            if (mTotalSize < target) {
+                break;
+            }
+            if (mRetentionSizes[retention.ordinal()] == 0) {
+                // Spares a pass over entries which are all skipped.
+                continue;
+            }
+            prunedFiles +=
+                    evictEntries(
+                            retention,
+                            /* retentionTarget= */ Double.POSITIVE_INFINITY,
+                            /* totalTarget= */ target);
+        }
+
+        logPruneResult(prunedFiles, before, startTime);
+    }
+
+    /**
+     * Evicts entries of a retention class until both the size of the class and the total size of
+     * the cache are below the given targets, or the class is empty. The least recently used entries
+     * are evicted first, unless an eviction policy is set, in which case it selects the victims.
+     *
+     * @return the number of entries evicted
+     */
+    private int evictEntries(Retention retention, double retentionTarget, double totalTarget) {
+        int index = retention.ordinal();
+        int evicted = 0;
+        if (mEvictionPolicy == null) {
+            Iterator<CacheHeader> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()
+                    && (mRetentionSizes[index] >= retentionTarget || mTotalSize >= totalTarget)) {
+                CacheHeader e = iterator.next();
+                if (e.retention != retention) {
+                    continue;
+                }
+                iterator.remove();
+                mEvictedBytesReclaimed.addAndGet(deleteEvictedFile(e));
+                evicted++;
+            }
+            return evicted;
+        }
+        // Looking the keys up in mEntries would reorder it, so the keys of the other classes are
+        // collected instead, unless they are all empty.
+        final Set<String> otherKeys = new HashSet<>();
+        if (mRetentionSizes[index] < mTotalSize) {
+            for (CacheHeader e : mEntries.values()) {
+                if (e.retention != retention) {
+                    otherKeys.add(e.key);
+                }
+            }
+        }
+        EvictionPolicy.KeyFilter inRetentionClass =
+                new EvictionPolicy.KeyFilter() {
+                    @Override
+                    public boolean accept(String key) {
+                        return !otherKeys.contains(key);
+                    }
+                };
+        while (mRetentionSizes[index] >= retentionTarget || mTotalSize >= totalTarget) {
+            String victim = mEvictionPolicy.selectVictim(inRetentionClass);
+            if (victim == null) {
+                break;
+            }
+            mEvictionPolicy.onRemove(victim);
+            CacheHeader e = mEntries.remove(victim);
+            if (e == null) {
+                continue;
+            }
+            mEvictedBytesReclaimed.addAndGet(deleteEvictedFile(e));
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private void logPruneResult(int prunedFiles, long sizeBefore, long startTime) {
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v(
+                    "pruned %d files, %d bytes, %d ms",
+                    prunedFiles,
+                    (mTotalSize - sizeBefore),
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Removes every entry whose TTL has passed from the index and deletes its file.
+     *
+     * @return the number of entries removed
+     */
+    private int removeExpiredEntries() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<CacheHeader> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheHeader e = iterator.next();
+            // Pinned entries are kept so they can be revalidated, which is cheaper than a refetch.
+            if (e.getTtl() >= now || e.retention == Retention.PINNED) {
+                continue;
+            }
+            iterator.remove();
+            if (mEvictionPolicy != null) {
+                mEvictionPolicy.onRemove(e.key);
+            }
+            mExpiredBytesReclaimed.addAndGet(deleteEvictedFile(e));
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Deletes the file of an entry which was removed from the index while pruning.
+     *
+     * @return the number of bytes reclaimed
+     */
+    private long deleteEvictedFile(CacheHeader e) {
+        mStats.recordEviction();
+        mSortedKeys.remove(e.key);
+        if (mJournal != null) {
+            mJournal.recordRemove(e.key);
+        }
+        if (!getFileForKey(e.key).delete()) {
+            VolleyLog.d(
+                    "Could not delete cache entry for key=%s, filename=%s",
+                    e.key, getFileForKey(e.key).getName());
+            return 0;
         }
+        addSize(e, -e.size);
+        return e.size;
     }
 
     /**
@@ -357,20 +2032,49 @@ public class DiskBasedCache implements Cache {
      * @param entry The entry to cache.
      */
     private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+        CacheHeader oldEntry = mEntries.put(key, entry);
+        mSortedKeys.add(key);
+        if (oldEntry != null) {
+            addSize(oldEntry, -oldEntry.size);
+        }
+        addSize(entry, entry.size);
+        if (mEvictionPolicy != null) {
+            mEvictionPolicy.onPut(key, entry.size);
         }
-        mEntries.put(key, entry);
+    }
+
+    /** Adds to the size of the cache and of the retention class of the given entry. */
+    private void addSize(CacheHeader entry, long delta) {
+        mTotalSize += delta;
+        mRetentionSizes[entry.retention.ordinal()] += delta;
+    }
+
+    /** Returns quotas which only bound each retention class by the maximum size of the cache. */
+    private static int[] newUnlimitedQuotas() {
+        int[] quotas = new int[Retention.values().length];
+        Arrays.fill(quotas, Integer.MAX_VALUE);
+        return quotas;
     }
 
     /** Removes the entry identified by 'key' from the cache. */
     private void removeEntry(String key) {
         CacheHeader removed = mEntries.remove(key);
         if (removed != null) {
-            mTotalSize -= removed.size;
+            mSortedKeys.remove(key);
+            addSize(removed, -removed.size);
+            if (mEvictionPolicy != null) {
+                mEvictionPolicy.onRemove(key);
+            }
+            if (mJournal != null) {
+                mJournal.recordRemove(key);
+            }
+        }
+    }
+
+    /** Rewrites the journal if it has accumulated too many redundant records. */
+    private void maybeCompactJournal() {
+        if (mJournal != null && mJournal.needsCompaction(mEntries.size())) {
+            mJournal.rewrite(mEntries.values());
         }
     }
 
@@ -393,6 +2097,46 @@ public class DiskBasedCache implements Cache {
         return bytes;
     }
 
+    /**
+     * Reads the data of an entry, which follows its header, inflating it if needed.
+     *
+     * @param header The header of the entry, which has been read from the stream
+     * @param cis The stream, positioned at the start of the data
+     * @throws IOException if fails to read all bytes
+     */
+    static byte[] readData(CacheHeader header, CountingInputStream cis) throws IOException {
+        if (!header.deflated) {
+            return streamToBytes(cis, cis.bytesRemaining());
+        }
+        long length = header.inflatedLength;
+        // Guard against corrupt lengths, as streamToBytes does.
+        if (length < 0
+                || length > cis.bytesRemaining() * MAX_DEFLATE_RATIO
+                || (int) length != length) {
+            throw new IOException("readData inflatedLength=" + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        InflaterInputStream in = new InflaterInputStream(cis);
+        try {
+            new DataInputStream(in).readFully(bytes);
+        } finally {
+            // Releases the native memory of the inflater. The caller closes the file.
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the length of the file read by the given stream. In concurrent mode, the file may
+     * have been replaced since the stream was opened, so its current length can't be used.
+     */
+    private static long getLength(InputStream in, File file) throws IOException {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel().size();
+        }
+        return file.length();
+    }
+
     @VisibleForTesting
     InputStream createInputStream(File file) throws FileNotFoundException {
         return new FileInputStream(file);
@@ -415,6 +2159,12 @@ public class DiskBasedCache implements Cache {
          */
         long size;
 
+        /** Whether the data is stored deflated. */
+        boolean deflated;
+
+        /** The length of the data once inflated, if it is stored deflated. */
+        long inflatedLength;
+
         /** The key that identifies the cache entry. */
         final String key;
 
@@ -436,7 +2186,43 @@ public class DiskBasedCache implements Cache {
         /** Headers from the response resulting in this cache entry. */
         final List<Header> allResponseHeaders;
 
-        private CacheHeader(
+        /**
+         * Whether this header was read from a file written with an older version of the cache file
+         * format. Headers are always written with the current version.
+         */
+        boolean legacyFormat;
+
+        /** Retention class of the entry. */
+        Retention retention = Retention.NORMAL;
+
+        /** Whether the entry was soft expired, in which case {@link #softTtl} is ignored. */
+        boolean softExpired;
+
+        /** Whether the entry was fully expired, in which case both TTLs are ignored. */
+        boolean expired;
+
+        /** Whether {@link #checksum} holds the checksum of the data. */
+        boolean hasChecksum;
+
+        /** CRC32 of the data once inflated, if {@link #hasChecksum} is set. */
+        int checksum;
+
+        /**
+         * Whether the header is followed by the length of the padding and {@link #paddingLength}
+         * bytes of padding, which fill the space reserved ahead of data written before the header.
+         */
+        boolean padded;
+
+        /** Number of bytes of padding, if {@link #padded} is set. */
+        int paddingLength;
+
+        /**
+         * Whether the data has been verified against the checksum since this header was added to
+         * the index. This is not serialized to disk.
+         */
+        boolean checksumVerified;
+
+        CacheHeader(
                 String key,
                 String etag,
                 long serverDate,
@@ -468,6 +2254,9 @@ public class DiskBasedCache implements Cache {
                     entry.ttl,
                     entry.softTtl,
                     getAllResponseHeaders(entry));
+            if (entry.retention != null) {
+                retention = entry.retention;
+            }
         }
 
         private static List<Header> getAllResponseHeaders(Entry entry) {
@@ -487,7 +2276,23 @@ public class DiskBasedCache implements Cache {
          * @throws IOException if fails to read header
          */
         static CacheHeader readHeader(CountingInputStream is) throws IOException {
+            return readHeader(is, /* readResponseHeaders= */ true);
+        }
+
+        /**
+         * Reads the header from a CountingInputStream and returns a CacheHeader object.
+         *
+         * @param is The InputStream to read from.
+         * @param readResponseHeaders Whether to read the response headers, or to skip them and
+         *     leave {@link #allResponseHeaders} empty
+         * @throws IOException if fails to read header
+         */
+        static CacheHeader readHeader(CountingInputStream is, boolean readResponseHeaders)
+                throws IOException {
             int magic = readInt(is);
+            if (magic == CACHE_MAGIC_V2) {
+                return readCompactHeader(is, readResponseHeaders);
+            }
             if (magic != CACHE_MAGIC) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
@@ -498,9 +2303,71 @@ public class DiskBasedCache implements Cache {
             long lastModified = readLong(is);
             long ttl = readLong(is);
             long softTtl = readLong(is);
-            List<Header> allResponseHeaders = readHeaderList(is);
-            return new CacheHeader(
-                    key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+            List<Header> allResponseHeaders;
+            if (readResponseHeaders) {
+                allResponseHeaders = readHeaderList(is);
+            } else {
+                skipHeaderList(is);
+                allResponseHeaders = Collections.emptyList();
+            }
+            CacheHeader header =
+                    new CacheHeader(
+                            key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+            header.legacyFormat = true;
+            return header;
+        }
+
+        private static CacheHeader readCompactHeader(
+                CountingInputStream is, boolean readResponseHeaders) throws IOException {
+            int flags = readVarInt(is);
+            checkFlags(flags);
+            boolean deflated = (flags & FLAG_DEFLATED) != 0;
+            long inflatedLength = deflated ? readVarLong(is) : 0;
+            boolean hasChecksum = (flags & FLAG_CHECKSUM) != 0;
+            int checksum = hasChecksum ? readInt(is) : 0;
+            String key = readVarString(is);
+            String etag = readVarString(is);
+            long serverDate = readVarLong(is);
+            long lastModified = readVarLong(is);
+            long ttl = readVarLong(is);
+            long softTtl = readVarLong(is);
+            List<Header> allResponseHeaders;
+            if (readResponseHeaders) {
+                allResponseHeaders = readCompactHeaderList(is);
+            } else {
+                skipCompactHeaderList(is);
+                allResponseHeaders = Collections.emptyList();
+            }
+            CacheHeader header =
+                    new CacheHeader(
+                            key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+            header.deflated = deflated;
+            header.inflatedLength = inflatedLength;
+            header.retention =
+                    RETENTION_CODES[(flags & FLAG_RETENTION_MASK) >> FLAG_RETENTION_SHIFT];
+            header.softExpired = (flags & FLAG_SOFT_EXPIRED) != 0;
+            header.expired = (flags & FLAG_EXPIRED) != 0;
+            header.hasChecksum = hasChecksum;
+            header.checksum = checksum;
+            if ((flags & FLAG_PADDED) != 0) {
+                header.padded = true;
+                header.paddingLength = readVarInt(is);
+                skipBytes(is, header.paddingLength);
+            }
+            return header;
+        }
+
+        private static void checkFlags(int flags) throws IOException {
+            int knownFlags =
+                    FLAG_DEFLATED
+                            | FLAG_RETENTION_MASK
+                            | FLAG_SOFT_EXPIRED
+                            | FLAG_EXPIRED
+                            | FLAG_CHECKSUM
+                            | FLAG_PADDED;
+            if ((flags & ~knownFlags) != 0) {
+                throw new IOException("Unknown header flags " + flags);
+            }
         }
 
         /** Creates a cache entry for the specified data. */
@@ -510,24 +2377,107 @@ public class DiskBasedCache implements Cache {
             e.etag = etag;
             e.serverDate = serverDate;
             e.lastModified = lastModified;
-            e.ttl = ttl;
-            e.softTtl = softTtl;
+            e.ttl = getTtl();
+            e.softTtl = getSoftTtl();
             e.responseHeaders = HttpHeaderParser.toHeaderMap(allResponseHeaders);
             e.allResponseHeaders = Collections.unmodifiableList(allResponseHeaders);
+            e.retention = retention;
             return e;
         }
 
+        /** Returns the TTL of the entry, which is 0 if it was fully expired. */
+        long getTtl() {
+            return expired ? 0 : ttl;
+        }
+
+        /** Returns the soft TTL of the entry, which is 0 if it was soft or fully expired. */
+        long getSoftTtl() {
+            return softExpired || expired ? 0 : softTtl;
+        }
+
+        /**
+         * Returns true if this header serializes to a header whose fields all have the same length
+         * as the other one's, so that either can overwrite the other in place.
+         *
+         * <p>Headers read in a legacy format never have the same layout as any other header, so
+         * that the whole entry is rewritten, which migrates it to the current format.
+         */
+        boolean hasSameLayout(CacheHeader other) throws IOException {
+            if (legacyFormat || other.legacyFormat) {
+                return false;
+            }
+            return Arrays.equals(getFieldLengths(), other.getFieldLengths());
+        }
+
+        /** Returns the length of every field of the serialized header, in order. */
+        private int[] getFieldLengths() throws IOException {
+            List<Header> headers = nonNullHeaders(allResponseHeaders);
+            int[] lengths = new int[9 + 2 * headers.size()];
+            int i = 0;
+            lengths[i++] =
+                    varLongLength(getFlags())
+                            + (deflated ? varLongLength(inflatedLength) : 0)
+                            + (hasChecksum ? 4 : 0);
+            lengths[i++] = varStringLength(key);
+            lengths[i++] = varStringLength(etag);
+            lengths[i++] = varLongLength(serverDate);
+            lengths[i++] = varLongLength(lastModified);
+            lengths[i++] = varLongLength(ttl);
+            lengths[i++] = varLongLength(softTtl);
+            lengths[i++] = varLongLength(headers.size());
+            for (Header header : headers) {
+                Integer nameRef = HEADER_NAME_REFS.get(header.getName());
+                lengths[i++] =
+                        nameRef != null
+                                ? varLongLength(nameRef)
+                                : varLongLength(0) + varStringLength(header.getName());
+                lengths[i++] = varStringLength(header.getValue());
+            }
+            lengths[i++] = padded ? varLongLength(paddingLength) + paddingLength : 0;
+            return lengths;
+        }
+
+        private static int varStringLength(@Nullable String s) throws IOException {
+            int length = s == null ? 0 : s.getBytes("UTF-8").length;
+            return varLongLength(length) + length;
+        }
+
+        private static List<Header> nonNullHeaders(@Nullable List<Header> headers) {
+            return headers == null ? Collections.<Header>emptyList() : headers;
+        }
+
+        private int getFlags() {
+            int retentionCode = Arrays.asList(RETENTION_CODES).indexOf(retention);
+            return (deflated ? FLAG_DEFLATED : 0)
+                    | (retentionCode << FLAG_RETENTION_SHIFT)
+                    | (softExpired ? FLAG_SOFT_EXPIRED : 0)
+                    | (expired ? FLAG_EXPIRED : 0)
+                    | (hasChecksum ? FLAG_CHECKSUM : 0)
+                    | (padded ? FLAG_PADDED : 0);
+        }
+
         /** Writes the contents of this CacheHeader to the specified OutputStream. */
         boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeHeaderList(allResponseHeaders, os);
+                writeInt(os, CACHE_MAGIC_V2);
+                writeVarLong(os, getFlags());
+                if (deflated) {
+                    writeVarLong(os, inflatedLength);
+                }
+                if (hasChecksum) {
+                    writeInt(os, checksum);
+                }
+                writeVarString(os, key);
+                writeVarString(os, etag == null ? "" : etag);
+                writeVarLong(os, serverDate);
+                writeVarLong(os, lastModified);
+                writeVarLong(os, ttl);
+                writeVarLong(os, softTtl);
+                writeCompactHeaderList(allResponseHeaders, os);
+                if (padded) {
+                    writeVarLong(os, paddingLength);
+                    os.write(new byte[paddingLength]);
+                }
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -537,6 +2487,233 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Entry whose body is written to a temporary file as it is received, after {@link
+     * #RESERVED_HEADER_BYTES} of space for the header. On commit, the header is written into that
+     * space and padded to fill it, and the file is moved into place like any other write, so the
+     * body is only written once.
+     *
+     * <p>Entries which can't be stored that way, because their header doesn't fit or their data
+     * should be compressed, aren't committed, and are written with {@link #put} instead.
+     */
+    private class PendingDiskEntry implements PendingEntry {
+        private final String mKey;
+        private final File mBodyFile;
+        @Nullable private OutputStream mBody;
+        private long mBodyLength = 0;
+        private boolean mDone = false;
+
+        PendingDiskEntry(String key, File bodyFile) {
+            mKey = key;
+            mBodyFile = bodyFile;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mDone) {
+                throw new IOException("Entry was already committed or discarded");
+            }
+            try {
+                if (mBody == null) {
+                    // The file is only created once there is a body, which most responses that
+                    // aren't cached, such as errors and 304s, don't have.
+                    createParentDirectory(mBodyFile);
+                    mBody = new BufferedOutputStream(createOutputStream(mBodyFile));
+                    mBody.write(new byte[RESERVED_HEADER_BYTES]);
+                }
+                mBody.write(buffer, offset, count);
+                mBodyLength += count;
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean commit(Entry entry) {
+            if (mDone) {
+                return false;
+            }
+            if (entry.data.length != mBodyLength) {
+                discard();
+                return false;
+            }
+            mDone = true;
+            long startNanos = System.nanoTime();
+            File file = getFileForKey(mKey);
+            try {
+                if (mBody == null) {
+                    // There is no body to reuse.
+                    return false;
+                }
+                mBody.close();
+                synchronized (DiskBasedCache.this) {
+                    if (!shouldWrite(entry)) {
+                        return true;
+                    }
+                }
+                CacheHeader e = new CacheHeader(mKey, entry);
+                if (shouldCompress(e, entry.data.length) || !writeReservedHeader(e, entry)) {
+                    return false;
+                }
+                moveIntoPlace(mBodyFile, file, mKey, e);
+                mStats.recordPut(System.nanoTime() - startNanos);
+                return true;
+            } catch (IOException e) {
+                onTempFileWriteFailure(mBodyFile);
+                return false;
+            } finally {
+                deleteBodyFile();
+            }
+        }
+
+        /**
+         * Writes the header into the space reserved at the start of the file.
+         *
+         * @return false if the header doesn't fit
+         */
+        private boolean writeReservedHeader(CacheHeader e, Entry entry) throws IOException {
+            setChecksum(e, entry);
+            e.padded = true;
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            if (!e.writeHeader(headerBytes)) {
+                throw new IOException("Failed to write header for " + mKey);
+            }
+            // The header was written without padding, whose length took one byte.
+            int available = RESERVED_HEADER_BYTES - (headerBytes.size() - 1);
+            e.paddingLength = -1;
+            for (int lengthBytes = 1; lengthBytes <= 2; lengthBytes++) {
+                int paddingLength = available - lengthBytes;
+                if (paddingLength >= 0 && varLongLength(paddingLength) == lengthBytes) {
+                    e.paddingLength = paddingLength;
+                    break;
+                }
+            }
+            if (e.paddingLength < 0) {
+                return false;
+            }
+            headerBytes.reset();
+            if (!e.writeHeader(headerBytes)) {
+                throw new IOException("Failed to write header for " + mKey);
+            }
+            RandomAccessFile raf = new RandomAccessFile(mBodyFile, "rw");
+            try {
+                raf.write(headerBytes.toByteArray());
+                e.size = raf.length();
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                raf.close();
+            }
+            mStats.recordBytesWritten(e.size);
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            if (mBody != null) {
+                try {
+                    mBody.close();
+                } catch (IOException e) {
+                    // The file is deleted anyway.
+                }
+            }
+            deleteBodyFile();
+        }
+
+        private void deleteBodyFile() {
+            if (mBodyFile.exists() && !mBodyFile.delete()) {
+                VolleyLog.d("Could not clean up file %s", mBodyFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Stream over the data of an entry which checks it against its checksum once it has been read
+     * to the end, and removes the entry if it is corrupt. The read which reaches the end then
+     * throws an IOException.
+     */
+    private class ChecksumVerifyingInputStream extends FilterInputStream {
+        private final String mKey;
+        private final OpenedEntry mOpened;
+        private final CRC32 mCrc = new CRC32();
+        private long mRemaining;
+
+        ChecksumVerifyingInputStream(InputStream in, long length, String key, OpenedEntry opened) {
+            super(in);
+            mRemaining = length;
+            mKey = key;
+            mOpened = opened;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mCrc.update(result);
+                onRead(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result > 0) {
+                mCrc.update(buffer, offset, result);
+                onRead(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes must still be checksummed.
+            byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            int result = read(buffer, 0, buffer.length);
+            return Math.max(result, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void onRead(int count) throws IOException {
+            mRemaining -= count;
+            if (mRemaining != 0) {
+                return;
+            }
+            try {
+                onChecksumComputed(mOpened.indexEntry, mOpened.header, mCrc);
+            } catch (IOException e) {
+                onReadFailure(mKey, mOpened.indexEntry, e);
+                throw e;
+            }
+        }
+    }
+
+    /** An entry whose file has been opened and whose header has been read. */
+    private static class OpenedEntry {
+        /** The header held by the index when the entry was looked up. */
+        final CacheHeader indexEntry;
+
+        /** The header read from the file. */
+        final CacheHeader header;
+
+        /** The file, positioned at the start of the body. */
+        final CountingInputStream stream;
+
+        OpenedEntry(CacheHeader indexEntry, CacheHeader header, CountingInputStream stream) {
+            this.indexEntry = indexEntry;
+            this.header = header;
+            this.stream = stream;
+        }
+    }
+
     @VisibleForTesting
     static class CountingInputStream extends FilterInputStream {
         private final long length;
@@ -565,7 +2742,13 @@ public class DiskBasedCache implements Cache {
             return result;
         }
 
-        @VisibleForTesting
+        @Override
+        public long skip(long count) throws IOException {
+            long result = super.skip(count);
+            bytesRead += result;
+            return result;
+        }
+
         long bytesRead() {
             return bytesRead;
         }
@@ -674,4 +2857,145 @@ public class DiskBasedCache implements Cache {
         }
         return result;
     }
+
+    /** Skips a header list written by {@link #writeHeaderList} without allocating its contents. */
+    static void skipHeaderList(CountingInputStream cis) throws IOException {
+        int size = readInt(cis);
+        if (size < 0) {
+            throw new IOException("skipHeaderList size=" + size);
+        }
+        for (int i = 0; i < size; i++) {
+            skipBytes(cis, readLong(cis));
+            skipBytes(cis, readLong(cis));
+        }
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint: seven bits at a time, least significant first, with the
+     * high bit of every byte but the last set. Negative numbers take the maximum of ten bytes.
+     */
+    static void writeVarLong(OutputStream os, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            os.write((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        os.write((int) n);
+    }
+
+    static long readVarLong(InputStream is) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_LENGTH; shift += 7) {
+            int b = read(is);
+            n |= (b & 0x7FL) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("readVarLong malformed varint");
+    }
+
+    /** Reads a varint which must hold a non-negative int, such as a length or a count. */
+    static int readVarInt(InputStream is) throws IOException {
+        long n = readVarLong(is);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("readVarInt n=" + n);
+        }
+        return (int) n;
+    }
+
+    /** Returns the number of bytes written by {@link #writeVarLong} for the given number. */
+    static int varLongLength(long n) {
+        int length = 1;
+        while ((n & ~0x7FL) != 0) {
+            length++;
+            n >>>= 7;
+        }
+        return length;
+    }
+
+    static void writeVarString(OutputStream os, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarLong(os, b.length);
+        os.write(b, 0, b.length);
+    }
+
+    static String readVarString(CountingInputStream cis) throws IOException {
+        int n = readVarInt(cis);
+        byte[] b = streamToBytes(cis, n);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Writes a header list like {@link #writeHeaderList}, with varints, and with the names found in
+     * {@link #HEADER_NAME_REFS} replaced by their reference.
+     */
+    static void writeCompactHeaderList(List<Header> headers, OutputStream os) throws IOException {
+        if (headers == null) {
+            writeVarLong(os, 0);
+            return;
+        }
+        writeVarLong(os, headers.size());
+        for (Header header : headers) {
+            Integer nameRef = HEADER_NAME_REFS.get(header.getName());
+            if (nameRef != null) {
+                writeVarLong(os, nameRef);
+            } else {
+                writeVarLong(os, 0);
+                writeVarString(os, header.getName());
+            }
+            writeVarString(os, header.getValue());
+        }
+    }
+
+    static List<Header> readCompactHeaderList(CountingInputStream cis) throws IOException {
+        int size = readVarInt(cis);
+        // Each header takes at least two bytes, which bounds the size of a corrupt list.
+        if (size > cis.bytesRemaining() / 2) {
+            throw new IOException("readCompactHeaderList size=" + size);
+        }
+        List<Header> result =
+                (size == 0) ? Collections.<Header>emptyList() : new ArrayList<Header>(size);
+        for (int i = 0; i < size; i++) {
+            int nameRef = readVarInt(cis);
+            // Names from the dictionary are shared constants, so only other names are allocated.
+            String name = nameRef != 0 ? getHeaderName(nameRef) : readVarString(cis).intern();
+            String value = readVarString(cis).intern();
+            result.add(new Header(name, value));
+        }
+        return result;
+    }
+
+    /** Skips a header list written by {@link #writeCompactHeaderList}. */
+    static void skipCompactHeaderList(CountingInputStream cis) throws IOException {
+        int size = readVarInt(cis);
+        for (int i = 0; i < size; i++) {
+            if (readVarInt(cis) == 0) {
+                skipBytes(cis, readVarInt(cis));
+            }
+            skipBytes(cis, readVarInt(cis));
+        }
+    }
+
+    private static String getHeaderName(int nameRef) throws IOException {
+        int index = (nameRef >>> 1) - 1;
+        if (index < 0 || index >= HEADER_NAMES.length) {
+            throw new IOException("Unknown header name reference " + nameRef);
+        }
+        return (nameRef & 1) == 0 ? HEADER_NAMES[index] : LOWER_CASE_HEADER_NAMES[index];
+    }
+
+    /** Skips the given number of bytes, which must all be available. */
+    private static void skipBytes(CountingInputStream cis, long count) throws IOException {
+        if (count < 0 || count > cis.bytesRemaining()) {
+            throw new IOException("skipBytes count=" + count);
+        }
+        while (count > 0) {
+            long skipped = cis.skip(count);
+            if (skipped <= 0) {
+                read(cis);
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
 }
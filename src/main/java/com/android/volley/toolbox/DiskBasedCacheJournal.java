@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.Cache;
+import com.android.volley.Header;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only index of the entries stored by a {@link DiskBasedCache}.
+ *
+ * <p>The journal holds the metadata needed to rebuild the in-memory index (key, size, TTLs,
+ * validators and retention class) so that {@link DiskBasedCache#initialize()} can restore the cache
+ * with one sequential read rather than opening every cache file. Each mutation of the cache appends
+ * a record; reads append an access record so that replaying the journal also restores the LRU
+ * order. Access records are buffered rather than written by the read which appends them, and reach
+ * the file along with the next other record, on {@link #flush} or when the journal is closed or
+ * compacted; losing some of them when the process dies only affects the order of eviction. Once the
+ * number of redundant records grows large enough, the journal is compacted by rewriting it from the
+ * live entries.
+ *
+ * <p>If the journal cannot be read, the cache falls back to scanning its directory and rebuilds the
+ * journal from the result. If it cannot be written, it is deleted so that the next initialization
+ * performs a full scan rather than trusting stale data.
+ *
+ * <p>This class is not thread-safe; callers must synchronize access to it.
+ */
+class DiskBasedCacheJournal {
+
+    /** Name of the journal file within the cache directory. */
+    static final String JOURNAL_FILE_NAME = "journal";
+
+    /** Name of the file used while rewriting the journal. */
+    private static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+
+    /** Magic number for the current version of the journal format. */
+    private static final int JOURNAL_MAGIC = 0x20201105;
+
+    /** Number of redundant records that must accumulate before the journal is compacted. */
+    @VisibleForTesting static final int COMPACTION_THRESHOLD = 2000;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_ACCESS = 2;
+    private static final byte RECORD_REMOVE = 3;
+
+    private final File mJournalFile;
+    private final File mJournalTempFile;
+
+    /**
+     * Layout of the cache files. A journal written for another layout is ignored, so that the files
+     * are found and moved by a full scan.
+     */
+    private final int mLayout;
+
+    /** Stream records are appended to, or null if the journal is not open for writing. */
+    @Nullable private DataOutputStream mWriter;
+
+    /** Total number of records in the journal file. */
+    private int mRecordCount;
+
+    DiskBasedCacheJournal(File directory, int layout) {
+        mJournalFile = new File(directory, JOURNAL_FILE_NAME);
+        mJournalTempFile = new File(directory, JOURNAL_TEMP_FILE_NAME);
+        mLayout = layout;
+    }
+
+    /** Returns true if the given file is used by the journal rather than by a cache entry. */
+    static boolean isJournalFile(File file) {
+        String name = file.getName();
+        return JOURNAL_FILE_NAME.equals(name) || JOURNAL_TEMP_FILE_NAME.equals(name);
+    }
+
+    /**
+     * Replays the journal.
+     *
+     * @return the live entries in least-recently-used order, or null if the journal is missing or
+     *     corrupt. Sizes are populated from the journal. The entries do not carry their response
+     *     headers, which are read from the cache file when the entry is retrieved.
+     */
+    @Nullable
+    List<CacheHeader> load() {
+        if (!mJournalFile.exists()) {
+            return null;
+        }
+        Map<String, CacheHeader> entries = new LinkedHashMap<>(16, .75f, true);
+        int recordCount = 0;
+        boolean truncated = false;
+        try {
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            try {
+                if (in.readInt() != JOURNAL_MAGIC) {
+                    VolleyLog.d("Ignoring journal with unknown format");
+                    return null;
+                }
+                if (in.readInt() != mLayout) {
+                    VolleyLog.d("Ignoring journal written for another file layout");
+                    return null;
+                }
+                long maxStringLength = mJournalFile.length();
+                while (true) {
+                    int op = in.read();
+                    if (op == -1) {
+                        break;
+                    }
+                    if (op != RECORD_PUT && op != RECORD_ACCESS && op != RECORD_REMOVE) {
+                        throw new IOException("Unknown journal record: " + op);
+                    }
+                    try {
+                        String key = readString(in, maxStringLength);
+                        switch (op) {
+                            case RECORD_PUT:
+                                String etag = readString(in, maxStringLength);
+                                long serverDate = in.readLong();
+                                long lastModified = in.readLong();
+                                long ttl = in.readLong();
+                                long softTtl = in.readLong();
+                                long size = in.readLong();
+                                int retention = in.readUnsignedByte();
+                                if (retention >= Cache.Retention.values().length) {
+                                    throw new IOException("Unknown retention class " + retention);
+                                }
+                                CacheHeader header =
+                                        new CacheHeader(
+                                                key,
+                                                etag,
+                                                serverDate,
+                                                lastModified,
+                                                ttl,
+                                                softTtl,
+                                                Collections.<Header>emptyList());
+                                header.size = size;
+                                header.retention = Cache.Retention.values()[retention];
+                                entries.put(key, header);
+                                break;
+                            case RECORD_ACCESS:
+                                entries.get(key);
+                                break;
+                            default: // RECORD_REMOVE
+                                entries.remove(key);
+                                break;
+                        }
+                    } catch (EOFException e) {
+                        // The process died while appending the last record. Everything before it
+                        // is still valid, but the partial record must not be appended to.
+                        truncated = true;
+                        break;
+                    }
+                    recordCount++;
+                }
+            } finally {
+                // Any IOException thrown here is handled by the below catch block by design.
+                //noinspection ThrowFromFinallyBlock
+                in.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Unable to read journal: %s", e.toString());
+            return null;
+        }
+        List<CacheHeader> result = new ArrayList<>(entries.values());
+        if (truncated) {
+            rewrite(result);
+        } else {
+            mRecordCount = recordCount;
+            openWriter();
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the journal with one containing only the given entries, in iteration order, and
+     * opens it for appending.
+     */
+    void rewrite(Collection<CacheHeader> entries) {
+        close();
+        try {
+            DataOutputStream out =
+                    new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(mJournalTempFile)));
+            try {
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeInt(mLayout);
+                for (CacheHeader entry : entries) {
+                    writePut(out, entry);
+                }
+            } finally {
+                //noinspection ThrowFromFinallyBlock
+                out.close();
+            }
+            if (!mJournalTempFile.renameTo(mJournalFile)) {
+                throw new IOException("Unable to rename " + mJournalTempFile);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Unable to write journal: %s", e.toString());
+            abandon();
+            return;
+        }
+        mRecordCount = entries.size();
+        openWriter();
+    }
+
+    /** Records that an entry was written to the cache. */
+    void recordPut(CacheHeader entry) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            writePut(mWriter, entry);
+            mWriter.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            VolleyLog.d("Unable to append to journal: %s", e.toString());
+            abandon();
+        }
+    }
+
+    /** Records that an entry was read from the cache, without writing the record out yet. */
+    void recordAccess(String key) {
+        appendKeyRecord(RECORD_ACCESS, key, /* flush= */ false);
+    }
+
+    /** Records that an entry was removed from the cache. */
+    void recordRemove(String key) {
+        appendKeyRecord(RECORD_REMOVE, key, /* flush= */ true);
+    }
+
+    /** Writes out the buffered access records. */
+    void flush() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            VolleyLog.d("Unable to append to journal: %s", e.toString());
+            abandon();
+        }
+    }
+
+    /**
+     * Returns true if enough of the journal is made up of redundant records that it should be
+     * rewritten.
+     *
+     * @param liveEntryCount the number of entries currently in the cache
+     */
+    boolean needsCompaction(int liveEntryCount) {
+        int redundantRecordCount = mRecordCount - liveEntryCount;
+        return mWriter != null
+                && redundantRecordCount >= COMPACTION_THRESHOLD
+                && redundantRecordCount >= liveEntryCount;
+    }
+
+    /** Closes the journal. Further records are dropped until it is rewritten. */
+    void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                VolleyLog.d("Unable to close journal: %s", e.toString());
+            }
+            mWriter = null;
+        }
+    }
+
+    @VisibleForTesting
+    File getFile() {
+        return mJournalFile;
+    }
+
+    private void appendKeyRecord(byte op, String key, boolean flush) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.writeByte(op);
+            writeString(mWriter, key);
+            if (flush) {
+                mWriter.flush();
+            }
+            mRecordCount++;
+        } catch (IOException e) {
+            VolleyLog.d("Unable to append to journal: %s", e.toString());
+            abandon();
+        }
+    }
+
+    private void openWriter() {
+        try {
+            mWriter =
+                    new DataOutputStream(
+                            new BufferedOutputStream(
+                                    new FileOutputStream(mJournalFile, /* append= */ true)));
+        } catch (IOException e) {
+            VolleyLog.d("Unable to open journal: %s", e.toString());
+            abandon();
+        }
+    }
+
+    /**
+     * Stops journaling and deletes the journal, so that a later initialization falls back to
+     * scanning the cache directory instead of trusting an incomplete journal.
+     */
+    private void abandon() {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        mJournalFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mJournalTempFile.delete();
+    }
+
+    private static void writePut(DataOutputStream out, CacheHeader entry) throws IOException {
+        out.writeByte(RECORD_PUT);
+        writeString(out, entry.key);
+        writeString(out, entry.etag == null ? "" : entry.etag);
+        out.writeLong(entry.serverDate);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.getTtl());
+        out.writeLong(entry.getSoftTtl());
+        out.writeLong(entry.size);
+        out.writeByte(entry.retention.ordinal());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in, long maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid string length in journal: " + length);
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decides which entries a {@link DiskBasedCache} evicts once it exceeds its maximum size.
+ *
+ * <p>The cache reports every lookup and every change to its contents to the policy, and asks it for
+ * victims while it is pruning. All methods are called while holding the lock of the cache, so
+ * implementations don't need to be thread-safe, but an instance must not be shared between caches.
+ *
+ * <p>Without a policy, {@link DiskBasedCache} evicts the least recently used entries.
+ *
+ * @see TinyLfuEvictionPolicy
+ */
+public interface EvictionPolicy {
+    /** Selects the keys of the entries which may be evicted. */
+    interface KeyFilter {
+        /** Returns whether the entry with the given key may be evicted. */
+        boolean accept(String key);
+    }
+
+    /**
+     * Called when an entry is looked up.
+     *
+     * @param key Cache key
+     * @param hit Whether the entry was in the cache
+     */
+    void onGet(String key, boolean hit);
+
+    /**
+     * Called when an entry is added to the cache, or replaced.
+     *
+     * @param key Cache key
+     * @param sizeBytes Size of the entry on disk
+     */
+    void onPut(String key, long sizeBytes);
+
+    /**
+     * Called when an entry is removed from the cache, including when it is evicted.
+     *
+     * @param key Cache key
+     */
+    void onRemove(String key);
+
+    /** Called when all entries are removed from the cache. */
+    void onClear();
+
+    /**
+     * Returns the key of the next entry to evict among those accepted by the filter, or null if
+     * there is none. The entry is removed from the cache, and {@link #onRemove} called, before the
+     * next victim is requested.
+     *
+     * <p>The cache uses the filter to evict entries of a single retention class. Entries which
+     * aren't accepted must keep their state, as they stay in the cache.
+     */
+    @Nullable
+    String selectVictim(KeyFilter filter);
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Count-min sketch estimating how often keys have been accessed recently, in a few bytes per key.
+ *
+ * <p>Counters saturate at 15. Once the number of recorded accesses reaches ten times the width of
+ * the sketch, every counter is halved, so that the estimates favor recent popularity.
+ *
+ * <p>This class is not thread-safe.
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    /**
+     * Initial width. Growing keeps the collisions of the smaller table, so it should not start out
+     * too small.
+     */
+    private static final int MIN_WIDTH = 256;
+    private static final int RESET_MULTIPLIER = 10;
+
+    /** Odd multipliers used to derive a different index for each row from the key hash. */
+    private static final int[] SEEDS = {0x97cb3127, 0xa1b2c3d5, 0x9e3779b9, 0xc2b2ae35};
+
+    private byte[][] mTable;
+    private int mMask;
+
+    /** Number of accesses recorded since the counters were last halved. */
+    private int mAdditions;
+
+    FrequencySketch() {
+        clear(MIN_WIDTH);
+    }
+
+    /**
+     * Grows the sketch, if needed, so that it can tell apart the given number of keys. The recorded
+     * accesses are kept.
+     */
+    void ensureCapacity(int keyCount) {
+        if (keyCount <= mTable[0].length) {
+            return;
+        }
+        byte[][] oldTable = mTable;
+        int oldMask = mMask;
+        mTable = new byte[DEPTH][Integer.highestOneBit(keyCount - 1) << 1];
+        mMask = mTable[0].length - 1;
+        // Indexes are the low bits of a hash, so the counter at each new index is the one at the
+        // old index sharing its low bits. This keeps every estimate, including the collisions.
+        for (int row = 0; row < DEPTH; row++) {
+            for (int i = 0; i < mTable[row].length; i++) {
+                mTable[row][i] = oldTable[row][i & oldMask];
+            }
+        }
+    }
+
+    /** Records an access to the key. */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (mTable[i][index] < MAX_COUNT) {
+                mTable[i][index]++;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= RESET_MULTIPLIER * mTable[0].length) {
+            reset();
+        }
+    }
+
+    /** Returns the estimated number of recent accesses to the key. */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, mTable[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    /** Discards all recorded accesses. */
+    void clear() {
+        clear(mTable[0].length);
+    }
+
+    private void reset() {
+        for (byte[] row : mTable) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >> 1);
+            }
+        }
+        mAdditions /= 2;
+    }
+
+    private void clear(int width) {
+        mTable = new byte[DEPTH][width];
+        mMask = mTable[0].length - 1;
+        mAdditions = 0;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mMask;
+    }
+
+    /** Spreads the bits of the hash code, which for similar strings differ mostly in low bits. */
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        hash *= 0xac4c1b51;
+        hash ^= hash >>> 15;
+        return hash;
+    }
+}
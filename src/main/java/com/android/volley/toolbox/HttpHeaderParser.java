@@ -23,6 +23,7 @@ import com.android.volley.Cache;
 import com.android.volley.Header;
 import com.android.volley.NetworkResponse;
 import com.android.volley.VolleyLog;
+import java.net.HttpURLConnection;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -79,6 +80,13 @@ public class HttpHeaderParser {
         String serverEtag = null;
         String headerValue;
 
+        // A response which varies on more than request headers can't be reused for another
+        // request.
+        headerValue = headers.get("Vary");
+        if (headerValue != null && headerValue.trim().equals("*")) {
+            return null;
+        }
+
         headerValue = headers.get("Date");
         if (headerValue != null) {
             serverDate = parseDateAsEpoch(headerValue);
@@ -144,6 +152,58 @@ public class HttpHeaderParser {
         return entry;
     }
 
+    /**
+     * Extracts a {@link com.android.volley.Cache.Entry} from an error response, for requests which
+     * cache errors.
+     *
+     * <p>Freshness given by Cache-Control or Expires headers is honored. Without either, responses
+     * whose status code is cacheable by default according to RFC 7231, such as 404 Not Found and
+     * 410 Gone, are fresh for the given time, and others aren't cached. Cached errors are never
+     * revalidated, so the entry has no validators and doesn't soft-expire before it expires.
+     *
+     * @param response The error response to parse headers from
+     * @param defaultTtlMs How long to cache the response if its headers don't say
+     * @return a cache entry for the given response, or null if the response is not cacheable.
+     */
+    @Nullable
+    public static Cache.Entry parseErrorCacheHeaders(NetworkResponse response, long defaultTtlMs) {
+        Cache.Entry entry = parseCacheHeaders(response);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        String cacheControl = response.headers.get("Cache-Control");
+        boolean hasFreshness =
+                (cacheControl != null && cacheControl.contains("max-age="))
+                        || response.headers.containsKey("Expires");
+        if (!hasFreshness) {
+            if (!isCacheableByDefault(response.statusCode)) {
+                return null;
+            }
+            entry.ttl = now + defaultTtlMs;
+        }
+        if (entry.ttl <= now) {
+            return null;
+        }
+        entry.softTtl = entry.ttl;
+        entry.etag = null;
+        entry.lastModified = 0;
+        return entry;
+    }
+
+    private static boolean isCacheableByDefault(int statusCode) {
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_NOT_FOUND:
+            case HttpURLConnection.HTTP_BAD_METHOD:
+            case HttpURLConnection.HTTP_GONE:
+            case HttpURLConnection.HTTP_REQ_TOO_LONG:
+            case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /** Parse date in RFC1123 format, and return its value as epoch */
     public static long parseDateAsEpoch(String dateStr) {
         try {
@@ -28,6 +28,7 @@ import com.android.volley.NoConnectionError;
 import com.android.volley.Request;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
+import com.android.volley.StreamingPutCache;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
@@ -62,6 +63,19 @@ public final class NetworkUtility {
         }
     }
 
+    /**
+     * Returns the pending cache entry which the body of a response with the given status code
+     * should be written to while it is read, or null if there is none.
+     */
+    @Nullable
+    static StreamingPutCache.PendingEntry getPendingCacheEntry(Request<?> request, int statusCode) {
+        // Only successful responses are cached.
+        if (statusCode < 200 || statusCode > 299) {
+            return null;
+        }
+        return request.getPendingCacheEntry();
+    }
+
     static NetworkResponse getNotModifiedNetworkResponse(
             Request<?> request, long requestDuration, List<Header> responseHeaders) {
         Cache.Entry entry = request.getCacheEntry();
@@ -86,16 +100,44 @@ public final class NetworkUtility {
     /** Reads the contents of an InputStream into a byte[]. */
     static byte[] inputStreamToBytes(InputStream in, int contentLength, ByteArrayPool pool)
             throws IOException {
+        return inputStreamToBytes(in, contentLength, pool, /* cacheEntry= */ null);
+    }
+
+    /**
+     * Reads the contents of an InputStream into a byte[], writing them to a pending cache entry as
+     * well if one is given. If the read fails, the cache entry is discarded. If writing to the
+     * cache entry fails, the read goes on without it.
+     */
+    static byte[] inputStreamToBytes(
+            InputStream in,
+            int contentLength,
+            ByteArrayPool pool,
+            @Nullable StreamingPutCache.PendingEntry cacheEntry)
+            throws IOException {
         PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(pool, contentLength);
         byte[] buffer = null;
+        boolean success = false;
         try {
             buffer = pool.getBuf(1024);
             int count;
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
+                if (cacheEntry != null) {
+                    try {
+                        cacheEntry.write(buffer, 0, count);
+                    } catch (IOException e) {
+                        // The entry has been discarded; it is written with Cache#put instead.
+                        VolleyLog.d("Failed to write response to cache: %s", e.toString());
+                        cacheEntry = null;
+                    }
+                }
             }
+            success = true;
             return bytes.toByteArray();
         } finally {
+            if (!success && cacheEntry != null) {
+                cacheEntry.discard();
+            }
             try {
                 // Close the InputStream and release the resources by "consuming the content".
                 if (in != null) {
@@ -132,6 +174,16 @@ public final class NetworkUtility {
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
     }
 
+    /** Attaches the cache entry of an error response to the error, if the request caches errors. */
+    private static <T extends VolleyError> T withErrorCacheEntry(Request<?> request, T error) {
+        if (request.shouldCache() && request.getErrorCacheTtlMs() > 0) {
+            error.setCacheEntry(
+                    HttpHeaderParser.parseErrorCacheHeaders(
+                            error.networkResponse, request.getErrorCacheTtlMs()));
+        }
+        return error;
+    }
+
     /**
      * Based on the exception thrown, decides whether to attempt to retry, or to throw the error.
      * Also handles logging.
@@ -176,13 +228,14 @@ public final class NetworkUtility {
                     attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
                 } else if (statusCode >= 400 && statusCode <= 499) {
                     // Don't retry other client errors.
-                    throw new ClientError(networkResponse);
+                    throw withErrorCacheEntry(request, new ClientError(networkResponse));
                 } else if (statusCode >= 500 && statusCode <= 599) {
+                    ServerError serverError =
+                            withErrorCacheEntry(request, new ServerError(networkResponse));
                     if (request.shouldRetryServerErrors()) {
-                        attemptRetryOnException(
-                                "server", request, new ServerError(networkResponse));
+                        attemptRetryOnException("server", request, serverError);
                     } else {
-                        throw new ServerError(networkResponse);
+                        throw serverError;
                     }
                 } else {
                     // 3xx? No reason to retry.
@@ -0,0 +1,686 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.MetadataUpdatableCache;
+import com.android.volley.SweepableCache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache implementation which appends entries to a few large segment files rather than writing one
+ * file per entry, which makes writing and reading small entries, such as API responses, cheaper.
+ *
+ * <p>Every change to the cache is appended to the newest segment as a record: the header and data
+ * of an entry which is written, the header alone when only the metadata of an entry changes, such
+ * as when it is invalidated, and a tombstone when it is removed. An in-memory index maps each key
+ * to the segment and offset of its data, and is rebuilt on {@link #initialize()} by replaying the
+ * segments in order.
+ *
+ * <p>Records which have been superseded are garbage until the oldest segment is compacted: its live
+ * entries are appended to the newest segment and the file is deleted. Compaction happens in {@link
+ * #sweep()}, which the {@link com.android.volley.CacheDispatcher} calls while idle, and while
+ * writing if the segments have grown to twice the maximum size of the cache. Since segments are
+ * always compacted oldest first, tombstones can be dropped when their segment is compacted.
+ *
+ * <p>A record which was partially written when the process died is truncated on the next
+ * initialization. Entries are evicted in least-recently-used order once the live entries exceed the
+ * maximum size of the cache.
+ */
+public class PackedDiskCache implements MetadataUpdatableCache, SweepableCache {
+
+    /** Default maximum size of the live entries of the cache. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Default size at which a new segment is started. */
+    private static final int DEFAULT_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    /** Share of the segments, by size, which must be garbage for {@link #sweep()} to compact. */
+    private static final float SWEEP_GARBAGE_RATIO = 0.5f;
+
+    @VisibleForTesting static final String SEGMENT_FILE_PREFIX = "segment-";
+    @VisibleForTesting static final String SEGMENT_FILE_SUFFIX = ".pack";
+
+    /** Magic number starting every record, followed by the record type. */
+    private static final int RECORD_MAGIC = 0x5041434b;
+
+    /** Record holding the header and data of an entry. */
+    private static final int RECORD_PUT = 1;
+
+    /** Record holding the header of an entry whose data is unchanged. */
+    private static final int RECORD_METADATA = 2;
+
+    /** Record marking an entry as removed. */
+    private static final int RECORD_REMOVE = 3;
+
+    /** Map of the cache keys to the location of their entries, in access order. */
+    private final Map<String, IndexEntry> mEntries = new LinkedHashMap<>(16, .75f, true);
+
+    /** Segment files open for reading, and the newest one also for writing, by segment ID. */
+    private final Map<Integer, RandomAccessFile> mOpenSegments = new HashMap<>();
+
+    /** IDs of the segments on disk, oldest first. */
+    private final List<Integer> mSegmentIds = new ArrayList<>();
+
+    /** Total size of the live records, in bytes. */
+    private long mLiveSize = 0;
+
+    /** Total size of the segment files, in bytes. */
+    private long mDiskSize = 0;
+
+    /** The root directory to use for the cache. */
+    private final FileSupplier mRootDirectorySupplier;
+
+    /** The maximum size of the live entries of the cache, in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** The size at which a new segment is started, in bytes. */
+    private final int mMaxSegmentSizeInBytes;
+
+    private PackedDiskCache(Builder builder) {
+        mRootDirectorySupplier = builder.mRootDirectorySupplier;
+        mMaxCacheSizeInBytes = builder.mMaxCacheSizeInBytes;
+        mMaxSegmentSizeInBytes = builder.mMaxSegmentSizeInBytes;
+    }
+
+    /**
+     * Initializes the cache by replaying the segments on disk. Records which can't be read, such as
+     * one which was partially written when the process died, are truncated.
+     */
+    @Override
+    public synchronized void initialize() {
+        closeSegments();
+        mEntries.clear();
+        mSegmentIds.clear();
+        mLiveSize = 0;
+        mDiskSize = 0;
+        File rootDirectory = mRootDirectorySupplier.get();
+        if (!rootDirectory.exists()) {
+            if (!rootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", rootDirectory.getAbsolutePath());
+            }
+            return;
+        }
+        File[] files = rootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            int segmentId = getSegmentId(file);
+            if (segmentId >= 0) {
+                mSegmentIds.add(segmentId);
+            }
+        }
+        Collections.sort(mSegmentIds);
+        for (int segmentId : mSegmentIds) {
+            replaySegment(segmentId);
+        }
+    }
+
+    /** Returns the cache entry with the specified key if it exists, null otherwise. */
+    @Nullable
+    @Override
+    public synchronized Entry get(String key) {
+        IndexEntry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            RandomAccessFile segment = openSegment(entry.segmentId);
+            byte[] data = new byte[entry.dataLength];
+            segment.seek(entry.dataOffset);
+            segment.readFully(data);
+            return entry.header.toCacheEntry(data);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to read %s: %s", key, e.toString());
+            remove(key);
+            return null;
+        }
+    }
+
+    /** Appends an entry to the cache. */
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        // Note that we don't include the record overhead in this calculation for simplicity.
+        if (mLiveSize + entry.data.length > mMaxCacheSizeInBytes
+                && entry.data.length > mMaxCacheSizeInBytes * DiskBasedCache.HYSTERESIS_FACTOR) {
+            return;
+        }
+        IndexEntry indexEntry;
+        try {
+            indexEntry = appendPut(new CacheHeader(key, entry), entry.data);
+        } catch (IOException e) {
+            onWriteFailure(e);
+            return;
+        }
+        IndexEntry previous = mEntries.put(key, indexEntry);
+        if (previous != null) {
+            mLiveSize -= previous.recordSize;
+        }
+        mLiveSize += indexEntry.recordSize;
+        pruneIfNeeded();
+        compactIfOverLimit();
+    }
+
+    /**
+     * Appends the new metadata of an entry, without its data, if the entry is cached with the same
+     * data length. Otherwise, writes the whole entry.
+     */
+    @Override
+    public synchronized void updateMetadata(String key, Entry entry) {
+        IndexEntry indexEntry = mEntries.get(key);
+        if (indexEntry == null || indexEntry.dataLength != entry.data.length) {
+            put(key, entry);
+            return;
+        }
+        updateHeader(indexEntry, new CacheHeader(key, entry));
+    }
+
+    /** Invalidates an entry in the cache by appending its updated metadata. */
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        IndexEntry indexEntry = mEntries.get(key);
+        if (indexEntry == null) {
+            return;
+        }
+        Entry entry = indexEntry.header.toCacheEntry(null);
+        entry.softTtl = 0;
+        if (fullExpire) {
+            entry.ttl = 0;
+        }
+        updateHeader(indexEntry, new CacheHeader(key, entry));
+    }
+
+    /** Removes the specified key from the cache by appending a tombstone. */
+    @Override
+    public synchronized void remove(String key) {
+        IndexEntry entry = mEntries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        mLiveSize -= entry.recordSize;
+        try {
+            appendRemove(key);
+        } catch (IOException e) {
+            onWriteFailure(e);
+        }
+    }
+
+    /** Clears the cache. Deletes all segments from disk. */
+    @Override
+    public synchronized void clear() {
+        closeSegments();
+        for (int segmentId : mSegmentIds) {
+            getSegmentFile(segmentId).delete();
+        }
+        mSegmentIds.clear();
+        mEntries.clear();
+        mLiveSize = 0;
+        mDiskSize = 0;
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /** Compacts the oldest segments while at least half of the data on disk is garbage. */
+    @Override
+    public synchronized void sweep() {
+        compact(SWEEP_GARBAGE_RATIO);
+    }
+
+    /** Returns the total size of the live entries, including their headers, in bytes. */
+    public synchronized long getLiveSize() {
+        return mLiveSize;
+    }
+
+    /** Returns the total size of the segments on disk, in bytes. */
+    public synchronized long getDiskSize() {
+        return mDiskSize;
+    }
+
+    /** Appends the header and data of an entry, and returns its location. */
+    private IndexEntry appendPut(CacheHeader header, byte[] data) throws IOException {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        writeRecordStart(prefix, RECORD_PUT);
+        if (!header.writeHeader(prefix)) {
+            throw new IOException("Failed to write header for " + header.key);
+        }
+        DiskBasedCache.writeInt(prefix, data.length);
+        long recordOffset = append(prefix.toByteArray(), data);
+        return new IndexEntry(
+                header,
+                activeSegmentId(),
+                recordOffset + prefix.size(),
+                data.length,
+                prefix.size() + data.length);
+    }
+
+    /** Appends a new header for an entry whose data is unchanged. */
+    private void updateHeader(IndexEntry indexEntry, CacheHeader header) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try {
+            writeRecordStart(record, RECORD_METADATA);
+            if (!header.writeHeader(record)) {
+                throw new IOException("Failed to write header for " + header.key);
+            }
+            append(record.toByteArray(), /* data= */ null);
+        } catch (IOException e) {
+            onWriteFailure(e);
+            return;
+        }
+        // The record is garbage from the start: compaction rewrites the entry with its header.
+        indexEntry.header = header;
+        compactIfOverLimit();
+    }
+
+    private void appendRemove(String key) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeRecordStart(record, RECORD_REMOVE);
+        DiskBasedCache.writeString(record, key);
+        append(record.toByteArray(), /* data= */ null);
+    }
+
+    private static void writeRecordStart(ByteArrayOutputStream out, int type) throws IOException {
+        DiskBasedCache.writeInt(out, RECORD_MAGIC);
+        DiskBasedCache.writeInt(out, type);
+    }
+
+    /**
+     * Appends a record to the newest segment, starting a new one if it is full.
+     *
+     * @return the offset of the record in the segment
+     */
+    private long append(byte[] record, @Nullable byte[] data) throws IOException {
+        if (mSegmentIds.isEmpty()
+                || openSegment(activeSegmentId()).length() >= mMaxSegmentSizeInBytes) {
+            startSegment();
+        }
+        RandomAccessFile segment = openSegment(activeSegmentId());
+        long offset = segment.length();
+        segment.seek(offset);
+        segment.write(record);
+        if (data != null) {
+            segment.write(data);
+        }
+        mDiskSize += record.length + (data != null ? data.length : 0);
+        return offset;
+    }
+
+    private void startSegment() throws IOException {
+        int segmentId = mSegmentIds.isEmpty() ? 0 : activeSegmentId() + 1;
+        File rootDirectory = mRootDirectorySupplier.get();
+        if (!rootDirectory.exists() && !rootDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + rootDirectory.getAbsolutePath());
+        }
+        // The previous segment is only read from now on.
+        if (!mSegmentIds.isEmpty()) {
+            closeSegment(activeSegmentId());
+        }
+        mSegmentIds.add(segmentId);
+    }
+
+    private int activeSegmentId() {
+        return mSegmentIds.get(mSegmentIds.size() - 1);
+    }
+
+    private RandomAccessFile openSegment(int segmentId) throws IOException {
+        RandomAccessFile segment = mOpenSegments.get(segmentId);
+        if (segment == null) {
+            String mode = segmentId == activeSegmentId() ? "rw" : "r";
+            segment = new RandomAccessFile(getSegmentFile(segmentId), mode);
+            mOpenSegments.put(segmentId, segment);
+        }
+        return segment;
+    }
+
+    private void closeSegment(int segmentId) {
+        RandomAccessFile segment = mOpenSegments.remove(segmentId);
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                VolleyLog.d("Failed to close segment %d: %s", segmentId, e.toString());
+            }
+        }
+    }
+
+    private void closeSegments() {
+        for (int segmentId : new ArrayList<>(mOpenSegments.keySet())) {
+            closeSegment(segmentId);
+        }
+    }
+
+    /** Evicts the least recently used entries once the live entries exceed the maximum size. */
+    private void pruneIfNeeded() {
+        if (mLiveSize < mMaxCacheSizeInBytes) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+        long before = mLiveSize;
+        int prunedEntries = 0;
+        long startTime = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, IndexEntry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()
+                && mLiveSize >= mMaxCacheSizeInBytes * DiskBasedCache.HYSTERESIS_FACTOR) {
+            Map.Entry<String, IndexEntry> entry = iterator.next();
+            iterator.remove();
+            mLiveSize -= entry.getValue().recordSize;
+            prunedEntries++;
+            try {
+                appendRemove(entry.getKey());
+            } catch (IOException e) {
+                onWriteFailure(e);
+                return;
+            }
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v(
+                    "pruned %d entries, %d bytes, %d ms",
+                    prunedEntries, (mLiveSize - before), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /** Compacts the segments if they have grown to twice the maximum size of the cache. */
+    private void compactIfOverLimit() {
+        if (mDiskSize > 2L * mMaxCacheSizeInBytes) {
+            compact(SWEEP_GARBAGE_RATIO);
+        }
+    }
+
+    /**
+     * Compacts the oldest segment while more than the given share of the segments is garbage, by
+     * appending its live entries to the newest segment and deleting it.
+     */
+    private void compact(float garbageRatio) {
+        long startTime = SystemClock.elapsedRealtime();
+        long before = mDiskSize;
+        int compactedSegments = 0;
+        while (!mSegmentIds.isEmpty() && mDiskSize - mLiveSize > mDiskSize * garbageRatio) {
+            int segmentId = mSegmentIds.get(0);
+            if (segmentId == activeSegmentId()) {
+                // Live entries can't be appended to the segment which is being compacted.
+                try {
+                    startSegment();
+                } catch (IOException e) {
+                    onWriteFailure(e);
+                    return;
+                }
+            }
+            try {
+                compactSegment(segmentId);
+            } catch (IOException e) {
+                onWriteFailure(e);
+                return;
+            }
+            compactedSegments++;
+        }
+        if (compactedSegments > 0 && VolleyLog.DEBUG) {
+            VolleyLog.v(
+                    "compacted %d segments, %d bytes, %d ms",
+                    compactedSegments,
+                    (mDiskSize - before),
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    private void compactSegment(int segmentId) throws IOException {
+        RandomAccessFile segment = openSegment(segmentId);
+        // Index entries are updated in place, since putting them again would change the access
+        // order.
+        for (IndexEntry entry : new ArrayList<>(mEntries.values())) {
+            if (entry.segmentId != segmentId) {
+                continue;
+            }
+            byte[] data = new byte[entry.dataLength];
+            segment.seek(entry.dataOffset);
+            segment.readFully(data);
+            IndexEntry moved = appendPut(entry.header, data);
+            mLiveSize += moved.recordSize - entry.recordSize;
+            entry.segmentId = moved.segmentId;
+            entry.dataOffset = moved.dataOffset;
+            entry.recordSize = moved.recordSize;
+        }
+        closeSegment(segmentId);
+        File file = getSegmentFile(segmentId);
+        mDiskSize -= file.length();
+        mSegmentIds.remove(Integer.valueOf(segmentId));
+        if (!file.delete()) {
+            VolleyLog.d("Could not delete segment %s", file.getAbsolutePath());
+        }
+    }
+
+    /** Rebuilds the index entries of a segment, and truncates it after its last valid record. */
+    private void replaySegment(int segmentId) {
+        File file = getSegmentFile(segmentId);
+        long length = file.length();
+        long validLength = 0;
+        CountingInputStream cis = null;
+        try {
+            cis =
+                    new CountingInputStream(
+                            new BufferedInputStream(new FileInputStream(file)), length);
+            while (cis.bytesRemaining() > 0) {
+                long recordOffset = cis.bytesRead();
+                replayRecord(segmentId, recordOffset, cis);
+                validLength = cis.bytesRead();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Truncating %s at %d: %s", file.getAbsolutePath(), validLength, e);
+        } finally {
+            if (cis != null) {
+                try {
+                    cis.close();
+                } catch (IOException e) {
+                    // Nothing left to read.
+                }
+            }
+        }
+        if (validLength < length) {
+            truncate(file, validLength);
+        }
+        mDiskSize += validLength;
+    }
+
+    private void replayRecord(int segmentId, long recordOffset, CountingInputStream cis)
+            throws IOException {
+        if (DiskBasedCache.readInt(cis) != RECORD_MAGIC) {
+            throw new IOException("Bad record magic");
+        }
+        int type = DiskBasedCache.readInt(cis);
+        switch (type) {
+            case RECORD_PUT:
+                CacheHeader header = CacheHeader.readHeader(cis);
+                int dataLength = DiskBasedCache.readInt(cis);
+                if (dataLength < 0 || dataLength > cis.bytesRemaining()) {
+                    throw new EOFException();
+                }
+                long dataOffset = cis.bytesRead();
+                skipFully(cis, dataLength);
+                IndexEntry entry =
+                        new IndexEntry(
+                                header,
+                                segmentId,
+                                dataOffset,
+                                dataLength,
+                                cis.bytesRead() - recordOffset);
+                IndexEntry previous = mEntries.put(header.key, entry);
+                if (previous != null) {
+                    mLiveSize -= previous.recordSize;
+                }
+                mLiveSize += entry.recordSize;
+                break;
+            case RECORD_METADATA:
+                CacheHeader metadata = CacheHeader.readHeader(cis);
+                IndexEntry existing = mEntries.get(metadata.key);
+                if (existing != null) {
+                    existing.header = metadata;
+                }
+                break;
+            case RECORD_REMOVE:
+                IndexEntry removed = mEntries.remove(DiskBasedCache.readString(cis));
+                if (removed != null) {
+                    mLiveSize -= removed.recordSize;
+                }
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static void skipFully(CountingInputStream cis, long count) throws IOException {
+        while (count > 0) {
+            long skipped = cis.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Failed to truncate %s: %s", file.getAbsolutePath(), e.toString());
+        }
+    }
+
+    /**
+     * Handles a failed write, which may leave a partial record at the end of the newest segment, by
+     * reloading the cache from disk, which truncates it.
+     */
+    private void onWriteFailure(IOException e) {
+        VolleyLog.d("Failed to write to cache: %s", e.toString());
+        initialize();
+    }
+
+    private File getSegmentFile(int segmentId) {
+        return new File(
+                mRootDirectorySupplier.get(),
+                SEGMENT_FILE_PREFIX + segmentId + SEGMENT_FILE_SUFFIX);
+    }
+
+    /** Returns the ID of a segment file, or -1 if the file isn't a segment. */
+    private static int getSegmentId(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_FILE_PREFIX) || !name.endsWith(SEGMENT_FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(
+                    name.substring(
+                            SEGMENT_FILE_PREFIX.length(),
+                            name.length() - SEGMENT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Location of the live record of an entry. */
+    private static class IndexEntry {
+        CacheHeader header;
+        int segmentId;
+        long dataOffset;
+        final int dataLength;
+
+        /** Size of the record, including its header. */
+        long recordSize;
+
+        IndexEntry(
+                CacheHeader header,
+                int segmentId,
+                long dataOffset,
+                int dataLength,
+                long recordSize) {
+            this.header = header;
+            this.segmentId = segmentId;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.recordSize = recordSize;
+        }
+    }
+
+    /** Builder for {@link PackedDiskCache}. */
+    public static class Builder {
+        private final FileSupplier mRootDirectorySupplier;
+        private int mMaxCacheSizeInBytes = DEFAULT_DISK_USAGE_BYTES;
+        private int mMaxSegmentSizeInBytes = DEFAULT_SEGMENT_SIZE_BYTES;
+
+        /** @param rootDirectory The root directory of the cache. */
+        public Builder(final File rootDirectory) {
+            mRootDirectorySupplier =
+                    new FileSupplier() {
+                        @Override
+                        public File get() {
+                            return rootDirectory;
+                        }
+                    };
+        }
+
+        /** @param rootDirectorySupplier The supplier for the root directory of the cache. */
+        public Builder(FileSupplier rootDirectorySupplier) {
+            mRootDirectorySupplier = rootDirectorySupplier;
+        }
+
+        /**
+         * Sets the maximum size of the live entries of the cache in bytes. The segments may hold up
+         * to twice as much, including superseded records, until they are compacted. If not set,
+         * defaults to 5MB.
+         */
+        public Builder setMaxCacheSizeInBytes(int maxCacheSizeInBytes) {
+            mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+            return this;
+        }
+
+        /**
+         * Sets the size at which a new segment is started. Smaller segments make each compaction
+         * cheaper, at the cost of more files. If not set, defaults to 1MB.
+         */
+        public Builder setMaxSegmentSizeInBytes(int maxSegmentSizeInBytes) {
+            mMaxSegmentSizeInBytes = maxSegmentSizeInBytes;
+            return this;
+        }
+
+        /** Builds the {@link PackedDiskCache}. */
+        public PackedDiskCache build() {
+            return new PackedDiskCache(this);
+        }
+    }
+}
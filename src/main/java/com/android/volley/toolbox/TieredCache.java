@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import androidx.annotation.Nullable;
+import com.android.volley.BulkInvalidatableCache;
+import com.android.volley.Cache;
+import com.android.volley.CacheStats;
+import com.android.volley.CacheStatsRecorder;
+import com.android.volley.Header;
+import com.android.volley.InstrumentedCache;
+import com.android.volley.MetadataUpdatableCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.StreamingPutCache;
+import com.android.volley.SweepableCache;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache which keeps recently read entries in memory in front of a backing {@link Cache}, such as a
+ * {@link DiskBasedCache}.
+ *
+ * <p>The memory tier is a least-recently-used map bounded by the approximate number of bytes held
+ * by its entries. It is only populated by reads; writes, invalidations and removals go through to
+ * the backing cache and drop the entry from memory, so a read never returns an entry older than the
+ * last write. Entries returned from memory share their {@link Entry#data} array, which, as for any
+ * cache entry, must not be modified.
+ *
+ * <p>Statistics of the memory tier, and hit and miss counts of each tier, are available to help
+ * size the memory budget.
+ */
+public class TieredCache
+        implements MetadataUpdatableCache,
+                BulkInvalidatableCache,
+                SweepableCache,
+                StreamingCache,
+                StreamingPutCache,
+                InstrumentedCache {
+
+    /** Approximate memory overhead of an entry beyond its data and headers, in bytes. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final Cache mBackingCache;
+
+    /** Maximum size of the entries held in memory, in bytes. */
+    private final int mMaxMemoryBytes;
+
+    /** Entries held in memory, in access order. */
+    private final Map<String, MemoryEntry> mEntries = new LinkedHashMap<>(16, .75f, true);
+
+    /**
+     * Reads of the backing cache in progress, keyed by cache key. A read only adds its result to
+     * memory if the key hasn't been written since the read started, which is detected by its token
+     * having been removed from this map.
+     */
+    private final Map<String, Object> mPendingReads = new HashMap<>();
+
+    /** Total size of the entries held in memory, in bytes. */
+    private long mMemorySizeBytes = 0;
+
+    /** Statistics of the lookups which missed memory and of the writes to the backing cache. */
+    private final CacheStatsRecorder mBackingStats = new CacheStatsRecorder();
+
+    /** Statistics of the lookups and evictions of the memory tier. */
+    private final CacheStatsRecorder mMemoryStats = new CacheStatsRecorder();
+
+    /**
+     * @param backingCache The cache to read entries from on a memory miss and to write entries to.
+     * @param maxMemoryBytes The maximum approximate size of the entries held in memory, in bytes.
+     *     Entries larger than this are never held in memory.
+     */
+    public TieredCache(Cache backingCache, int maxMemoryBytes) {
+        mBackingCache = backingCache;
+        mMaxMemoryBytes = maxMemoryBytes;
+    }
+
+    @Nullable
+    @Override
+    public Entry get(String key) {
+        long startNanos = System.nanoTime();
+        Object readToken = new Object();
+        synchronized (this) {
+            MemoryEntry memoryEntry = mEntries.get(key);
+            if (memoryEntry != null) {
+                return onMemoryHit(memoryEntry, startNanos);
+            }
+            mPendingReads.put(key, readToken);
+        }
+        long backingStartNanos = onMemoryMiss(startNanos);
+        Entry entry = mBackingCache.get(key);
+        mBackingStats.recordLookup(entry, System.nanoTime() - backingStartNanos);
+        synchronized (this) {
+            if (mPendingReads.get(key) == readToken) {
+                mPendingReads.remove(key);
+                if (entry != null) {
+                    // Keep a copy so that callers modifying the returned entry don't affect it.
+                    putInMemory(key, copyOf(entry));
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry from memory if it is held there. Otherwise, streams it from the backing
+     * cache if it supports streaming, without adding it to memory, since streaming is meant for
+     * entries which are too large to be held in memory comfortably.
+     */
+    @Nullable
+    @Override
+    public StreamEntry getStream(String key) {
+        if (!(mBackingCache instanceof StreamingCache)) {
+            Entry entry = get(key);
+            return entry != null ? toStreamEntry(entry) : null;
+        }
+        long startNanos = System.nanoTime();
+        synchronized (this) {
+            MemoryEntry memoryEntry = mEntries.get(key);
+            if (memoryEntry != null) {
+                return toStreamEntry(onMemoryHit(memoryEntry, startNanos));
+            }
+        }
+        long backingStartNanos = onMemoryMiss(startNanos);
+        StreamEntry entry = ((StreamingCache) mBackingCache).getStream(key);
+        mBackingStats.recordLookup(
+                entry != null ? entry.metadata : null, System.nanoTime() - backingStartNanos);
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long startNanos = System.nanoTime();
+        dropFromMemory(key);
+        mBackingCache.put(key, entry);
+        // Reads which started during the write may have read the previous entry.
+        dropFromMemory(key);
+        mBackingStats.recordPut(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a pending entry of the backing cache if it supports writing bodies as they are read,
+     * or null otherwise. Committing the entry drops it from memory like {@link #put}.
+     */
+    @Nullable
+    @Override
+    public PendingEntry startPut(final String key) {
+        if (!(mBackingCache instanceof StreamingPutCache)) {
+            return null;
+        }
+        final PendingEntry pendingEntry = ((StreamingPutCache) mBackingCache).startPut(key);
+        if (pendingEntry == null) {
+            return null;
+        }
+        return new PendingEntry() {
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                pendingEntry.write(buffer, offset, count);
+            }
+
+            @Override
+            public boolean commit(Entry entry) {
+                long startNanos = System.nanoTime();
+                dropFromMemory(key);
+                boolean committed = pendingEntry.commit(entry);
+                dropFromMemory(key);
+                if (committed) {
+                    mBackingStats.recordPut(System.nanoTime() - startNanos);
+                }
+                return committed;
+            }
+
+            @Override
+            public void discard() {
+                pendingEntry.discard();
+            }
+        };
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        dropFromMemory(key);
+        if (mBackingCache instanceof MetadataUpdatableCache) {
+            ((MetadataUpdatableCache) mBackingCache).updateMetadata(key, entry);
+        } else {
+            mBackingCache.put(key, entry);
+        }
+        dropFromMemory(key);
+    }
+
+    @Override
+    public void initialize() {
+        mBackingCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        dropFromMemory(key);
+        mBackingCache.invalidate(key, fullExpire);
+        dropFromMemory(key);
+    }
+
+    /**
+     * Invalidates the entries of the backing cache whose key starts with the given prefix, if it
+     * supports it, or else only those which are held in memory. Matching entries are dropped from
+     * memory either way.
+     */
+    @Override
+    public int invalidatePrefix(final String keyPrefix, boolean fullExpire) {
+        return invalidateMatching(
+                new KeyFilter() {
+                    @Override
+                    public boolean apply(String key) {
+                        return key.startsWith(keyPrefix);
+                    }
+                },
+                keyPrefix,
+                fullExpire);
+    }
+
+    /**
+     * Invalidates the entries of the backing cache whose key is accepted by the filter, if it
+     * supports it, or else only those which are held in memory. Matching entries are dropped from
+     * memory either way.
+     */
+    @Override
+    public int invalidateMatching(KeyFilter filter, boolean fullExpire) {
+        return invalidateMatching(filter, /* keyPrefix= */ null, fullExpire);
+    }
+
+    private int invalidateMatching(
+            KeyFilter filter, @Nullable String keyPrefix, boolean fullExpire) {
+        List<String> memoryKeys = dropMatchingFromMemory(filter);
+        int invalidated;
+        if (mBackingCache instanceof BulkInvalidatableCache) {
+            BulkInvalidatableCache backingCache = (BulkInvalidatableCache) mBackingCache;
+            // The backing cache may look prefixes up faster than by testing every key.
+            invalidated =
+                    keyPrefix != null
+                            ? backingCache.invalidatePrefix(keyPrefix, fullExpire)
+                            : backingCache.invalidateMatching(filter, fullExpire);
+        } else {
+            for (String key : memoryKeys) {
+                mBackingCache.invalidate(key, fullExpire);
+            }
+            invalidated = memoryKeys.size();
+        }
+        dropMatchingFromMemory(filter);
+        return invalidated;
+    }
+
+    @Override
+    public void remove(String key) {
+        dropFromMemory(key);
+        mBackingCache.remove(key);
+        dropFromMemory(key);
+    }
+
+    @Override
+    public void clear() {
+        clearMemory();
+        mBackingCache.clear();
+        clearMemory();
+    }
+
+    /**
+     * Sweeps the backing cache, if it supports it. Entries held in memory are left alone, since
+     * they are bounded by the memory budget rather than taking up disk space.
+     */
+    @Override
+    public void sweep() {
+        if (mBackingCache instanceof SweepableCache) {
+            ((SweepableCache) mBackingCache).sweep();
+        }
+    }
+
+    /**
+     * Returns the statistics of this cache as a whole, where a lookup is a hit if either tier has
+     * the entry. Evictions, corrupt entries and bytes written are those of the backing cache, if it
+     * is an {@link InstrumentedCache}, since entries dropped from memory remain in the cache.
+     */
+    @Override
+    public CacheStats getStats() {
+        CacheStats backingStats = mBackingStats.snapshot();
+        CacheStats memoryStats = mMemoryStats.snapshot();
+        CacheStats.Builder builder =
+                new CacheStats.Builder()
+                        .setHitCount(memoryStats.getHitCount() + backingStats.getHitCount())
+                        .setMissCount(backingStats.getMissCount())
+                        .setExpiredCount(
+                                memoryStats.getExpiredCount() + backingStats.getExpiredCount())
+                        .setRefreshNeededCount(
+                                memoryStats.getRefreshNeededCount()
+                                        + backingStats.getRefreshNeededCount())
+                        .setTotalLookupTimeNanos(
+                                memoryStats.getTotalLookupTimeNanos()
+                                        + backingStats.getTotalLookupTimeNanos())
+                        .setPutCount(backingStats.getPutCount())
+                        .setTotalPutTimeNanos(backingStats.getTotalPutTimeNanos())
+                        .setBytesRead(memoryStats.getBytesRead());
+        if (mBackingCache instanceof InstrumentedCache) {
+            CacheStats backingCacheStats = ((InstrumentedCache) mBackingCache).getStats();
+            builder.setEvictionCount(backingCacheStats.getEvictionCount())
+                    .setBytesRead(memoryStats.getBytesRead() + backingCacheStats.getBytesRead())
+                    .setBytesWritten(backingCacheStats.getBytesWritten())
+                    .setCorruptionCount(backingCacheStats.getCorruptionCount());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the statistics of the memory tier. Every lookup is made against memory first, and
+     * evictions count the entries dropped from memory to stay within its budget.
+     */
+    public CacheStats getMemoryStats() {
+        return mMemoryStats.snapshot();
+    }
+
+    /** Returns the number of lookups served from memory. */
+    public long getMemoryHitCount() {
+        return mMemoryStats.snapshot().getHitCount();
+    }
+
+    /** Returns the number of lookups which weren't found in memory. */
+    public long getMemoryMissCount() {
+        return mMemoryStats.snapshot().getMissCount();
+    }
+
+    /** Returns the number of lookups which missed memory and were found in the backing cache. */
+    public long getBackingHitCount() {
+        return mBackingStats.snapshot().getHitCount();
+    }
+
+    /** Returns the number of lookups which were found in neither tier. */
+    public long getBackingMissCount() {
+        return mBackingStats.snapshot().getMissCount();
+    }
+
+    /** Returns the approximate size of the entries currently held in memory, in bytes. */
+    public synchronized long getMemorySizeBytes() {
+        return mMemorySizeBytes;
+    }
+
+    private synchronized void dropFromMemory(String key) {
+        mPendingReads.remove(key);
+        MemoryEntry removed = mEntries.remove(key);
+        if (removed != null) {
+            mMemorySizeBytes -= removed.size;
+        }
+    }
+
+    /**
+     * Drops the entries whose key is accepted by the filter from memory.
+     *
+     * @return the keys of the dropped entries
+     */
+    private synchronized List<String> dropMatchingFromMemory(KeyFilter filter) {
+        List<String> dropped = new ArrayList<>();
+        Iterator<Map.Entry<String, MemoryEntry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, MemoryEntry> memoryEntry = iterator.next();
+            if (filter.apply(memoryEntry.getKey())) {
+                iterator.remove();
+                mMemorySizeBytes -= memoryEntry.getValue().size;
+                dropped.add(memoryEntry.getKey());
+            }
+        }
+        Iterator<String> pendingKeys = mPendingReads.keySet().iterator();
+        while (pendingKeys.hasNext()) {
+            if (filter.apply(pendingKeys.next())) {
+                pendingKeys.remove();
+            }
+        }
+        return dropped;
+    }
+
+    /** Records a lookup served from memory and returns a copy of the entry. */
+    private Entry onMemoryHit(MemoryEntry memoryEntry, long startNanos) {
+        Entry entry = copyOf(memoryEntry.entry);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        mMemoryStats.recordLookup(entry, elapsedNanos);
+        mMemoryStats.recordBytesRead(entry.data.length);
+        return entry;
+    }
+
+    /**
+     * Records a lookup which wasn't found in memory.
+     *
+     * @return the time at which the lookup of the backing cache starts, in nanoseconds
+     */
+    private long onMemoryMiss(long startNanos) {
+        long nowNanos = System.nanoTime();
+        mMemoryStats.recordLookup(null, nowNanos - startNanos);
+        return nowNanos;
+    }
+
+    private synchronized void clearMemory() {
+        mPendingReads.clear();
+        mEntries.clear();
+        mMemorySizeBytes = 0;
+    }
+
+    /** Adds an entry to memory, evicting the least recently used entries to make room for it. */
+    private void putInMemory(String key, Entry entry) {
+        int size = sizeOf(key, entry);
+        if (size > mMaxMemoryBytes) {
+            return;
+        }
+        MemoryEntry previous = mEntries.put(key, new MemoryEntry(entry, size));
+        mMemorySizeBytes += size - (previous == null ? 0 : previous.size);
+        Iterator<MemoryEntry> iterator = mEntries.values().iterator();
+        while (mMemorySizeBytes > mMaxMemoryBytes && iterator.hasNext()) {
+            mMemorySizeBytes -= iterator.next().size;
+            iterator.remove();
+            mMemoryStats.recordEviction();
+        }
+    }
+
+    /** Returns the approximate number of bytes of memory used by an entry. */
+    private static int sizeOf(String key, Entry entry) {
+        long size = ENTRY_OVERHEAD_BYTES + entry.data.length + 2L * key.length();
+        if (entry.etag != null) {
+            size += 2L * entry.etag.length();
+        }
+        if (entry.allResponseHeaders != null) {
+            for (Header header : entry.allResponseHeaders) {
+                size += 2L * (header.getName().length() + header.getValue().length());
+            }
+        } else if (entry.responseHeaders != null) {
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                size += 2L * (header.getKey().length() + header.getValue().length());
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    private static StreamEntry toStreamEntry(Entry entry) {
+        return new StreamEntry(entry, new ByteArrayInputStream(entry.data), entry.data.length);
+    }
+
+    /** Returns a shallow copy of the entry which shares its data and headers. */
+    static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders;
+        copy.allResponseHeaders = entry.allResponseHeaders;
+        copy.retention = entry.retention;
+        return copy;
+    }
+
+    private static class MemoryEntry {
+        final Entry entry;
+        final int size;
+
+        MemoryEntry(Entry entry, int size) {
+            this.entry = entry;
+            this.size = size;
+        }
+    }
+}
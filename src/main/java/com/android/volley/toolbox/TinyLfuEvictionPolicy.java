@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link EvictionPolicy} which keeps frequently used entries in the cache when it is flooded with
+ * entries that are only used once, such as while scrolling through a long list of images.
+ *
+ * <p>Following W-TinyLFU, new entries are held in an admission window until they are used again,
+ * which moves them to the main region, or until the cache needs to evict an entry. The least
+ * recently written entry of the window then competes with the entries that would have to be evicted
+ * from the main region to make room for it: it is only admitted if it has been used more often, as
+ * estimated by a {@link FrequencySketch} of recent lookups, than each of them; otherwise it is
+ * evicted itself. Since the competing entries are chosen to cover the size of the new entry, a
+ * large entry can't displace several smaller entries which are used more often than itself.
+ *
+ * <p>The main region is a segmented LRU: entries used while in the main region are protected, and
+ * entries are only evicted from the protected segment once the probation segment is empty.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    /** Share of the cache, by size, which may be held by the protected segment. */
+    private static final float PROTECTED_FRACTION = 0.8f;
+
+    private final FrequencySketch mSketch = new FrequencySketch();
+
+    /** Sizes of the entries which haven't been used since they were written, in write order. */
+    private final LinkedHashMap<String, Long> mWindow = new LinkedHashMap<>();
+
+    /** Sizes of the entries on probation in the main region, in the order they joined it. */
+    private final LinkedHashMap<String, Long> mProbation = new LinkedHashMap<>();
+
+    /** Sizes of the protected entries of the main region, in access order. */
+    private final LinkedHashMap<String, Long> mProtected = new LinkedHashMap<>(16, .75f, true);
+
+    private long mWindowSizeBytes;
+    private long mProbationSizeBytes;
+    private long mProtectedSizeBytes;
+
+    /**
+     * Largest total size of the entries seen so far. Since victims are only requested once the
+     * cache has reached its maximum size, this approximates the maximum size.
+     */
+    private long mMaxSizeBytes;
+
+    @Override
+    public void onGet(String key, boolean hit) {
+        mSketch.increment(key);
+        if (!hit) {
+            return;
+        }
+        Long size = mWindow.remove(key);
+        if (size != null) {
+            mWindowSizeBytes -= size;
+        } else {
+            size = mProbation.remove(key);
+            if (size == null) {
+                // Update the access order of the protected segment.
+                mProtected.get(key);
+                return;
+            }
+            mProbationSizeBytes -= size;
+        }
+        mProtected.put(key, size);
+        mProtectedSizeBytes += size;
+        demoteProtectedOverflow();
+    }
+
+    @Override
+    public void onPut(String key, long sizeBytes) {
+        Long previousSize = mProbation.get(key);
+        if (previousSize != null) {
+            mProbation.put(key, sizeBytes);
+            mProbationSizeBytes += sizeBytes - previousSize;
+        } else if ((previousSize = mProtected.get(key)) != null) {
+            mProtected.put(key, sizeBytes);
+            mProtectedSizeBytes += sizeBytes - previousSize;
+        } else {
+            previousSize = mWindow.remove(key);
+            mWindow.put(key, sizeBytes);
+            mWindowSizeBytes += sizeBytes - (previousSize == null ? 0 : previousSize);
+        }
+        mMaxSizeBytes =
+                Math.max(
+                        mMaxSizeBytes,
+                        mWindowSizeBytes + mProbationSizeBytes + mProtectedSizeBytes);
+        mSketch.ensureCapacity(mWindow.size() + mProbation.size() + mProtected.size());
+        demoteProtectedOverflow();
+    }
+
+    @Override
+    public void onRemove(String key) {
+        Long size = mWindow.remove(key);
+        if (size != null) {
+            mWindowSizeBytes -= size;
+        } else if ((size = mProbation.remove(key)) != null) {
+            mProbationSizeBytes -= size;
+        } else if ((size = mProtected.remove(key)) != null) {
+            mProtectedSizeBytes -= size;
+        }
+    }
+
+    @Override
+    public void onClear() {
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mWindowSizeBytes = 0;
+        mProbationSizeBytes = 0;
+        mProtectedSizeBytes = 0;
+        mMaxSizeBytes = 0;
+        mSketch.clear();
+    }
+
+    @Nullable
+    @Override
+    public String selectVictim(KeyFilter filter) {
+        String victim = firstKey(mProbation, filter);
+        if (victim == null) {
+            victim = firstKey(mProtected, filter);
+        }
+        String candidateKey = firstKey(mWindow, filter);
+        if (candidateKey == null) {
+            return victim;
+        }
+        long candidateSizeBytes = mWindow.get(candidateKey);
+        if (victim == null || !admit(candidateKey, candidateSizeBytes, filter)) {
+            return candidateKey;
+        }
+        mWindow.remove(candidateKey);
+        mWindowSizeBytes -= candidateSizeBytes;
+        mProbation.put(candidateKey, candidateSizeBytes);
+        mProbationSizeBytes += candidateSizeBytes;
+        return victim;
+    }
+
+    /**
+     * Returns true if the candidate is used more often than every entry accepted by the filter
+     * which would have to be evicted from the main region to make room for it.
+     */
+    private boolean admit(String candidateKey, long candidateSizeBytes, KeyFilter filter) {
+        int candidateFrequency = mSketch.frequency(candidateKey);
+        long freedBytes = 0;
+        Iterator<Map.Entry<String, Long>> iterator = mProbation.entrySet().iterator();
+        boolean inProtected = false;
+        while (freedBytes < candidateSizeBytes) {
+            if (!iterator.hasNext()) {
+                if (inProtected) {
+                    break;
+                }
+                // Iterating doesn't change the access order of the protected segment.
+                iterator = mProtected.entrySet().iterator();
+                inProtected = true;
+                continue;
+            }
+            Map.Entry<String, Long> victim = iterator.next();
+            if (!filter.accept(victim.getKey())) {
+                continue;
+            }
+            if (mSketch.frequency(victim.getKey()) >= candidateFrequency) {
+                return false;
+            }
+            freedBytes += victim.getValue();
+        }
+        return true;
+    }
+
+    /** Moves the least recently used protected entries to probation while it is over budget. */
+    private void demoteProtectedOverflow() {
+        long maxProtectedSizeBytes = (long) (mMaxSizeBytes * PROTECTED_FRACTION);
+        Iterator<Map.Entry<String, Long>> iterator = mProtected.entrySet().iterator();
+        while (mProtectedSizeBytes > maxProtectedSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            mProtectedSizeBytes -= entry.getValue();
+            mProbation.put(entry.getKey(), entry.getValue());
+            mProbationSizeBytes += entry.getValue();
+        }
+    }
+
+    /** Returns whether the entry is in the protected segment of the main region. */
+    @VisibleForTesting
+    boolean isProtected(String key) {
+        return mProtected.containsKey(key);
+    }
+
+    /** Returns the first key of the map accepted by the filter, without reordering the map. */
+    @Nullable
+    private static String firstKey(Map<String, Long> map, KeyFilter filter) {
+        for (String key : map.keySet()) {
+            if (filter.accept(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import androidx.annotation.Nullable;
+import com.android.volley.BulkInvalidatableCache;
+import com.android.volley.Cache;
+import com.android.volley.CacheStats;
+import com.android.volley.CacheStatsRecorder;
+import com.android.volley.ConcurrentlyInitializableCache;
+import com.android.volley.InstrumentedCache;
+import com.android.volley.MetadataUpdatableCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.StreamingPutCache;
+import com.android.volley.SweepableCache;
+import com.android.volley.VolleyLog;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache which writes entries to a backing {@link Cache}, such as a {@link DiskBasedCache}, on a
+ * dedicated writer thread, so that network threads don't wait for the disk.
+ *
+ * <p>Writes and removals are queued and applied in batches. Repeated writes to a key which is still
+ * queued replace the queued write, so only the last one reaches the backing cache. Reads see queued
+ * writes, so a read never returns an entry older than the last write.
+ *
+ * <p>The approximate size of the queued entries is bounded: once the budget is reached, writers
+ * block until the writer thread has caught up. Queued writes are lost if the process dies before
+ * they are written; use {@link #flush} to wait for them, and {@link #stop} to let the writer thread
+ * exit once they have been written.
+ *
+ * <p>Optional capabilities of the backing cache are forwarded, and fall back to the plain {@link
+ * Cache} methods when it lacks them. Bulk invalidations apply to queued writes as well. Bodies
+ * written with {@link #startPut} bypass the queue, since they are written to the backing cache as
+ * they are read anyway, and supersede the queued write of their key once committed. Use {@link
+ * #create} rather than the constructor to keep the backing cache's support for {@link
+ * ConcurrentlyInitializableCache concurrent initialization}.
+ */
+public class WriteBehindCache
+        implements MetadataUpdatableCache,
+                BulkInvalidatableCache,
+                SweepableCache,
+                StreamingCache,
+                StreamingPutCache,
+                InstrumentedCache {
+
+    /** Approximate memory overhead of a queued write beyond the data of its entry, in bytes. */
+    private static final int WRITE_OVERHEAD_BYTES = 256;
+
+    private final Cache mBackingCache;
+
+    /** Maximum size of the queued entries, in bytes. */
+    private final long mMaxPendingBytes;
+
+    /**
+     * Held while modifying the backing cache, so that operations applied directly don't interleave
+     * with a batch being written. Must be acquired before the lock of this object.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Writes which haven't been applied to the backing cache, by key, in the order they were
+     * queued. A write stays here until it has been applied, so that reads see it meanwhile.
+     */
+    private final Map<String, PendingWrite> mPendingWrites = new LinkedHashMap<>();
+
+    /** Total size of the queued writes, in bytes. */
+    private long mPendingBytes = 0;
+
+    /** The writer thread, or null if it hasn't been started or has been asked to stop. */
+    @Nullable private Thread mWriterThread;
+
+    /** Statistics of the lookups made against this cache and of the writes queued to it. */
+    private final CacheStatsRecorder mStats = new CacheStatsRecorder();
+
+    /**
+     * @param backingCache The cache to write entries to and to read entries from when they aren't
+     *     queued.
+     * @param maxPendingBytes The maximum approximate size of the queued entries, in bytes. A write
+     *     which is larger than this is queued once all other writes have been applied.
+     */
+    public WriteBehindCache(Cache backingCache, long maxPendingBytes) {
+        mBackingCache = backingCache;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Returns a cache which writes to the given backing cache in the background, and which is a
+     * {@link ConcurrentlyInitializableCache} if the backing cache is one.
+     *
+     * @see #WriteBehindCache(Cache, long)
+     */
+    public static WriteBehindCache create(Cache backingCache, long maxPendingBytes) {
+        if (backingCache instanceof ConcurrentlyInitializableCache) {
+            return new ConcurrentlyInitializableWriteBehindCache(backingCache, maxPendingBytes);
+        }
+        return new WriteBehindCache(backingCache, maxPendingBytes);
+    }
+
+    @Nullable
+    @Override
+    public Entry get(String key) {
+        long startNanos = System.nanoTime();
+        synchronized (this) {
+            PendingWrite write = mPendingWrites.get(key);
+            if (write != null) {
+                Entry entry = write.entry != null ? TieredCache.copyOf(write.entry) : null;
+                onQueueLookup(entry, startNanos);
+                return entry;
+            }
+        }
+        Entry entry = mBackingCache.get(key);
+        mStats.recordLookup(entry, System.nanoTime() - startNanos);
+        return entry;
+    }
+
+    /**
+     * Returns the queued entry of the key, if any, from memory. Otherwise, streams it from the
+     * backing cache if it supports streaming.
+     */
+    @Nullable
+    @Override
+    public StreamEntry getStream(String key) {
+        long startNanos = System.nanoTime();
+        synchronized (this) {
+            PendingWrite write = mPendingWrites.get(key);
+            if (write != null) {
+                Entry entry = write.entry != null ? TieredCache.copyOf(write.entry) : null;
+                onQueueLookup(entry, startNanos);
+                return entry != null ? toStreamEntry(entry) : null;
+            }
+        }
+        if (!(mBackingCache instanceof StreamingCache)) {
+            Entry entry = mBackingCache.get(key);
+            mStats.recordLookup(entry, System.nanoTime() - startNanos);
+            return entry != null ? toStreamEntry(entry) : null;
+        }
+        StreamEntry entry = ((StreamingCache) mBackingCache).getStream(key);
+        mStats.recordLookup(entry != null ? entry.metadata : null, System.nanoTime() - startNanos);
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        long startNanos = System.nanoTime();
+        // Keep a copy so that callers modifying the entry after the call don't affect the write.
+        enqueue(key, TieredCache.copyOf(entry), /* metadataOnly= */ false);
+        mStats.recordPut(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a pending entry of the backing cache if it supports writing bodies as they are read,
+     * or null otherwise. The entry is committed to the backing cache directly, on the calling
+     * thread, and replaces any write of the key queued before the commit.
+     */
+    @Nullable
+    @Override
+    public PendingEntry startPut(final String key) {
+        if (!(mBackingCache instanceof StreamingPutCache)) {
+            return null;
+        }
+        final PendingEntry pendingEntry = ((StreamingPutCache) mBackingCache).startPut(key);
+        if (pendingEntry == null) {
+            return null;
+        }
+        return new PendingEntry() {
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                pendingEntry.write(buffer, offset, count);
+            }
+
+            @Override
+            public boolean commit(Entry entry) {
+                long startNanos = System.nanoTime();
+                boolean committed;
+                synchronized (mWriteLock) {
+                    PendingWrite previous;
+                    synchronized (WriteBehindCache.this) {
+                        previous = mPendingWrites.get(key);
+                    }
+                    committed = pendingEntry.commit(entry);
+                    if (committed && previous != null) {
+                        // Writes queued during the commit are newer, so they are kept.
+                        dropPendingWrite(previous);
+                    }
+                }
+                if (committed) {
+                    mStats.recordPut(System.nanoTime() - startNanos);
+                }
+                return committed;
+            }
+
+            @Override
+            public void discard() {
+                pendingEntry.discard();
+            }
+        };
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        enqueue(key, TieredCache.copyOf(entry), /* metadataOnly= */ true);
+    }
+
+    @Override
+    public void initialize() {
+        mBackingCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        if (invalidatePendingWrite(key, fullExpire)) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            // A write of the key may have been queued since it was checked.
+            if (!invalidatePendingWrite(key, fullExpire)) {
+                mBackingCache.invalidate(key, fullExpire);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the queued writes and the entries of the backing cache whose key starts with the
+     * given prefix. Entries of the backing cache are only invalidated if it supports it.
+     */
+    @Override
+    public int invalidatePrefix(final String keyPrefix, boolean fullExpire) {
+        return invalidateMatching(
+                new KeyFilter() {
+                    @Override
+                    public boolean apply(String key) {
+                        return key.startsWith(keyPrefix);
+                    }
+                },
+                keyPrefix,
+                fullExpire);
+    }
+
+    /**
+     * Invalidates the queued writes and the entries of the backing cache whose key is accepted by
+     * the filter. Entries of the backing cache are only invalidated if it supports it.
+     */
+    @Override
+    public int invalidateMatching(KeyFilter filter, boolean fullExpire) {
+        return invalidateMatching(filter, /* keyPrefix= */ null, fullExpire);
+    }
+
+    private int invalidateMatching(
+            final KeyFilter filter, @Nullable String keyPrefix, boolean fullExpire) {
+        // A write stays queued until it has been applied, so the keys of the writes being applied
+        // are among these, and their invalidated copies are applied after them. Writes queued
+        // from here on are newer than the invalidation.
+        final Set<String> pendingKeys = new HashSet<>();
+        int invalidated = 0;
+        synchronized (this) {
+            for (PendingWrite write : new ArrayList<>(mPendingWrites.values())) {
+                if (filter.apply(write.key)) {
+                    pendingKeys.add(write.key);
+                    if (write.entry != null) {
+                        invalidatePendingWrite(write.key, fullExpire);
+                        invalidated++;
+                    }
+                }
+            }
+        }
+        if (!(mBackingCache instanceof BulkInvalidatableCache)) {
+            return invalidated;
+        }
+        BulkInvalidatableCache backingCache = (BulkInvalidatableCache) mBackingCache;
+        if (pendingKeys.isEmpty() && keyPrefix != null) {
+            // The backing cache may look prefixes up faster than by testing every key.
+            return invalidated + backingCache.invalidatePrefix(keyPrefix, fullExpire);
+        }
+        // Entries with a queued write are about to be replaced or removed, and were counted above
+        // if they are replaced.
+        return invalidated
+                + backingCache.invalidateMatching(
+                        new KeyFilter() {
+                            @Override
+                            public boolean apply(String key) {
+                                return !pendingKeys.contains(key) && filter.apply(key);
+                            }
+                        },
+                        fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        enqueue(key, /* entry= */ null, /* metadataOnly= */ false);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPendingWrites.clear();
+                mPendingBytes = 0;
+                notifyAll();
+            }
+            mBackingCache.clear();
+        }
+    }
+
+    /** Sweeps the backing cache, if it supports it. */
+    @Override
+    public void sweep() {
+        if (mBackingCache instanceof SweepableCache) {
+            ((SweepableCache) mBackingCache).sweep();
+        }
+    }
+
+    /**
+     * Returns the statistics of this cache, where lookups served from the queued writes count as
+     * hits or misses like any other, and a put is counted when it is queued. Evictions, corrupt
+     * entries and bytes written are those of the backing cache, if it is an {@link
+     * InstrumentedCache}.
+     */
+    @Override
+    public CacheStats getStats() {
+        CacheStats stats = mStats.snapshot();
+        if (!(mBackingCache instanceof InstrumentedCache)) {
+            return stats;
+        }
+        CacheStats backingStats = ((InstrumentedCache) mBackingCache).getStats();
+        return new CacheStats.Builder()
+                .setHitCount(stats.getHitCount())
+                .setMissCount(stats.getMissCount())
+                .setExpiredCount(stats.getExpiredCount())
+                .setRefreshNeededCount(stats.getRefreshNeededCount())
+                .setTotalLookupTimeNanos(stats.getTotalLookupTimeNanos())
+                .setPutCount(stats.getPutCount())
+                .setTotalPutTimeNanos(stats.getTotalPutTimeNanos())
+                .setEvictionCount(backingStats.getEvictionCount())
+                .setBytesRead(stats.getBytesRead() + backingStats.getBytesRead())
+                .setBytesWritten(backingStats.getBytesWritten())
+                .setCorruptionCount(backingStats.getCorruptionCount())
+                .build();
+    }
+
+    /**
+     * Lets the writer thread exit once it has applied the queued writes, for instance after {@link
+     * com.android.volley.RequestQueue#stop} when the queue is discarded. Doesn't wait for the
+     * writes; call {@link #flush} first for that. A write queued afterwards starts a new writer.
+     */
+    public synchronized void stop() {
+        mWriterThread = null;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until all writes queued before the call have been applied to the backing cache.
+     *
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public synchronized void flush() throws InterruptedException {
+        // Writes queued after the call may replace earlier ones, so this waits for them as well.
+        while (!mPendingWrites.isEmpty()) {
+            wait();
+        }
+    }
+
+    /** Returns the approximate size of the queued writes, in bytes. */
+    public synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * Queues a write, waiting for the writer thread to make room for it if needed.
+     *
+     * @param entry The entry to write, or null to remove the entry
+     * @param metadataOnly Whether only the metadata of the entry has changed
+     */
+    private synchronized void enqueue(String key, @Nullable Entry entry, boolean metadataOnly) {
+        startWriterIfNeeded();
+        long size = sizeOf(entry);
+        boolean interrupted = false;
+        // Replacing a queued write only needs room for the difference in size.
+        while (mPendingBytes + size - sizeOfPendingWrite(key) > mMaxPendingBytes
+                && !mPendingWrites.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Queue the write anyway rather than losing it.
+                interrupted = true;
+                break;
+            }
+        }
+        // If a full write of the key is still queued, or being applied, the data of the entry in
+        // the backing cache may be out of date, so the update must be a full write as well.
+        PendingWrite previous = mPendingWrites.get(key);
+        if (previous != null && !previous.metadataOnly) {
+            metadataOnly = false;
+        }
+        replace(new PendingWrite(key, entry, metadataOnly));
+        notifyAll();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Records a lookup served from the queued writes. */
+    private void onQueueLookup(@Nullable Entry entry, long startNanos) {
+        mStats.recordLookup(entry, System.nanoTime() - startNanos);
+        if (entry != null) {
+            mStats.recordBytesRead(entry.data.length);
+        }
+    }
+
+    /** Removes a queued write, unless it has been replaced. */
+    private synchronized void dropPendingWrite(PendingWrite write) {
+        if (mPendingWrites.get(write.key) == write) {
+            mPendingWrites.remove(write.key);
+            mPendingBytes -= write.size;
+            notifyAll();
+        }
+    }
+
+    /** Invalidates the queued write of a key, and returns false if there is none. */
+    private synchronized boolean invalidatePendingWrite(String key, boolean fullExpire) {
+        PendingWrite write = mPendingWrites.get(key);
+        if (write == null) {
+            return false;
+        }
+        if (write.entry != null) {
+            // Invalidate a copy, since the queued entry may be being written.
+            Entry entry = TieredCache.copyOf(write.entry);
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            replace(new PendingWrite(key, entry, write.metadataOnly));
+            notifyAll();
+        }
+        return true;
+    }
+
+    /** Queues a write in place of any queued write of the same key. */
+    private void replace(PendingWrite write) {
+        PendingWrite previous = mPendingWrites.put(write.key, write);
+        if (previous != null) {
+            mPendingBytes -= previous.size;
+        }
+        mPendingBytes += write.size;
+    }
+
+    private void startWriterIfNeeded() {
+        if (mWriterThread != null) {
+            return;
+        }
+        mWriterThread =
+                new Thread("Volley-CacheWriter") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        while (true) {
+                            List<PendingWrite> batch;
+                            try {
+                                batch = takeBatch(this);
+                            } catch (InterruptedException e) {
+                                VolleyLog.d("Cache writer interrupted");
+                                return;
+                            }
+                            if (batch == null) {
+                                return;
+                            }
+                            writeBatch(batch);
+                        }
+                    }
+                };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Waits for writes to be queued and returns all of them, or returns null once the given writer
+     * has been stopped and there are no writes left.
+     */
+    @Nullable
+    private synchronized List<PendingWrite> takeBatch(Thread writer) throws InterruptedException {
+        while (mPendingWrites.isEmpty()) {
+            if (mWriterThread != writer) {
+                return null;
+            }
+            wait();
+        }
+        return new ArrayList<>(mPendingWrites.values());
+    }
+
+    /** Applies a batch of writes, then removes the ones which weren't replaced meanwhile. */
+    private void writeBatch(List<PendingWrite> batch) {
+        synchronized (mWriteLock) {
+            for (PendingWrite write : batch) {
+                if (!isPending(write)) {
+                    // Replaced or cleared since the batch was taken.
+                    continue;
+                }
+                try {
+                    apply(write);
+                } catch (RuntimeException e) {
+                    // Don't let a failing write stop the writer, which would block later writes.
+                    VolleyLog.e(e, "Failed to write cache entry for %s", write.key);
+                }
+            }
+        }
+        synchronized (this) {
+            for (PendingWrite write : batch) {
+                if (mPendingWrites.get(write.key) == write) {
+                    mPendingWrites.remove(write.key);
+                    mPendingBytes -= write.size;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean isPending(PendingWrite write) {
+        return mPendingWrites.get(write.key) == write;
+    }
+
+    private void apply(PendingWrite write) {
+        if (write.entry == null) {
+            mBackingCache.remove(write.key);
+        } else if (write.metadataOnly && mBackingCache instanceof MetadataUpdatableCache) {
+            ((MetadataUpdatableCache) mBackingCache).updateMetadata(write.key, write.entry);
+        } else {
+            mBackingCache.put(write.key, write.entry);
+        }
+    }
+
+    private long sizeOfPendingWrite(String key) {
+        PendingWrite write = mPendingWrites.get(key);
+        return write != null ? write.size : 0;
+    }
+
+    private static StreamEntry toStreamEntry(Entry entry) {
+        return new StreamEntry(entry, new ByteArrayInputStream(entry.data), entry.data.length);
+    }
+
+    private static long sizeOf(@Nullable Entry entry) {
+        return WRITE_OVERHEAD_BYTES + (entry != null ? entry.data.length : 0);
+    }
+
+    /** Marks a write-behind cache whose backing cache supports concurrent initialization. */
+    private static class ConcurrentlyInitializableWriteBehindCache extends WriteBehindCache
+            implements ConcurrentlyInitializableCache {
+        ConcurrentlyInitializableWriteBehindCache(Cache backingCache, long maxPendingBytes) {
+            super(backingCache, maxPendingBytes);
+        }
+    }
+
+    /** A queued write, or removal if it has no entry. */
+    private static class PendingWrite {
+        final String key;
+        @Nullable final Entry entry;
+        final boolean metadataOnly;
+        final long size;
+
+        PendingWrite(String key, @Nullable Entry entry, boolean metadataOnly) {
+            this.key = key;
+            this.entry = entry;
+            this.metadataOnly = metadataOnly;
+            this.size = sizeOf(entry);
+        }
+    }
+}
@@ -16,8 +16,13 @@
 
 package com.android.volley;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -28,6 +33,7 @@ import com.android.volley.toolbox.NoAsyncCache;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.ImmediateResponseDelivery;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Collections;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -35,6 +41,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
@@ -45,15 +53,17 @@ public class AsyncRequestQueueTest {
 
     @Mock private AsyncNetwork mMockNetwork;
     @Mock private ScheduledExecutorService mMockScheduledExecutor;
+    private AsyncCache mAsyncCache;
     private AsyncRequestQueue queue;
 
     @Before
     public void setUp() throws Exception {
         ResponseDelivery mDelivery = new ImmediateResponseDelivery();
         initMocks(this);
+        mAsyncCache = spy(new NoAsyncCache());
         queue =
                 new AsyncRequestQueue.Builder(mMockNetwork)
-                        .setAsyncCache(new NoAsyncCache())
+                        .setAsyncCache(mAsyncCache)
                         .setResponseDelivery(mDelivery)
                         .setExecutorFactory(
                                 new AsyncRequestQueue.ExecutorFactory() {
@@ -161,4 +171,206 @@ public class AsyncRequestQueueTest {
         verifyNoMoreInteractions(listener);
         queue.stop();
     }
+
+    @Test
+    public void notModified_updatesCacheMetadata() throws Exception {
+        answerWith(
+                new NetworkResponse(
+                        304,
+                        new byte[0],
+                        /* notModified= */ true,
+                        /* networkTimeMs= */ 0,
+                        Collections.<Header>emptyList()));
+        queue.start();
+        StringRequest req = new StringRequest(Request.Method.GET, "http://foo", null, null);
+
+        queue.add(req);
+
+        verify(mAsyncCache)
+                .updateMetadata(
+                        eq(req.getCacheKey()),
+                        any(Cache.Entry.class),
+                        any(AsyncCache.OnWriteCompleteCallback.class));
+        queue.stop();
+    }
+
+    @Test
+    public void success_putsEntryInCache() throws Exception {
+        answerWith(new NetworkResponse(new byte[0]));
+        queue.start();
+        StringRequest req = new StringRequest(Request.Method.GET, "http://foo", null, null);
+
+        queue.add(req);
+
+        verify(mAsyncCache)
+                .put(
+                        eq(req.getCacheKey()),
+                        any(Cache.Entry.class),
+                        any(AsyncCache.OnWriteCompleteCallback.class));
+        verify(mAsyncCache, never())
+                .updateMetadata(
+                        any(String.class),
+                        any(Cache.Entry.class),
+                        any(AsyncCache.OnWriteCompleteCallback.class));
+        queue.stop();
+    }
+
+    @Test
+    public void networkError_deliversStaleEntry() throws Exception {
+        final Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes();
+        entry.ttl = System.currentTimeMillis() - 1000;
+        entry.softTtl = entry.ttl;
+        entry.responseHeaders = Collections.emptyMap();
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                invocation
+                                        .<AsyncCache.OnGetCompleteCallback>getArgument(1)
+                                        .onGetComplete(entry);
+                                return null;
+                            }
+                        })
+                .when(mAsyncCache)
+                .get(any(String.class), any(AsyncCache.OnGetCompleteCallback.class));
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                invocation
+                                        .<AsyncNetwork.OnRequestComplete>getArgument(1)
+                                        .onError(new NoConnectionError());
+                                return null;
+                            }
+                        })
+                .when(mMockNetwork)
+                .performRequest(any(Request.class), any(AsyncNetwork.OnRequestComplete.class));
+        queue.start();
+        @SuppressWarnings("unchecked")
+        Response.Listener<String> listener = mock(Response.Listener.class);
+        Response.ErrorListener errorListener = mock(Response.ErrorListener.class);
+        StringRequest req =
+                new StringRequest(Request.Method.GET, "http://foo", listener, errorListener);
+        req.setMaxStaleOnErrorMs(60000);
+
+        queue.add(req);
+
+        verify(listener).onResponse("stale");
+        verify(errorListener, never()).onErrorResponse(any(VolleyError.class));
+        queue.stop();
+    }
+
+    @Test
+    public void serverError_deliversStaleEntryWithoutCachingError() throws Exception {
+        final Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes();
+        entry.ttl = System.currentTimeMillis() - 1000;
+        entry.softTtl = entry.ttl;
+        entry.responseHeaders = Collections.emptyMap();
+        final ServerError error = new ServerError(new NetworkResponse(503, null, false, 0, null));
+        Cache.Entry errorEntry = new Cache.Entry();
+        errorEntry.ttl = Long.MAX_VALUE;
+        errorEntry.softTtl = Long.MAX_VALUE;
+        errorEntry.allResponseHeaders = Collections.emptyList();
+        error.setCacheEntry(errorEntry);
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                invocation
+                                        .<AsyncCache.OnGetCompleteCallback>getArgument(1)
+                                        .onGetComplete(entry);
+                                return null;
+                            }
+                        })
+                .when(mAsyncCache)
+                .get(any(String.class), any(AsyncCache.OnGetCompleteCallback.class));
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                invocation
+                                        .<AsyncNetwork.OnRequestComplete>getArgument(1)
+                                        .onError(error);
+                                return null;
+                            }
+                        })
+                .when(mMockNetwork)
+                .performRequest(any(Request.class), any(AsyncNetwork.OnRequestComplete.class));
+        queue.start();
+        @SuppressWarnings("unchecked")
+        Response.Listener<String> listener = mock(Response.Listener.class);
+        Response.ErrorListener errorListener = mock(Response.ErrorListener.class);
+        for (int i = 0; i < 2; i++) {
+            StringRequest req =
+                    new StringRequest(Request.Method.GET, "http://foo", listener, errorListener);
+            req.setMaxStaleOnErrorMs(60000);
+            req.setErrorCacheTtlMs(60000);
+            queue.add(req);
+        }
+
+        verify(listener, times(2)).onResponse("stale");
+        verify(errorListener, never()).onErrorResponse(any(VolleyError.class));
+        verify(mAsyncCache, never())
+                .put(
+                        any(String.class),
+                        any(Cache.Entry.class),
+                        any(AsyncCache.OnWriteCompleteCallback.class));
+        queue.stop();
+    }
+
+    @Test
+    public void requestsWaitingForCacheInitialization() throws Exception {
+        final AsyncCache.OnWriteCompleteCallback[] initializeCallback =
+                new AsyncCache.OnWriteCompleteCallback[1];
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                initializeCallback[0] = invocation.getArgument(0);
+                                return null;
+                            }
+                        })
+                .when(mAsyncCache)
+                .initialize(any(AsyncCache.OnWriteCompleteCallback.class));
+        queue.start();
+        StringRequest cacheable = new StringRequest(Request.Method.GET, "http://foo", null, null);
+        StringRequest uncacheable = new StringRequest(Request.Method.GET, "http://bar", null, null);
+        uncacheable.setShouldCache(false);
+
+        queue.add(cacheable);
+        queue.add(uncacheable);
+
+        // Only the request which doesn't need the cache is sent before it is initialized.
+        verify(mMockNetwork)
+                .performRequest(eq(uncacheable), any(AsyncNetwork.OnRequestComplete.class));
+        verify(mMockNetwork, never())
+                .performRequest(eq(cacheable), any(AsyncNetwork.OnRequestComplete.class));
+        verify(mAsyncCache, never())
+                .get(any(String.class), any(AsyncCache.OnGetCompleteCallback.class));
+
+        initializeCallback[0].onWriteComplete();
+
+        verify(mAsyncCache)
+                .get(eq(cacheable.getCacheKey()), any(AsyncCache.OnGetCompleteCallback.class));
+        verify(mMockNetwork)
+                .performRequest(eq(cacheable), any(AsyncNetwork.OnRequestComplete.class));
+        queue.stop();
+    }
+
+    private void answerWith(final NetworkResponse response) {
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                invocation
+                                        .<AsyncNetwork.OnRequestComplete>getArgument(1)
+                                        .onSuccess(response);
+                                return null;
+                            }
+                        })
+                .when(mMockNetwork)
+                .performRequest(any(Request.class), any(AsyncNetwork.OnRequestComplete.class));
+    }
 }
@@ -16,22 +16,35 @@
 
 package com.android.volley;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.CacheTestUtils;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
@@ -43,6 +56,8 @@ import org.robolectric.RobolectricTestRunner;
 @RunWith(RobolectricTestRunner.class)
 @SuppressWarnings("rawtypes")
 public class CacheDispatcherTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private CacheDispatcher mDispatcher;
     private @Mock BlockingQueue<Request<?>> mCacheQueue;
     private @Mock BlockingQueue<Request<?>> mNetworkQueue;
@@ -75,6 +90,20 @@ public class CacheDispatcherTest {
         mDispatcher.join(1000);
     }
 
+    @Test
+    public void sweepsCacheWhenIdle() throws Exception {
+        SweepableCache cache = mock(SweepableCache.class);
+        when(mCacheQueue.take()).then(new WaitForever());
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+
+        dispatcher.start();
+
+        verify(cache, timeout(1000)).sweep();
+        dispatcher.quit();
+        dispatcher.join(1000);
+    }
+
     private static void verifyNoResponse(ResponseDelivery delivery) {
         verify(delivery, never()).postResponse(any(Request.class), any(Response.class));
         verify(delivery, never())
@@ -110,6 +139,31 @@ public class CacheDispatcherTest {
         verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
     }
 
+    // Lookups are counted by outcome in the statistics of the queue.
+    @Test
+    public void lookupsAreRecordedInStats() throws Exception {
+        CacheStatsRecorder stats = new CacheStatsRecorder();
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery, stats);
+
+        dispatcher.processRequest(mRequest);
+        when(mCache.get(anyString()))
+                .thenReturn(CacheTestUtils.makeRandomCacheEntry(null, false, false));
+        dispatcher.processRequest(mRequest);
+        when(mCache.get(anyString()))
+                .thenReturn(CacheTestUtils.makeRandomCacheEntry(null, false, true));
+        dispatcher.processRequest(mRequest);
+        when(mCache.get(anyString()))
+                .thenReturn(CacheTestUtils.makeRandomCacheEntry(null, true, true));
+        dispatcher.processRequest(mRequest);
+
+        CacheStats snapshot = stats.snapshot();
+        assertEquals(1, snapshot.getMissCount());
+        assertEquals(3, snapshot.getHitCount());
+        assertEquals(1, snapshot.getRefreshNeededCount());
+        assertEquals(1, snapshot.getExpiredCount());
+    }
+
     // A soft-expired cache hit posts a response and queues to the network.
     @Test
     public void softExpiredCacheHit() throws Exception {
@@ -140,6 +194,26 @@ public class CacheDispatcherTest {
         assertSame(entry, mRequest.getCacheEntry());
     }
 
+    // A varying response is refetched once its cache key has been invalidated.
+    @Test
+    public void invalidatedVariantCacheHit() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(temporaryFolder.getRoot());
+        cache.initialize();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.allResponseHeaders = Collections.singletonList(new Header("Vary", "Accept-Language"));
+        CacheVariants.put(cache, mRequest, entry);
+        cache.invalidate(mRequest.getCacheKey(), true);
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+
+        dispatcher.processRequest(mRequest);
+
+        verifyNoResponse(mDelivery);
+        verify(mNetworkQueue).put(mRequest);
+        assertTrue(mRequest.getCacheEntry().isExpired());
+        assertEquals(entry.etag, mRequest.getCacheEntry().etag);
+    }
+
     // An fresh cache hit with parse error, does not post a response and queues to the network.
     @Test
     public void freshCacheHit_parseError() throws Exception {
@@ -159,6 +233,45 @@ public class CacheDispatcherTest {
         verify(request).addMarker("cache-parsing-failed");
     }
 
+    @Test
+    public void freshCachedErrorIsDelivered() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.allResponseHeaders =
+                Collections.singletonList(new Header(CachedErrors.HEADER_ERROR_STATUS, "404"));
+        when(mCache.get(anyString())).thenReturn(entry);
+        mRequest.setErrorCacheTtlMs(60000);
+
+        mDispatcher.processRequest(mRequest);
+
+        ArgumentCaptor<VolleyError> error = ArgumentCaptor.forClass(VolleyError.class);
+        verify(mDelivery).postError(eq(mRequest), error.capture());
+        assertTrue(error.getValue() instanceof ClientError);
+        assertEquals(404, error.getValue().networkResponse.statusCode);
+        assertSame(entry.data, error.getValue().networkResponse.data);
+        verify(mNetworkQueue, never()).put(any(Request.class));
+    }
+
+    @Test
+    public void cachedErrorIsMissWhenExpiredOrNotCachingErrors() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.allResponseHeaders =
+                Collections.singletonList(new Header(CachedErrors.HEADER_ERROR_STATUS, "404"));
+        when(mCache.get(anyString())).thenReturn(entry);
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(mNetworkQueue).put(mRequest);
+        assertNull(mRequest.getCacheEntry());
+
+        StringRequest request = new StringRequest(Request.Method.GET, "http://bar", null, null);
+        request.setErrorCacheTtlMs(60000);
+        entry.ttl = 0;
+        mDispatcher.processRequest(request);
+
+        verify(mNetworkQueue).put(request);
+        verifyNoResponse(mDelivery);
+    }
+
     @Test
     public void duplicateCacheMiss() throws Exception {
         StringRequest secondRequest =
@@ -195,6 +308,35 @@ public class CacheDispatcherTest {
         verify(mNetworkQueue).put(thirdRequest);
     }
 
+    @Test
+    public void duplicateCacheMiss_responseForOtherVariant() throws Exception {
+        StringRequest secondRequest =
+                new StringRequest(Request.Method.GET, "http://foo", null, null) {
+                    @Override
+                    public Map<String, String> getHeaders() {
+                        return Collections.singletonMap("Accept-Language", "fr");
+                    }
+                };
+        StringRequest thirdRequest =
+                new StringRequest(Request.Method.GET, "http://foo", null, null);
+        mRequest.setSequence(1);
+        secondRequest.setSequence(2);
+        thirdRequest.setSequence(3);
+        mDispatcher.processRequest(mRequest);
+        mDispatcher.processRequest(secondRequest);
+        mDispatcher.processRequest(thirdRequest);
+
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.allResponseHeaders = Collections.singletonList(new Header("Vary", "Accept-Language"));
+        Response<?> response = Response.success(null, entry);
+        ((Request<?>) mRequest).notifyListenerResponseReceived(response);
+
+        // Only the request selecting the same variant can use the response.
+        verify(mDelivery).postResponse(thirdRequest, response);
+        verify(mDelivery, never()).postResponse(eq(secondRequest), any(Response.class));
+        verify(mNetworkQueue).put(secondRequest);
+    }
+
     @Test
     public void duplicateSoftExpiredCacheHit_failedRequest() throws Exception {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, true);
@@ -255,6 +397,58 @@ public class CacheDispatcherTest {
                 .postResponse(any(Request.class), any(Response.class), any(Runnable.class));
     }
 
+    @Test
+    public void streamingRequestParsesFreshEntryFromStream() throws Exception {
+        StreamingCache cache = mock(StreamingCache.class);
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+        InputStream body = spy(new ByteArrayInputStream(entry.data));
+        when(cache.getStream(anyString()))
+                .thenReturn(new StreamingCache.StreamEntry(entry, body, entry.data.length));
+        StreamingRequest request = new StreamingRequest();
+
+        dispatcher.processRequest(request);
+
+        verify(cache, never()).get(anyString());
+        verify(body).close();
+        assertSame(entry.data, request.mParsedData);
+        verify(mDelivery).postResponse(any(Request.class), any(Response.class));
+        verify(mNetworkQueue, never()).put(any(Request.class));
+    }
+
+    @Test
+    public void streamingRequestReadsSoftExpiredEntryIntoMemory() throws Exception {
+        StreamingCache cache = mock(StreamingCache.class);
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, true);
+        InputStream body = spy(new ByteArrayInputStream(entry.data));
+        when(cache.getStream(anyString()))
+                .thenReturn(new StreamingCache.StreamEntry(entry, body, entry.data.length));
+        when(cache.get(anyString())).thenReturn(entry);
+        StreamingRequest request = new StreamingRequest();
+
+        dispatcher.processRequest(request);
+
+        verify(body).close();
+        assertNull(request.mParsedData);
+        assertSame(entry, request.getCacheEntry());
+    }
+
+    @Test
+    public void nonStreamingRequestUsesByteArrays() throws Exception {
+        StreamingCache cache = mock(StreamingCache.class);
+        CacheDispatcher dispatcher =
+                new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+        when(cache.get(anyString())).thenReturn(CacheTestUtils.makeRandomCacheEntry(null));
+
+        dispatcher.processRequest(mRequest);
+
+        verify(cache, never()).getStream(anyString());
+        verify(mDelivery).postResponse(any(Request.class), any(Response.class));
+    }
+
     @Test
     public void processRequestNotifiesListener() throws Exception {
         RequestQueue.RequestEventListener listener = mock(RequestQueue.RequestEventListener.class);
@@ -273,4 +467,38 @@ public class CacheDispatcherTest {
                 .onRequestEvent(mRequest, RequestQueue.RequestEvent.REQUEST_CACHE_LOOKUP_FINISHED);
         inOrder.verifyNoMoreInteractions();
     }
+
+    private static class StreamingRequest extends Request<byte[]> {
+        byte[] mParsedData;
+
+        StreamingRequest() {
+            super(Method.GET, "http://foo", null);
+        }
+
+        @Override
+        public boolean shouldStreamCachedResponse() {
+            return true;
+        }
+
+        @Override
+        protected Response<byte[]> parseCachedResponse(StreamingCache.StreamEntry entry) {
+            try {
+                byte[] data = new byte[(int) entry.length];
+                assertEquals(entry.length, entry.body.read(data));
+                // Keep the data of the entry to check that the right one was streamed.
+                mParsedData = entry.metadata.data;
+                return Response.success(data, null);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response.data, null);
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {}
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.android.volley.utils.CacheTestUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CacheStatsRecorderTest {
+
+    @Test
+    public void emptySnapshot() {
+        CacheStats stats = new CacheStatsRecorder().snapshot();
+
+        assertThat(stats.getLookupCount(), is(0L));
+        assertThat(stats.getHitRate(), is(1.0));
+        assertThat(stats.getAverageLookupTimeNanos(), is(0L));
+        assertThat(stats.getAveragePutTimeNanos(), is(0L));
+    }
+
+    @Test
+    public void lookupsAreClassifiedByEntryState() {
+        CacheStatsRecorder recorder = new CacheStatsRecorder();
+
+        recorder.recordLookup(CacheTestUtils.makeRandomCacheEntry(null, false, false), 10);
+        recorder.recordLookup(CacheTestUtils.makeRandomCacheEntry(null, false, true), 20);
+        recorder.recordLookup(CacheTestUtils.makeRandomCacheEntry(null, true, true), 30);
+        recorder.recordLookup(null, 40);
+
+        CacheStats stats = recorder.snapshot();
+        assertThat(stats.getHitCount(), is(3L));
+        assertThat(stats.getMissCount(), is(1L));
+        assertThat(stats.getRefreshNeededCount(), is(1L));
+        assertThat(stats.getExpiredCount(), is(1L));
+        assertThat(stats.getHitRate(), is(closeTo(0.75, 1e-9)));
+        assertThat(stats.getTotalLookupTimeNanos(), is(100L));
+        assertThat(stats.getAverageLookupTimeNanos(), is(25L));
+    }
+
+    @Test
+    public void writesEvictionsCorruptionsAndBytes() {
+        CacheStatsRecorder recorder = new CacheStatsRecorder();
+
+        recorder.recordPut(100);
+        recorder.recordPut(300);
+        recorder.recordEviction();
+        recorder.recordCorruption();
+        recorder.recordBytesRead(1000);
+        recorder.recordBytesWritten(2000);
+        recorder.recordBytesWritten(500);
+
+        CacheStats stats = recorder.snapshot();
+        assertThat(stats.getPutCount(), is(2L));
+        assertThat(stats.getTotalPutTimeNanos(), is(400L));
+        assertThat(stats.getAveragePutTimeNanos(), is(200L));
+        assertThat(stats.getEvictionCount(), is(1L));
+        assertThat(stats.getCorruptionCount(), is(1L));
+        assertThat(stats.getBytesRead(), is(1000L));
+        assertThat(stats.getBytesWritten(), is(2500L));
+    }
+
+    @Test
+    public void minusReturnsCountsSinceEarlierSnapshot() {
+        CacheStatsRecorder recorder = new CacheStatsRecorder();
+        recorder.recordLookup(null, 10);
+        recorder.recordPut(10);
+        CacheStats before = recorder.snapshot();
+
+        recorder.recordLookup(CacheTestUtils.makeRandomCacheEntry(null), 20);
+        recorder.recordBytesRead(42);
+
+        CacheStats delta = recorder.snapshot().minus(before);
+        assertThat(delta.getHitCount(), is(1L));
+        assertThat(delta.getMissCount(), is(0L));
+        assertThat(delta.getTotalLookupTimeNanos(), is(20L));
+        assertThat(delta.getPutCount(), is(0L));
+        assertThat(delta.getBytesRead(), is(42L));
+    }
+
+    @Test
+    public void countsFromConcurrentThreadsAreSummed() throws Exception {
+        final CacheStatsRecorder recorder = new CacheStatsRecorder();
+        final int threadCount = 16;
+        final int lookupsPerThread = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread =
+                    new Thread(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        start.await();
+                                    } catch (InterruptedException e) {
+                                        return;
+                                    }
+                                    for (int j = 0; j < lookupsPerThread; j++) {
+                                        recorder.recordLookup(null, 1);
+                                        recorder.recordBytesRead(2);
+                                    }
+                                }
+                            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        CacheStats stats = recorder.snapshot();
+        assertThat(stats.getMissCount(), is((long) threadCount * lookupsPerThread));
+        assertThat(stats.getTotalLookupTimeNanos(), is((long) threadCount * lookupsPerThread));
+        assertThat(stats.getBytesRead(), is(2L * threadCount * lookupsPerThread));
+        assertThat(stats.getHitCount(), is(0L));
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.Nullable;
+import com.android.volley.toolbox.DiskBasedAsyncCache;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.StringRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CacheVariantsTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DiskBasedCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new DiskBasedCache(temporaryFolder.getRoot(), 1024 * 1024);
+        cache.initialize();
+    }
+
+    @Test
+    public void responseWithoutVaryIsCachedUnderCacheKey() {
+        Cache.Entry entry = entry("body", null);
+
+        CacheVariants.put(cache, request(null), entry);
+
+        assertThat(cache.get("http://foo"), is(notNullValue()));
+        assertThat(data(CacheVariants.get(cache, request("fr"))), is("body"));
+    }
+
+    @Test
+    public void lookupSelectsVariantMatchingRequestHeaders() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+        CacheVariants.put(cache, request("fr"), entry("bonjour", "Accept-Language"));
+
+        assertThat(data(CacheVariants.get(cache, request("en"))), is("hello"));
+        assertThat(data(CacheVariants.get(cache, request("fr"))), is("bonjour"));
+        assertThat(CacheVariants.get(cache, request("de")), is(nullValue()));
+        assertThat(CacheVariants.get(cache, request(null)), is(nullValue()));
+    }
+
+    @Test
+    public void cacheKeyHoldsMostRecentlyWrittenVariant() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+        CacheVariants.put(cache, request("fr"), entry("bonjour", "Accept-Language"));
+
+        // Callers reading the cache directly, such as offline lookups, get a parseable response.
+        Cache.Entry entry = cache.get("http://foo");
+        assertThat(data(entry), is("bonjour"));
+        assertThat(entry.isExpired(), is(false));
+        assertThat(
+                CacheVariants.getHeader(entry, CacheVariants.HEADER_VARIANT_INDEX),
+                is(nullValue()));
+        assertThat(data(CacheVariants.get(cache, request("en"))), is("hello"));
+    }
+
+    @Test
+    public void asyncCacheSelectsVariantAndHoldsMostRecentOneUnderCacheKey()
+            throws IOException, InterruptedException {
+        AsyncCache asyncCache =
+                new DiskBasedAsyncCache.Builder(temporaryFolder.newFolder()).build();
+        CountDownLatch initialized = new CountDownLatch(1);
+        asyncCache.initialize(countDown(initialized));
+        assertTrue(initialized.await(5, TimeUnit.SECONDS));
+
+        put(asyncCache, request("en"), entry("hello", "Accept-Language"));
+        put(asyncCache, request("fr"), entry("bonjour", "Accept-Language"));
+
+        assertThat(data(get(asyncCache, request("en"))), is("hello"));
+        assertThat(data(get(asyncCache, request("fr"))), is("bonjour"));
+        assertThat(get(asyncCache, request("de")), is(nullValue()));
+        assertThat(data(get(asyncCache, "http://foo")), is("bonjour"));
+    }
+
+    @Test
+    public void headerNamesAreCaseInsensitive() {
+        CacheVariants.put(cache, request("en"), entry("hello", "accept-LANGUAGE, Accept-Language"));
+
+        assertThat(data(CacheVariants.get(cache, request("en"))), is("hello"));
+        assertThat(
+                CacheVariants.getCacheKey(request("en"), entry("", "ACCEPT-LANGUAGE")),
+                is(
+                        equalTo(
+                                CacheVariants.getCacheKey(
+                                        request("en"), entry("", "Accept-Language")))));
+    }
+
+    @Test
+    public void headerValuesAreNotWrittenToKeysOrDisk() throws IOException {
+        File root = temporaryFolder.newFolder();
+        DiskBasedCache journaled = new DiskBasedCache.Builder(root).setJournalEnabled(true).build();
+        journaled.initialize();
+        String token = "Bearer secret-token";
+        Request<?> request = request("Authorization", token);
+
+        CacheVariants.put(journaled, request, entry("private", "Authorization"));
+
+        String variantKey = CacheVariants.getCacheKey(request, entry("", "Authorization"));
+        String otherKey =
+                CacheVariants.getCacheKey(
+                        request("Authorization", "Bearer other-token"), entry("", "Authorization"));
+        assertThat(variantKey, startsWith("http://foo\n"));
+        assertThat(variantKey, not(containsString("secret-token")));
+        assertThat(variantKey, is(not(equalTo(otherKey))));
+        assertThat(data(CacheVariants.get(journaled, request)), is("private"));
+        byte[] secret = "secret-token".getBytes(StandardCharsets.UTF_8);
+        for (File file : listFiles(root)) {
+            assertThat(file.getPath(), indexOf(readBytes(file), secret), is(-1));
+        }
+    }
+
+    @Test
+    public void variantsArePersisted() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+
+        DiskBasedCache reloaded = new DiskBasedCache(temporaryFolder.getRoot(), 1024 * 1024);
+        reloaded.initialize();
+
+        assertThat(data(CacheVariants.get(reloaded, request("en"))), is("hello"));
+    }
+
+    @Test
+    public void leastRecentlyWrittenVariantIsRemovedBeyondLimit() {
+        for (int i = 0; i <= CacheVariants.MAX_VARIANTS_PER_KEY; i++) {
+            CacheVariants.put(cache, request("lang" + i), entry("body" + i, "Accept-Language"));
+        }
+        // Rewriting a variant makes it the most recently written one.
+        CacheVariants.put(cache, request("lang1"), entry("body1", "Accept-Language"));
+        CacheVariants.put(cache, request("new"), entry("new", "Accept-Language"));
+
+        assertThat(CacheVariants.get(cache, request("lang0")), is(nullValue()));
+        assertThat(cache.get(variantKey("lang0")), is(nullValue()));
+        assertThat(CacheVariants.get(cache, request("lang2")), is(nullValue()));
+        assertThat(data(CacheVariants.get(cache, request("lang1"))), is("body1"));
+        assertThat(data(CacheVariants.get(cache, request("new"))), is("new"));
+    }
+
+    @Test
+    public void changingVaryHeadersRemovesPreviousVariants() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+
+        CacheVariants.put(cache, request("en"), entry("hi", "Accept-Language, Accept"));
+
+        assertThat(cache.get(variantKey("en")), is(nullValue()));
+        assertThat(data(CacheVariants.get(cache, request("en"))), is("hi"));
+    }
+
+    @Test
+    public void invalidatingCacheKeyExpiresVariants() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+        CacheVariants.put(cache, request("fr"), entry("bonjour", "Accept-Language"));
+
+        cache.invalidate("http://foo", true);
+
+        Cache.Entry en = CacheVariants.get(cache, request("en"));
+        assertThat(data(en), is("hello"));
+        assertThat(en.isExpired(), is(true));
+        StreamingCache.StreamEntry fr = CacheVariants.getStream(cache, request("fr"));
+        assertThat(fr.metadata.isExpired(), is(true));
+        fr.close();
+
+        // Refetching one variant doesn't make the others fresh again.
+        CacheVariants.put(cache, request("en"), entry("hi", "Accept-Language"));
+
+        assertThat(CacheVariants.get(cache, request("en")).isExpired(), is(false));
+        assertThat(CacheVariants.get(cache, request("fr")).isExpired(), is(true));
+    }
+
+    @Test
+    public void softInvalidatingCacheKeyRefreshesVariants() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+
+        cache.invalidate("http://foo", false);
+
+        Cache.Entry en = CacheVariants.get(cache, request("en"));
+        assertThat(en.refreshNeeded(), is(true));
+        assertThat(en.isExpired(), is(false));
+    }
+
+    @Test
+    public void getStreamSelectsVariant() {
+        CacheVariants.put(cache, request("en"), entry("hello", "Accept-Language"));
+
+        StreamingCache.StreamEntry streamEntry = CacheVariants.getStream(cache, request("en"));
+
+        assertThat(streamEntry, is(notNullValue()));
+        assertThat(streamEntry.length, is(5L));
+        streamEntry.close();
+        assertThat(CacheVariants.getStream(cache, request("fr")), is(nullValue()));
+    }
+
+    private static void put(AsyncCache cache, Request<?> request, Cache.Entry entry)
+            throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        CacheVariants.put(cache, request, entry, countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Cache.Entry get(AsyncCache cache, Request<?> request)
+            throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<Cache.Entry> result = new AtomicReference<>();
+        CacheVariants.get(cache, request, setAndCountDown(result, latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static Cache.Entry get(AsyncCache cache, String key) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<Cache.Entry> result = new AtomicReference<>();
+        cache.get(key, setAndCountDown(result, latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static AsyncCache.OnGetCompleteCallback setAndCountDown(
+            final AtomicReference<Cache.Entry> result, final CountDownLatch latch) {
+        return new AsyncCache.OnGetCompleteCallback() {
+            @Override
+            public void onGetComplete(@Nullable Cache.Entry entry) {
+                result.set(entry);
+                latch.countDown();
+            }
+        };
+    }
+
+    private static AsyncCache.OnWriteCompleteCallback countDown(final CountDownLatch latch) {
+        return new AsyncCache.OnWriteCompleteCallback() {
+            @Override
+            public void onWriteComplete() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static Request<?> request(String language) {
+        return request("Accept-Language", language);
+    }
+
+    private static Request<?> request(final String name, final String value) {
+        return new StringRequest(Request.Method.GET, "http://foo", null, null) {
+            @Override
+            public Map<String, String> getHeaders() {
+                Map<String, String> headers = new HashMap<>();
+                if (value != null) {
+                    headers.put(name, value);
+                }
+                return headers;
+            }
+        };
+    }
+
+    private static String variantKey(String language) {
+        return CacheVariants.getCacheKey(request(language), entry("", "Accept-Language"));
+    }
+
+    private static Cache.Entry entry(String data, String vary) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data.getBytes();
+        entry.ttl = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        if (vary != null) {
+            entry.allResponseHeaders.add(new Header("Vary", vary));
+        }
+        return entry;
+    }
+
+    private static String data(Cache.Entry entry) {
+        return entry == null ? null : new String(entry.data);
+    }
+
+    private static List<File> listFiles(File directory) {
+        List<File> files = new ArrayList<>();
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                files.addAll(listFiles(file));
+            } else {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target) {
+        for (int i = 0; i + target.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
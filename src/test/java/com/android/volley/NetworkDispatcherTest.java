@@ -17,24 +17,33 @@
 package com.android.volley;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.toolbox.StringRequest;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.BlockingQueue;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
@@ -43,6 +52,8 @@ import org.robolectric.RobolectricTestRunner;
 
 @RunWith(RobolectricTestRunner.class)
 public class NetworkDispatcherTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private NetworkDispatcher mDispatcher;
     private @Mock ResponseDelivery mDelivery;
     private @Mock BlockingQueue<Request<?>> mNetworkQueue;
@@ -143,4 +154,270 @@ public class NetworkDispatcherTest {
         verify(mCache).put(eq(mRequest.getCacheKey()), entry.capture());
         assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
     }
+
+    @Test
+    public void cacheRetentionIsAppliedToEntry() throws Exception {
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(CANNED_DATA));
+        mRequest.setCacheRetention(Cache.Retention.PINNED);
+        mDispatcher.processRequest(mRequest);
+        ArgumentCaptor<Cache.Entry> entry = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mCache).put(eq(mRequest.getCacheKey()), entry.capture());
+        assertEquals(Cache.Retention.PINNED, entry.getValue().retention);
+    }
+
+    @Test
+    public void notModifiedUpdatesCacheMetadata() throws Exception {
+        MetadataUpdatableCache cache = mock(MetadataUpdatableCache.class);
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(
+                        new NetworkResponse(
+                                304,
+                                CANNED_DATA,
+                                /* notModified= */ true,
+                                /* networkTimeMs= */ 0,
+                                Collections.<Header>emptyList()));
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(cache).updateMetadata(eq(mRequest.getCacheKey()), any(Cache.Entry.class));
+        verify(cache, never()).put(anyString(), any(Cache.Entry.class));
+        verify(mDelivery).postResponse(any(Request.class), any(Response.class));
+    }
+
+    @Test
+    public void notModifiedPutsEntryWithoutMetadataSupport() throws Exception {
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(
+                        new NetworkResponse(
+                                304,
+                                CANNED_DATA,
+                                /* notModified= */ true,
+                                /* networkTimeMs= */ 0,
+                                Collections.<Header>emptyList()));
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(mCache).put(eq(mRequest.getCacheKey()), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void successPutsEntryWithMetadataSupport() throws Exception {
+        MetadataUpdatableCache cache = mock(MetadataUpdatableCache.class);
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(CANNED_DATA));
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(cache).put(eq(mRequest.getCacheKey()), any(Cache.Entry.class));
+        verify(cache, never()).updateMetadata(anyString(), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void successCommitsPendingEntry() throws Exception {
+        StreamingPutCache cache = mock(StreamingPutCache.class);
+        StreamingPutCache.PendingEntry pendingEntry = mock(StreamingPutCache.PendingEntry.class);
+        when(cache.startPut(mRequest.getCacheKey())).thenReturn(pendingEntry);
+        when(pendingEntry.commit(any(Cache.Entry.class))).thenReturn(true);
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(CANNED_DATA));
+
+        mDispatcher.processRequest(mRequest);
+
+        ArgumentCaptor<Cache.Entry> entry = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(pendingEntry).commit(entry.capture());
+        assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
+        verify(cache, never()).put(anyString(), any(Cache.Entry.class));
+        assertNull(mRequest.getPendingCacheEntry());
+    }
+
+    @Test
+    public void failedCommitFallsBackToPut() throws Exception {
+        StreamingPutCache cache = mock(StreamingPutCache.class);
+        StreamingPutCache.PendingEntry pendingEntry = mock(StreamingPutCache.PendingEntry.class);
+        when(cache.startPut(mRequest.getCacheKey())).thenReturn(pendingEntry);
+        when(pendingEntry.commit(any(Cache.Entry.class))).thenReturn(false);
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(CANNED_DATA));
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(cache).put(eq(mRequest.getCacheKey()), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void varyingResponseIsWrittenAsVariant() throws Exception {
+        StreamingPutCache cache = mock(StreamingPutCache.class);
+        StreamingPutCache.PendingEntry pendingEntry = mock(StreamingPutCache.PendingEntry.class);
+        when(cache.startPut(mRequest.getCacheKey())).thenReturn(pendingEntry);
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(
+                        new NetworkResponse(
+                                200,
+                                CANNED_DATA,
+                                false,
+                                0,
+                                Arrays.asList(
+                                        new Header("Cache-Control", "max-age=60"),
+                                        new Header("Vary", "Accept-Language"))));
+
+        mDispatcher.processRequest(mRequest);
+
+        // The pending entry would only have been written under the cache key.
+        verify(pendingEntry, never()).commit(any(Cache.Entry.class));
+        verify(pendingEntry).discard();
+        verify(cache, times(2))
+                .put(startsWith(mRequest.getCacheKey() + "\n"), any(Cache.Entry.class));
+        verify(cache).put(eq(mRequest.getCacheKey()), any(Cache.Entry.class));
+        ArgumentCaptor<Cache.Entry> index = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(cache).put(eq(CacheVariants.getIndexKey(mRequest.getCacheKey())), index.capture());
+        assertEquals(
+                "accept-language",
+                index.getValue().responseHeaders.get(CacheVariants.HEADER_VARIANT_INDEX));
+    }
+
+    @Test
+    public void cacheableErrorIsCached() throws Exception {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = CANNED_DATA;
+        entry.ttl = Long.MAX_VALUE;
+        entry.allResponseHeaders = Collections.emptyList();
+        ClientError error = new ClientError(new NetworkResponse(404, CANNED_DATA, false, 0, null));
+        error.setCacheEntry(entry);
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(error);
+        mRequest.setErrorCacheTtlMs(60000);
+
+        mDispatcher.processRequest(mRequest);
+
+        ArgumentCaptor<Cache.Entry> cached = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mCache).put(eq(mRequest.getCacheKey()), cached.capture());
+        assertTrue(CachedErrors.isError(cached.getValue()));
+        assertEquals(
+                "404", cached.getValue().responseHeaders.get(CachedErrors.HEADER_ERROR_STATUS));
+        verify(mDelivery).postError(mRequest, error);
+    }
+
+    @Test
+    public void errorIsNotCachedWithoutOptIn() throws Exception {
+        ClientError error = new ClientError(new NetworkResponse(404, CANNED_DATA, false, 0, null));
+        error.setCacheEntry(new Cache.Entry());
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(error);
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(mCache, never()).put(anyString(), any(Cache.Entry.class));
+        verify(mDelivery).postError(mRequest, error);
+    }
+
+    @Test
+    public void unreachableServerDeliversStaleEntryWithinMaxStale() throws Exception {
+        mRequest.setCacheEntry(staleEntry(/* cacheControl= */ null));
+        mRequest.setMaxStaleOnErrorMs(60000);
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(new NoConnectionError());
+
+        mDispatcher.processRequest(mRequest);
+
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(mDelivery).postResponse(eq(mRequest), response.capture());
+        assertEquals("stale", response.getValue().result);
+        verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
+    }
+
+    @Test
+    public void serverErrorDeliversStaleEntryWithinStaleIfError() throws Exception {
+        mRequest.setCacheEntry(staleEntry("max-age=60, stale-if-error=3600"));
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenThrow(new ServerError(new NetworkResponse(503, null, false, 0, null)));
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(mDelivery).postResponse(eq(mRequest), any(Response.class));
+        verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
+    }
+
+    @Test
+    public void cacheableServerErrorDoesNotReplaceDeliveredStaleEntry() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(temporaryFolder.getRoot());
+        cache.initialize();
+        cache.put(mRequest.getCacheKey(), staleEntry("max-age=60, stale-if-error=3600"));
+        NetworkDispatcher dispatcher =
+                new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        Cache.Entry errorEntry = new Cache.Entry();
+        errorEntry.ttl = Long.MAX_VALUE;
+        errorEntry.softTtl = Long.MAX_VALUE;
+        errorEntry.allResponseHeaders = Collections.emptyList();
+        ServerError error = new ServerError(new NetworkResponse(503, null, false, 0, null));
+        error.setCacheEntry(errorEntry);
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(error);
+
+        // Each request is sent with the entry the cache dispatcher found for it.
+        for (int i = 0; i < 2; i++) {
+            StringRequest request = new StringRequest(Request.Method.GET, "http://foo", null, null);
+            request.setErrorCacheTtlMs(60000);
+            request.setCacheEntry(CacheVariants.get(cache, request));
+            dispatcher.processRequest(request);
+            ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+            verify(mDelivery).postResponse(eq(request), response.capture());
+            assertEquals("stale", response.getValue().result);
+        }
+        verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
+        assertFalse(CachedErrors.isError(cache.get(mRequest.getCacheKey())));
+    }
+
+    @Test
+    public void staleEntryIsNotDeliveredForOtherErrorsOrOutsideWindow() throws Exception {
+        mRequest.setCacheEntry(staleEntry("max-age=60, stale-if-error=3600"));
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenThrow(new ClientError(new NetworkResponse(404, null, false, 0, null)));
+        mDispatcher.processRequest(mRequest);
+
+        StringRequest expired = new StringRequest(Request.Method.GET, "http://foo", null, null);
+        expired.setCacheEntry(staleEntry(null));
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(new TimeoutError());
+        mDispatcher.processRequest(expired);
+
+        // must-revalidate forbids using the entry beyond the client's maximum staleness.
+        StringRequest revalidated = new StringRequest(Request.Method.GET, "http://foo", null, null);
+        revalidated.setCacheEntry(staleEntry("must-revalidate"));
+        revalidated.setMaxStaleOnErrorMs(60000);
+        mDispatcher.processRequest(revalidated);
+
+        verify(mDelivery, never()).postResponse(any(Request.class), any(Response.class));
+        verify(mDelivery).postError(eq(mRequest), any(ClientError.class));
+        verify(mDelivery).postError(eq(expired), any(TimeoutError.class));
+        verify(mDelivery).postError(eq(revalidated), any(TimeoutError.class));
+    }
+
+    private static Cache.Entry staleEntry(String cacheControl) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes(StandardCharsets.UTF_8);
+        entry.ttl = System.currentTimeMillis() - 1000;
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        if (cacheControl != null) {
+            entry.allResponseHeaders.add(new Header("Cache-Control", cacheControl));
+        }
+        entry.responseHeaders = Collections.emptyMap();
+        return entry;
+    }
+
+    @Test
+    public void errorDiscardsPendingEntry() throws Exception {
+        StreamingPutCache cache = mock(StreamingPutCache.class);
+        StreamingPutCache.PendingEntry pendingEntry = mock(StreamingPutCache.PendingEntry.class);
+        when(cache.startPut(mRequest.getCacheKey())).thenReturn(pendingEntry);
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, cache, mDelivery);
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(new ServerError());
+
+        mDispatcher.processRequest(mRequest);
+
+        verify(pendingEntry).discard();
+        verify(pendingEntry, never()).commit(any(Cache.Entry.class));
+        assertNull(mRequest.getPendingCacheEntry());
+    }
 }
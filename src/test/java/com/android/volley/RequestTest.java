@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -27,6 +28,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 import com.android.volley.Request.Method;
 import com.android.volley.Request.Priority;
 import com.android.volley.toolbox.NoCache;
+import java.io.ByteArrayInputStream;
 import java.util.Collections;
 import java.util.Map;
 import org.junit.Before;
@@ -87,6 +89,44 @@ public class RequestTest {
         }
     }
 
+    @Test
+    public void parseCachedResponseReadsStreamByDefault() {
+        final byte[] data = {1, 2, 3};
+        Cache.Entry metadata = new Cache.Entry();
+        metadata.responseHeaders = Collections.singletonMap("Name", "Value");
+        Request<byte[]> request =
+                new Request<byte[]>(Method.GET, "http://example.com", null) {
+                    @Override
+                    protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                        assertEquals("Value", response.headers.get("Name"));
+                        return Response.success(response.data, null);
+                    }
+
+                    @Override
+                    protected void deliverResponse(byte[] response) {}
+                };
+
+        Response<byte[]> response =
+                request.parseCachedResponse(
+                        new StreamingCache.StreamEntry(
+                                metadata, new ByteArrayInputStream(data), data.length));
+
+        assertArrayEquals(data, response.result);
+        assertFalse(request.shouldStreamCachedResponse());
+    }
+
+    @Test
+    public void parseCachedResponseFailsOnTruncatedStream() {
+        Request<Object> request = new UrlParseRequest("http://example.com");
+
+        Response<Object> response =
+                request.parseCachedResponse(
+                        new StreamingCache.StreamEntry(
+                                new Cache.Entry(), new ByteArrayInputStream(new byte[2]), 3));
+
+        assertTrue(response.error instanceof ParseError);
+    }
+
     @Test
     public void urlParsing() {
         UrlParseRequest nullUrl = new UrlParseRequest(null);
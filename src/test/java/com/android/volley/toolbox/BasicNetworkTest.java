@@ -17,8 +17,12 @@
 package com.android.volley.toolbox;
 
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
@@ -28,6 +32,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache.Entry;
+import com.android.volley.ClientError;
 import com.android.volley.Header;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
@@ -35,10 +40,12 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
+import com.android.volley.StreamingPutCache;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.mock.MockHttpStack;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -91,6 +98,51 @@ public class BasicNetworkTest {
                 new String(mockHttpStack.getLastPostBody(), StandardCharsets.UTF_8));
     }
 
+    @Test
+    public void successfulResponseIsWrittenToPendingCacheEntry() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        byte[] body = "foobar".getBytes(StandardCharsets.UTF_8);
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        Collections.<Header>emptyList(),
+                        body.length,
+                        new ByteArrayInputStream(body)));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        RecordingPendingEntry pendingEntry = new RecordingPendingEntry();
+        request.setPendingCacheEntry(pendingEntry);
+
+        httpNetwork.performRequest(request);
+
+        assertArrayEquals(body, pendingEntry.written.toByteArray());
+    }
+
+    @Test
+    public void errorResponseIsNotWrittenToPendingCacheEntry() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        byte[] body = "error".getBytes(StandardCharsets.UTF_8);
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(
+                        404,
+                        Collections.<Header>emptyList(),
+                        body.length,
+                        new ByteArrayInputStream(body)));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        RecordingPendingEntry pendingEntry = new RecordingPendingEntry();
+        request.setPendingCacheEntry(pendingEntry);
+
+        try {
+            httpNetwork.performRequest(request);
+        } catch (VolleyError e) {
+            // expected
+        }
+
+        assertEquals(0, pendingEntry.written.size());
+    }
+
     @Test
     public void notModified() throws Exception {
         MockHttpStack mockHttpStack = new MockHttpStack();
@@ -287,6 +339,37 @@ public class BasicNetworkTest {
         }
     }
 
+    @Test
+    public void clientErrorCarriesCacheEntryWhenRequestCachesErrors() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        byte[] body = "missing".getBytes(StandardCharsets.UTF_8);
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(
+                        404,
+                        Collections.<Header>emptyList(),
+                        body.length,
+                        new ByteArrayInputStream(body)));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        request.setErrorCacheTtlMs(60000);
+
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (ClientError e) {
+            assertNotNull(e.getCacheEntry());
+            assertArrayEquals(body, e.getCacheEntry().data);
+        }
+
+        request.setErrorCacheTtlMs(0);
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (ClientError e) {
+            assertNull(e.getCacheEntry());
+        }
+    }
+
     @Test
     public void otherClientError() throws Exception {
         for (int i = 400; i <= 499; i++) {
@@ -355,6 +438,24 @@ public class BasicNetworkTest {
         }
     }
 
+    /** Pending entry which records the bytes written to it. */
+    private static class RecordingPendingEntry implements StreamingPutCache.PendingEntry {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+            written.write(buffer, offset, count);
+        }
+
+        @Override
+        public boolean commit(Entry entry) {
+            return false;
+        }
+
+        @Override
+        public void discard() {}
+    }
+
     private static Request<String> buildRequest() {
         return new Request<String>(Request.Method.GET, "http://foo", null) {
 
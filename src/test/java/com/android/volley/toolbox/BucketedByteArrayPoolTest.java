@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class BucketedByteArrayPoolTest {
+    @Test
+    public void reusesBuffer() {
+        BucketedByteArrayPool pool = new BucketedByteArrayPool(64);
+
+        byte[] buf1 = pool.getBuf(16);
+        byte[] buf2 = pool.getBuf(16);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+
+        byte[] buf3 = pool.getBuf(16);
+        byte[] buf4 = pool.getBuf(16);
+        assertTrue(buf3 == buf1 || buf3 == buf2);
+        assertTrue(buf4 == buf1 || buf4 == buf2);
+        assertTrue(buf3 != buf4);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void allocatesPowersOfTwo() {
+        BucketedByteArrayPool pool = new BucketedByteArrayPool(1024);
+
+        assertEquals(32, pool.getBuf(17).length);
+        assertEquals(32, pool.getBuf(32).length);
+        assertEquals(1, pool.getBuf(0).length);
+        // Buffers which couldn't be pooled are allocated with the requested size.
+        assertEquals(1500, pool.getBuf(1500).length);
+    }
+
+    @Test
+    public void returnsBufferFromSameOrNextSizeClass() {
+        BucketedByteArrayPool pool = new BucketedByteArrayPool(1024);
+
+        byte[] buf1 = pool.getBuf(32);
+        pool.returnBuf(buf1);
+
+        assertNotSame(buf1, pool.getBuf(33));
+        assertNotSame(buf1, pool.getBuf(8));
+        assertSame(buf1, pool.getBuf(16));
+
+        // Buffers allocated elsewhere are pooled in the class they can fully serve.
+        byte[] buf2 = new byte[24];
+        pool.returnBuf(buf2);
+        assertNotSame(buf2, pool.getBuf(32));
+        assertSame(buf2, pool.getBuf(9));
+    }
+
+    @Test
+    public void obeysSizeLimit() {
+        BucketedByteArrayPool pool = new BucketedByteArrayPool(40);
+
+        byte[] buf1 = pool.getBuf(16);
+        byte[] buf2 = pool.getBuf(16);
+        byte[] buf3 = pool.getBuf(16);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+        pool.returnBuf(buf3);
+        pool.returnBuf(new byte[64]);
+
+        assertEquals(32, pool.getPooledBytes());
+        byte[] buf4 = pool.getBuf(16);
+        byte[] buf5 = pool.getBuf(16);
+        byte[] buf6 = pool.getBuf(16);
+        assertTrue(buf4 == buf1 || buf4 == buf2);
+        assertTrue(buf5 == buf1 || buf5 == buf2);
+        assertTrue(buf6 != buf1 && buf6 != buf2 && buf6 != buf3);
+    }
+
+    @Test
+    public void concurrentCallersNeverShareBuffers() throws Exception {
+        final BucketedByteArrayPool pool = new BucketedByteArrayPool(4096);
+        final int threadCount = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final byte marker = (byte) (t + 1);
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            for (int i = 0; i < 20000; i++) {
+                                byte[] buf = pool.getBuf(1 + (i % 600));
+                                for (int j = 0; j < buf.length; j++) {
+                                    buf[j] = marker;
+                                }
+                                for (int j = 0; j < buf.length; j++) {
+                                    if (buf[j] != marker) {
+                                        failure.set("Buffer was handed out twice");
+                                    }
+                                }
+                                pool.returnBuf(buf);
+                                if (pool.getPooledBytes() > 4096) {
+                                    failure.set("Size limit exceeded");
+                                }
+                            }
+                        }
+                    };
+            threads[t].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(null, failure.get());
+        assertTrue(pool.getPooledBytes() <= 4096);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of {@link ByteArrayPool} and {@link BucketedByteArrayPool} when many
+ * threads get and return buffers concurrently, which is what network dispatchers reading responses
+ * do.
+ *
+ * <p>This isn't run as part of the tests. Run {@link #main} with the test classpath; each
+ * configuration is warmed up once before it is measured.
+ */
+public class ByteArrayPoolBenchmark {
+    private static final int POOL_SIZE = 64 * 1024;
+    private static final int OPERATIONS_PER_THREAD = 200000;
+    private static final int[] THREAD_COUNTS = {4, 8, 16};
+
+    private interface PoolFactory {
+        ByteArrayPool create();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        PoolFactory lru =
+                new PoolFactory() {
+                    @Override
+                    public ByteArrayPool create() {
+                        return new ByteArrayPool(POOL_SIZE);
+                    }
+                };
+        PoolFactory bucketed =
+                new PoolFactory() {
+                    @Override
+                    public ByteArrayPool create() {
+                        return new BucketedByteArrayPool(POOL_SIZE);
+                    }
+                };
+        for (int threadCount : THREAD_COUNTS) {
+            run(lru, threadCount);
+            run(bucketed, threadCount);
+            System.out.printf(
+                    "%2d threads: ByteArrayPool %6d ops/ms, BucketedByteArrayPool %6d ops/ms%n",
+                    threadCount, run(lru, threadCount), run(bucketed, threadCount));
+        }
+    }
+
+    /** Returns the number of operations per millisecond of all threads together. */
+    private static long run(PoolFactory factory, int threadCount) throws InterruptedException {
+        final ByteArrayPool pool = factory.create();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads[t] =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            // Sizes of the buffers used to read responses and to grow streams.
+                            int size = 256 << (seed % 4);
+                            byte[] held = null;
+                            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                                byte[] buf = pool.getBuf(size + (i & 127));
+                                buf[0]++;
+                                // Hold on to a buffer from time to time, like a growing stream.
+                                if ((i & 7) == 0) {
+                                    pool.returnBuf(held);
+                                    held = buf;
+                                } else {
+                                    pool.returnBuf(buf);
+                                }
+                            }
+                            pool.returnBuf(held);
+                        }
+                    };
+            threads[t].start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMs = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+        return 2L * OPERATIONS_PER_THREAD * threadCount / elapsedMs;
+    }
+}
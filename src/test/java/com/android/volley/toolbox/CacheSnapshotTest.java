@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.volley.Cache;
+import com.android.volley.Header;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CacheSnapshotTest {
+
+    private static final int MAX_SIZE = 64 * 1024;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DiskBasedCache mSource;
+    private File mTargetDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mSource = new DiskBasedCache(temporaryFolder.newFolder("source"), MAX_SIZE);
+        mSource.initialize();
+        mTargetDirectory = temporaryFolder.newFolder("target");
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        Cache.Entry entry1 = randomData(1000);
+        entry1.etag = "etag";
+        entry1.allResponseHeaders = new ArrayList<>();
+        entry1.allResponseHeaders.add(new Header("Content-Type", "application/json"));
+        entry1.retention = Cache.Retention.HIGH;
+        mSource.put("key1", entry1);
+        Cache.Entry entry2 = randomData(0);
+        mSource.put("key2", entry2);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        int written =
+                CacheSnapshot.write(mSource, Arrays.asList("key1", "missing", "key2"), snapshot);
+        DiskBasedCache target = newTarget();
+        target.initialize();
+        int imported = target.importSnapshot(new ByteArrayInputStream(snapshot.toByteArray()));
+
+        assertThat(written, is(2));
+        assertThat(imported, is(2));
+        Cache.Entry imported1 = target.get("key1");
+        assertThatEntriesAreEqual(imported1, entry1);
+        assertThat(imported1.allResponseHeaders, is(equalTo(entry1.allResponseHeaders)));
+        assertThat(imported1.retention, is(Cache.Retention.HIGH));
+        assertThatEntriesAreEqual(target.get("key2"), entry2);
+        assertThat(target.get("missing"), is(nullValue()));
+        // The entries are in the index of a cache initialized from the same directory.
+        DiskBasedCache copy = newTarget();
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key1"), entry1);
+    }
+
+    @Test
+    public void importIsJournaled() throws IOException {
+        mSource.put("key", randomData(1000));
+        byte[] snapshot = writeSnapshot("key");
+        DiskBasedCache target = newJournaledTarget();
+        target.initialize();
+
+        target.importSnapshot(new ByteArrayInputStream(snapshot));
+
+        DiskBasedCache copy = newJournaledTarget();
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), randomData(1000));
+    }
+
+    @Test
+    public void importKeepsExistingEntries() throws IOException {
+        mSource.put("key", randomData(1000));
+        mSource.put("other", randomData(1000));
+        byte[] snapshot = writeSnapshot("key", "other");
+        DiskBasedCache target = newTarget();
+        target.initialize();
+        Cache.Entry existing = randomData(10);
+        target.put("key", existing);
+
+        int imported = target.importSnapshot(new ByteArrayInputStream(snapshot));
+
+        assertThat(imported, is(1));
+        assertThatEntriesAreEqual(target.get("key"), existing);
+        assertThatEntriesAreEqual(target.get("other"), randomData(1000));
+    }
+
+    @Test
+    public void importSkipsEntriesWhichDontFit() throws IOException {
+        DiskBasedCache source =
+                new DiskBasedCache(temporaryFolder.newFolder("large"), 4 * MAX_SIZE);
+        source.initialize();
+        source.put("large1", randomData(MAX_SIZE / 2));
+        source.put("large2", randomData(MAX_SIZE / 2));
+        source.put("small", randomData(100));
+        byte[] snapshot = writeSnapshot(source, "large1", "large2", "small");
+        DiskBasedCache target = newTarget();
+        target.initialize();
+
+        int imported = target.importSnapshot(new ByteArrayInputStream(snapshot));
+
+        assertThat(imported, is(2));
+        assertThat(target.get("large1"), is(notNullValue()));
+        assertThat(target.get("large2"), is(nullValue()));
+        assertThat(target.get("small"), is(notNullValue()));
+    }
+
+    @Test
+    public void truncatedSnapshotImportsNothing() throws IOException {
+        mSource.put("key1", randomData(1000));
+        mSource.put("key2", randomData(1000));
+        byte[] snapshot = writeSnapshot("key1", "key2");
+        DiskBasedCache target = newTarget();
+        target.initialize();
+
+        try {
+            target.importSnapshot(
+                    new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length - 100)));
+            fail("Truncated snapshot should not be imported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertThat(target.get("key1"), is(nullValue()));
+        assertThat(mTargetDirectory.listFiles(), is(arrayWithSize(0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void importRejectsOtherFiles() throws IOException {
+        DiskBasedCache target = newTarget();
+        target.initialize();
+
+        target.importSnapshot(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6}));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void importRequiresInitializedCache() throws IOException {
+        newTarget().importSnapshot(new ByteArrayInputStream(writeSnapshot()));
+    }
+
+    @Test
+    public void readPutsEntriesIntoOtherCaches() throws IOException {
+        mSource.put("key", randomData(1000));
+        byte[] snapshot = writeSnapshot("key");
+        DiskBasedCache backingCache = newTarget();
+        backingCache.initialize();
+        TieredCache target = new TieredCache(backingCache, MAX_SIZE);
+
+        int imported = CacheSnapshot.read(new ByteArrayInputStream(snapshot), target);
+
+        assertThat(imported, is(1));
+        assertThatEntriesAreEqual(target.get("key"), randomData(1000));
+    }
+
+    private byte[] writeSnapshot(String... keys) throws IOException {
+        return writeSnapshot(mSource, keys);
+    }
+
+    private static byte[] writeSnapshot(Cache cache, String... keys) throws IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        CacheSnapshot.write(cache, Arrays.asList(keys), snapshot);
+        return snapshot.toByteArray();
+    }
+
+    private DiskBasedCache newTarget() {
+        return new DiskBasedCache(mTargetDirectory, MAX_SIZE);
+    }
+
+    private DiskBasedCache newJournaledTarget() {
+        return new DiskBasedCache.Builder(mTargetDirectory)
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setJournalEnabled(true)
+                .build();
+    }
+
+    private static void assertThatEntriesAreEqual(Cache.Entry actual, Cache.Entry expected) {
+        assertThat(actual.data, is(equalTo(expected.data)));
+        assertThat(actual.etag, is(equalTo(expected.etag)));
+        assertThat(actual.lastModified, is(equalTo(expected.lastModified)));
+        assertThat(actual.serverDate, is(equalTo(expected.serverDate)));
+        assertThat(actual.softTtl, is(equalTo(expected.softTtl)));
+        assertThat(actual.ttl, is(equalTo(expected.ttl)));
+    }
+
+    private static Cache.Entry randomData(int length) {
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data); // explicit seed for reproducible results
+        entry.data = data;
+        entry.ttl = TimeUnit.DAYS.toMillis(1);
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+}
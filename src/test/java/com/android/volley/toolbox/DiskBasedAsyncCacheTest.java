@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.Nullable;
+import com.android.volley.AsyncCache;
+import com.android.volley.Cache;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 16)
+public class DiskBasedAsyncCacheTest {
+
+    private static final int MAX_SIZE = 1024 * 1024;
+
+    private DiskBasedAsyncCache cache;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws InterruptedException {
+        cache = newCache(MAX_SIZE);
+        initialize(cache);
+    }
+
+    @Test
+    public void testEmptyInitialize() throws InterruptedException {
+        assertThat(get(cache, "key"), is(nullValue()));
+    }
+
+    @Test
+    public void testPutGetZeroBytes() throws InterruptedException {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[0];
+        entry.serverDate = 1234567L;
+        entry.lastModified = 13572468L;
+        entry.ttl = 9876543L;
+        entry.softTtl = 8765432L;
+        entry.etag = "etag";
+        entry.responseHeaders = new HashMap<>();
+        entry.responseHeaders.put("fruit", "banana");
+        entry.responseHeaders.put("color", "yellow");
+        put(cache, "my-magical-key", entry);
+
+        assertThatEntriesAreEqual(get(cache, "my-magical-key"), entry);
+        assertThat(get(cache, "unknown-key"), is(nullValue()));
+    }
+
+    @Test
+    public void testPutGetLarge() throws InterruptedException {
+        Cache.Entry entry = randomData(512 * 1024);
+        put(cache, "large", entry);
+
+        assertThatEntriesAreEqual(get(cache, "large"), entry);
+        // No temporary files are left behind.
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testPutRemoveGet() throws InterruptedException {
+        put(cache, "key", randomData(511));
+        remove(cache, "key");
+
+        assertThat(get(cache, "key"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testPutClearGet() throws InterruptedException {
+        put(cache, "key", randomData(511));
+        put(cache, "key2", randomData(511));
+        final CountDownLatch latch = new CountDownLatch(1);
+        cache.clear(countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertThat(get(cache, "key"), is(nullValue()));
+        assertThat(get(cache, "key2"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testInvalidate() throws InterruptedException {
+        Cache.Entry entry = randomData(32);
+        entry.softTtl = 8765432L;
+        entry.ttl = 9876543L;
+        put(cache, "key", entry);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        cache.invalidate("key", /* fullExpire= */ false, countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        Cache.Entry invalidated = get(cache, "key");
+        assertThat(invalidated.softTtl, is(0L));
+        assertThat(invalidated.ttl, is(9876543L));
+    }
+
+    @Test
+    public void testTooLargeEntry() throws InterruptedException {
+        Cache.Entry entry = randomData(MAX_SIZE);
+        put(cache, "oversize", entry);
+
+        assertThat(get(cache, "oversize"), is(nullValue()));
+    }
+
+    @Test
+    public void testTrimAtThreshold() throws InterruptedException {
+        DiskBasedAsyncCache small = newCache(4096);
+        initialize(small);
+        for (int i = 0; i < 8; i++) {
+            put(small, "key" + i, randomData(1000));
+        }
+
+        assertThat(get(small, "key0"), is(nullValue()));
+        assertNotNull(get(small, "key7"));
+    }
+
+    @Test
+    public void testReadsEntriesWrittenByDiskBasedCache() throws InterruptedException {
+        DiskBasedCache syncCache = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        syncCache.initialize();
+        Cache.Entry entry = randomData(1023);
+        entry.etag = "etag";
+        syncCache.put("key", entry);
+
+        DiskBasedAsyncCache copy = newCache(MAX_SIZE);
+        initialize(copy);
+
+        assertThatEntriesAreEqual(get(copy, "key"), entry);
+    }
+
+    @Test
+    public void testEntriesReadableByDiskBasedCache() throws InterruptedException {
+        Cache.Entry entry = randomData(1023);
+        entry.etag = "etag";
+        put(cache, "key", entry);
+
+        DiskBasedCache syncCache = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        syncCache.initialize();
+
+        assertThatEntriesAreEqual(syncCache.get("key"), entry);
+    }
+
+    @Test
+    public void testReadsShardedEntriesWrittenByDiskBasedCache() throws InterruptedException {
+        DiskBasedCache syncCache =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setShardedLayoutEnabled(true)
+                        .build();
+        syncCache.initialize();
+        Cache.Entry entry = randomData(1023);
+        syncCache.put("key", entry);
+
+        DiskBasedAsyncCache sharded = newShardedCache();
+        initialize(sharded);
+
+        assertThatEntriesAreEqual(get(sharded, "key"), entry);
+        assertThat(sharded.getFileForKey("key"), is(equalTo(syncCache.getFileForKey("key"))));
+    }
+
+    @Test
+    public void testSwitchingFromShardedLayoutKeepsEntries() throws InterruptedException {
+        DiskBasedCache syncCache =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setShardedLayoutEnabled(true)
+                        .build();
+        syncCache.initialize();
+        Cache.Entry entry = randomData(1023);
+        syncCache.put("key", entry);
+
+        // The default cache uses the flat layout, so the file is moved out of its subdirectory.
+        DiskBasedAsyncCache flat = newCache(MAX_SIZE);
+        initialize(flat);
+
+        assertThatEntriesAreEqual(get(flat, "key"), entry);
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+        assertThat(listCachedFiles()[0].isFile(), is(true));
+    }
+
+    @Test
+    public void testShardedEntriesReadableByDiskBasedCache() throws InterruptedException {
+        DiskBasedAsyncCache sharded = newShardedCache();
+        initialize(sharded);
+        Cache.Entry entry = randomData(1023);
+        put(sharded, "key", entry);
+        assertThat(
+                sharded.getFileForKey("key").getParentFile(), is(not(temporaryFolder.getRoot())));
+
+        DiskBasedCache syncCache =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setShardedLayoutEnabled(true)
+                        .build();
+        syncCache.initialize();
+
+        assertThatEntriesAreEqual(syncCache.get("key"), entry);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        sharded.clear(countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testChecksumDetectsCorruptData() throws IOException, InterruptedException {
+        DiskBasedCache syncCache =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setChecksumsEnabled(true)
+                        .build();
+        syncCache.initialize();
+        Cache.Entry entry = randomData(1023);
+        syncCache.put("key", entry);
+        syncCache.put("corrupt", entry);
+        File file = syncCache.getFileForKey("corrupt");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        DiskBasedAsyncCache copy = newCache(MAX_SIZE);
+        initialize(copy);
+
+        assertThatEntriesAreEqual(get(copy, "key"), entry);
+        assertThat(get(copy, "corrupt"), is(nullValue()));
+        assertThat(file.exists(), is(false));
+    }
+
+    @Test
+    public void testGetMissingFile() throws InterruptedException {
+        put(cache, "key", randomData(1023));
+        assertTrue(cache.getFileForKey("key").delete());
+
+        assertThat(get(cache, "key"), is(nullValue()));
+    }
+
+    @Test
+    public void testGetWrongKey() throws IOException, InterruptedException {
+        Cache.Entry entry = randomData(1023);
+        put(cache, "key", entry);
+
+        FileOutputStream fos = new FileOutputStream(cache.getFileForKey("key"));
+        try {
+            // Overwrite with a different key
+            new DiskBasedCache.CacheHeader("bad", entry).writeHeader(fos);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        assertThat(get(cache, "key"), is(nullValue()));
+    }
+
+    @Test
+    public void testIncompleteWriteDeletedOnInitialize() throws IOException, InterruptedException {
+        File tempFile = new File(temporaryFolder.getRoot(), "123.1.tmp");
+        assertTrue(tempFile.createNewFile());
+
+        initialize(newCache(MAX_SIZE));
+
+        assertThat(tempFile.exists(), is(false));
+    }
+
+    @Test
+    public void testUpdateMetadataInPlace() throws InterruptedException {
+        Cache.Entry entry = randomData(1023);
+        entry.ttl = 1000L;
+        put(cache, "key", entry);
+
+        Cache.Entry updated = randomData(1023);
+        updated.ttl = 2000L;
+        updated.softTtl = 1500L;
+        CountDownLatch latch = new CountDownLatch(1);
+        cache.updateMetadata("key", updated, countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertThatEntriesAreEqual(get(cache, "key"), updated);
+        DiskBasedCache syncCache = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        syncCache.initialize();
+        assertThatEntriesAreEqual(syncCache.get("key"), updated);
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testUpdateMetadataOfMissingEntry() throws InterruptedException {
+        Cache.Entry entry = randomData(1023);
+        CountDownLatch latch = new CountDownLatch(1);
+        cache.updateMetadata("key", entry, countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertThatEntriesAreEqual(get(cache, "key"), entry);
+    }
+
+    /* Test helpers */
+
+    private DiskBasedAsyncCache newCache(int maxSize) {
+        return new DiskBasedAsyncCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(maxSize)
+                .build();
+    }
+
+    private DiskBasedAsyncCache newShardedCache() {
+        return new DiskBasedAsyncCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setShardedLayoutEnabled(true)
+                .build();
+    }
+
+    private static void initialize(AsyncCache cache) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        cache.initialize(countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void put(AsyncCache cache, String key, Cache.Entry entry)
+            throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        cache.put(key, entry, countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void remove(AsyncCache cache, String key) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        cache.remove(key, countDown(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Nullable
+    private static Cache.Entry get(AsyncCache cache, String key) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Cache.Entry> result = new AtomicReference<>();
+        cache.get(
+                key,
+                new AsyncCache.OnGetCompleteCallback() {
+                    @Override
+                    public void onGetComplete(@Nullable Cache.Entry entry) {
+                        result.set(entry);
+                        latch.countDown();
+                    }
+                });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static AsyncCache.OnWriteCompleteCallback countDown(final CountDownLatch latch) {
+        return new AsyncCache.OnWriteCompleteCallback() {
+            @Override
+            public void onWriteComplete() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private void assertThatEntriesAreEqual(Cache.Entry actual, Cache.Entry expected) {
+        assertThat(actual.data, is(equalTo(expected.data)));
+        assertThat(actual.etag, is(equalTo(expected.etag)));
+        assertThat(actual.lastModified, is(equalTo(expected.lastModified)));
+        assertThat(actual.responseHeaders, is(equalTo(expected.responseHeaders)));
+        assertThat(actual.serverDate, is(equalTo(expected.serverDate)));
+        assertThat(actual.softTtl, is(equalTo(expected.softTtl)));
+        assertThat(actual.ttl, is(equalTo(expected.ttl)));
+    }
+
+    private Cache.Entry randomData(int length) {
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data); // explicit seed for reproducible results
+        entry.data = data;
+        return entry;
+    }
+
+    private File[] listCachedFiles() {
+        return temporaryFolder.getRoot().listFiles();
+    }
+}
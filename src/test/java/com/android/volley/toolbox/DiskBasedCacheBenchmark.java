@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+
+import com.android.volley.Cache;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Measures how {@link DiskBasedCache} copes with slow storage, which is simulated by delaying every
+ * file read: concurrent reads with and without {@link
+ * DiskBasedCache.Builder#setConcurrentFileAccessEnabled}, and initialization with one and with
+ * several {@link DiskBasedCache.Builder#setInitializationThreadCount threads}.
+ *
+ * <p>This isn't run as part of the tests. Run {@link #main} with the test classpath, either on a
+ * device or with JVM implementations of the Android classes the cache logs with.
+ */
+public class DiskBasedCacheBenchmark {
+    private static final int MAX_SIZE = 1024 * 1024;
+    private static final int READ_THREAD_COUNT = 8;
+    private static final int READS_PER_THREAD = 20;
+    private static final int[] FILE_COUNTS = {50, 200};
+    private static final int INITIALIZATION_THREAD_COUNT = 8;
+
+    private static final Random RANDOM = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        File root = createTempDirectory();
+        try {
+            System.out.printf(
+                    "%d threads reading: %d ms blocking, %d ms with concurrent file access%n",
+                    READ_THREAD_COUNT,
+                    measureReadMillis(newConcurrentCache(root, false)),
+                    measureReadMillis(newConcurrentCache(root, true)));
+
+            for (int fileCount : FILE_COUNTS) {
+                DiskBasedCache cache = newParallelCache(root, 1);
+                cache.initialize();
+                cache.clear();
+                for (int i = 0; i < fileCount; i++) {
+                    cache.put("key" + i, randomData(1023));
+                }
+                System.out.printf(
+                        "Initialization of %d files: %d ms serially, %d ms with %d threads%n",
+                        fileCount,
+                        measureInitializationMillis(newParallelCache(root, 1)),
+                        measureInitializationMillis(
+                                newParallelCache(root, INITIALIZATION_THREAD_COUNT)),
+                        INITIALIZATION_THREAD_COUNT);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static long measureReadMillis(DiskBasedCache cacheUnderTest) throws Exception {
+        final DiskBasedCache slowCache = slowReads(cacheUnderTest, 5);
+        slowCache.initialize();
+        slowCache.clear();
+        for (int i = 0; i < READ_THREAD_COUNT; i++) {
+            slowCache.put("key" + i, randomData(4096));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(READ_THREAD_COUNT);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < READ_THREAD_COUNT; i++) {
+                final String key = "key" + i;
+                results.add(
+                        executor.submit(
+                                new Callable<Void>() {
+                                    @Override
+                                    public Void call() {
+                                        for (int j = 0; j < READS_PER_THREAD; j++) {
+                                            if (slowCache.get(key) == null) {
+                                                throw new IllegalStateException(key);
+                                            }
+                                            slowCache.put(key, randomData(4096));
+                                        }
+                                        return null;
+                                    }
+                                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long measureInitializationMillis(DiskBasedCache cacheUnderTest) {
+        DiskBasedCache slowCache = slowReads(cacheUnderTest, 2);
+        long start = System.nanoTime();
+        slowCache.initialize();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /** Returns a spy of the given cache which sleeps before opening each file for reading. */
+    private static DiskBasedCache slowReads(DiskBasedCache cache, final long delayMillis) {
+        DiskBasedCache slowCache = spy(cache);
+        try {
+            doAnswer(
+                            new Answer<InputStream>() {
+                                @Override
+                                public InputStream answer(InvocationOnMock invocation)
+                                        throws Throwable {
+                                    Thread.sleep(delayMillis);
+                                    return (InputStream) invocation.callRealMethod();
+                                }
+                            })
+                    .when(slowCache)
+                    .createInputStream(any(File.class));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return slowCache;
+    }
+
+    private static DiskBasedCache newConcurrentCache(File root, boolean concurrent) {
+        return new DiskBasedCache.Builder(root)
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setConcurrentFileAccessEnabled(concurrent)
+                .build();
+    }
+
+    private static DiskBasedCache newParallelCache(File root, int threadCount) {
+        return new DiskBasedCache.Builder(root)
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setInitializationThreadCount(threadCount)
+                .build();
+    }
+
+    private static Cache.Entry randomData(int length) {
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[length];
+        RANDOM.nextBytes(data);
+        entry.data = data;
+        return entry;
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File root = File.createTempFile("volley-benchmark", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Unable to create " + root);
+        }
+        return root;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
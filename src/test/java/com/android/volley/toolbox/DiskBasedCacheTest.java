@@ -19,35 +19,62 @@ package com.android.volley.toolbox;
 import static org.hamcrest.Matchers.arrayWithSize;
 import static org.hamcrest.Matchers.emptyArray;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
+import com.android.volley.BulkInvalidatableCache;
 import com.android.volley.Cache;
+import com.android.volley.CacheStats;
 import com.android.volley.Header;
+import com.android.volley.StreamingCache;
+import com.android.volley.StreamingPutCache;
 import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
 import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -55,6 +82,8 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
@@ -165,6 +194,188 @@ public class DiskBasedCacheTest {
         assertThatEntriesAreEqual(cache.get("key"), entry);
     }
 
+    @Test
+    public void testInvalidateOnlyOverwritesHeaderFlags() throws IOException {
+        Cache.Entry entry = randomData(1023);
+        cache.put("key", entry);
+        long length = ((DiskBasedCache) cache).getFileForKey("key").length();
+        DiskBasedCache spiedCache = spy((DiskBasedCache) cache);
+
+        spiedCache.invalidate("key", true);
+
+        verify(spiedCache, never()).createOutputStream(any(File.class));
+        assertThat(((DiskBasedCache) cache).getFileForKey("key").length(), is(length));
+        assertThat(spiedCache.getStats().getBytesWritten(), is(length + 1));
+        entry.softTtl = 0;
+        entry.ttl = 0;
+        assertThatEntriesAreEqual(spiedCache.get("key"), entry);
+        Cache copy = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+    }
+
+    @Test
+    public void testInvalidateMigratesLegacyEntry() throws IOException {
+        Cache.Entry entry = textData(1023, "text/plain");
+        writeLegacyEntry("key", entry);
+        cache.initialize();
+
+        cache.invalidate("key", false);
+
+        assertThat(readHeaderOnDisk("key").legacyFormat, is(false));
+        entry.softTtl = 0;
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testRevalidationClearsInvalidation() {
+        Cache.Entry entry = randomData(1023);
+        cache.put("key", entry);
+        cache.invalidate("key", true);
+
+        Cache.Entry updated = revalidated(entry, null);
+        ((DiskBasedCache) cache).updateMetadata("key", updated);
+
+        assertThatEntriesAreEqual(cache.get("key"), updated);
+    }
+
+    @Test
+    public void testInvalidatePrefix() {
+        Cache.Entry page1 = randomData(100);
+        cache.put("https://api/items?page=1", page1);
+        Cache.Entry page2 = randomData(100);
+        cache.put("https://api/items?page=2", page2);
+        Cache.Entry itemsV2 = randomData(100);
+        cache.put("https://api/itemsV2", itemsV2);
+        Cache.Entry other = randomData(100);
+        cache.put("https://api/other", other);
+
+        int invalidated =
+                ((BulkInvalidatableCache) cache)
+                        .invalidatePrefix("https://api/items?page=", /* fullExpire= */ true);
+
+        assertThat(invalidated, is(2));
+        page1.softTtl = page1.ttl = 0;
+        page2.softTtl = page2.ttl = 0;
+        assertThatEntriesAreEqual(cache.get("https://api/items?page=1"), page1);
+        assertThatEntriesAreEqual(cache.get("https://api/items?page=2"), page2);
+        assertThatEntriesAreEqual(cache.get("https://api/itemsV2"), itemsV2);
+        assertThatEntriesAreEqual(cache.get("https://api/other"), other);
+    }
+
+    @Test
+    public void testInvalidateMatching() {
+        Cache.Entry json = randomData(100);
+        cache.put("https://api/a.json", json);
+        Cache.Entry png = randomData(100);
+        cache.put("https://api/b.png", png);
+
+        int invalidated =
+                ((BulkInvalidatableCache) cache)
+                        .invalidateMatching(
+                                new BulkInvalidatableCache.KeyFilter() {
+                                    @Override
+                                    public boolean apply(String key) {
+                                        return key.endsWith(".json");
+                                    }
+                                },
+                                /* fullExpire= */ false);
+
+        assertThat(invalidated, is(1));
+        json.softTtl = 0;
+        assertThatEntriesAreEqual(cache.get("https://api/a.json"), json);
+        assertThatEntriesAreEqual(cache.get("https://api/b.png"), png);
+    }
+
+    @Test
+    public void testInvalidatePrefixSkipsRemovedEntries() {
+        DiskBasedCache diskBasedCache = (DiskBasedCache) cache;
+        diskBasedCache.put("key1", randomData(100));
+        diskBasedCache.put("key2", randomData(100));
+        diskBasedCache.put("key3", randomData(100));
+        diskBasedCache.remove("key2");
+        diskBasedCache.clear();
+        diskBasedCache.put("key4", randomData(100));
+
+        assertThat(diskBasedCache.invalidatePrefix("key", /* fullExpire= */ false), is(1));
+        // Entries evicted to make room are gone from the index too.
+        diskBasedCache.put("key5", randomData(MAX_SIZE / 2));
+        diskBasedCache.put("key6", randomData(MAX_SIZE / 2));
+        assertThat(diskBasedCache.invalidatePrefix("key", /* fullExpire= */ false), is(1));
+    }
+
+    @Test
+    public void testInvalidatePrefixIsJournaled() {
+        DiskBasedCache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry = randomData(100);
+        journaled.put("prefix/key", entry);
+
+        journaled.invalidatePrefix("prefix/", /* fullExpire= */ true);
+
+        DiskBasedCache copy = newJournaledCache();
+        copy.initialize();
+        entry.softTtl = 0;
+        entry.ttl = 0;
+        assertThatEntriesAreEqual(copy.get("prefix/key"), entry);
+        assertThat(copy.invalidatePrefix("prefix/", /* fullExpire= */ true), is(1));
+    }
+
+    @Test
+    public void testPruneRemovesInvalidatedEntriesFirst() {
+        Cache.Entry entry1 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry1") - 1);
+        cache.put("entry1", entry1);
+        cache.put("invalid", randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("invalid") - 1));
+        Cache.Entry entry3 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry3") - 1);
+        cache.put("entry3", entry3);
+        cache.invalidate("invalid", /* fullExpire= */ true);
+
+        cache.put("entry4", randomData(MAX_SIZE / 10 - getEntrySizeOnDisk("entry4") - 1));
+
+        assertThat(cache.get("invalid"), is(nullValue()));
+        assertThatEntriesAreEqual(cache.get("entry1"), entry1);
+        assertThatEntriesAreEqual(cache.get("entry3"), entry3);
+    }
+
+    @Test
+    public void testBulkInvalidationWaitsForParallelInitialization() throws Exception {
+        cache.put("key1", randomData(100));
+        cache.put("key2", randomData(100));
+        final DiskBasedCache parallel = spy(newParallelCache(2));
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        blockReadsOfKey(parallel, "key2", readStarted, releaseRead);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> initialization = executor.submit(initializeTask(parallel));
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+            Future<Integer> invalidation =
+                    executor.submit(
+                            new Callable<Integer>() {
+                                @Override
+                                public Integer call() {
+                                    return parallel.invalidatePrefix("key", true);
+                                }
+                            });
+
+            try {
+                invalidation.get(100, TimeUnit.MILLISECONDS);
+                fail("Invalidation should wait for the scan");
+            } catch (TimeoutException e) {
+                // expected
+            }
+
+            releaseRead.countDown();
+            initialization.get(5, TimeUnit.SECONDS);
+            assertThat(invalidation.get(5, TimeUnit.SECONDS), is(2));
+            assertThat(parallel.get("key1").ttl, is(0L));
+            assertThat(parallel.get("key2").ttl, is(0L));
+        } finally {
+            releaseRead.countDown();
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testTooLargeEntry() {
         Cache.Entry entry = randomData(MAX_SIZE - getEntrySizeOnDisk("oversize"));
@@ -583,6 +794,77 @@ public class DiskBasedCacheTest {
         assertEquals(DiskBasedCache.readHeaderList(cis), sameKeys);
     }
 
+    @Test
+    public void serializeVarLong() throws Exception {
+        long[] values = {0, 1, 127, 128, 16383, 16384, 1601546400000L, -1, Long.MIN_VALUE};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (long value : values) {
+            DiskBasedCache.writeVarLong(baos, value);
+        }
+        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+        int expectedLength = 0;
+        for (long value : values) {
+            assertEquals(DiskBasedCache.readVarLong(bais), value);
+            expectedLength += DiskBasedCache.varLongLength(value);
+        }
+        assertEquals(baos.size(), expectedLength);
+        assertEquals(DiskBasedCache.varLongLength(127), 1);
+        assertEquals(DiskBasedCache.varLongLength(128), 2);
+        assertEquals(DiskBasedCache.varLongLength(-1), 10);
+    }
+
+    @Test
+    public void testReadVarLongTooLong() throws IOException {
+        byte[] data = new byte[11];
+        Arrays.fill(data, (byte) 0x80);
+        exception.expect(IOException.class);
+        DiskBasedCache.readVarLong(new ByteArrayInputStream(data));
+    }
+
+    @Test
+    public void serializeCompactHeaders() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        List<Header> headers = new ArrayList<>();
+        headers.add(new Header("Content-Type", "application/json"));
+        headers.add(new Header("cache-control", "max-age=60"));
+        headers.add(new Header("CONTENT-LENGTH", "12"));
+        headers.add(new Header("X-Custom", "ファイカス"));
+        headers.add(new Header("", ""));
+        DiskBasedCache.writeCompactHeaderList(headers, baos);
+        DiskBasedCache.writeCompactHeaderList(null, baos);
+        CountingInputStream cis =
+                new CountingInputStream(new ByteArrayInputStream(baos.toByteArray()), baos.size());
+        List<Header> read = DiskBasedCache.readCompactHeaderList(cis);
+        assertEquals(read, headers);
+        // Names from the dictionary are written as a single byte.
+        assertEquals(
+                baos.size(),
+                1 + (1 + 17) + (1 + 11) + (1 + 15 + 3) + (1 + 9 + 16) + (1 + 1 + 1) + 1);
+        assertEquals(DiskBasedCache.readCompactHeaderList(cis), new ArrayList<Header>());
+    }
+
+    @Test
+    public void testReadCompactHeaderListWithGinormousSize() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DiskBasedCache.writeVarLong(baos, Integer.MAX_VALUE);
+        CountingInputStream cis =
+                new CountingInputStream(new ByteArrayInputStream(baos.toByteArray()), baos.size());
+        exception.expect(IOException.class);
+        DiskBasedCache.readCompactHeaderList(cis);
+    }
+
+    @Test
+    public void testReadCompactHeaderListWithUnknownNameReference() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DiskBasedCache.writeVarLong(baos, 1);
+        DiskBasedCache.writeVarLong(baos, 1000);
+        DiskBasedCache.writeVarString(baos, "value");
+        CountingInputStream cis =
+                new CountingInputStream(new ByteArrayInputStream(baos.toByteArray()), baos.size());
+        exception.expect(IOException.class);
+        DiskBasedCache.readCompactHeaderList(cis);
+    }
+
     @Test
     public void publicMethods() throws Exception {
         // Catch-all test to find API-breaking changes.
@@ -609,38 +891,1851 @@ public class DiskBasedCacheTest {
         assertThatEntriesAreEqual(cache.get("key2"), entry);
     }
 
-    /* Test helpers */
+    @Test
+    public void testJournalRestoresIndexWithoutReadingEntries() throws IOException {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry1 = randomData(511);
+        entry1.etag = "etag";
+        entry1.ttl = 9876543L;
+        entry1.softTtl = 8765432L;
+        entry1.responseHeaders = new HashMap<>();
+        entry1.responseHeaders.put("fruit", "banana");
+        journaled.put("key1", entry1);
+        Cache.Entry entry2 = randomData(1023);
+        journaled.put("key2", entry2);
+
+        DiskBasedCache copy = spy(newJournaledCache());
+        copy.initialize();
+        verify(copy, never()).createInputStream(any(File.class));
 
-    private void assertThatEntriesAreEqual(Cache.Entry actual, Cache.Entry expected) {
-        assertThat(actual.data, is(equalTo(expected.data)));
-        assertThat(actual.etag, is(equalTo(expected.etag)));
-        assertThat(actual.lastModified, is(equalTo(expected.lastModified)));
-        assertThat(actual.responseHeaders, is(equalTo(expected.responseHeaders)));
-        assertThat(actual.serverDate, is(equalTo(expected.serverDate)));
-        assertThat(actual.softTtl, is(equalTo(expected.softTtl)));
-        assertThat(actual.ttl, is(equalTo(expected.ttl)));
+        assertThatEntriesAreEqual(copy.get("key1"), entry1);
+        assertThatEntriesAreEqual(copy.get("key2"), entry2);
     }
 
-    private Cache.Entry randomData(int length) {
-        Cache.Entry entry = new Cache.Entry();
-        byte[] data = new byte[length];
-        new Random(42).nextBytes(data); // explicit seed for reproducible results
-        entry.data = data;
-        return entry;
+    @Test
+    public void testJournalRestoresLruOrder() {
+        DiskBasedCache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry1 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry1") - 1);
+        journaled.put("entry1", entry1);
+        Cache.Entry entry2 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry2") - 1);
+        journaled.put("entry2", entry2);
+        Cache.Entry entry3 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry3") - 1);
+        journaled.put("entry3", entry3);
+        // Make entry1 the most recently used entry.
+        assertThatEntriesAreEqual(journaled.get("entry1"), entry1);
+        // Access records are written out while the cache is idle.
+        journaled.sweep();
+
+        Cache copy = newJournaledCache();
+        copy.initialize();
+        Cache.Entry entry4 = randomData((MAX_SIZE - getEntrySizeOnDisk("entry4") - 1) / 2);
+        copy.put("entry4", entry4);
+
+        assertThat(copy.get("entry2"), is(nullValue()));
+        assertThat(copy.get("entry3"), is(nullValue()));
+        assertThatEntriesAreEqual(copy.get("entry1"), entry1);
+        assertThatEntriesAreEqual(copy.get("entry4"), entry4);
     }
 
-    private File[] listCachedFiles() {
-        return temporaryFolder.getRoot().listFiles();
+    @Test
+    public void testJournalBuffersAccessRecords() {
+        DiskBasedCache journaled = newJournaledCache();
+        journaled.initialize();
+        journaled.put("key1", randomData(128));
+        journaled.put("key2", randomData(128));
+        long length = getJournalFile().length();
+
+        journaled.get("key1");
+
+        assertThat(getJournalFile().length(), is(length));
+        // The access record is written along with the next record.
+        journaled.remove("key2");
+        assertThat(getJournalFile().length(), is(greaterThan(length)));
     }
 
-    private int getEntrySizeOnDisk(String key) {
-        // Header size is:
-        // 4 bytes for magic int
-        // 8 + len(key) bytes for key (long length)
-        // 8 bytes for etag (long length + 0 characters)
-        // 32 bytes for serverDate, lastModified, ttl, and softTtl longs
-        // 4 bytes for length of header list int
-        // == 56 + len(key) bytes total.
-        return 56 + key.length();
+    @Test
+    public void testJournalIndexesUnjournaledFiles() throws IOException {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        journaled.put("key", randomData(128));
+        // Simulate the process dying after writing an entry but before journaling it.
+        Cache.Entry unjournaled = randomData(256);
+        writeLegacyEntry("unjournaled", unjournaled);
+        File unreadable = new File(temporaryFolder.getRoot(), "unreadable");
+        assertTrue(unreadable.createNewFile());
+
+        Cache copy = newJournaledCache();
+        copy.initialize();
+
+        assertThatEntriesAreEqual(copy.get("unjournaled"), unjournaled);
+        assertThat(unreadable.exists(), is(false));
+        // The journal was rewritten to include the entry.
+        DiskBasedCache secondCopy = spy(newJournaledCache());
+        secondCopy.initialize();
+        verify(secondCopy, never()).createInputStream(any(File.class));
+        assertNotNull(secondCopy.get("unjournaled"));
+    }
+
+    @Test
+    public void testJournalRecordsRemovals() {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        journaled.put("key1", randomData(128));
+        journaled.put("key2", randomData(128));
+        journaled.remove("key1");
+
+        Cache copy = newJournaledCache();
+        copy.initialize();
+
+        assertThat(copy.get("key1"), is(nullValue()));
+        assertNotNull(copy.get("key2"));
+    }
+
+    @Test
+    public void testCorruptJournalFallsBackToScan() throws IOException {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry = randomData(1023);
+        journaled.put("key", entry);
+
+        FileOutputStream fos = new FileOutputStream(getJournalFile());
+        try {
+            DiskBasedCache.writeInt(fos, 0); // overwrite magic
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        DiskBasedCache copy = spy(newJournaledCache());
+        copy.initialize();
+        verify(copy, atLeastOnce()).createInputStream(any(File.class));
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+
+        // The scan should have rebuilt the journal.
+        DiskBasedCache secondCopy = spy(newJournaledCache());
+        secondCopy.initialize();
+        verify(secondCopy, never()).createInputStream(any(File.class));
+        assertThatEntriesAreEqual(secondCopy.get("key"), entry);
+    }
+
+    @Test
+    public void testTruncatedJournalKeepsCompleteRecords() throws IOException {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry = randomData(1023);
+        journaled.put("key", entry);
+        long lengthWithEntry = getJournalFile().length();
+        Cache.Entry entry2 = randomData(1023);
+        journaled.put("key2", entry2);
+
+        RandomAccessFile journal = new RandomAccessFile(getJournalFile(), "rw");
+        try {
+            // Simulate the process dying partway through appending the second record.
+            journal.setLength(lengthWithEntry + 3);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            journal.close();
+        }
+
+        DiskBasedCache copy = spy(newJournaledCache());
+        File file = copy.getFileForKey("key");
+        File file2 = copy.getFileForKey("key2");
+        copy.initialize();
+        // Only the file whose record was lost is read, to add it to the index.
+        verify(copy, never()).createInputStream(file);
+        verify(copy).createInputStream(file2);
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+        assertThatEntriesAreEqual(copy.get("key2"), entry2);
+    }
+
+    @Test
+    public void testJournalIsCompacted() {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry = randomData(16);
+        journaled.put("key", entry);
+        long initialLength = getJournalFile().length();
+
+        for (int i = 0; i < DiskBasedCacheJournal.COMPACTION_THRESHOLD * 2; i++) {
+            journaled.get("key");
+        }
+
+        assertThat(getJournalFile().length(), is(lessThan(initialLength * 2)));
+        Cache copy = newJournaledCache();
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+    }
+
+    @Test
+    public void testJournalClear() {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        journaled.put("key", randomData(16));
+        journaled.clear();
+        journaled.put("key2", randomData(16));
+
+        Cache copy = newJournaledCache();
+        copy.initialize();
+        assertThat(copy.get("key"), is(nullValue()));
+        assertNotNull(copy.get("key2"));
+    }
+
+    @Test
+    public void testStaleJournalDeletedWhenDisabled() {
+        Cache journaled = newJournaledCache();
+        journaled.initialize();
+        journaled.put("key", randomData(16));
+
+        Cache unjournaled = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        unjournaled.initialize();
+
+        assertThat(getJournalFile().exists(), is(false));
+        assertNotNull(unjournaled.get("key"));
+    }
+
+    @Test
+    public void testConcurrentFileAccess() {
+        Cache concurrent = newConcurrentCache(MAX_SIZE);
+        concurrent.initialize();
+        Cache.Entry entry = randomData(1023);
+        concurrent.put("key", entry);
+        concurrent.put("key", entry);
+        assertThatEntriesAreEqual(concurrent.get("key"), entry);
+        // No temporary files are left behind.
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+
+        concurrent.invalidate("key", true);
+        assertThat(concurrent.get("key").ttl, is(0L));
+        concurrent.remove("key");
+        assertThat(concurrent.get("key"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testIncompleteWriteDeletedOnInitialize() throws IOException {
+        cache.put("key", randomData(1023));
+        File tempFile = new File(temporaryFolder.getRoot(), "123.1.tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            new CacheHeader("partial", randomData(1)).writeHeader(fos);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        Cache copy = newConcurrentCache(MAX_SIZE);
+        copy.initialize();
+
+        assertThat(tempFile.exists(), is(false));
+        assertThat(copy.get("partial"), is(nullValue()));
+        assertNotNull(copy.get("key"));
+    }
+
+    @Test
+    public void testConcurrentFileAccessWriteFailure() throws IOException {
+        OutputStream mockedOutputStream = spy(OutputStream.class);
+        doThrow(IOException.class).when(mockedOutputStream).write(anyInt());
+        DiskBasedCache readonly = spy(newConcurrentCache(MAX_SIZE));
+        readonly.initialize();
+        doReturn(mockedOutputStream).when(readonly).createOutputStream(any(File.class));
+
+        readonly.put("key", randomData(1111));
+
+        assertThat(readonly.get("key"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testSlowReadBlocksOtherOperationsByDefault() throws Exception {
+        DiskBasedCache blocking = spy(new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE));
+        blocking.initialize();
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        blockReadsOfKey(blocking, "slow", readStarted, releaseRead);
+        blocking.put("slow", randomData(1023));
+        blocking.put("fast", randomData(1023));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Cache.Entry> slowGet = executor.submit(getTask(blocking, "slow"));
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+            Future<Cache.Entry> fastGet = executor.submit(getTask(blocking, "fast"));
+            try {
+                fastGet.get(200, TimeUnit.MILLISECONDS);
+                fail("Lookup completed while another entry was being read");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+            releaseRead.countDown();
+            assertNotNull(slowGet.get(5, TimeUnit.SECONDS));
+            assertNotNull(fastGet.get(5, TimeUnit.SECONDS));
+        } finally {
+            releaseRead.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSlowReadDoesNotBlockOtherOperationsWithConcurrentFileAccess() throws Exception {
+        DiskBasedCache concurrent = spy(newConcurrentCache(MAX_SIZE));
+        concurrent.initialize();
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        blockReadsOfKey(concurrent, "slow", readStarted, releaseRead);
+        Cache.Entry slowEntry = randomData(1023);
+        concurrent.put("slow", slowEntry);
+        concurrent.put("fast", randomData(1023));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Cache.Entry> slowGet = executor.submit(getTask(concurrent, "slow"));
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+
+            // While the slow read is in progress, other entries can be read and written, and the
+            // slow entry itself can be replaced.
+            assertNotNull(concurrent.get("fast"));
+            Cache.Entry other = randomData(511);
+            concurrent.put("other", other);
+            assertThatEntriesAreEqual(concurrent.get("other"), other);
+            Cache.Entry newSlowEntry = randomData(2047);
+            concurrent.put("slow", newSlowEntry);
+
+            releaseRead.countDown();
+            // The reader sees the complete version of the file it opened.
+            assertThatEntriesAreEqual(slowGet.get(5, TimeUnit.SECONDS), slowEntry);
+            // The replacement was not discarded by the completion of the older read.
+            assertThatEntriesAreEqual(concurrent.get("slow"), newSlowEntry);
+        } finally {
+            releaseRead.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentFileAccessStress() throws Exception {
+        // Small enough that the threads constantly prune each other's entries.
+        final Cache concurrent = newConcurrentCache(16 * 1024);
+        concurrent.initialize();
+        final int threadCount = 8;
+        final int operationCount = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                final int seed = i;
+                results.add(
+                        executor.submit(
+                                new Callable<Void>() {
+                                    @Override
+                                    public Void call() {
+                                        Random random = new Random(seed);
+                                        for (int j = 0; j < operationCount; j++) {
+                                            String key = "key" + random.nextInt(16);
+                                            if (random.nextBoolean()) {
+                                                concurrent.put(key, taggedEntry(random));
+                                            } else {
+                                                Cache.Entry entry = concurrent.get(key);
+                                                if (entry != null) {
+                                                    assertTaggedEntryIsComplete(entry);
+                                                }
+                                            }
+                                        }
+                                        return null;
+                                    }
+                                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Only complete entries remain once all writes have finished.
+        Cache copy = new DiskBasedCache(temporaryFolder.getRoot(), 16 * 1024);
+        copy.initialize();
+        for (int i = 0; i < 16; i++) {
+            Cache.Entry entry = copy.get("key" + i);
+            if (entry != null) {
+                assertTaggedEntryIsComplete(entry);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelInitialization() {
+        List<Cache.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(randomData(i));
+            cache.put("key" + i, entries.get(i));
+        }
+
+        DiskBasedCache parallel = newParallelCache(4);
+        parallel.initialize();
+
+        for (int i = 0; i < 100; i++) {
+            assertThatEntriesAreEqual(parallel.get("key" + i), entries.get(i));
+        }
+    }
+
+    @Test
+    public void testParallelInitializationDeletesUnreadableFilesAndMigratesLayout()
+            throws IOException {
+        Cache.Entry entry = randomData(511);
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, entry);
+        }
+        File garbage = new File(temporaryFolder.getRoot(), "garbage");
+        FileOutputStream fos = new FileOutputStream(garbage);
+        try {
+            DiskBasedCache.writeInt(fos, 0);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        DiskBasedCache parallel =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setShardedLayoutEnabled(true)
+                        .setInitializationThreadCount(4)
+                        .build();
+        parallel.initialize();
+
+        assertThat(garbage.exists(), is(false));
+        for (int i = 0; i < 20; i++) {
+            assertThatEntriesAreEqual(parallel.get("key" + i), entry);
+            assertThat(parallel.getFileForKey("key" + i).exists(), is(true));
+        }
+    }
+
+    @Test
+    public void testEntriesAreServedDuringParallelInitialization() throws Exception {
+        Cache.Entry entry = randomData(511);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, entry);
+        }
+        Cache.Entry slowEntry = randomData(1023);
+        cache.put("slow", slowEntry);
+        final DiskBasedCache parallel = spy(newParallelCache(2));
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        blockReadsOfKey(parallel, "slow", readStarted, releaseRead);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> initialization = executor.submit(initializeTask(parallel));
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+
+            // The other thread loads the remaining entries, which can be read right away.
+            for (int i = 0; i < 10; i++) {
+                assertThatEntriesAreEqual(awaitEntry(parallel, "key" + i), entry);
+            }
+            assertThat(initialization.isDone(), is(false));
+
+            releaseRead.countDown();
+            initialization.get(5, TimeUnit.SECONDS);
+            assertThatEntriesAreEqual(parallel.get("slow"), slowEntry);
+        } finally {
+            releaseRead.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWritesDuringParallelInitializationAreKept() throws Exception {
+        cache.put("slow", randomData(1023));
+        cache.put("removed", randomData(511));
+        cache.put("other", randomData(511));
+        final DiskBasedCache parallel = spy(newParallelCache(2));
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        blockReadsOfKey(parallel, "slow", readStarted, releaseRead);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> initialization = executor.submit(initializeTask(parallel));
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+            awaitEntry(parallel, "other");
+
+            // The file being read is overwritten in place, and another one is removed.
+            Cache.Entry replacement = randomData(2047);
+            parallel.put("slow", replacement);
+            parallel.remove("removed");
+            releaseRead.countDown();
+            initialization.get(5, TimeUnit.SECONDS);
+
+            assertThatEntriesAreEqual(parallel.get("slow"), replacement);
+            assertThat(parallel.get("removed"), is(nullValue()));
+            DiskBasedCache copy = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+            copy.initialize();
+            assertThatEntriesAreEqual(copy.get("slow"), replacement);
+            assertThat(copy.get("removed"), is(nullValue()));
+        } finally {
+            releaseRead.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEntriesAreServedDuringSerialInitialization() throws Exception {
+        Cache.Entry entry = randomData(511);
+        cache.put("key", entry);
+        cache.put("slow", randomData(1023));
+        final DiskBasedCache serial = spy(newParallelCache(1));
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        blockReadsOfKey(serial, "slow", readStarted, releaseRead);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> initialization = executor.submit(initializeTask(serial));
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+
+            // The scan holds the lock, so the entry is read from its file directly.
+            assertThatEntriesAreEqual(serial.get("key"), entry);
+            assertThat(serial.get("missing"), is(nullValue()));
+            assertThat(initialization.isDone(), is(false));
+
+            releaseRead.countDown();
+            initialization.get(5, TimeUnit.SECONDS);
+            assertThatEntriesAreEqual(serial.get("key"), entry);
+        } finally {
+            releaseRead.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEntriesAreServedBeforeInitialization() {
+        Cache.Entry entry = randomData(511);
+        cache.put("key", entry);
+
+        DiskBasedCache uninitialized = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+
+        assertThatEntriesAreEqual(uninitialized.get("key"), entry);
+        assertThat(uninitialized.get("missing"), is(nullValue()));
+        uninitialized.initialize();
+        assertThatEntriesAreEqual(uninitialized.get("key"), entry);
+    }
+
+    @Test
+    public void testParallelInitializationReadsFilesConcurrently() throws Exception {
+        Cache.Entry entry1 = randomData(511);
+        Cache.Entry entry2 = randomData(1023);
+        cache.put("key1", entry1);
+        cache.put("key2", entry2);
+        final DiskBasedCache parallel = spy(newParallelCache(2));
+        // Each read waits until both have started, which only happens if they overlap.
+        CountDownLatch readsStarted = new CountDownLatch(2);
+        CountDownLatch releaseReads = new CountDownLatch(1);
+        blockReadsOfKeys(parallel, readsStarted, releaseReads, "key1", "key2");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> initialization = executor.submit(initializeTask(parallel));
+
+            assertTrue(readsStarted.await(5, TimeUnit.SECONDS));
+            releaseReads.countDown();
+            initialization.get(5, TimeUnit.SECONDS);
+            assertThatEntriesAreEqual(parallel.get("key1"), entry1);
+            assertThatEntriesAreEqual(parallel.get("key2"), entry2);
+        } finally {
+            releaseReads.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUpdateMetadataInPlace() throws IOException {
+        Cache.Entry entry = randomData(1023);
+        entry.etag = "etag1";
+        // Dates of the same magnitude, so that their varints have the same length.
+        entry.serverDate = 1601546400000L;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Date", "Thu, 01 Oct 2020 10:00:00 GMT"));
+        cache.put("key", entry);
+        DiskBasedCache spiedCache = spy((DiskBasedCache) cache);
+
+        Cache.Entry updated = revalidated(entry, "Thu, 01 Oct 2020 11:00:00 GMT");
+        spiedCache.updateMetadata("key", updated);
+
+        // Only the header was written.
+        verify(spiedCache, never()).createOutputStream(any(File.class));
+        assertThatEntriesAreEqual(spiedCache.get("key"), updated);
+        Cache copy = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), updated);
+    }
+
+    @Test
+    public void testUpdateMetadataWithDifferentLayout() throws IOException {
+        Cache.Entry entry = randomData(1023);
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Date", "Thu, 01 Oct 2020 10:00:00 GMT"));
+        cache.put("key", entry);
+        DiskBasedCache spiedCache = spy((DiskBasedCache) cache);
+
+        Cache.Entry updated = revalidated(entry, "Thu, 01 Oct 2020 11:00:00 GMT; extra");
+        spiedCache.updateMetadata("key", updated);
+
+        // The entry had to be rewritten.
+        verify(spiedCache).createOutputStream(any(File.class));
+        assertThatEntriesAreEqual(spiedCache.get("key"), updated);
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testUpdateMetadataOfMissingEntry() {
+        Cache.Entry entry = randomData(1023);
+
+        ((DiskBasedCache) cache).updateMetadata("key", entry);
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testUpdateMetadataIsJournaled() {
+        DiskBasedCache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry = randomData(1023);
+        journaled.put("key", entry);
+
+        Cache.Entry updated = revalidated(entry, null);
+        journaled.updateMetadata("key", updated);
+
+        Cache copy = newJournaledCache();
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), updated);
+    }
+
+    @Test
+    public void testShardedLayout() {
+        Cache sharded = newShardedCache(false);
+        sharded.initialize();
+        Cache.Entry entry = randomData(1023);
+        sharded.put("key", entry);
+
+        assertThatEntriesAreEqual(sharded.get("key"), entry);
+        File[] shards = listCachedFiles();
+        assertThat(shards, is(arrayWithSize(1)));
+        assertThat(shards[0].isDirectory(), is(true));
+        File[] files = shards[0].listFiles();
+        assertThat(files, is(arrayWithSize(1)));
+        assertThat(files[0].getName(), is(DiskBasedCache.getShardedFilenameForKey("key")));
+        assertThat(files[0].getName().startsWith(shards[0].getName()), is(true));
+    }
+
+    @Test
+    public void testShardedFilenames() {
+        assertThat(
+                DiskBasedCache.getShardedFilenameForKey("key"),
+                is(equalTo("2c70e12b7a0646f92279f427c7b38e73")));
+        // These keys collide with the flat layout.
+        assertThat(
+                DiskBasedCache.getFilenameForKey("AaAa"),
+                is(equalTo(DiskBasedCache.getFilenameForKey("BBBB"))));
+        assertThat(
+                DiskBasedCache.getShardedFilenameForKey("AaAa"),
+                is(not(equalTo(DiskBasedCache.getShardedFilenameForKey("BBBB")))));
+    }
+
+    @Test
+    public void testShardedLayoutKeepsKeysWhichCollideInFlatLayout() {
+        Cache sharded = newShardedCache(false);
+        sharded.initialize();
+        Cache.Entry entry1 = randomData(511);
+        Cache.Entry entry2 = randomData(1023);
+
+        sharded.put("AaAa", entry1);
+        sharded.put("BBBB", entry2);
+
+        assertThatEntriesAreEqual(sharded.get("AaAa"), entry1);
+        assertThatEntriesAreEqual(sharded.get("BBBB"), entry2);
+    }
+
+    @Test
+    public void testMigrationToShardedLayout() {
+        Cache.Entry entry1 = randomData(511);
+        Cache.Entry entry2 = randomData(1023);
+        cache.put("key1", entry1);
+        cache.put("key2", entry2);
+
+        Cache sharded = newShardedCache(false);
+        sharded.initialize();
+
+        assertThatEntriesAreEqual(sharded.get("key1"), entry1);
+        assertThatEntriesAreEqual(sharded.get("key2"), entry2);
+        for (File file : listCachedFiles()) {
+            assertThat(file.isDirectory(), is(true));
+        }
+
+        // And back again.
+        Cache flat = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        flat.initialize();
+
+        assertThatEntriesAreEqual(flat.get("key1"), entry1);
+        assertThatEntriesAreEqual(flat.get("key2"), entry2);
+        assertThat(listCachedFiles(), is(arrayWithSize(2)));
+        for (File file : listCachedFiles()) {
+            assertThat(file.isDirectory(), is(false));
+        }
+    }
+
+    @Test
+    public void testMigrationToShardedLayoutWithJournal() {
+        DiskBasedCache journaled = newJournaledCache();
+        journaled.initialize();
+        Cache.Entry entry = randomData(1023);
+        journaled.put("key", entry);
+
+        // The journal of the flat layout is ignored, so the files are moved by a full scan.
+        Cache sharded = newShardedCache(true);
+        sharded.initialize();
+
+        assertThatEntriesAreEqual(sharded.get("key"), entry);
+        Cache copy = newShardedCache(true);
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+    }
+
+    @Test
+    public void testShardedLayoutClear() {
+        Cache sharded = newShardedCache(false);
+        sharded.initialize();
+        sharded.put("key1", randomData(511));
+        sharded.put("key2", randomData(511));
+
+        sharded.clear();
+
+        assertThat(sharded.get("key1"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testLruEvictionFlushesFrequentlyUsedEntriesDuringScan() {
+        DiskBasedCache lru = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        lru.initialize();
+
+        assertThat(countHotEntriesAfterScan(lru), is(0));
+    }
+
+    @Test
+    public void testTinyLfuEvictionKeepsFrequentlyUsedEntriesDuringScan() {
+        DiskBasedCache tinyLfu =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setEvictionPolicy(new TinyLfuEvictionPolicy())
+                        .build();
+        tinyLfu.initialize();
+
+        assertThat(countHotEntriesAfterScan(tinyLfu), is(10));
+    }
+
+    @Test
+    public void testPruneRemovesExpiredEntriesFirst() {
+        Cache.Entry entry1 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry1") - 1);
+        cache.put("entry1", entry1);
+        Cache.Entry expired = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("expired") - 1);
+        expired.ttl = System.currentTimeMillis() - 1;
+        cache.put("expired", expired);
+        Cache.Entry entry3 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry3") - 1);
+        cache.put("entry3", entry3);
+
+        // entry1 is the least recently used entry, but hasn't expired.
+        cache.get("expired");
+        Cache.Entry entry4 = randomData(MAX_SIZE / 10 - getEntrySizeOnDisk("entry4") - 1);
+        cache.put("entry4", entry4);
+
+        assertThat(cache.get("expired"), is(nullValue()));
+        assertThatEntriesAreEqual(cache.get("entry1"), entry1);
+        assertThatEntriesAreEqual(cache.get("entry3"), entry3);
+        assertThatEntriesAreEqual(cache.get("entry4"), entry4);
+        DiskBasedCache diskBasedCache = (DiskBasedCache) cache;
+        assertThat(diskBasedCache.getExpiredBytesReclaimed(), is((long) MAX_SIZE / 3 - 1));
+        assertThat(diskBasedCache.getEvictedBytesReclaimed(), is(0L));
+    }
+
+    @Test
+    public void testPruneEvictsFreshEntriesOnceExpiredEntriesAreGone() {
+        Cache.Entry entry1 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry1") - 1);
+        cache.put("entry1", entry1);
+        Cache.Entry expired = randomData(MAX_SIZE / 10 - getEntrySizeOnDisk("expired") - 1);
+        expired.ttl = System.currentTimeMillis() - 1;
+        cache.put("expired", expired);
+        Cache.Entry entry3 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry3") - 1);
+        cache.put("entry3", entry3);
+        Cache.Entry entry4 = randomData(MAX_SIZE / 3 - getEntrySizeOnDisk("entry4") - 1);
+        cache.put("entry4", entry4);
+
+        assertThat(cache.get("expired"), is(nullValue()));
+        assertThat(cache.get("entry1"), is(nullValue()));
+        assertThatEntriesAreEqual(cache.get("entry3"), entry3);
+        assertThatEntriesAreEqual(cache.get("entry4"), entry4);
+        DiskBasedCache diskBasedCache = (DiskBasedCache) cache;
+        assertThat(diskBasedCache.getExpiredBytesReclaimed(), is((long) MAX_SIZE / 10 - 1));
+        assertThat(diskBasedCache.getEvictedBytesReclaimed(), is((long) MAX_SIZE / 3 - 1));
+    }
+
+    @Test
+    public void testRetentionIsPersisted() {
+        Cache.Entry entry = randomData(511);
+        entry.retention = Cache.Retention.HIGH;
+        cache.put("key", entry);
+
+        assertThat(cache.get("key").retention, is(Cache.Retention.HIGH));
+        DiskBasedCache copy = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        copy.initialize();
+        assertThat(copy.get("key").retention, is(Cache.Retention.HIGH));
+    }
+
+    @Test
+    public void testPruneDrainsLowerRetentionClassesFirst() {
+        // The entries are put from the most to the least valuable, so LRU order alone would evict
+        // the pinned entry first.
+        putEntryOfRetention(cache, "pinned", Cache.Retention.PINNED, MAX_SIZE / 5);
+        putEntryOfRetention(cache, "high", Cache.Retention.HIGH, MAX_SIZE / 5);
+        putEntryOfRetention(cache, "normal", Cache.Retention.NORMAL, MAX_SIZE / 5);
+        putEntryOfRetention(cache, "low", Cache.Retention.LOW, MAX_SIZE / 5);
+
+        putEntryOfRetention(cache, "normal2", Cache.Retention.NORMAL, MAX_SIZE * 2 / 5);
+
+        assertThat(cache.get("low"), is(nullValue()));
+        assertThat(cache.get("normal"), is(nullValue()));
+        assertThat(cache.get("normal2"), is(notNullValue()));
+        assertThat(cache.get("high"), is(notNullValue()));
+        assertThat(cache.get("pinned"), is(notNullValue()));
+    }
+
+    @Test
+    public void testPinnedEntriesAreEvictedLast() {
+        putEntryOfRetention(cache, "pinned", Cache.Retention.PINNED, MAX_SIZE / 2);
+        putEntryOfRetention(cache, "high", Cache.Retention.HIGH, MAX_SIZE / 4);
+
+        putEntryOfRetention(cache, "pinned2", Cache.Retention.PINNED, MAX_SIZE / 2);
+
+        // Evicting every other entry doesn't make enough room, so the oldest pinned one goes too.
+        assertThat(cache.get("high"), is(nullValue()));
+        assertThat(cache.get("pinned"), is(nullValue()));
+        assertThat(cache.get("pinned2"), is(notNullValue()));
+    }
+
+    @Test
+    public void testExpiredPinnedEntriesAreKept() {
+        DiskBasedCache sweeping =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setSweepIntervalMillis(TimeUnit.HOURS.toMillis(1))
+                        .build();
+        sweeping.initialize();
+        Cache.Entry pinned = randomData(511);
+        pinned.retention = Cache.Retention.PINNED;
+        pinned.ttl = System.currentTimeMillis() - 1;
+        sweeping.put("pinned", pinned);
+        Cache.Entry expired = randomData(511);
+        expired.ttl = System.currentTimeMillis() - 1;
+        sweeping.put("expired", expired);
+
+        sweeping.sweep();
+
+        assertThat(sweeping.get("expired"), is(nullValue()));
+        assertThatEntriesAreEqual(sweeping.get("pinned"), pinned);
+    }
+
+    @Test
+    public void testRetentionQuotaEvictsOnlyItsClass() {
+        DiskBasedCache quotaCache =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setRetentionQuotaInBytes(Cache.Retention.LOW, MAX_SIZE / 4)
+                        .build();
+        quotaCache.initialize();
+        putEntryOfRetention(quotaCache, "normal", Cache.Retention.NORMAL, MAX_SIZE / 4);
+        putEntryOfRetention(quotaCache, "low1", Cache.Retention.LOW, MAX_SIZE / 10);
+        putEntryOfRetention(quotaCache, "low2", Cache.Retention.LOW, MAX_SIZE / 10);
+
+        putEntryOfRetention(quotaCache, "low3", Cache.Retention.LOW, MAX_SIZE / 10);
+
+        assertThat(quotaCache.get("low1"), is(nullValue()));
+        assertThat(quotaCache.get("low2"), is(notNullValue()));
+        assertThat(quotaCache.get("low3"), is(notNullValue()));
+        assertThat(quotaCache.get("normal"), is(notNullValue()));
+    }
+
+    @Test
+    public void testRetentionQuotaKeepsSegmentsOfOtherClasses() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+        DiskBasedCache quotaCache =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setRetentionQuotaInBytes(Cache.Retention.LOW, MAX_SIZE / 4)
+                        .setEvictionPolicy(policy)
+                        .build();
+        quotaCache.initialize();
+        putEntryOfRetention(quotaCache, "normal", Cache.Retention.NORMAL, MAX_SIZE / 4);
+        putEntryOfRetention(quotaCache, "low1", Cache.Retention.LOW, MAX_SIZE / 10);
+        putEntryOfRetention(quotaCache, "low2", Cache.Retention.LOW, MAX_SIZE / 10);
+        quotaCache.get("normal");
+        assertTrue(policy.isProtected("normal"));
+
+        putEntryOfRetention(quotaCache, "low3", Cache.Retention.LOW, MAX_SIZE / 10);
+
+        assertThat(quotaCache.get("low1"), is(nullValue()));
+        assertTrue(policy.isProtected("normal"));
+        assertThat(quotaCache.get("normal"), is(notNullValue()));
+    }
+
+    @Test
+    public void testRetentionIsRestoredFromJournal() {
+        DiskBasedCache journaled = newJournaledCache();
+        journaled.initialize();
+        putEntryOfRetention(journaled, "high", Cache.Retention.HIGH, MAX_SIZE / 2);
+
+        DiskBasedCache reloaded = newJournaledCache();
+        reloaded.initialize();
+        putEntryOfRetention(reloaded, "normal", Cache.Retention.NORMAL, MAX_SIZE / 4);
+        putEntryOfRetention(reloaded, "normal2", Cache.Retention.NORMAL, MAX_SIZE / 4);
+
+        assertThat(reloaded.get("high"), is(notNullValue()));
+        assertThat(reloaded.get("normal"), is(nullValue()));
+    }
+
+    @Test
+    public void testEvictionPolicySelectsVictimsWithinRetentionClass() {
+        DiskBasedCache tinyLfu =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setEvictionPolicy(new TinyLfuEvictionPolicy())
+                        .build();
+        tinyLfu.initialize();
+        putEntryOfRetention(tinyLfu, "normal", Cache.Retention.NORMAL, MAX_SIZE / 4);
+        putEntryOfRetention(tinyLfu, "low", Cache.Retention.LOW, MAX_SIZE / 4);
+        putEntryOfRetention(tinyLfu, "normal2", Cache.Retention.NORMAL, MAX_SIZE / 4);
+        for (int i = 0; i < 5; i++) {
+            tinyLfu.get("low");
+        }
+
+        putEntryOfRetention(tinyLfu, "normal3", Cache.Retention.NORMAL, MAX_SIZE / 4);
+
+        // The frequently used low entry is still evicted before any normal one.
+        assertThat(tinyLfu.get("low"), is(nullValue()));
+        assertThat(tinyLfu.get("normal"), is(notNullValue()));
+        assertThat(tinyLfu.get("normal2"), is(notNullValue()));
+        assertThat(tinyLfu.get("normal3"), is(notNullValue()));
+    }
+
+    @Test
+    public void testStats() {
+        DiskBasedCache diskBasedCache = (DiskBasedCache) cache;
+        Cache.Entry entry = randomData(511);
+        cache.put("key", entry);
+        long fileSize = diskBasedCache.getFileForKey("key").length();
+        Cache.Entry expired = randomData(511);
+        expired.ttl = System.currentTimeMillis() - 1;
+        cache.put("expired", expired);
+
+        cache.get("key");
+        cache.get("expired");
+        cache.get("missing");
+
+        CacheStats stats = diskBasedCache.getStats();
+        assertThat(stats.getHitCount(), is(2L));
+        assertThat(stats.getMissCount(), is(1L));
+        assertThat(stats.getExpiredCount(), is(1L));
+        assertThat(stats.getPutCount(), is(2L));
+        assertThat(
+                stats.getBytesRead(),
+                is(fileSize + diskBasedCache.getFileForKey("expired").length()));
+        assertThat(
+                stats.getBytesWritten(),
+                is(fileSize + diskBasedCache.getFileForKey("expired").length()));
+        assertThat(stats.getEvictionCount(), is(0L));
+
+        cache.put("large1", randomData(MAX_SIZE * 6 / 10));
+        cache.put("large2", randomData(MAX_SIZE * 6 / 10));
+
+        // The expired entry is removed first, and then the least recently used ones.
+        assertThat(diskBasedCache.getStats().getEvictionCount(), is(3L));
+        assertThat(cache.get("large2"), is(notNullValue()));
+    }
+
+    @Test
+    public void testSweepRemovesExpiredEntries() {
+        DiskBasedCache sweeping =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setSweepIntervalMillis(TimeUnit.HOURS.toMillis(1))
+                        .build();
+        sweeping.initialize();
+        Cache.Entry fresh = randomData(511);
+        sweeping.put("fresh", fresh);
+        Cache.Entry expired = randomData(1023);
+        expired.ttl = System.currentTimeMillis() - 1;
+        sweeping.put("expired", expired);
+
+        sweeping.sweep();
+
+        assertThat(sweeping.get("expired"), is(nullValue()));
+        assertThatEntriesAreEqual(sweeping.get("fresh"), fresh);
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+        assertThat(
+                sweeping.getExpiredBytesReclaimed(),
+                is((long) 1023 + getEntrySizeOnDisk("expired")));
+
+        // The next sweep only runs once the interval has passed.
+        sweeping.put("expired", expired);
+        sweeping.sweep();
+        assertThatEntriesAreEqual(sweeping.get("expired"), expired);
+    }
+
+    @Test
+    public void testSweepIsDisabledByDefault() {
+        Cache.Entry expired = randomData(1023);
+        expired.ttl = System.currentTimeMillis() - 1;
+        cache.put("expired", expired);
+
+        ((DiskBasedCache) cache).sweep();
+
+        assertThatEntriesAreEqual(cache.get("expired"), expired);
+    }
+
+    @Test
+    public void testGetStreamReadsBodyFromFile() throws IOException {
+        DiskBasedCache concurrent = newConcurrentCache(MAX_SIZE);
+        concurrent.initialize();
+        Cache.Entry entry = randomData(4096);
+        entry.etag = "etag";
+        concurrent.put("key", entry);
+
+        StreamingCache.StreamEntry streamEntry = concurrent.getStream("key");
+        try {
+            assertThat(streamEntry.length, is(4096L));
+            assertThat(streamEntry.metadata.data, is(nullValue()));
+            assertThat(streamEntry.metadata.etag, is("etag"));
+            assertThat(streamEntry.metadata.ttl, is(entry.ttl));
+            assertThat(readBody(streamEntry), is(equalTo(entry.data)));
+            assertThat(streamEntry.body.read(), is(-1));
+        } finally {
+            streamEntry.close();
+        }
+        assertThat(concurrent.getStream("missing"), is(nullValue()));
+    }
+
+    @Test
+    public void testGetStreamKeepsReadingReplacedEntry() throws IOException {
+        DiskBasedCache concurrent = newConcurrentCache(MAX_SIZE);
+        concurrent.initialize();
+        Cache.Entry entry = randomData(4096);
+        concurrent.put("key", entry);
+
+        StreamingCache.StreamEntry streamEntry = concurrent.getStream("key");
+        Cache.Entry replacement = randomData(8192);
+        replacement.data[0]++;
+        concurrent.put("key", replacement);
+        try {
+            assertThat(readBody(streamEntry), is(equalTo(entry.data)));
+        } finally {
+            streamEntry.close();
+        }
+        assertThatEntriesAreEqual(concurrent.get("key"), replacement);
+    }
+
+    @Test
+    public void testGetStreamWithoutConcurrentFileAccessReadsIntoMemory() throws IOException {
+        Cache.Entry entry = randomData(1023);
+        cache.put("key", entry);
+
+        StreamingCache.StreamEntry streamEntry = ((DiskBasedCache) cache).getStream("key");
+
+        assertThat(streamEntry.body, is(instanceOf(ByteArrayInputStream.class)));
+        assertThat(readBody(streamEntry), is(equalTo(entry.data)));
+    }
+
+    @Test
+    public void testStartPutDisabledByDefault() {
+        assertThat(((DiskBasedCache) cache).startPut("key"), is(nullValue()));
+    }
+
+    @Test
+    public void testStreamingPutCommitsEntry() throws IOException {
+        DiskBasedCache streaming = newStreamingPutCache();
+        streaming.initialize();
+        Cache.Entry entry = randomData(4096);
+        entry.etag = "etag";
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(entry.data, 0, 1000);
+        // Nothing is visible before the entry is committed.
+        assertThat(streaming.get("key"), is(nullValue()));
+        pendingEntry.write(entry.data, 1000, 3096);
+        assertThat(pendingEntry.commit(entry), is(true));
+
+        assertThatEntriesAreEqual(streaming.get("key"), entry);
+        assertThat(temporaryFolder.getRoot().listFiles(), is(arrayWithSize(1)));
+
+        // Entries are read back the same way after a restart.
+        DiskBasedCache restarted = newStreamingPutCache();
+        restarted.initialize();
+        assertThatEntriesAreEqual(restarted.get("key"), entry);
+    }
+
+    @Test
+    public void testStreamingPutDiscardLeavesCacheUnchanged() throws IOException {
+        DiskBasedCache streaming = newStreamingPutCache();
+        streaming.initialize();
+        Cache.Entry entry = randomData(1023);
+        streaming.put("key", entry);
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(new byte[512], 0, 512);
+        pendingEntry.discard();
+
+        assertThatEntriesAreEqual(streaming.get("key"), entry);
+        assertThat(temporaryFolder.getRoot().listFiles(), is(arrayWithSize(1)));
+        assertThat(pendingEntry.commit(entry), is(false));
+        try {
+            pendingEntry.write(new byte[1], 0, 1);
+            fail("Writing to a discarded entry should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStreamingPutRejectsMismatchedBody() throws IOException {
+        DiskBasedCache streaming = newStreamingPutCache();
+        streaming.initialize();
+        Cache.Entry entry = randomData(1023);
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(entry.data, 0, 512);
+
+        assertThat(pendingEntry.commit(entry), is(false));
+        assertThat(streaming.get("key"), is(nullValue()));
+        assertThat(temporaryFolder.getRoot().listFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testStreamingPutWritesBodyOnce() throws IOException {
+        DiskBasedCache streaming = spy(newStreamingPutCache());
+        streaming.initialize();
+        Cache.Entry entry = randomData(4096);
+        entry.etag = "etag";
+        entry.serverDate = 1601546400000L;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Date", "Thu, 01 Oct 2020 10:00:00 GMT"));
+        entry.responseHeaders = HttpHeaderParser.toHeaderMap(entry.allResponseHeaders);
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(entry.data, 0, entry.data.length);
+        assertThat(pendingEntry.commit(entry), is(true));
+
+        // The body file itself was moved into place, without being read back or copied.
+        verify(streaming).createOutputStream(any(File.class));
+        verify(streaming, never()).createInputStream(any(File.class));
+        File file = streaming.getFileForKey("key");
+        assertThat(
+                file.length(), is((long) DiskBasedCache.RESERVED_HEADER_BYTES + entry.data.length));
+        assertThatEntriesAreEqual(streaming.get("key"), entry);
+
+        // The padding is kept when the header is updated in place.
+        Cache.Entry updated = revalidated(entry, "Thu, 01 Oct 2020 11:00:00 GMT");
+        streaming.updateMetadata("key", updated);
+        verify(streaming).createOutputStream(any(File.class));
+        assertThat(
+                file.length(), is((long) DiskBasedCache.RESERVED_HEADER_BYTES + entry.data.length));
+        DiskBasedCache restarted = newStreamingPutCache();
+        restarted.initialize();
+        assertThatEntriesAreEqual(restarted.get("key"), updated);
+        StreamingCache.StreamEntry streamEntry = restarted.getStream("key");
+        assertThat(readBody(streamEntry), is(equalTo(entry.data)));
+    }
+
+    @Test
+    public void testStreamingPutIsNotCommittedWhenHeaderDoesNotFit() throws IOException {
+        DiskBasedCache streaming = newStreamingPutCache();
+        streaming.initialize();
+        Cache.Entry entry = randomData(1023);
+        char[] value = new char[DiskBasedCache.RESERVED_HEADER_BYTES];
+        Arrays.fill(value, 'a');
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("X-Large", new String(value)));
+        entry.responseHeaders = HttpHeaderParser.toHeaderMap(entry.allResponseHeaders);
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(entry.data, 0, entry.data.length);
+
+        assertThat(pendingEntry.commit(entry), is(false));
+        assertThat(temporaryFolder.getRoot().listFiles(), is(emptyArray()));
+        // The caller falls back to a regular write.
+        streaming.put("key", entry);
+        assertThatEntriesAreEqual(streaming.get("key"), entry);
+    }
+
+    @Test
+    public void testStreamingPutIsNotCommittedForCompressedEntries() throws IOException {
+        DiskBasedCache streaming =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setStreamingPutEnabled(true)
+                        .setCompressionEnabled(true)
+                        .build();
+        streaming.initialize();
+        Cache.Entry entry = textData(16 * 1024, "application/json");
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(entry.data, 0, entry.data.length);
+
+        assertThat(pendingEntry.commit(entry), is(false));
+        assertThat(temporaryFolder.getRoot().listFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testStreamingPutWithShardedLayout() throws IOException {
+        DiskBasedCache streaming =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setShardedLayoutEnabled(true)
+                        .setStreamingPutEnabled(true)
+                        .build();
+        streaming.initialize();
+        Cache.Entry entry = randomData(1023);
+
+        StreamingPutCache.PendingEntry pendingEntry = streaming.startPut("key");
+        pendingEntry.write(entry.data, 0, entry.data.length);
+        assertThat(pendingEntry.commit(entry), is(true));
+
+        assertThatEntriesAreEqual(streaming.get("key"), entry);
+    }
+
+    @Test
+    public void testCompressionShrinksTextEntries() {
+        DiskBasedCache compressing = newCompressingCache(/* concurrent= */ false);
+        compressing.initialize();
+        Cache.Entry entry = textData(16 * 1024, "application/json; charset=utf-8");
+
+        compressing.put("key", entry);
+
+        assertThat(compressing.getFileForKey("key").length(), is(lessThan(4 * 1024L)));
+        assertThatEntriesAreEqual(compressing.get("key"), entry);
+        DiskBasedCache restarted = newCompressingCache(/* concurrent= */ false);
+        restarted.initialize();
+        assertThatEntriesAreEqual(restarted.get("key"), entry);
+    }
+
+    @Test
+    public void testCompressionSkipsBinaryAndSmallEntries() {
+        DiskBasedCache compressing = newCompressingCache(/* concurrent= */ false);
+        compressing.initialize();
+        Cache.Entry image = textData(16 * 1024, "image/png");
+        Cache.Entry small =
+                textData(DiskBasedCache.MIN_COMPRESSED_SIZE_BYTES - 1, "application/json");
+
+        compressing.put("image", image);
+        compressing.put("small", small);
+
+        assertThat(compressing.getFileForKey("image").length(), is(greaterThan(16 * 1024L)));
+        assertThat(
+                compressing.getFileForKey("small").length(),
+                is(greaterThan((long) small.data.length)));
+        assertThatEntriesAreEqual(compressing.get("image"), image);
+        assertThatEntriesAreEqual(compressing.get("small"), small);
+    }
+
+    @Test
+    public void testCompressionDisabledByDefault() {
+        Cache.Entry entry = textData(16 * 1024, "text/html");
+
+        cache.put("key", entry);
+
+        assertThat(
+                ((DiskBasedCache) cache).getFileForKey("key").length(),
+                is(greaterThan(16 * 1024L)));
+    }
+
+    @Test
+    public void testUncompressedEntriesReadableWithCompressionEnabled() {
+        Cache.Entry entry = textData(16 * 1024, "text/html");
+        cache.put("key", entry);
+
+        DiskBasedCache compressing = newCompressingCache(/* concurrent= */ false);
+        compressing.initialize();
+
+        assertThatEntriesAreEqual(compressing.get("key"), entry);
+    }
+
+    @Test
+    public void testGetStreamInflatesCompressedEntry() throws IOException {
+        DiskBasedCache compressing = newCompressingCache(/* concurrent= */ true);
+        compressing.initialize();
+        Cache.Entry entry = textData(16 * 1024, "text/plain");
+        compressing.put("key", entry);
+
+        StreamingCache.StreamEntry streamEntry = compressing.getStream("key");
+        try {
+            assertThat(streamEntry.length, is(16 * 1024L));
+            assertThat(readBody(streamEntry), is(equalTo(entry.data)));
+        } finally {
+            streamEntry.close();
+        }
+    }
+
+    @Test
+    public void testUpdateMetadataKeepsCompressedData() {
+        DiskBasedCache compressing = newCompressingCache(/* concurrent= */ false);
+        compressing.initialize();
+        Cache.Entry entry = textData(16 * 1024, "text/plain");
+        compressing.put("key", entry);
+        long length = compressing.getFileForKey("key").length();
+
+        entry.ttl++;
+        compressing.updateMetadata("key", entry);
+
+        assertThat(compressing.getFileForKey("key").length(), is(length));
+        assertThatEntriesAreEqual(compressing.get("key"), entry);
+    }
+
+    @Test
+    public void testIsCompressible() {
+        assertTrue(DiskBasedCache.isCompressible("text/html; charset=UTF-8"));
+        assertTrue(DiskBasedCache.isCompressible("Application/JSON"));
+        assertTrue(DiskBasedCache.isCompressible("application/vnd.api+json"));
+        assertTrue(DiskBasedCache.isCompressible("image/svg+xml"));
+        assertTrue(DiskBasedCache.isCompressible("application/javascript"));
+        assertFalse(DiskBasedCache.isCompressible("image/jpeg"));
+        assertFalse(DiskBasedCache.isCompressible("application/octet-stream"));
+    }
+
+    @Test
+    public void testCompactHeaderRoundTrip() throws IOException {
+        Cache.Entry entry = textData(0, "text/plain");
+        entry.etag = "\"etag\"";
+        entry.serverDate = 1601546400000L;
+        entry.lastModified = -1;
+        entry.allResponseHeaders.add(new Header("X-Custom", "value"));
+        CacheHeader header = new CacheHeader("key", entry);
+        header.deflated = true;
+        header.inflatedLength = 4096;
+
+        CacheHeader read = readHeader(header);
+
+        assertThat(read.legacyFormat, is(false));
+        assertThat(read.key, is("key"));
+        assertThat(read.etag, is(entry.etag));
+        assertThat(read.serverDate, is(entry.serverDate));
+        assertThat(read.lastModified, is(entry.lastModified));
+        assertThat(read.ttl, is(entry.ttl));
+        assertThat(read.softTtl, is(entry.softTtl));
+        assertThat(read.allResponseHeaders, is(equalTo(entry.allResponseHeaders)));
+        assertThat(read.deflated, is(true));
+        assertThat(read.inflatedLength, is(4096L));
+    }
+
+    @Test
+    public void testCompactHeaderIsSmallerThanLegacyHeader() throws IOException {
+        Cache.Entry entry = textData(0, "application/json");
+        entry.allResponseHeaders.add(new Header("Cache-Control", "max-age=60"));
+        entry.allResponseHeaders.add(new Header("ETag", "\"etag\""));
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        new CacheHeader("key", entry).writeHeader(compact);
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        writeLegacyHeader(legacy, "key", entry);
+
+        assertThat(compact.size() * 2, is(lessThan(legacy.size())));
+    }
+
+    @Test
+    public void testLegacyEntryIsReadAndMigratedOnGet() throws IOException {
+        Cache.Entry entry = textData(1023, "text/plain");
+        entry.etag = "etag";
+        writeLegacyEntry("key", entry);
+        cache.initialize();
+        assertThat(readHeaderOnDisk("key").legacyFormat, is(true));
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+
+        assertThat(readHeaderOnDisk("key").legacyFormat, is(false));
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+        Cache copy = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        copy.initialize();
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+    }
+
+    @Test
+    public void testLegacyEntryIsMigratedOnGetWithConcurrentFileAccess() throws IOException {
+        Cache.Entry entry = textData(1023, "text/plain");
+        writeLegacyEntry("key", entry);
+        DiskBasedCache concurrent = newConcurrentCache(MAX_SIZE);
+        concurrent.initialize();
+
+        assertThatEntriesAreEqual(concurrent.get("key"), entry);
+
+        assertThat(readHeaderOnDisk("key").legacyFormat, is(false));
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+        assertThatEntriesAreEqual(concurrent.get("key"), entry);
+    }
+
+    @Test
+    public void testUpdateMetadataMigratesLegacyEntry() throws IOException {
+        Cache.Entry entry = textData(1023, "text/plain");
+        writeLegacyEntry("key", entry);
+        cache.initialize();
+
+        Cache.Entry updated = revalidated(entry, null);
+        ((DiskBasedCache) cache).updateMetadata("key", updated);
+
+        assertThat(readHeaderOnDisk("key").legacyFormat, is(false));
+        assertThatEntriesAreEqual(cache.get("key"), updated);
+    }
+
+    @Test
+    public void testUpdateMetadataRewritesEntryWhenVarintLengthChanges() throws IOException {
+        Cache.Entry entry = randomData(1023);
+        entry.serverDate = 100;
+        cache.put("key", entry);
+        DiskBasedCache spiedCache = spy((DiskBasedCache) cache);
+
+        Cache.Entry updated = revalidated(entry, null);
+        spiedCache.updateMetadata("key", updated);
+
+        verify(spiedCache).createOutputStream(any(File.class));
+        assertThatEntriesAreEqual(spiedCache.get("key"), updated);
+    }
+
+    @Test
+    public void testChecksumsDisabledByDefault() throws IOException {
+        cache.put("key", randomData(1023));
+
+        assertThat(readHeaderOnDisk("key").hasChecksum, is(false));
+    }
+
+    @Test
+    public void testChecksumDetectsCorruptData() throws IOException {
+        DiskBasedCache checksummed = newChecksummingCache(/* verificationInterval= */ 1);
+        checksummed.initialize();
+        Cache.Entry entry = randomData(1023);
+        checksummed.put("key", entry);
+        assertThat(readHeaderOnDisk("key").hasChecksum, is(true));
+        assertThatEntriesAreEqual(checksummed.get("key"), entry);
+
+        corruptLastByte(checksummed.getFileForKey("key"));
+
+        assertThat(checksummed.get("key"), is(nullValue()));
+        assertThat(checksummed.getStats().getCorruptionCount(), is(1L));
+        assertThat(checksummed.getFileForKey("key").exists(), is(false));
+    }
+
+    @Test
+    public void testVerifiedEntriesAreSampled() throws IOException {
+        DiskBasedCache checksummed = newChecksummingCache(/* verificationInterval= */ 1000);
+        checksummed.initialize();
+        checksummed.put("key", randomData(1023));
+        // The first read is verified.
+        checksummed.get("key");
+
+        corruptLastByte(checksummed.getFileForKey("key"));
+
+        assertThat(checksummed.get("key"), is(notNullValue()));
+        assertThat(checksummed.getStats().getCorruptionCount(), is(0L));
+        // Entries read since the cache was initialized are verified again.
+        DiskBasedCache copy = newChecksummingCache(/* verificationInterval= */ 1000);
+        copy.initialize();
+        assertThat(copy.get("key"), is(nullValue()));
+        assertThat(copy.getStats().getCorruptionCount(), is(1L));
+    }
+
+    @Test
+    public void testChecksumDetectsCorruptStream() throws IOException {
+        DiskBasedCache checksummed =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setConcurrentFileAccessEnabled(true)
+                        .setChecksumsEnabled(true)
+                        .build();
+        checksummed.initialize();
+        checksummed.put("key", randomData(1023));
+        corruptLastByte(checksummed.getFileForKey("key"));
+        StreamingCache.StreamEntry streamEntry = checksummed.getStream("key");
+
+        try {
+            readBody(streamEntry);
+            fail("Corrupt body should not be read to the end");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            streamEntry.close();
+        }
+
+        assertThat(checksummed.getStats().getCorruptionCount(), is(1L));
+        assertThat(checksummed.get("key"), is(nullValue()));
+    }
+
+    @Test
+    public void testChecksumOfCompressedEntry() throws IOException {
+        DiskBasedCache checksummed =
+                new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                        .setMaxCacheSizeInBytes(MAX_SIZE)
+                        .setCompressionEnabled(true)
+                        .setChecksumsEnabled(true)
+                        .build();
+        checksummed.initialize();
+        Cache.Entry entry = textData(4096, "text/plain");
+        checksummed.put("key", entry);
+
+        CacheHeader header = readHeaderOnDisk("key");
+        assertThat(header.deflated, is(true));
+        assertThat(header.hasChecksum, is(true));
+        assertThatEntriesAreEqual(checksummed.get("key"), entry);
+    }
+
+    @Test
+    public void testUpdateMetadataInPlaceKeepsChecksum() throws IOException {
+        DiskBasedCache checksummed = newChecksummingCache(/* verificationInterval= */ 1);
+        checksummed.initialize();
+        Cache.Entry entry = randomData(1023);
+        // A date of the same magnitude as its update, so that the header keeps its layout.
+        entry.serverDate = 1601546400000L;
+        checksummed.put("key", entry);
+        DiskBasedCache spiedCache = spy(checksummed);
+
+        Cache.Entry updated = revalidated(entry, null);
+        spiedCache.updateMetadata("key", updated);
+
+        verify(spiedCache, never()).createOutputStream(any(File.class));
+        assertThat(readHeaderOnDisk("key").hasChecksum, is(true));
+        assertThatEntriesAreEqual(spiedCache.get("key"), updated);
+        assertThat(spiedCache.getStats().getCorruptionCount(), is(0L));
+    }
+
+    @Test
+    public void testScannedEntryKeepsResponseHeaders() {
+        Cache.Entry entry = textData(1023, "text/plain");
+        cache.put("key", entry);
+
+        DiskBasedCache copy = new DiskBasedCache(temporaryFolder.getRoot(), MAX_SIZE);
+        copy.initialize();
+
+        assertThatEntriesAreEqual(copy.get("key"), entry);
+        assertThat(copy.get("key").allResponseHeaders, is(equalTo(entry.allResponseHeaders)));
+    }
+
+    /* Test helpers */
+
+    /**
+     * Reads ten frequently used entries, then writes a stream of entries which are only used once
+     * and returns how many of the frequently used entries are still cached.
+     */
+    private int countHotEntriesAfterScan(Cache cacheUnderTest) {
+        Cache.Entry entry = randomData(8 * 1024);
+        for (int i = 0; i < 10; i++) {
+            cacheUnderTest.get("hot" + i);
+            cacheUnderTest.put("hot" + i, entry);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertThat(cacheUnderTest.get("hot" + i), is(notNullValue()));
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            assertThat(cacheUnderTest.get("scan" + i), is(nullValue()));
+            cacheUnderTest.put("scan" + i, entry);
+        }
+        int hotEntries = 0;
+        for (int i = 0; i < 10; i++) {
+            if (cacheUnderTest.get("hot" + i) != null) {
+                hotEntries++;
+            }
+        }
+        return hotEntries;
+    }
+
+    /** Returns a copy of the entry with new TTLs and dates, as after a 304 response. */
+    private static Cache.Entry revalidated(Cache.Entry entry, String date) {
+        Cache.Entry updated = new Cache.Entry();
+        updated.data = entry.data;
+        updated.etag = entry.etag;
+        updated.lastModified = entry.lastModified;
+        updated.serverDate = entry.serverDate + 3600000L;
+        updated.ttl = entry.ttl + 3600000L;
+        updated.softTtl = entry.softTtl + 3600000L;
+        if (date != null) {
+            updated.allResponseHeaders = new ArrayList<>();
+            updated.allResponseHeaders.add(new Header("Date", date));
+            updated.responseHeaders = HttpHeaderParser.toHeaderMap(updated.allResponseHeaders);
+        }
+        return updated;
+    }
+
+    /** Makes reads of the given key wait for {@code release} after signaling {@code started}. */
+    private static void blockReadsOfKey(
+            DiskBasedCache spiedCache,
+            String key,
+            final CountDownLatch started,
+            final CountDownLatch release)
+            throws IOException {
+        blockReadsOfKeys(spiedCache, started, release, key);
+    }
+
+    /**
+     * Makes reads of any of the given keys wait for {@code release} after signaling {@code
+     * started}.
+     */
+    private static void blockReadsOfKeys(
+            DiskBasedCache spiedCache,
+            final CountDownLatch started,
+            final CountDownLatch release,
+            String... keys)
+            throws IOException {
+        final List<File> blockedFiles = new ArrayList<>();
+        for (String key : keys) {
+            blockedFiles.add(spiedCache.getFileForKey(key));
+        }
+        doAnswer(
+                        new Answer<InputStream>() {
+                            @Override
+                            public InputStream answer(InvocationOnMock invocation)
+                                    throws Throwable {
+                                InputStream in = (InputStream) invocation.callRealMethod();
+                                if (!blockedFiles.contains(invocation.getArgument(0))) {
+                                    return in;
+                                }
+                                // Block after the file has been opened, partway through the read.
+                                return new FilterInputStream(in) {
+                                    @Override
+                                    public int read(byte[] b, int off, int len) throws IOException {
+                                        started.countDown();
+                                        try {
+                                            release.await();
+                                        } catch (InterruptedException e) {
+                                            throw new IOException(e);
+                                        }
+                                        return super.read(b, off, len);
+                                    }
+                                };
+                            }
+                        })
+                .when(spiedCache)
+                .createInputStream(any(File.class));
+    }
+
+    private static Runnable initializeTask(final Cache cache) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                cache.initialize();
+            }
+        };
+    }
+
+    /** Polls the cache until the entry has been loaded. */
+    private static Cache.Entry awaitEntry(Cache cache, String key) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Cache.Entry entry;
+        while ((entry = cache.get(key)) == null) {
+            assertThat(System.nanoTime(), is(lessThan(deadline)));
+            Thread.sleep(1);
+        }
+        return entry;
+    }
+
+    private static Callable<Cache.Entry> getTask(final Cache cache, final String key) {
+        return new Callable<Cache.Entry>() {
+            @Override
+            public Cache.Entry call() {
+                return cache.get(key);
+            }
+        };
+    }
+
+    /** Returns an entry whose etag describes its contents. */
+    private static Cache.Entry taggedEntry(Random random) {
+        Cache.Entry entry = new Cache.Entry();
+        byte value = (byte) random.nextInt();
+        entry.data = new byte[512 + random.nextInt(1024)];
+        Arrays.fill(entry.data, value);
+        entry.etag = value + ":" + entry.data.length;
+        return entry;
+    }
+
+    private static void assertTaggedEntryIsComplete(Cache.Entry entry) {
+        String[] tag = entry.etag.split(":");
+        assertThat(entry.data.length, is(Integer.parseInt(tag[1])));
+        for (byte b : entry.data) {
+            assertThat(b, is(Byte.parseByte(tag[0])));
+        }
+    }
+
+    private void assertThatEntriesAreEqual(Cache.Entry actual, Cache.Entry expected) {
+        assertThat(actual.data, is(equalTo(expected.data)));
+        assertThat(actual.etag, is(equalTo(expected.etag)));
+        assertThat(actual.lastModified, is(equalTo(expected.lastModified)));
+        assertThat(actual.responseHeaders, is(equalTo(expected.responseHeaders)));
+        assertThat(actual.serverDate, is(equalTo(expected.serverDate)));
+        assertThat(actual.softTtl, is(equalTo(expected.softTtl)));
+        assertThat(actual.ttl, is(equalTo(expected.ttl)));
+    }
+
+    private static byte[] readBody(StreamingCache.StreamEntry streamEntry) throws IOException {
+        byte[] body = new byte[(int) streamEntry.length];
+        new DataInputStream(streamEntry.body).readFully(body);
+        return body;
+    }
+
+    private Cache.Entry randomData(int length) {
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data); // explicit seed for reproducible results
+        entry.data = data;
+        // Fresh, so that the entry is only evicted once the cache runs out of expired entries.
+        entry.ttl = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+
+    /** Puts an entry of the given retention class whose file takes up the given size. */
+    private void putEntryOfRetention(
+            Cache cacheUnderTest, String key, Cache.Retention retention, int sizeOnDisk) {
+        Cache.Entry entry = randomData(sizeOnDisk - getEntrySizeOnDisk(key));
+        entry.retention = retention;
+        cacheUnderTest.put(key, entry);
+    }
+
+    private DiskBasedCache newJournaledCache() {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setJournalEnabled(true)
+                .build();
+    }
+
+    private DiskBasedCache newShardedCache(boolean journalEnabled) {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setShardedLayoutEnabled(true)
+                .setJournalEnabled(journalEnabled)
+                .build();
+    }
+
+    private DiskBasedCache newConcurrentCache(int maxSize) {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(maxSize)
+                .setConcurrentFileAccessEnabled(true)
+                .build();
+    }
+
+    private DiskBasedCache newParallelCache(int threadCount) {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setInitializationThreadCount(threadCount)
+                .build();
+    }
+
+    private DiskBasedCache newCompressingCache(boolean concurrent) {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setConcurrentFileAccessEnabled(concurrent)
+                .setCompressionEnabled(true)
+                .build();
+    }
+
+    /** Returns an entry with repetitive text data and the given Content-Type. */
+    private Cache.Entry textData(int length, String contentType) {
+        Cache.Entry entry = randomData(0);
+        StringBuilder data = new StringBuilder();
+        while (data.length() < length) {
+            data.append("{\"id\": ").append(data.length()).append(", \"name\": \"value\"}, ");
+        }
+        entry.data = data.substring(0, length).getBytes(StandardCharsets.UTF_8);
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", contentType));
+        entry.responseHeaders = HttpHeaderParser.toHeaderMap(entry.allResponseHeaders);
+        return entry;
+    }
+
+    private DiskBasedCache newChecksummingCache(int verificationInterval) {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setChecksumsEnabled(true)
+                .setChecksumVerificationInterval(verificationInterval)
+                .build();
+    }
+
+    private static void corruptLastByte(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 1);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private DiskBasedCache newStreamingPutCache() {
+        return new DiskBasedCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setStreamingPutEnabled(true)
+                .build();
+    }
+
+    private File getJournalFile() {
+        return new File(temporaryFolder.getRoot(), DiskBasedCacheJournal.JOURNAL_FILE_NAME);
+    }
+
+    private File[] listCachedFiles() {
+        return temporaryFolder.getRoot().listFiles();
+    }
+
+    private int getEntrySizeOnDisk(String key) {
+        // Header size is:
+        // 4 bytes for magic int
+        // 1 byte for flags varint
+        // 1 + len(key) bytes for key (varint length)
+        // 1 byte for etag (varint length + 0 characters)
+        // 2 bytes for serverDate and lastModified varints, which are 0
+        // 12 bytes for ttl and softTtl varints, which are timestamps of 41 bits
+        // 1 byte for length of header list varint
+        // == 22 + len(key) bytes total.
+        return 22 + key.length();
+    }
+
+    /** Writes an entry in the original version of the cache file format. */
+    private void writeLegacyEntry(String key, Cache.Entry entry) throws IOException {
+        FileOutputStream fos = new FileOutputStream(((DiskBasedCache) cache).getFileForKey(key));
+        try {
+            writeLegacyHeader(fos, key, entry);
+            fos.write(entry.data);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+    }
+
+    private static void writeLegacyHeader(OutputStream os, String key, Cache.Entry entry)
+            throws IOException {
+        DiskBasedCache.writeInt(os, 0x20150306);
+        DiskBasedCache.writeString(os, key);
+        DiskBasedCache.writeString(os, entry.etag == null ? "" : entry.etag);
+        DiskBasedCache.writeLong(os, entry.serverDate);
+        DiskBasedCache.writeLong(os, entry.lastModified);
+        DiskBasedCache.writeLong(os, entry.ttl);
+        DiskBasedCache.writeLong(os, entry.softTtl);
+        DiskBasedCache.writeHeaderList(entry.allResponseHeaders, os);
+    }
+
+    private static CacheHeader readHeader(CacheHeader header) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertTrue(header.writeHeader(baos));
+        return CacheHeader.readHeader(
+                new CountingInputStream(new ByteArrayInputStream(baos.toByteArray()), baos.size()));
+    }
+
+    private CacheHeader readHeaderOnDisk(String key) throws IOException {
+        File file = ((DiskBasedCache) cache).getFileForKey(key);
+        CountingInputStream cis = new CountingInputStream(new FileInputStream(file), file.length());
+        try {
+            return CacheHeader.readHeader(cis);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            cis.close();
+        }
     }
 }
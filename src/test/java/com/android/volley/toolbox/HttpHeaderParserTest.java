@@ -187,6 +187,68 @@ public class HttpHeaderParserTest {
         assertNull(entry);
     }
 
+    @Test
+    public void parseCacheHeaders_varyAsterisk() {
+        headers.put("Cache-Control", "max-age=86400");
+        headers.put("Vary", "*");
+
+        assertNull(HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    @Test
+    public void parseCacheHeaders_varyOnRequestHeaders() {
+        headers.put("Cache-Control", "max-age=86400");
+        headers.put("Vary", "Accept-Language");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEquals("Accept-Language", entry.responseHeaders.get("Vary"));
+    }
+
+    @Test
+    public void parseErrorCacheHeaders_notFoundUsesDefaultTtl() {
+        long now = System.currentTimeMillis();
+        headers.put("ETag", "Yow!");
+        response = new NetworkResponse(404, null, headers, false);
+
+        Cache.Entry entry = HttpHeaderParser.parseErrorCacheHeaders(response, ONE_HOUR_MILLIS);
+
+        assertNotNull(entry);
+        assertNull(entry.etag);
+        assertEqualsWithin(now + ONE_HOUR_MILLIS, entry.ttl, ONE_MINUTE_MILLIS);
+        assertEquals(entry.ttl, entry.softTtl);
+    }
+
+    @Test
+    public void parseErrorCacheHeaders_honorsCacheControl() {
+        long now = System.currentTimeMillis();
+        headers.put("Cache-Control", "max-age=86400, stale-while-revalidate=60");
+        response = new NetworkResponse(503, null, headers, false);
+
+        Cache.Entry entry = HttpHeaderParser.parseErrorCacheHeaders(response, ONE_HOUR_MILLIS);
+
+        assertNotNull(entry);
+        assertEqualsWithin(now + ONE_DAY_MILLIS + 60000, entry.ttl, ONE_MINUTE_MILLIS);
+        assertEquals(entry.ttl, entry.softTtl);
+
+        headers.put("Cache-Control", "max-age=0");
+        response = new NetworkResponse(404, null, headers, false);
+        assertNull(HttpHeaderParser.parseErrorCacheHeaders(response, ONE_HOUR_MILLIS));
+        headers.put("Cache-Control", "no-store");
+        response = new NetworkResponse(404, null, headers, false);
+        assertNull(HttpHeaderParser.parseErrorCacheHeaders(response, ONE_HOUR_MILLIS));
+    }
+
+    @Test
+    public void parseErrorCacheHeaders_otherErrorsNeedFreshness() {
+        response = new NetworkResponse(500, null, headers, false);
+
+        assertNull(HttpHeaderParser.parseErrorCacheHeaders(response, ONE_HOUR_MILLIS));
+        response = new NetworkResponse(410, null, headers, false);
+        assertNotNull(HttpHeaderParser.parseErrorCacheHeaders(response, ONE_HOUR_MILLIS));
+    }
+
     @Test
     public void parseCacheHeaders_cacheControlMustRevalidateNoMaxAge() {
         long now = System.currentTimeMillis();
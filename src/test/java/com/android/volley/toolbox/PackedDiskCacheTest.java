@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import com.android.volley.Cache;
+import com.android.volley.Header;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackedDiskCacheTest {
+
+    private static final int MAX_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 8 * 1024;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private PackedDiskCache cache;
+
+    @Before
+    public void setUp() {
+        cache = newCache();
+        cache.initialize();
+    }
+
+    @Test
+    public void testEmptyGet() {
+        assertThat(cache.get("key"), is(nullValue()));
+    }
+
+    @Test
+    public void testPutGetAndReload() {
+        Cache.Entry entry = randomData(511);
+        entry.etag = "etag";
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Name", "Value"));
+        cache.put("key", entry);
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        Cache.Entry reloadedEntry = reloaded.get("key");
+        assertThatEntriesAreEqual(reloadedEntry, entry);
+        assertThat(reloadedEntry.allResponseHeaders, is(equalTo(entry.allResponseHeaders)));
+    }
+
+    @Test
+    public void testSmallEntriesShareSegments() {
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, randomData(50));
+        }
+
+        assertThat(segmentFiles().length, is(lessThan(10)));
+        for (int i = 0; i < 100; i++) {
+            assertThat(cache.get("key" + i), is(notNullValue()));
+        }
+    }
+
+    @Test
+    public void testOverwriteReturnsLatestEntry() {
+        cache.put("key", randomData(511));
+        Cache.Entry replacement = randomData(1023);
+        replacement.data[0]++;
+        cache.put("key", replacement);
+
+        assertThatEntriesAreEqual(cache.get("key"), replacement);
+
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key"), replacement);
+    }
+
+    @Test
+    public void testRemoveWritesTombstone() {
+        cache.put("key", randomData(511));
+        cache.remove("key");
+
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(cache.getLiveSize(), is(0L));
+
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThat(reloaded.get("key"), is(nullValue()));
+    }
+
+    @Test
+    public void testInvalidateIsPersisted() {
+        Cache.Entry entry = randomData(511);
+        cache.put("key", entry);
+
+        cache.invalidate("key", /* fullExpire= */ true);
+
+        entry.softTtl = 0;
+        entry.ttl = 0;
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key"), entry);
+    }
+
+    @Test
+    public void testUpdateMetadataOnlyAppendsHeader() {
+        Cache.Entry entry = randomData(4096);
+        cache.put("key", entry);
+        long diskSize = cache.getDiskSize();
+
+        Cache.Entry updated = randomData(4096);
+        updated.etag = "new-etag";
+        cache.updateMetadata("key", updated);
+
+        assertThat(cache.getDiskSize() - diskSize, is(lessThan(1024L)));
+        assertThatEntriesAreEqual(cache.get("key"), updated);
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key"), updated);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedEntries() {
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, randomData(4096));
+            // Keep the first entry in use.
+            cache.get("key0");
+        }
+
+        assertThat(cache.getLiveSize(), is(lessThanOrEqualTo((long) MAX_SIZE)));
+        assertThat(cache.get("key0"), is(notNullValue()));
+        assertThat(cache.get("key1"), is(nullValue()));
+        assertThat(cache.get("key19"), is(notNullValue()));
+
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThat(reloaded.get("key1"), is(nullValue()));
+        assertThat(reloaded.get("key19"), is(notNullValue()));
+    }
+
+    @Test
+    public void testSweepCompactsGarbage() {
+        for (int i = 0; i < 10; i++) {
+            cache.put("key", randomData(4096));
+        }
+        cache.put("other", randomData(100));
+        long diskSizeBefore = cache.getDiskSize();
+
+        cache.sweep();
+
+        assertThat(cache.getDiskSize(), is(lessThan(diskSizeBefore)));
+        assertThat(cache.getDiskSize(), is(lessThanOrEqualTo(2 * cache.getLiveSize())));
+        assertThat(cache.get("key"), is(notNullValue()));
+        assertThat(cache.get("other"), is(notNullValue()));
+        assertThat(totalSegmentSize(), is(cache.getDiskSize()));
+
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key"), randomData(4096));
+        assertThat(reloaded.getLiveSize(), is(cache.getLiveSize()));
+    }
+
+    @Test
+    public void testCompactionDropsTombstonesWithoutResurrectingEntries() {
+        cache.put("removed", randomData(4096));
+        cache.remove("removed");
+        for (int i = 0; i < 10; i++) {
+            cache.put("key", randomData(4096));
+        }
+
+        cache.sweep();
+
+        assertThat(cache.get("removed"), is(nullValue()));
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+        assertThat(reloaded.get("removed"), is(nullValue()));
+        assertThat(reloaded.get("key"), is(notNullValue()));
+    }
+
+    @Test
+    public void testWritesCompactOnceSegmentsReachTwiceMaxSize() {
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + (i % 4), randomData(4096));
+        }
+
+        assertThat(cache.getDiskSize(), is(lessThanOrEqualTo(2L * MAX_SIZE)));
+        assertThat(totalSegmentSize(), is(cache.getDiskSize()));
+        for (int i = 0; i < 4; i++) {
+            assertThat(cache.get("key" + i), is(notNullValue()));
+        }
+    }
+
+    @Test
+    public void testTruncatedRecordIsDropped() throws IOException {
+        cache.put("key1", randomData(511));
+        cache.put("key2", randomData(511));
+        File segment = segmentFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(raf.length() - 100);
+        } finally {
+            raf.close();
+        }
+
+        PackedDiskCache reloaded = newCache();
+        reloaded.initialize();
+
+        assertThat(reloaded.get("key1"), is(notNullValue()));
+        assertThat(reloaded.get("key2"), is(nullValue()));
+        // New records are appended after the last valid one.
+        reloaded.put("key3", randomData(511));
+        PackedDiskCache reloadedAgain = newCache();
+        reloadedAgain.initialize();
+        assertThat(reloadedAgain.get("key1"), is(notNullValue()));
+        assertThat(reloadedAgain.get("key3"), is(notNullValue()));
+    }
+
+    @Test
+    public void testClearDeletesSegments() {
+        cache.put("key", randomData(511));
+
+        cache.clear();
+
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(segmentFiles(), is(emptyArray()));
+        cache.put("key", randomData(511));
+        assertThat(cache.get("key"), is(notNullValue()));
+        assertThat(segmentFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testCreatesDeletedRootDirectory() {
+        temporaryFolder.getRoot().delete();
+
+        cache.put("key", randomData(511));
+
+        assertThat(cache.get("key"), is(notNullValue()));
+        assertThat(segmentFiles(), is(arrayWithSize(1)));
+    }
+
+    /* Test helpers */
+
+    private PackedDiskCache newCache() {
+        return new PackedDiskCache.Builder(temporaryFolder.getRoot())
+                .setMaxCacheSizeInBytes(MAX_SIZE)
+                .setMaxSegmentSizeInBytes(SEGMENT_SIZE)
+                .build();
+    }
+
+    private File[] segmentFiles() {
+        List<File> segments = new ArrayList<>();
+        File[] files = temporaryFolder.getRoot().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(PackedDiskCache.SEGMENT_FILE_PREFIX)) {
+                    segments.add(file);
+                }
+            }
+        }
+        return segments.toArray(new File[0]);
+    }
+
+    private long totalSegmentSize() {
+        long size = 0;
+        for (File file : segmentFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static void assertThatEntriesAreEqual(Cache.Entry actual, Cache.Entry expected) {
+        assertThat(actual, is(notNullValue()));
+        assertThat(actual.data, is(equalTo(expected.data)));
+        assertThat(actual.etag, is(equalTo(expected.etag)));
+        assertThat(actual.lastModified, is(equalTo(expected.lastModified)));
+        assertThat(actual.serverDate, is(equalTo(expected.serverDate)));
+        assertThat(actual.softTtl, is(equalTo(expected.softTtl)));
+        assertThat(actual.ttl, is(equalTo(expected.ttl)));
+    }
+
+    private static Cache.Entry randomData(int length) {
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data); // explicit seed for reproducible results
+        entry.data = data;
+        entry.ttl = TimeUnit.DAYS.toMillis(1);
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.volley.BulkInvalidatableCache;
+import com.android.volley.Cache;
+import com.android.volley.CacheStats;
+import com.android.volley.MetadataUpdatableCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.SweepableCache;
+import java.io.ByteArrayInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TieredCacheTest {
+
+    private static final int MAX_MEMORY_BYTES = 4096;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Cache mBackingCache;
+    private TieredCache mCache;
+
+    @Before
+    public void setUp() {
+        mBackingCache = mock(Cache.class);
+        mCache = new TieredCache(mBackingCache, MAX_MEMORY_BYTES);
+    }
+
+    @Test
+    public void getServesRepeatedReadsFromMemory() {
+        Cache.Entry entry = entryOfSize(100);
+        when(mBackingCache.get("key")).thenReturn(entry);
+
+        assertThat(mCache.get("key").data, is(sameInstance(entry.data)));
+        assertThat(mCache.get("key").data, is(sameInstance(entry.data)));
+        assertThat(mCache.get("key").data, is(sameInstance(entry.data)));
+
+        verify(mBackingCache, times(1)).get("key");
+        assertThat(mCache.getMemoryHitCount(), is(2L));
+        assertThat(mCache.getMemoryMissCount(), is(1L));
+        assertThat(mCache.getBackingHitCount(), is(1L));
+        assertThat(mCache.getBackingMissCount(), is(0L));
+    }
+
+    @Test
+    public void getMissInBothTiers() {
+        assertThat(mCache.get("key"), is(nullValue()));
+        assertThat(mCache.get("key"), is(nullValue()));
+
+        verify(mBackingCache, times(2)).get("key");
+        assertThat(mCache.getMemoryMissCount(), is(2L));
+        assertThat(mCache.getBackingMissCount(), is(2L));
+    }
+
+    @Test
+    public void statsCombineBothTiers() {
+        DiskBasedCache backingCache =
+                new DiskBasedCache(temporaryFolder.getRoot(), /* maxCacheSizeInBytes= */ 65536);
+        backingCache.initialize();
+        TieredCache cache = new TieredCache(backingCache, MAX_MEMORY_BYTES);
+        cache.put("key", entryOfSize(100));
+
+        cache.get("key");
+        cache.get("key");
+        cache.get("missing");
+
+        CacheStats memoryStats = cache.getMemoryStats();
+        assertThat(memoryStats.getHitCount(), is(1L));
+        assertThat(memoryStats.getMissCount(), is(2L));
+        assertThat(memoryStats.getBytesRead(), is(100L));
+        CacheStats stats = cache.getStats();
+        assertThat(stats.getHitCount(), is(2L));
+        assertThat(stats.getMissCount(), is(1L));
+        assertThat(stats.getPutCount(), is(1L));
+        assertThat(stats.getBytesWritten(), is(backingCache.getStats().getBytesWritten()));
+        assertThat(stats.getBytesRead(), is(100L + backingCache.getStats().getBytesRead()));
+    }
+
+    @Test
+    public void memoryEvictionsAreRecorded() {
+        when(mBackingCache.get("key1")).thenReturn(entryOfSize(3000));
+        when(mBackingCache.get("key2")).thenReturn(entryOfSize(3000));
+
+        mCache.get("key1");
+        mCache.get("key2");
+
+        assertThat(mCache.getMemoryStats().getEvictionCount(), is(1L));
+        // Entries dropped from memory remain in the backing cache.
+        assertThat(mCache.getStats().getEvictionCount(), is(0L));
+    }
+
+    @Test
+    public void modifyingReturnedEntryDoesNotAffectMemory() {
+        Cache.Entry entry = entryOfSize(100);
+        entry.ttl = 1234L;
+        when(mBackingCache.get("key")).thenReturn(entry);
+
+        mCache.get("key").ttl = 0;
+        mCache.get("key").ttl = 0;
+
+        assertThat(mCache.get("key").ttl, is(1234L));
+    }
+
+    @Test
+    public void putWritesThroughAndDropsMemoryEntry() {
+        Cache.Entry oldEntry = entryOfSize(100);
+        Cache.Entry newEntry = entryOfSize(200);
+        when(mBackingCache.get("key")).thenReturn(oldEntry);
+        mCache.get("key");
+
+        mCache.put("key", newEntry);
+        when(mBackingCache.get("key")).thenReturn(newEntry);
+
+        verify(mBackingCache).put("key", newEntry);
+        assertThat(mCache.get("key").data, is(sameInstance(newEntry.data)));
+        assertThat(mCache.getMemorySizeBytes() > 0, is(true));
+    }
+
+    @Test
+    public void invalidateRemoveAndClearDropMemoryEntries() {
+        when(mBackingCache.get("key")).thenReturn(entryOfSize(100));
+
+        mCache.get("key");
+        mCache.invalidate("key", true);
+        mCache.get("key");
+        mCache.remove("key");
+        mCache.get("key");
+        mCache.clear();
+        mCache.get("key");
+
+        verify(mBackingCache).invalidate("key", true);
+        verify(mBackingCache).remove("key");
+        verify(mBackingCache).clear();
+        verify(mBackingCache, times(4)).get("key");
+        assertThat(mCache.getMemoryHitCount(), is(0L));
+    }
+
+    @Test
+    public void invalidatePrefixUsesBackingCacheSupport() {
+        BulkInvalidatableCache backingCache = mock(BulkInvalidatableCache.class);
+        when(backingCache.get("prefix/key")).thenReturn(entryOfSize(100));
+        when(backingCache.invalidatePrefix("prefix/", true)).thenReturn(3);
+        TieredCache cache = new TieredCache(backingCache, MAX_MEMORY_BYTES);
+        cache.get("prefix/key");
+
+        assertThat(cache.invalidatePrefix("prefix/", true), is(3));
+        cache.get("prefix/key");
+
+        verify(backingCache, times(2)).get("prefix/key");
+    }
+
+    @Test
+    public void invalidatePrefixFallsBackToEntriesInMemory() {
+        when(mBackingCache.get("prefix/key")).thenReturn(entryOfSize(100));
+        when(mBackingCache.get("other")).thenReturn(entryOfSize(100));
+        mCache.get("prefix/key");
+        mCache.get("other");
+
+        assertThat(mCache.invalidatePrefix("prefix/", false), is(1));
+        mCache.get("prefix/key");
+        mCache.get("other");
+
+        verify(mBackingCache).invalidate("prefix/key", false);
+        verify(mBackingCache, never()).invalidate("other", false);
+        verify(mBackingCache, times(2)).get("prefix/key");
+        verify(mBackingCache, times(1)).get("other");
+    }
+
+    @Test
+    public void updateMetadataUsesBackingCacheSupport() {
+        MetadataUpdatableCache backingCache = mock(MetadataUpdatableCache.class);
+        TieredCache cache = new TieredCache(backingCache, MAX_MEMORY_BYTES);
+        Cache.Entry entry = entryOfSize(100);
+
+        cache.updateMetadata("key", entry);
+
+        verify(backingCache).updateMetadata("key", entry);
+    }
+
+    @Test
+    public void updateMetadataFallsBackToPut() {
+        Cache.Entry entry = entryOfSize(100);
+
+        mCache.updateMetadata("key", entry);
+
+        verify(mBackingCache).put("key", entry);
+    }
+
+    @Test
+    public void readRacingWithWriteIsNotKeptInMemory() {
+        final Cache.Entry oldEntry = entryOfSize(100);
+        final Cache.Entry newEntry = entryOfSize(100);
+        when(mBackingCache.get("key"))
+                .thenAnswer(
+                        new Answer<Cache.Entry>() {
+                            @Override
+                            public Cache.Entry answer(InvocationOnMock invocation) {
+                                // The entry is replaced after the backing cache has been read.
+                                mCache.put("key", newEntry);
+                                return oldEntry;
+                            }
+                        })
+                .thenReturn(newEntry);
+
+        assertThat(mCache.get("key").data, is(sameInstance(oldEntry.data)));
+        assertThat(mCache.get("key").data, is(sameInstance(newEntry.data)));
+        assertThat(mCache.get("key").data, is(sameInstance(newEntry.data)));
+
+        verify(mBackingCache, times(2)).get("key");
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        // Each entry takes a bit over a third of the memory budget.
+        for (int i = 0; i < 3; i++) {
+            when(mBackingCache.get("key" + i)).thenReturn(entryOfSize(MAX_MEMORY_BYTES / 3));
+        }
+        mCache.get("key0");
+        mCache.get("key1");
+        mCache.get("key0");
+        mCache.get("key2");
+
+        // key1 was the least recently used entry.
+        mCache.get("key0");
+        mCache.get("key2");
+        mCache.get("key1");
+
+        verify(mBackingCache, times(1)).get("key0");
+        verify(mBackingCache, times(2)).get("key1");
+        verify(mBackingCache, times(1)).get("key2");
+        assertThat(mCache.getMemorySizeBytes() <= MAX_MEMORY_BYTES, is(true));
+    }
+
+    @Test
+    public void entriesLargerThanMemoryAreNotKept() {
+        when(mBackingCache.get("key")).thenReturn(entryOfSize(MAX_MEMORY_BYTES));
+
+        mCache.get("key");
+        mCache.get("key");
+
+        verify(mBackingCache, times(2)).get("key");
+        assertThat(mCache.getMemorySizeBytes(), is(0L));
+    }
+
+    @Test
+    public void sweepSweepsBackingCache() {
+        SweepableCache backingCache = mock(SweepableCache.class);
+        TieredCache cache = new TieredCache(backingCache, MAX_MEMORY_BYTES);
+
+        cache.sweep();
+
+        verify(backingCache).sweep();
+    }
+
+    @Test
+    public void getStreamServesMemoryEntry() throws Exception {
+        StreamingCache backingCache = mock(StreamingCache.class);
+        TieredCache cache = new TieredCache(backingCache, MAX_MEMORY_BYTES);
+        Cache.Entry entry = entryOfSize(100);
+        entry.data[0] = 42;
+        when(backingCache.get("key")).thenReturn(entry);
+        cache.get("key");
+
+        StreamingCache.StreamEntry streamEntry = cache.getStream("key");
+
+        assertThat(streamEntry.length, is(100L));
+        assertThat(streamEntry.body.read(), is(42));
+        verify(backingCache, never()).getStream("key");
+        assertThat(cache.getMemoryHitCount(), is(1L));
+    }
+
+    @Test
+    public void getStreamStreamsFromBackingCacheWithoutKeepingEntry() {
+        StreamingCache backingCache = mock(StreamingCache.class);
+        TieredCache cache = new TieredCache(backingCache, MAX_MEMORY_BYTES);
+        Cache.Entry entry = entryOfSize(100);
+        StreamingCache.StreamEntry streamEntry =
+                new StreamingCache.StreamEntry(
+                        entry, new ByteArrayInputStream(entry.data), entry.data.length);
+        when(backingCache.getStream("key")).thenReturn(streamEntry);
+
+        assertThat(cache.getStream("key"), is(sameInstance(streamEntry)));
+        assertThat(cache.getStream("missing"), is(nullValue()));
+
+        assertThat(cache.getMemorySizeBytes(), is(0L));
+        assertThat(cache.getBackingHitCount(), is(1L));
+        assertThat(cache.getBackingMissCount(), is(1L));
+    }
+
+    @Test
+    public void getStreamWrapsEntryOfNonStreamingBackingCache() throws Exception {
+        Cache.Entry entry = entryOfSize(100);
+        entry.data[0] = 42;
+        when(mBackingCache.get("key")).thenReturn(entry);
+
+        StreamingCache.StreamEntry streamEntry = mCache.getStream("key");
+
+        assertThat(streamEntry.body.read(), is(42));
+        assertThat(mCache.getStream("missing"), is(nullValue()));
+    }
+
+    @Test
+    public void initializeInitializesBackingCache() {
+        mCache.initialize();
+
+        verify(mBackingCache).initialize();
+    }
+
+    private static Cache.Entry entryOfSize(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        return entry;
+    }
+}
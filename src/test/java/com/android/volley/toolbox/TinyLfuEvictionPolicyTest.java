@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TinyLfuEvictionPolicyTest {
+
+    private static final EvictionPolicy.KeyFilter ALL_KEYS =
+            new EvictionPolicy.KeyFilter() {
+                @Override
+                public boolean accept(String key) {
+                    return true;
+                }
+            };
+
+    @Test
+    public void emptyPolicyHasNoVictim() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+
+        assertThat(policy.selectVictim(ALL_KEYS), is(nullValue()));
+    }
+
+    @Test
+    public void newEntryIsEvictedRatherThanFrequentlyUsedEntry() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+        put(policy, "hot", 100);
+        for (int i = 0; i < 3; i++) {
+            policy.onGet("hot", true);
+        }
+        put(policy, "new", 100);
+
+        assertThat(evict(policy), is("new"));
+        assertThat(evict(policy), is("hot"));
+    }
+
+    @Test
+    public void newEntryUsedMoreOftenIsAdmitted() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+        put(policy, "old", 100);
+        policy.onGet("old", true);
+        put(policy, "new", 100);
+        // The new entry was requested repeatedly while it wasn't cached.
+        policy.onGet("new", false);
+        policy.onGet("new", false);
+
+        assertThat(evict(policy), is("old"));
+        assertThat(evict(policy), is("new"));
+    }
+
+    @Test
+    public void largeEntryCannotDisplaceSeveralPopularEntries() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+        for (int i = 0; i < 3; i++) {
+            put(policy, "small" + i, 100);
+        }
+        // small0 is used less often than the new entries, the other ones more often. It is also
+        // demoted to probation as the protected segment overflows.
+        policy.onGet("small0", true);
+        for (int i = 0; i < 3; i++) {
+            policy.onGet("small1", true);
+            policy.onGet("small2", true);
+        }
+
+        put(policy, "large", 250);
+        policy.onGet("large", false);
+        policy.onGet("large", false);
+        assertThat(evict(policy), is("large"));
+
+        put(policy, "small", 100);
+        policy.onGet("small", false);
+        policy.onGet("small", false);
+        assertThat(evict(policy), is("small0"));
+    }
+
+    @Test
+    public void removedAndClearedEntriesAreNotVictims() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+        put(policy, "key1", 100);
+        put(policy, "key2", 100);
+        policy.onRemove("key1");
+
+        assertThat(evict(policy), is("key2"));
+        assertThat(policy.selectVictim(ALL_KEYS), is(nullValue()));
+
+        put(policy, "key3", 100);
+        policy.onClear();
+        assertThat(policy.selectVictim(ALL_KEYS), is(nullValue()));
+    }
+
+    @Test
+    public void entriesRejectedByFilterKeepTheirSegment() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy();
+        put(policy, "hot", 100);
+        put(policy, "other", 100);
+        put(policy, "new", 100);
+        policy.onGet("hot", true);
+        EvictionPolicy.KeyFilter notHot =
+                new EvictionPolicy.KeyFilter() {
+                    @Override
+                    public boolean accept(String key) {
+                        return !key.equals("hot");
+                    }
+                };
+
+        assertThat(evict(policy, notHot), is("other"));
+        assertThat(evict(policy, notHot), is("new"));
+        assertThat(policy.selectVictim(notHot), is(nullValue()));
+        assertThat(policy.isProtected("hot"), is(true));
+    }
+
+    @Test
+    public void sketchCountsAccessesUpToLimit() {
+        FrequencySketch sketch = new FrequencySketch();
+        assertThat(sketch.frequency("key"), is(0));
+
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("key");
+        }
+        assertThat(sketch.frequency("key"), is(10));
+
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("key");
+        }
+        assertThat(sketch.frequency("key"), is(15));
+
+        sketch.clear();
+        assertThat(sketch.frequency("key"), is(0));
+    }
+
+    /** Simulates a cache miss followed by a write of the entry. */
+    private static void put(TinyLfuEvictionPolicy policy, String key, long sizeBytes) {
+        policy.onGet(key, false);
+        policy.onPut(key, sizeBytes);
+    }
+
+    private static String evict(TinyLfuEvictionPolicy policy) {
+        return evict(policy, ALL_KEYS);
+    }
+
+    private static String evict(TinyLfuEvictionPolicy policy, EvictionPolicy.KeyFilter filter) {
+        String victim = policy.selectVictim(filter);
+        policy.onRemove(victim);
+        return victim;
+    }
+}
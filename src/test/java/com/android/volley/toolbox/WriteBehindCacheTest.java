@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.android.volley.BulkInvalidatableCache;
+import com.android.volley.BulkInvalidatableCache.KeyFilter;
+import com.android.volley.Cache;
+import com.android.volley.CacheStats;
+import com.android.volley.ConcurrentlyInitializableCache;
+import com.android.volley.InstrumentedCache;
+import com.android.volley.MetadataUpdatableCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.StreamingPutCache;
+import com.android.volley.StreamingPutCache.PendingEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class WriteBehindCacheTest {
+
+    private static final long MAX_PENDING_BYTES = 1000;
+
+    private MetadataUpdatableCache mBackingCache;
+    private WriteBehindCache mCache;
+
+    /** Counted down once the writer thread is blocked writing the "blocking" key. */
+    private final CountDownLatch mWriterBlocked = new CountDownLatch(1);
+    /** Unblocks the writer thread. */
+    private final CountDownLatch mReleaseWriter = new CountDownLatch(1);
+    /** The thread which wrote the "blocking" key. */
+    private volatile Thread mWriterThread;
+
+    @Before
+    public void setUp() {
+        mBackingCache =
+                mock(
+                        MetadataUpdatableCache.class,
+                        withSettings()
+                                .extraInterfaces(
+                                        BulkInvalidatableCache.class,
+                                        StreamingPutCache.class,
+                                        InstrumentedCache.class));
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) throws Throwable {
+                                mWriterThread = Thread.currentThread();
+                                mWriterBlocked.countDown();
+                                mReleaseWriter.await();
+                                return null;
+                            }
+                        })
+                .when(mBackingCache)
+                .put(eq("blocking"), any(Cache.Entry.class));
+        mCache = new WriteBehindCache(mBackingCache, MAX_PENDING_BYTES);
+    }
+
+    @Test
+    public void queuedWriteIsReadBeforeItIsWritten() throws Exception {
+        blockWriter();
+        Cache.Entry entry = entryOfSize(100);
+
+        mCache.put("key", entry);
+
+        assertThat(mCache.get("key").data, is(sameInstance(entry.data)));
+        verify(mBackingCache, never()).get("key");
+        verify(mBackingCache, never()).put(eq("key"), any(Cache.Entry.class));
+
+        mReleaseWriter.countDown();
+        mCache.flush();
+        verify(mBackingCache).put(eq("key"), any(Cache.Entry.class));
+        assertThat(mCache.getPendingBytes(), is(0L));
+        mCache.get("key");
+        verify(mBackingCache).get("key");
+    }
+
+    @Test
+    public void repeatedWritesAreCoalesced() throws Exception {
+        blockWriter();
+        Cache.Entry first = entryOfSize(100);
+        Cache.Entry second = entryOfSize(100);
+
+        mCache.put("key", first);
+        mCache.put("key", second);
+        mReleaseWriter.countDown();
+        mCache.flush();
+
+        ArgumentCaptor<Cache.Entry> written = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mBackingCache, times(1)).put(eq("key"), written.capture());
+        assertThat(written.getValue().data, is(sameInstance(second.data)));
+    }
+
+    @Test
+    public void queuedRemovalHidesEntry() throws Exception {
+        blockWriter();
+        mCache.put("key", entryOfSize(100));
+
+        mCache.remove("key");
+
+        assertThat(mCache.get("key"), is(nullValue()));
+        mReleaseWriter.countDown();
+        mCache.flush();
+        verify(mBackingCache, never()).put(eq("key"), any(Cache.Entry.class));
+        verify(mBackingCache).remove("key");
+    }
+
+    @Test
+    public void invalidateUpdatesQueuedWrite() throws Exception {
+        blockWriter();
+        Cache.Entry entry = entryOfSize(100);
+        entry.ttl = 1000;
+        entry.softTtl = 1000;
+        mCache.put("key", entry);
+
+        mCache.invalidate("key", /* fullExpire= */ true);
+        mReleaseWriter.countDown();
+        mCache.flush();
+
+        ArgumentCaptor<Cache.Entry> written = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mBackingCache).put(eq("key"), written.capture());
+        assertThat(written.getValue().ttl, is(0L));
+        assertThat(written.getValue().softTtl, is(0L));
+        verify(mBackingCache, never()).invalidate(anyString(), any(Boolean.class));
+        // The caller's entry is left alone.
+        assertThat(entry.ttl, is(1000L));
+    }
+
+    @Test
+    public void invalidateWithoutQueuedWriteGoesToBackingCache() {
+        mCache.invalidate("key", /* fullExpire= */ false);
+
+        verify(mBackingCache).invalidate("key", false);
+    }
+
+    @Test
+    public void metadataUpdateIsAppliedAsMetadataUpdate() throws Exception {
+        mCache.updateMetadata("key", entryOfSize(100));
+        mCache.flush();
+
+        verify(mBackingCache).updateMetadata(eq("key"), any(Cache.Entry.class));
+        verify(mBackingCache, never()).put(eq("key"), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void metadataUpdateOfQueuedWriteIsFullWrite() throws Exception {
+        blockWriter();
+        mCache.put("key", entryOfSize(100));
+
+        mCache.updateMetadata("key", entryOfSize(100));
+        mReleaseWriter.countDown();
+        mCache.flush();
+
+        verify(mBackingCache, times(1)).put(eq("key"), any(Cache.Entry.class));
+        verify(mBackingCache, never()).updateMetadata(anyString(), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void writeBlocksOnceBudgetIsExceeded() throws Exception {
+        blockWriter();
+        mCache.put("key1", entryOfSize(100));
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread writer =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        mCache.put("key2", entryOfSize(100));
+                        written.countDown();
+                    }
+                };
+        writer.start();
+
+        assertThat(written.await(100, TimeUnit.MILLISECONDS), is(false));
+        assertThat(mCache.getPendingBytes() <= MAX_PENDING_BYTES, is(true));
+
+        mReleaseWriter.countDown();
+        assertThat(written.await(5, TimeUnit.SECONDS), is(true));
+        mCache.flush();
+        verify(mBackingCache).put(eq("key2"), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void clearDropsQueuedWrites() throws Exception {
+        mCache.put("key", entryOfSize(100));
+
+        mCache.clear();
+
+        assertThat(mCache.get("key"), is(nullValue()));
+        assertThat(mCache.getPendingBytes(), is(0L));
+        verify(mBackingCache).clear();
+    }
+
+    @Test
+    public void invalidatePrefixAppliesToQueuedWrites() throws Exception {
+        blockWriter();
+        Cache.Entry entry = entryOfSize(10);
+        entry.ttl = 1000;
+        entry.softTtl = 1000;
+        mCache.put("prefix/queued", entry);
+        Cache.Entry other = entryOfSize(10);
+        other.ttl = 1000;
+        mCache.put("other", other);
+        when(((BulkInvalidatableCache) mBackingCache)
+                        .invalidateMatching(any(KeyFilter.class), eq(true)))
+                .thenReturn(2);
+
+        assertThat(mCache.invalidatePrefix("prefix/", /* fullExpire= */ true), is(3));
+
+        ArgumentCaptor<KeyFilter> filter = ArgumentCaptor.forClass(KeyFilter.class);
+        verify((BulkInvalidatableCache) mBackingCache)
+                .invalidateMatching(filter.capture(), eq(true));
+        assertThat(filter.getValue().apply("prefix/written"), is(true));
+        // The queued write replaces the entry of the backing cache, so it is left alone.
+        assertThat(filter.getValue().apply("prefix/queued"), is(false));
+        assertThat(filter.getValue().apply("other"), is(false));
+        assertThat(mCache.get("prefix/queued").ttl, is(0L));
+        assertThat(mCache.get("other").ttl, is(1000L));
+
+        mReleaseWriter.countDown();
+        mCache.flush();
+        ArgumentCaptor<Cache.Entry> written = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mBackingCache).put(eq("prefix/queued"), written.capture());
+        assertThat(written.getValue().ttl, is(0L));
+        assertThat(written.getValue().softTtl, is(0L));
+    }
+
+    @Test
+    public void invalidatePrefixWithoutQueuedWritesUsesPrefixOfBackingCache() {
+        when(((BulkInvalidatableCache) mBackingCache).invalidatePrefix("prefix/", false))
+                .thenReturn(2);
+
+        assertThat(mCache.invalidatePrefix("prefix/", /* fullExpire= */ false), is(2));
+    }
+
+    @Test
+    public void streamingPutReplacesEarlierQueuedWrite() throws Exception {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+        doAnswer(
+                        new Answer<Void>() {
+                            @Override
+                            public Void answer(InvocationOnMock invocation) {
+                                writes.add("put");
+                                return null;
+                            }
+                        })
+                .when(mBackingCache)
+                .put(eq("key"), any(Cache.Entry.class));
+        PendingEntry backingPendingEntry = mock(PendingEntry.class);
+        when(backingPendingEntry.commit(any(Cache.Entry.class)))
+                .thenAnswer(
+                        new Answer<Boolean>() {
+                            @Override
+                            public Boolean answer(InvocationOnMock invocation) {
+                                writes.add("commit");
+                                return true;
+                            }
+                        });
+        when(((StreamingPutCache) mBackingCache).startPut("key")).thenReturn(backingPendingEntry);
+        blockWriter();
+        mCache.put("key", entryOfSize(100));
+        final PendingEntry pendingEntry = mCache.startPut("key");
+        pendingEntry.write(new byte[100], 0, 100);
+        final Cache.Entry entry = entryOfSize(100);
+        Thread committer =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        pendingEntry.commit(entry);
+                    }
+                };
+
+        // The commit waits for the writer, which may or may not apply the queued write first.
+        committer.start();
+        mReleaseWriter.countDown();
+        committer.join(5000);
+        mCache.flush();
+
+        assertThat(writes.get(writes.size() - 1), is("commit"));
+        assertThat(mCache.getPendingBytes(), is(0L));
+        mCache.get("key");
+        verify(mBackingCache).get("key");
+    }
+
+    @Test
+    public void getStreamReadsQueuedWrite() throws Exception {
+        blockWriter();
+        mCache.put("key", entryOfSize(100));
+
+        StreamingCache.StreamEntry entry = mCache.getStream("key");
+
+        assertThat(entry.length, is(100L));
+        assertThat(entry.body.read(new byte[200]), is(100));
+        entry.close();
+        verify(mBackingCache, never()).get("key");
+    }
+
+    @Test
+    public void statsIncludeThoseOfBackingCache() throws Exception {
+        when(((InstrumentedCache) mBackingCache).getStats())
+                .thenReturn(new CacheStats.Builder().setEvictionCount(3).build());
+        blockWriter();
+        mCache.put("key", entryOfSize(100));
+
+        mCache.get("key");
+        mCache.get("missing");
+
+        CacheStats stats = mCache.getStats();
+        assertThat(stats.getHitCount(), is(1L));
+        assertThat(stats.getMissCount(), is(1L));
+        assertThat(stats.getPutCount(), is(2L));
+        assertThat(stats.getBytesRead(), is(100L));
+        assertThat(stats.getEvictionCount(), is(3L));
+    }
+
+    @Test
+    public void stopLetsWriterExitOnceQueuedWritesAreWritten() throws Exception {
+        blockWriter();
+        mCache.put("key", entryOfSize(100));
+
+        mCache.stop();
+        mReleaseWriter.countDown();
+        mWriterThread.join(5000);
+
+        assertThat(mWriterThread.isAlive(), is(false));
+        verify(mBackingCache).put(eq("key"), any(Cache.Entry.class));
+        // A later write starts a new writer.
+        mCache.put("later", entryOfSize(100));
+        mCache.flush();
+        verify(mBackingCache).put(eq("later"), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void createKeepsConcurrentInitialization() {
+        assertThat(
+                WriteBehindCache.create(mock(ConcurrentlyInitializableCache.class), 1000)
+                        instanceof ConcurrentlyInitializableCache,
+                is(true));
+        assertThat(
+                WriteBehindCache.create(mBackingCache, 1000)
+                        instanceof ConcurrentlyInitializableCache,
+                is(false));
+    }
+
+    /** Queues a write which blocks the writer thread until {@link #mReleaseWriter} is released. */
+    private void blockWriter() throws InterruptedException {
+        mCache.put("blocking", entryOfSize(100));
+        assertThat(mWriterBlocked.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    private static Cache.Entry entryOfSize(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        return entry;
+    }
+}